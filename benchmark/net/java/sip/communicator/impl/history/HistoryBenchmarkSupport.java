@@ -0,0 +1,331 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.fileaccess.*;
+
+/**
+ * Creates history services outside of OSGi and fills them with synthetic
+ * histories for the history benchmarks.
+ * <p>
+ * The generated records look like the records of the message history: a
+ * direction, a message made of words taken from a fixed vocabulary, a
+ * unique id and a contact. Records are one minute apart, starting at
+ * <tt>START_TIME</tt>, and every <tt>KEYWORD_PERIOD</tt>th message contains
+ * <tt>KEYWORD</tt>, so that keyword searches have a known selectivity.
+ */
+public class HistoryBenchmarkSupport
+{
+    /**
+     * The timestamp of the first generated record.
+     */
+    public static final long START_TIME = 1356998400000L;
+
+    /**
+     * The time between two generated records.
+     */
+    public static final long RECORD_INTERVAL = 60 * 1000;
+
+    /**
+     * A word contained in every <tt>KEYWORD_PERIOD</tt>th message.
+     */
+    public static final String KEYWORD = "benchmarkkeyword";
+
+    /**
+     * The period of the messages containing <tt>KEYWORD</tt>.
+     */
+    public static final int KEYWORD_PERIOD = 100;
+
+    /**
+     * The structure of the generated records.
+     */
+    public static final HistoryRecordStructure STRUCTURE
+        = new HistoryRecordStructure(
+            new String[] { "dir", "msg_CDATA", "uid", "contact" });
+
+    private static final String[] WORDS = new String[]
+    {
+        "hello", "world", "meeting", "tomorrow", "call", "later", "thanks",
+        "see", "you", "file", "sent", "ok", "lunch", "today", "where", "are",
+        "the", "slides", "review", "done", "busy", "now", "what", "about"
+    };
+
+    /**
+     * The root directory of the history files.
+     */
+    private final File directory;
+
+    /**
+     * The configuration of the created services.
+     */
+    private final Map<String, String> properties
+        = new HashMap<String, String>();
+
+    /**
+     * Creates the support of a benchmark keeping its histories in a new
+     * temporary directory.
+     *
+     * @throws IOException if the directory cannot be created
+     */
+    public HistoryBenchmarkSupport()
+        throws IOException
+    {
+        this.directory = File.createTempFile("history-benchmark", "");
+        if (!this.directory.delete() || !this.directory.mkdirs())
+            throw new IOException("Cannot create " + this.directory);
+
+        // the background compaction would skew the measurements
+        setProperty(HistoryCompactionService.COMPACTION_ENABLED_PROPERTY,
+            "false");
+    }
+
+    /**
+     * Sets a configuration property of the services created afterwards.
+     *
+     * @param name the name of the property
+     * @param value the value of the property
+     */
+    public void setProperty(String name, String value)
+    {
+        this.properties.put(name, value);
+    }
+
+    /**
+     * Configures the storage engine and the writer of the services created
+     * afterwards.
+     *
+     * @param storeType <tt>xml</tt> or <tt>segment</tt>
+     * @param asyncWrite whether records are written in the background
+     */
+    public void configure(String storeType, boolean asyncWrite)
+    {
+        setProperty(HistoryServiceImpl.STORE_TYPE_PROPERTY, storeType);
+        setProperty(HistoryServiceImpl.ASYNC_WRITE_ENABLED_PROPERTY,
+            Boolean.toString(asyncWrite));
+    }
+
+    /**
+     * Creates a history service reading the histories of this benchmark.
+     *
+     * @return the history service
+     * @throws Exception if the service cannot be created
+     */
+    public HistoryServiceImpl createService()
+        throws Exception
+    {
+        return new HistoryServiceImpl(
+            createConfigurationService(), new DirectoryFileAccessService());
+    }
+
+    /**
+     * Creates a history and writes <tt>recordCount</tt> generated records to
+     * it.
+     *
+     * @param service the history service
+     * @param id the ID of the history
+     * @param recordCount the number of records to write
+     * @return the history
+     * @throws IOException if the records cannot be written
+     */
+    public static History createHistory(HistoryServiceImpl service,
+                                        HistoryID id,
+                                        int recordCount)
+        throws IOException
+    {
+        History history = service.createHistory(id, STRUCTURE);
+        HistoryWriter writer = history.getWriter();
+        Random random = new Random(recordCount);
+
+        for (int i = 0; i < recordCount; i++)
+        {
+            writer.addRecord(createRecord(random, i),
+                new Date(START_TIME + i * RECORD_INTERVAL));
+        }
+        service.flush();
+        return history;
+    }
+
+    /**
+     * Generates the property values of the record with the given number.
+     *
+     * @param random the source of the message words
+     * @param number the number of the record
+     * @return the property values, in the order of <tt>STRUCTURE</tt>
+     */
+    public static String[] createRecord(Random random, int number)
+    {
+        StringBuilder message = new StringBuilder();
+        int wordCount = 3 + random.nextInt(20);
+
+        for (int i = 0; i < wordCount; i++)
+        {
+            if (i > 0)
+                message.append(' ');
+            message.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        if (number % KEYWORD_PERIOD == 0)
+            message.append(' ').append(KEYWORD);
+
+        return new String[]
+        {
+            (number % 2 == 0) ? "in" : "out",
+            message.toString(),
+            Long.toHexString(START_TIME) + "-" + number,
+            "contact" + (number % 10) + "@example.com"
+        };
+    }
+
+    /**
+     * Deletes the histories of this benchmark.
+     */
+    public void delete()
+    {
+        delete(this.directory);
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+
+        if (children != null)
+        {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    /**
+     * Creates a configuration service returning the properties of this
+     * benchmark and the defaults for all others.
+     *
+     * @return the configuration service
+     */
+    private ConfigurationService createConfigurationService()
+    {
+        final Map<String, String> config
+            = new HashMap<String, String>(this.properties);
+
+        return (ConfigurationService) Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[] { ConfigurationService.class },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    String name = method.getName();
+                    String value = (args != null && args.length > 0)
+                        ? config.get(String.valueOf(args[0]))
+                        : null;
+                    boolean hasDefault = args != null && args.length > 1;
+
+                    if (name.equals("getString"))
+                        return (value != null || !hasDefault) ? value : args[1];
+                    if (name.equals("getProperty"))
+                        return value;
+                    if (name.equals("getBoolean"))
+                        return (value != null) ? Boolean.valueOf(value) : args[1];
+                    if (name.equals("getInt"))
+                        return (value != null) ? Integer.valueOf(value) : args[1];
+                    if (name.equals("getLong"))
+                        return (value != null) ? Long.valueOf(value) : args[1];
+                    if (name.equals("setProperty"))
+                    {
+                        config.put(String.valueOf(args[0]),
+                            String.valueOf(args[1]));
+                        return null;
+                    }
+                    if (name.equals("removeProperty"))
+                    {
+                        config.remove(String.valueOf(args[0]));
+                        return null;
+                    }
+                    if (name.equals("hashCode"))
+                        return System.identityHashCode(proxy);
+                    if (name.equals("equals"))
+                        return proxy == args[0];
+
+                    Class<?> type = method.getReturnType();
+
+                    if (type == boolean.class)
+                        return Boolean.FALSE;
+                    if (type == int.class)
+                        return 0;
+                    if (type == long.class)
+                        return 0L;
+                    return null;
+                }
+            });
+    }
+
+    /**
+     * Keeps all files of the history service in the directory of the
+     * benchmark.
+     */
+    private class DirectoryFileAccessService
+        implements FileAccessService
+    {
+        public File getTemporaryFile()
+            throws IOException
+        {
+            return File.createTempFile("history", null, directory);
+        }
+
+        public File getTemporaryDirectory()
+            throws IOException
+        {
+            File file = getTemporaryFile();
+
+            file.delete();
+            file.mkdirs();
+            return file;
+        }
+
+        public File getPrivatePersistentFile(String fileName)
+        {
+            return new File(directory, fileName);
+        }
+
+        public File getPrivatePersistentFile(String fileName,
+                                             FileCategory category)
+        {
+            return getPrivatePersistentFile(fileName);
+        }
+
+        public File getPrivatePersistentDirectory(String dirName)
+        {
+            File dir = new File(directory, dirName);
+
+            dir.mkdirs();
+            return dir;
+        }
+
+        public File getPrivatePersistentDirectory(String dirName,
+                                                  FileCategory category)
+        {
+            return getPrivatePersistentDirectory(dirName);
+        }
+
+        public File getDefaultDownloadDirectory()
+        {
+            return directory;
+        }
+
+        public FailSafeTransaction createFailSafeTransaction(File file)
+        {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the heap kept by a history service after it opened
+ * <tt>historyCount</tt> histories of <tt>historySize</tt> records and ran
+ * the usual queries on each of them. The retained heap is reported as the
+ * <tt>retainedKilobytes</tt> secondary result; the primary result is the
+ * time taken to open and query the histories. Allocation rates of the
+ * other benchmarks are best measured with <tt>-prof gc</tt>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HistoryFootprintBenchmark
+{
+    @Param({ "xml", "segment" })
+    public String storeType;
+
+    @Param({ "false", "true" })
+    public boolean cacheEnabled;
+
+    @Param({ "20" })
+    public int historyCount;
+
+    @Param({ "1000" })
+    public int historySize;
+
+    private HistoryBenchmarkSupport support;
+
+    private HistoryServiceImpl service;
+
+    /**
+     * The heap retained by the history service of the last invocation.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint
+    {
+        public long retainedKilobytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp()
+        throws Exception
+    {
+        this.support = new HistoryBenchmarkSupport();
+        this.support.configure(this.storeType, true);
+        this.support.setProperty(HistoryService.CACHE_ENABLED_PROPERTY,
+            Boolean.toString(this.cacheEnabled));
+
+        HistoryServiceImpl writingService = this.support.createService();
+
+        for (int i = 0; i < this.historyCount; i++)
+        {
+            HistoryBenchmarkSupport.createHistory(writingService,
+                HistoryID.createFromRawID(
+                    new String[] { "benchmark", "contact" + i }),
+                this.historySize);
+        }
+        writingService.stop();
+    }
+
+    @TearDown(Level.Invocation)
+    public void stopService()
+    {
+        if (this.service != null)
+        {
+            this.service.stop();
+            this.service = null;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        this.support.delete();
+    }
+
+    @Benchmark
+    public void openAndQuery(Footprint footprint)
+        throws Exception
+    {
+        long before = getUsedHeap();
+
+        this.service = this.support.createService();
+
+        Iterator<HistoryID> ids = this.service.getExistingIDs();
+
+        while (ids.hasNext())
+        {
+            HistoryReader reader = this.service.getHistory(ids.next())
+                .getReader();
+
+            consume(reader.findLast(20));
+            consume(reader.findByKeyword(
+                HistoryBenchmarkSupport.KEYWORD, "msg"));
+        }
+
+        footprint.retainedKilobytes = (getUsedHeap() - before) / 1024;
+    }
+
+    private static void consume(QueryResultSet<HistoryRecord> records)
+    {
+        while (records.hasNext())
+            records.next();
+    }
+
+    /**
+     * Returns the heap used after a full garbage collection.
+     *
+     * @return the used heap in bytes
+     */
+    private static long getUsedHeap()
+    {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+        for (int i = 0; i < 3; i++)
+            memory.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+/**
+ * Measures the latency of the queries of <tt>HistoryReader</tt> on a
+ * generated history of <tt>historySize</tt> records. The history is opened
+ * by a new history service before the measurements, so the first iteration
+ * includes loading the indexes of the history.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryReadBenchmark
+{
+    @Param({ "xml", "segment" })
+    public String storeType;
+
+    @Param({ "false", "true" })
+    public boolean cacheEnabled;
+
+    @Param({ "1000", "10000", "100000" })
+    public int historySize;
+
+    private HistoryBenchmarkSupport support;
+
+    private HistoryServiceImpl service;
+
+    private HistoryReader reader;
+
+    private final Random random = new Random(1);
+
+    @Setup(Level.Trial)
+    public void setUp()
+        throws Exception
+    {
+        HistoryID id
+            = HistoryID.createFromRawID(new String[] { "benchmark", "read" });
+
+        this.support = new HistoryBenchmarkSupport();
+        this.support.configure(this.storeType, true);
+        this.support.setProperty(HistoryService.CACHE_ENABLED_PROPERTY,
+            Boolean.toString(this.cacheEnabled));
+
+        HistoryServiceImpl writingService = this.support.createService();
+
+        HistoryBenchmarkSupport.createHistory(
+            writingService, id, this.historySize);
+        writingService.stop();
+
+        this.service = this.support.createService();
+        this.service.getExistingIDs();
+        this.reader = this.service.getHistory(id).getReader();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        this.service.stop();
+        this.support.delete();
+    }
+
+    /**
+     * The last 20 records, e.g. the messages shown when a chat is opened.
+     */
+    @Benchmark
+    public void findLast(Blackhole blackhole)
+    {
+        consume(this.reader.findLast(20), blackhole);
+    }
+
+    /**
+     * The records of one hour at a random position in the history.
+     */
+    @Benchmark
+    public void findByPeriod(Blackhole blackhole)
+    {
+        long start = HistoryBenchmarkSupport.START_TIME
+            + this.random.nextInt(this.historySize)
+                * HistoryBenchmarkSupport.RECORD_INTERVAL;
+
+        consume(this.reader.findByPeriod(
+                new Date(start), new Date(start + 60 * 60 * 1000)),
+            blackhole);
+    }
+
+    /**
+     * A keyword contained in one message out of
+     * <tt>HistoryBenchmarkSupport.KEYWORD_PERIOD</tt>.
+     */
+    @Benchmark
+    public void findByKeyword(Blackhole blackhole)
+    {
+        consume(this.reader.findByKeyword(
+                HistoryBenchmarkSupport.KEYWORD, "msg"),
+            blackhole);
+    }
+
+    /**
+     * A keyword contained in most messages.
+     */
+    @Benchmark
+    public void findByFrequentKeyword(Blackhole blackhole)
+    {
+        consume(this.reader.findByKeyword("the", "msg"), blackhole);
+    }
+
+    private static void consume(QueryResultSet<HistoryRecord> records,
+                                Blackhole blackhole)
+    {
+        while (records.hasNext())
+            blackhole.consume(records.next());
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.history.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the throughput of <tt>HistoryWriter.addRecord</tt> into a
+ * history which already holds <tt>historySize</tt> records. Records are
+ * added in batches and the history is flushed at the end of every batch,
+ * inside the measured method, so that the time the asynchronous writer takes
+ * to write the records is measured as well.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryWriteBenchmark
+{
+    /**
+     * The number of records added before the history is flushed.
+     */
+    private static final int BATCH_SIZE = 100;
+
+    @Param({ "xml", "segment" })
+    public String storeType;
+
+    @Param({ "false", "true" })
+    public boolean asyncWrite;
+
+    @Param({ "1000" })
+    public int historySize;
+
+    private HistoryBenchmarkSupport support;
+
+    private HistoryServiceImpl service;
+
+    private HistoryWriter writer;
+
+    private final Random random = new Random(1);
+
+    private int recordNumber;
+
+    @Setup(Level.Trial)
+    public void setUp()
+        throws Exception
+    {
+        this.support = new HistoryBenchmarkSupport();
+        this.support.configure(this.storeType, this.asyncWrite);
+        this.service = this.support.createService();
+
+        History history = HistoryBenchmarkSupport.createHistory(
+            this.service,
+            HistoryID.createFromRawID(new String[] { "benchmark", "write" }),
+            this.historySize);
+
+        this.writer = history.getWriter();
+        this.recordNumber = this.historySize;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        this.service.stop();
+        this.support.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void addRecords()
+        throws Exception
+    {
+        for (int i = 0; i < BATCH_SIZE; i++)
+        {
+            int number = this.recordNumber++;
+
+            this.writer.addRecord(
+                HistoryBenchmarkSupport.createRecord(this.random, number),
+                new Date(HistoryBenchmarkSupport.START_TIME
+                    + number * HistoryBenchmarkSupport.RECORD_INTERVAL));
+        }
+        this.service.flush();
+    }
+}
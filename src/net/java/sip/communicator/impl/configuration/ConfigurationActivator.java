@@ -37,6 +37,16 @@ public class ConfigurationActivator
      */
     private ConfigurationService cs;
 
+    /**
+     * The profiler of {@link #cs} if profiling is enabled.
+     */
+    private ConfigurationProfiler profiler;
+
+    /**
+     * The file access service used to write the profile.
+     */
+    private FileAccessService fas;
+
     /**
      * Starts the configuration service
      *
@@ -49,6 +59,7 @@ public class ConfigurationActivator
     {
         FileAccessService fas
             = ServiceUtils.getService(bundleContext, FileAccessService.class);
+        this.fas = fas;
         if (fas != null)
         {
             File useDatabaseConfig = fas.getPrivatePersistentFile(
@@ -59,16 +70,31 @@ public class ConfigurationActivator
             if (useDatabaseConfig.exists())
             {
                 logger.info("Using database configuration store.");
+
+                // all properties are loaded with a single query here, so
+                // the reads of the other bundles do not hit the database
+                long start = System.currentTimeMillis();
                 this.cs = new JdbcConfigService(fas);
+                if (logger.isInfoEnabled())
+                {
+                    logger.info("Loaded the configuration in "
+                        + (System.currentTimeMillis() - start) + " ms.");
+                }
             }
         }
 
         if (this.cs == null)
             this.cs = LibJitsi.getConfigurationService();
 
+        if (ConfigurationProfiler.isEnabled())
+        {
+            logger.info("Profiling the configuration accesses.");
+            this.profiler = new ConfigurationProfiler(this.cs);
+        }
+
         bundleContext.registerService(
                 ConfigurationService.class.getName(),
-                this.cs,
+                this.profiler == null ? this.cs : this.profiler.getService(),
                 null);
 
         fixPermissions(this.cs);
@@ -88,6 +114,24 @@ public class ConfigurationActivator
     {
         this.cs.storeConfiguration();
         this.cs = null;
+
+        if (this.profiler != null && this.fas != null)
+        {
+            File file = this.fas.getPrivatePersistentFile(
+                ConfigurationProfiler.PROFILE_FILE_NAME,
+                FileCategory.LOG);
+            try
+            {
+                this.profiler.dump(file);
+            }
+            catch (IOException e)
+            {
+                logger.error("Could not write " + file, e);
+            }
+        }
+
+        this.profiler = null;
+        this.fas = null;
     }
 
     /**
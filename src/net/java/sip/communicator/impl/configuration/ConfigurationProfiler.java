@@ -0,0 +1,323 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.configuration;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jitsi.service.configuration.*;
+import org.osgi.framework.*;
+
+/**
+ * Wraps a <tt>ConfigurationService</tt> and counts the reads and writes of
+ * every property and of every bundle calling the service, together with the
+ * time spent in them. Enabled with the {@link #PNAME_PROFILE} system property,
+ * to find out which bundles dominate the configuration accesses at startup.
+ */
+class ConfigurationProfiler
+    implements InvocationHandler
+{
+    /**
+     * The name of the system property enabling the profiler.
+     */
+    static final String PNAME_PROFILE
+        = "net.java.sip.communicator.impl.configuration.PROFILE";
+
+    /**
+     * The name of the file in the log directory the statistics are written
+     * to when the configuration service stops.
+     */
+    static final String PROFILE_FILE_NAME = "config-profile.txt";
+
+    /**
+     * The name used for callers not loaded by a bundle.
+     */
+    private static final String UNKNOWN_BUNDLE = "<none>";
+
+    /**
+     * The names of the methods of <tt>ConfigurationService</tt> reading a
+     * property given as first argument.
+     */
+    private static final Set<String> READ_METHODS
+        = new HashSet<String>(Arrays.asList(
+            "getProperty", "getString", "getBoolean", "getInt", "getLong"));
+
+    /**
+     * The names of the methods of <tt>ConfigurationService</tt> changing
+     * properties.
+     */
+    private static final Set<String> WRITE_METHODS
+        = new HashSet<String>(Arrays.asList(
+            "setProperty", "setProperties", "removeProperty"));
+
+    /**
+     * The profiled service.
+     */
+    private final ConfigurationService service;
+
+    /**
+     * The proxy counting the calls to {@link #service}.
+     */
+    private final ConfigurationService proxy;
+
+    /**
+     * The statistics by property name.
+     */
+    private final ConcurrentMap<String, Counter> properties
+        = new ConcurrentHashMap<String, Counter>();
+
+    /**
+     * The statistics by symbolic name of the calling bundle.
+     */
+    private final ConcurrentMap<String, Counter> bundles
+        = new ConcurrentHashMap<String, Counter>();
+
+    /**
+     * Finds the class calling the service.
+     */
+    private final CallerResolver callerResolver = new CallerResolver();
+
+    /**
+     * The time at which profiling started.
+     */
+    private final long startTime = System.currentTimeMillis();
+
+    /**
+     * Creates a profiler of <tt>service</tt>.
+     *
+     * @param service the service to profile
+     */
+    ConfigurationProfiler(ConfigurationService service)
+    {
+        this.service = service;
+        this.proxy = (ConfigurationService) Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[] { ConfigurationService.class },
+            this);
+    }
+
+    /**
+     * Returns whether profiling was enabled for this run.
+     *
+     * @return <tt>true</tt> if the configuration service is to be profiled
+     */
+    static boolean isEnabled()
+    {
+        return Boolean.getBoolean(PNAME_PROFILE);
+    }
+
+    /**
+     * Returns the configuration service counting the calls.
+     *
+     * @return the service to register instead of the profiled one
+     */
+    ConfigurationService getService()
+    {
+        return this.proxy;
+    }
+
+    /**
+     * Calls the profiled service and counts the call if it reads or writes
+     * properties. Listener registrations and the other methods are not
+     * counted.
+     */
+    public Object invoke(Object proxy, Method method, Object[] args)
+        throws Throwable
+    {
+        String name = method.getName();
+        boolean write = WRITE_METHODS.contains(name);
+        boolean read = READ_METHODS.contains(name);
+
+        long start = System.nanoTime();
+        try
+        {
+            return method.invoke(this.service, args);
+        }
+        catch (InvocationTargetException e)
+        {
+            throw e.getCause();
+        }
+        finally
+        {
+            if (read || write)
+            {
+                long time = System.nanoTime() - start;
+                String property = (args != null && args.length > 0
+                        && args[0] instanceof String)
+                    ? (String) args[0]
+                    : name + "()";
+
+                getCounter(this.properties, property).add(write, time);
+                getCounter(this.bundles, getCallingBundle()).add(write, time);
+            }
+        }
+    }
+
+    /**
+     * Writes the statistics, the most expensive first, to <tt>file</tt>.
+     *
+     * @param file the file to write to
+     * @throws IOException if the file cannot be written
+     */
+    void dump(File file)
+        throws IOException
+    {
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try
+        {
+            out.println("Configuration accesses during "
+                + (System.currentTimeMillis() - this.startTime) + " ms");
+            out.println();
+            dump(out, "Bundle", this.bundles);
+            out.println();
+            dump(out, "Property", this.properties);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private static void dump(PrintWriter out, String title,
+        Map<String, Counter> counters)
+    {
+        // the counters may still be updated by other threads, sort copies
+        List<Map.Entry<String, Counter>> entries
+            = new ArrayList<Map.Entry<String, Counter>>(counters.size());
+        for (Map.Entry<String, Counter> e : counters.entrySet())
+        {
+            entries.add(new AbstractMap.SimpleImmutableEntry<String, Counter>(
+                e.getKey(), e.getValue().copy()));
+        }
+
+        Collections.sort(entries, new Comparator<Map.Entry<String, Counter>>()
+        {
+            public int compare(Map.Entry<String, Counter> e1,
+                Map.Entry<String, Counter> e2)
+            {
+                long t1 = e1.getValue().getTotalNanos();
+                long t2 = e2.getValue().getTotalNanos();
+                return t1 < t2 ? 1 : (t1 == t2 ? 0 : -1);
+            }
+        });
+
+        out.println(String.format("%10s %10s %12s %12s %10s  %s",
+            "reads", "writes", "read us", "write us", "max us", title));
+        for (Map.Entry<String, Counter> e : entries)
+        {
+            Counter c = e.getValue();
+            out.println(String.format("%10d %10d %12d %12d %10d  %s",
+                c.reads, c.writes, c.readNanos / 1000, c.writeNanos / 1000,
+                c.maxNanos / 1000, e.getKey()));
+        }
+    }
+
+    private static Counter getCounter(ConcurrentMap<String, Counter> counters,
+        String key)
+    {
+        Counter counter = counters.get(key);
+        if (counter == null)
+        {
+            counter = new Counter();
+            Counter existing = counters.putIfAbsent(key, counter);
+            if (existing != null)
+            {
+                counter = existing;
+            }
+        }
+
+        return counter;
+    }
+
+    /**
+     * Returns the symbolic name of the bundle of the class calling the
+     * service.
+     *
+     * @return the name of the calling bundle
+     */
+    private String getCallingBundle()
+    {
+        for (Class<?> c : this.callerResolver.getCallers())
+        {
+            if (c == CallerResolver.class
+                || c == ConfigurationProfiler.class
+                || Proxy.isProxyClass(c)
+                || c.getName().startsWith("java.lang.reflect.")
+                || c.getName().startsWith("sun.reflect."))
+            {
+                continue;
+            }
+
+            Bundle bundle = FrameworkUtil.getBundle(c);
+            return bundle == null ? UNKNOWN_BUNDLE : bundle.getSymbolicName();
+        }
+
+        return UNKNOWN_BUNDLE;
+    }
+
+    /**
+     * The counts and times of the accesses to a property or by a bundle.
+     */
+    private static class Counter
+    {
+        long reads;
+
+        long writes;
+
+        long readNanos;
+
+        long writeNanos;
+
+        long maxNanos;
+
+        synchronized void add(boolean write, long nanos)
+        {
+            if (write)
+            {
+                this.writes++;
+                this.writeNanos += nanos;
+            }
+            else
+            {
+                this.reads++;
+                this.readNanos += nanos;
+            }
+
+            this.maxNanos = Math.max(this.maxNanos, nanos);
+        }
+
+        synchronized long getTotalNanos()
+        {
+            return this.readNanos + this.writeNanos;
+        }
+
+        synchronized Counter copy()
+        {
+            Counter copy = new Counter();
+            copy.reads = this.reads;
+            copy.writes = this.writes;
+            copy.readNanos = this.readNanos;
+            copy.writeNanos = this.writeNanos;
+            copy.maxNanos = this.maxNanos;
+            return copy;
+        }
+    }
+
+    /**
+     * Exposes the classes on the call stack.
+     */
+    private static class CallerResolver
+        extends SecurityManager
+    {
+        Class<?>[] getCallers()
+        {
+            return getClassContext();
+        }
+    }
+}
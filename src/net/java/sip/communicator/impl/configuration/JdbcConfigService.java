@@ -11,6 +11,7 @@ import java.io.*;
 import java.sql.*;
 import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.locks.*;
 
 import org.jitsi.service.configuration.*;
 import org.jitsi.service.fileaccess.*;
@@ -20,6 +21,17 @@ import com.google.common.collect.*;
 
 /**
  * Implementation of the {@link ConfigurationService} based on JDBC.
+ * <p>
+ * Reads are served from an immutable in-memory snapshot of the
+ * <tt>Props</tt> table without locking or querying the database. Writes
+ * publish a new snapshot and are written to the database in the background,
+ * once no property was changed for {@link #PNAME_WRITE_DELAY} milliseconds,
+ * and when the configuration is stored. A write which fails is retried
+ * every {@link #RETRY_WRITE_DELAY} milliseconds.
+ * <p>
+ * The changes of {@link #setProperties(Map)} and
+ * {@link #removeProperty(String)} are made in one transaction: they become
+ * visible to other threads, and their change events are fired, all at once.
  * 
  * @author Ingo Bauersachs
  */
@@ -32,6 +44,31 @@ public final class JdbcConfigService
     private final Logger logger
         = Logger.getLogger(JdbcConfigService.class);
 
+    /**
+     * The name of the property holding the number of milliseconds without any
+     * change after which the changed properties are written to the database.
+     * With <tt>0</tt> every change is written immediately.
+     */
+    public static final String PNAME_WRITE_DELAY
+        = "net.java.sip.communicator.impl.configuration.WRITE_DELAY";
+
+    /**
+     * The default value of {@link #PNAME_WRITE_DELAY}.
+     */
+    private static final long DEFAULT_WRITE_DELAY = 500;
+
+    /**
+     * The longest time changes are kept in memory while properties keep
+     * being changed.
+     */
+    private static final long MAX_WRITE_DELAY = 5000;
+
+    /**
+     * The number of milliseconds after which a write which failed is
+     * attempted again.
+     */
+    private static final long RETRY_WRITE_DELAY = 5000;
+
     /**
      * Name of the file containing default properties.
      */
@@ -76,14 +113,62 @@ public final class JdbcConfigService
     private SetMultimap<String, PropertyChangeListener> listeners
         = HashMultimap.create();
 
+    /**
+     * An immutable copy of the <tt>Props</tt> table, replaced as a whole
+     * after every change of the database.
+     */
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+    /**
+     * Held by the thread changing properties, from the beginning to the end
+     * of its transaction.
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    /**
+     * The transaction of the thread holding {@link #writeLock}, or
+     * <tt>null</tt>.
+     */
+    private Transaction transaction;
+
+    /**
+     * The changes not written to the database yet, by property name. A
+     * <tt>null</tt> value deletes the property.
+     */
+    private final Map<String, String> pendingWrites
+        = new LinkedHashMap<String, String>();
+
+    /**
+     * The time of the oldest change in {@link #pendingWrites}.
+     */
+    private long firstPendingWrite;
+
+    /**
+     * The timer writing the pending changes in the background.
+     */
+    private Timer writeTimer;
+
+    /**
+     * The scheduled write of the pending changes.
+     */
+    private TimerTask writeTask;
+
+    /**
+     * The value of {@link #PNAME_WRITE_DELAY}.
+     */
+    private long writeDelay;
+
+    /**
+     * Synchronizes the statements executed against the database.
+     */
+    private final Object databaseLock = new Object();
+
     /**
      * Connection to the JDBC database.
      */
     private Connection connection;
 
     // SQL statements for queries against the database
-    private PreparedStatement selectExact;
-    private PreparedStatement selectLike;
     private PreparedStatement selectAll;
     private PreparedStatement insertOrUpdate;
     private PreparedStatement delete;
@@ -119,6 +204,7 @@ public final class JdbcConfigService
         // open the connection
         Class.forName("org.hsqldb.jdbc.JDBCDriver");
         checkConnection();
+        loadSnapshot();
 
         // then do the actual migration
         if (migrate)
@@ -126,19 +212,22 @@ public final class JdbcConfigService
             Properties p = new Properties();
             p.load(new FileInputStream(oldProps));
 
-            this.connection.setAutoCommit(false);
+            Map<String, Object> properties = new HashMap<String, Object>();
             for (Map.Entry<Object, Object> e : p.entrySet())
             {
-                this.setProperty(e.getKey().toString(), e.getValue(), false);
+                properties.put(e.getKey().toString(), e.getValue());
             }
 
-            this.connection.commit();
-            this.connection.setAutoCommit(true);
+            // the write delay is still 0, so this writes all properties in
+            // one database transaction
+            this.setProperties(properties);
         }
 
         // and finally load the (mandatory) system properties
         loadDefaultProperties(DEFAULT_PROPS_FILE_NAME);
         loadDefaultProperties(DEFAULT_OVERRIDES_PROPS_FILE_NAME);
+
+        this.writeDelay = this.getLong(PNAME_WRITE_DELAY, DEFAULT_WRITE_DELAY);
     }
 
     /**
@@ -178,10 +267,6 @@ public final class JdbcConfigService
             + "k LONGVARCHAR UNIQUE, v LONGVARCHAR"
             + ")");
 
-        this.selectExact = this.connection.prepareStatement(
-            "SELECT v FROM Props WHERE k=?");
-        this.selectLike = this.connection.prepareStatement(
-            "SELECT k, v FROM Props WHERE k LIKE ?");
         this.selectAll = this.connection.prepareStatement(
             "SELECT k, v FROM Props");
         this.insertOrUpdate = this.connection.prepareStatement(
@@ -193,6 +278,354 @@ public final class JdbcConfigService
             "DELETE FROM Props WHERE k=?");
     }
 
+    /**
+     * Replaces the snapshot with the current content of the database.
+     * 
+     * @throws SQLException
+     */
+    private void loadSnapshot() throws SQLException
+    {
+        Map<String, String> props = new HashMap<String, String>();
+        ResultSet q = this.selectAll.executeQuery();
+        try
+        {
+            while (q.next())
+            {
+                props.put(q.getString(1), q.getString(2));
+            }
+        }
+        finally
+        {
+            q.close();
+        }
+
+        this.snapshot
+            = new Snapshot(props, new PropertyNameIndex(props.keySet()));
+    }
+
+    /**
+     * Returns the snapshot seen by the current thread: the one of its
+     * transaction or the published one.
+     * 
+     * @return the properties visible to the current thread
+     */
+    private Snapshot getSnapshot()
+    {
+        if (this.writeLock.isHeldByCurrentThread()
+            && this.transaction != null)
+        {
+            return this.transaction.snapshot;
+        }
+
+        return this.snapshot;
+    }
+
+    /**
+     * Starts a transaction in the current thread. Until the transaction is
+     * committed or rolled back, other threads cannot change properties and
+     * do not see the changes made in it. Transactions may be nested; only the
+     * outermost one publishes its changes.
+     */
+    private void beginTransaction()
+    {
+        this.writeLock.lock();
+        if (this.transaction == null)
+        {
+            this.transaction = new Transaction(this.snapshot);
+        }
+        else
+        {
+            this.transaction.depth++;
+        }
+    }
+
+    /**
+     * Commits the transaction of the current thread: its changes are
+     * published and scheduled for writing, then the change events are fired
+     * in the order of the changes, after the other threads have been allowed
+     * to change properties again.
+     * 
+     * @throws IllegalStateException if the current thread has no transaction
+     * or a nested transaction was rolled back
+     */
+    private void commitTransaction()
+    {
+        Transaction t = this.endTransaction();
+        try
+        {
+            if (t == null)
+            {
+                return;
+            }
+
+            if (t.rollbackOnly)
+            {
+                throw new IllegalStateException(
+                    "A nested transaction was rolled back");
+            }
+
+            if (!t.changes.isEmpty())
+            {
+                this.snapshot = t.snapshot;
+                this.scheduleWrite(t.changes);
+            }
+        }
+        finally
+        {
+            this.writeLock.unlock();
+        }
+
+        // fired without the lock, listeners may use other threads which
+        // change properties
+        for (PropertyChangeEvent evt : t.events)
+        {
+            this.fireChange(evt);
+        }
+    }
+
+    /**
+     * Discards the changes of the transaction of the current thread. If the
+     * transaction is nested, the outermost transaction is rolled back when it
+     * ends.
+     * 
+     * @throws IllegalStateException if the current thread has no transaction
+     */
+    private void rollbackTransaction()
+    {
+        Transaction t = this.endTransaction();
+        if (t == null)
+        {
+            this.transaction.rollbackOnly = true;
+        }
+
+        this.writeLock.unlock();
+    }
+
+    /**
+     * Ends a transaction of the current thread.
+     * 
+     * @return the transaction if the outermost transaction ended,
+     * <tt>null</tt> if a nested one did
+     * @throws IllegalStateException if the current thread has no transaction
+     */
+    private Transaction endTransaction()
+    {
+        if (!this.writeLock.isHeldByCurrentThread()
+            || this.transaction == null)
+        {
+            throw new IllegalStateException(
+                "No transaction in the current thread");
+        }
+
+        Transaction t = this.transaction;
+        if (t.depth > 0)
+        {
+            t.depth--;
+            return null;
+        }
+
+        this.transaction = null;
+        return t;
+    }
+
+    /**
+     * Adds changes to the ones to be written to the database and schedules
+     * the write, or writes them immediately if there is no write delay.
+     * 
+     * @param changes the changed values by property name, <tt>null</tt> for
+     * removed properties
+     */
+    private void scheduleWrite(Map<String, String> changes)
+    {
+        synchronized (this.pendingWrites)
+        {
+            long now = System.currentTimeMillis();
+            if (this.pendingWrites.isEmpty())
+            {
+                this.firstPendingWrite = now;
+            }
+
+            this.pendingWrites.putAll(changes);
+            if (this.writeDelay > 0)
+            {
+                this.scheduleFlush(Math.min(this.writeDelay,
+                    this.firstPendingWrite + MAX_WRITE_DELAY - now));
+                return;
+            }
+        }
+
+        this.flushOrRetry();
+    }
+
+    /**
+     * Schedules the write of the pending changes on the timer, replacing the
+     * one already scheduled. Must be called with {@link #pendingWrites}
+     * locked.
+     * 
+     * @param delay the number of milliseconds after which to write
+     */
+    private void scheduleFlush(long delay)
+    {
+        if (this.writeTask != null)
+        {
+            this.writeTask.cancel();
+        }
+
+        this.writeTask = new TimerTask()
+        {
+            @Override
+            public void run()
+            {
+                flushOrRetry();
+            }
+        };
+
+        if (this.writeTimer == null)
+        {
+            this.writeTimer = new Timer("ConfigurationWriter", true);
+        }
+
+        this.writeTimer.schedule(this.writeTask, Math.max(0, delay));
+    }
+
+    /**
+     * Writes the pending changes to the database, and schedules another
+     * attempt if they could not be written.
+     */
+    private void flushOrRetry()
+    {
+        try
+        {
+            this.flush();
+        }
+        catch (SQLException e)
+        {
+            logger.error("Could not write the configuration, retrying in "
+                + RETRY_WRITE_DELAY + "ms", e);
+            this.scheduleRetry();
+        }
+    }
+
+    /**
+     * Schedules another attempt to write the pending changes, unless a write
+     * is already scheduled.
+     */
+    private void scheduleRetry()
+    {
+        synchronized (this.pendingWrites)
+        {
+            if (this.writeTask == null && !this.pendingWrites.isEmpty())
+            {
+                this.scheduleFlush(RETRY_WRITE_DELAY);
+            }
+        }
+    }
+
+    /**
+     * Writes the pending changes to the database in a single transaction.
+     * Changes which could not be written are kept for the next attempt.
+     * 
+     * @throws SQLException if the changes could not be written
+     */
+    private void flush() throws SQLException
+    {
+        synchronized (this.databaseLock)
+        {
+            Map<String, String> writes;
+            synchronized (this.pendingWrites)
+            {
+                if (this.pendingWrites.isEmpty())
+                {
+                    return;
+                }
+
+                writes = new LinkedHashMap<String, String>(this.pendingWrites);
+                this.pendingWrites.clear();
+                if (this.writeTask != null)
+                {
+                    this.writeTask.cancel();
+                    this.writeTask = null;
+                }
+            }
+
+            try
+            {
+                this.write(writes);
+            }
+            catch (SQLException e)
+            {
+                synchronized (this.pendingWrites)
+                {
+                    // newer changes win over the ones which failed
+                    writes.putAll(this.pendingWrites);
+                    this.pendingWrites.clear();
+                    this.pendingWrites.putAll(writes);
+                    this.firstPendingWrite = System.currentTimeMillis();
+                }
+
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Executes the changes against the database in a single transaction.
+     * 
+     * @param writes the changed values by property name, <tt>null</tt> for
+     * removed properties
+     * @throws SQLException
+     */
+    private void write(Map<String, String> writes) throws SQLException
+    {
+        this.checkConnection();
+        this.connection.setAutoCommit(false);
+        boolean committed = false;
+        try
+        {
+            int deletes = 0;
+            for (Map.Entry<String, String> e : writes.entrySet())
+            {
+                if (e.getValue() == null)
+                {
+                    this.delete.setString(1, e.getKey());
+                    this.delete.addBatch();
+                    deletes++;
+                }
+                else
+                {
+                    this.insertOrUpdate.setString(1, e.getKey());
+                    this.insertOrUpdate.setString(2, e.getValue());
+                    this.insertOrUpdate.addBatch();
+                }
+            }
+
+            // the driver rejects the execution of an empty batch
+            if (deletes > 0)
+            {
+                this.delete.executeBatch();
+            }
+
+            if (deletes < writes.size())
+            {
+                this.insertOrUpdate.executeBatch();
+            }
+
+            this.connection.commit();
+            committed = true;
+        }
+        finally
+        {
+            if (!committed)
+            {
+                this.delete.clearBatch();
+                this.insertOrUpdate.clearBatch();
+                this.connection.rollback();
+            }
+
+            this.connection.setAutoCommit(true);
+        }
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -201,7 +634,7 @@ public final class JdbcConfigService
      * .lang.String, java.lang.Object)
      */
     @Override
-    public synchronized void setProperty(String propertyName, Object property)
+    public void setProperty(String propertyName, Object property)
     {
         this.setProperty(propertyName, property, false);
     }
@@ -214,7 +647,7 @@ public final class JdbcConfigService
      * .lang.String, java.lang.Object, boolean)
      */
     @Override
-    public synchronized void setProperty(String propertyName, Object property,
+    public void setProperty(String propertyName, Object property,
         boolean isSystem)
     {
         // a property with the same name as an existing system property cannot
@@ -241,28 +674,21 @@ public final class JdbcConfigService
                 return;
             }
 
+            // a vetoed change leaves the transaction unchanged, so it is
+            // committed in any case
+            this.beginTransaction();
             try
             {
-                this.checkConnection();
                 Object oldValue = this.getProperty(propertyName);
                 this.fireVetoableChange(propertyName, oldValue, property);
-                if (property == null)
-                {
-                    this.delete.setString(1, propertyName);
-                    this.delete.execute();
-                }
-                else
-                {
-                    this.insertOrUpdate.setString(1, propertyName);
-                    this.insertOrUpdate.setString(2, property.toString());
-                    this.insertOrUpdate.execute();
-                }
-
-                this.fireChange(propertyName, oldValue, property);
+                this.transaction.set(propertyName,
+                    property == null ? null : property.toString());
+                this.transaction.events.add(new PropertyChangeEvent(
+                    this, propertyName, oldValue, property));
             }
-            catch (SQLException e)
+            finally
             {
-                throw new RuntimeException(e);
+                this.commitTransaction();
             }
         }
     }
@@ -275,24 +701,23 @@ public final class JdbcConfigService
      * .util.Map)
      */
     @Override
-    public synchronized void setProperties(Map<String, Object> properties)
+    public void setProperties(Map<String, Object> properties)
     {
+        this.beginTransaction();
         try
         {
-            checkConnection();
-            this.connection.setAutoCommit(false);
             for (Map.Entry<String, Object> e : properties.entrySet())
             {
                 this.setProperty(e.getKey(), e.getValue(), false);
             }
-
-            this.connection.commit();
-            this.connection.setAutoCommit(true);
         }
-        catch (SQLException e1)
+        catch (RuntimeException e)
         {
-            throw new RuntimeException(e1);
+            this.rollbackTransaction();
+            throw e;
         }
+
+        this.commitTransaction();
     }
 
     /*
@@ -303,7 +728,7 @@ public final class JdbcConfigService
      * .lang.String)
      */
     @Override
-    public synchronized Object getProperty(String propertyName)
+    public Object getProperty(String propertyName)
     {
         Object value = immutableDefaultProperties.get(propertyName);
         if (value != null)
@@ -311,22 +736,7 @@ public final class JdbcConfigService
             return value;
         }
 
-        try
-        {
-            this.checkConnection();
-            this.selectExact.setString(1, propertyName);
-            ResultSet q = this.selectExact.executeQuery();
-            if (q.next())
-            {
-                value = q.getString(1);
-            }
-        }
-        catch (SQLException e)
-        {
-            logger.error(e);
-            throw new RuntimeException(e);
-        }
-
+        value = this.getSnapshot().properties.get(propertyName);
         if (value != null)
         {
             return value;
@@ -349,15 +759,27 @@ public final class JdbcConfigService
      * .lang.String)
      */
     @Override
-    public synchronized void removeProperty(String propertyName)
+    public void removeProperty(String propertyName)
     {
-        //remove all properties
-        for (String child : this.getPropertyNamesByPrefix(propertyName, false))
+        this.beginTransaction();
+        try
+        {
+            //remove all properties
+            for (String child
+                : this.getPropertyNamesByPrefix(propertyName, false))
+            {
+                removeProperty(child);
+            }
+
+            this.setProperty(propertyName, null, false);
+        }
+        catch (RuntimeException e)
         {
-            removeProperty(child);
+            this.rollbackTransaction();
+            throw e;
         }
 
-        this.setProperty(propertyName, null, false);
+        this.commitTransaction();
     }
 
     /*
@@ -373,20 +795,7 @@ public final class JdbcConfigService
         List<String> data = new ArrayList<String>(
             immutableDefaultProperties.keySet());
         data.addAll(defaultProperties.keySet());
-        try
-        {
-            this.checkConnection();
-            ResultSet q = this.selectAll.executeQuery();
-            while (q.next())
-            {
-                data.add(q.getString(1));
-            }
-        }
-        catch (SQLException e)
-        {
-            logger.error(e);
-            throw new RuntimeException(e);
-        }
+        data.addAll(this.getSnapshot().properties.keySet());
 
         return data;
     }
@@ -402,43 +811,13 @@ public final class JdbcConfigService
     public List<String> getPropertyNamesByPrefix(String prefix,
         boolean exactPrefixMatch)
     {
-        try
+        if(exactPrefixMatch)
         {
-            List<String> resultSet = new ArrayList<String>(50);
-            this.checkConnection();
-            this.selectLike.setString(1, prefix + "%");
-            ResultSet q = this.selectLike.executeQuery();
-            while (q.next())
-            {
-                String key = q.getString(1);
-                int ix = key.lastIndexOf('.');
-                if(ix == -1)
-                {
-                    continue;
-                }
-
-                String keyPrefix = key.substring(0, ix);
-                if(exactPrefixMatch)
-                {
-                    if(prefix.equals(keyPrefix))
-                    {
-                        resultSet.add(key);
-                    }
-                }
-                else
-                {
-                    if(keyPrefix.startsWith(prefix))
-                    {
-                        resultSet.add(key);
-                    }
-                }
-            }
-
-            return resultSet;
+            return this.getSnapshot().names.getChildProperties(prefix);
         }
-        catch (SQLException e)
+        else
         {
-            throw new RuntimeException(e);
+            return this.getSnapshot().names.getDescendantProperties(prefix);
         }
     }
 
@@ -452,26 +831,7 @@ public final class JdbcConfigService
     @Override
     public List<String> getPropertyNamesBySuffix(String suffix)
     {
-        try
-        {
-            List<String> resultKeySet = new ArrayList<String>(20);
-            this.checkConnection();
-            this.selectLike.setString(1, "%" + suffix);
-            ResultSet q = this.selectLike.executeQuery();
-            while (q.next())
-            {
-                String key = q.getString(1);
-                int ix = key.lastIndexOf('.');
-                if (ix != -1 && suffix.equals(key.substring(ix + 1)))
-                    resultKeySet.add(key);
-            }
-
-            return resultKeySet;
-        }
-        catch (SQLException e)
-        {
-            throw new RuntimeException(e);
-        }
+        return this.getSnapshot().names.getPropertiesBySuffix(suffix);
     }
 
     /*
@@ -691,15 +1051,42 @@ public final class JdbcConfigService
     {
         try
         {
-            this.connection.close();
+            this.flush();
         }
         catch (SQLException e)
         {
-            logger.error(e);
+            // the changes stay pending, keep retrying them in the background
+            this.scheduleRetry();
+            throw new IOException("Could not write the configuration", e);
         }
-        finally
+
+        synchronized (this.pendingWrites)
         {
-            this.connection = null;
+            if (this.writeTimer != null)
+            {
+                this.writeTimer.cancel();
+                this.writeTimer = null;
+                this.writeTask = null;
+            }
+        }
+
+        synchronized (this.databaseLock)
+        {
+            try
+            {
+                if (this.connection != null)
+                {
+                    this.connection.close();
+                }
+            }
+            catch (SQLException e)
+            {
+                logger.error(e);
+            }
+            finally
+            {
+                this.connection = null;
+            }
         }
     }
 
@@ -722,17 +1109,32 @@ public final class JdbcConfigService
     @Override
     public void purgeStoredConfiguration()
     {
+        this.writeLock.lock();
         try
         {
-            this.checkConnection();
-            Statement st = this.connection.createStatement();
-            st.executeUpdate("TRUNCATE TABLE Props");
+            synchronized (this.pendingWrites)
+            {
+                this.pendingWrites.clear();
+            }
+
+            synchronized (this.databaseLock)
+            {
+                this.checkConnection();
+                Statement st = this.connection.createStatement();
+                st.executeUpdate("TRUNCATE TABLE Props");
+            }
+
+            this.snapshot = Snapshot.EMPTY;
         }
         catch (SQLException e)
         {
             logger.error(e);
             throw new RuntimeException(e);
         }
+        finally
+        {
+            this.writeLock.unlock();
+        }
     }
 
     /*
@@ -884,20 +1286,12 @@ public final class JdbcConfigService
     /**
      * Notify all listeners that a property has changed.
      * 
-     * @param propertyName The property that has just changed.
-     * @param oldValue The previous value of the property (can be <tt>null</tt>)
-     * @param newValue The new value of the property (can be <tt>null</tt>)
+     * @param evt The event describing the change.
      */
-    private void fireChange(String propertyName,
-        Object oldValue, Object newValue)
+    private void fireChange(PropertyChangeEvent evt)
     {
-        PropertyChangeEvent evt = new PropertyChangeEvent(
-            this,
-            propertyName,
-            oldValue,
-            newValue);
-
-        for (PropertyChangeListener l : listeners.get(propertyName))
+        for (PropertyChangeListener l
+            : listeners.get(evt.getPropertyName()))
         {
             l.propertyChange(evt);
         }
@@ -907,4 +1301,98 @@ public final class JdbcConfigService
             l.propertyChange(evt);
         }
     }
+
+    /**
+     * The stored properties and the index of their names, published together
+     * so that a reader never sees one without the other.
+     */
+    private static final class Snapshot
+    {
+        static final Snapshot EMPTY = new Snapshot(
+            new HashMap<String, String>(), PropertyNameIndex.EMPTY);
+
+        final Map<String, String> properties;
+
+        final PropertyNameIndex names;
+
+        Snapshot(Map<String, String> properties, PropertyNameIndex names)
+        {
+            this.properties = Collections.unmodifiableMap(properties);
+            this.names = names;
+        }
+    }
+
+    /**
+     * The changes made by a thread since it began a transaction.
+     */
+    private static final class Transaction
+    {
+        /**
+         * The properties including the changes, not visible to other threads.
+         */
+        final Map<String, String> properties;
+
+        /**
+         * The index of the names in {@link #properties}.
+         */
+        PropertyNameIndex names;
+
+        /**
+         * The snapshot of {@link #properties} and {@link #names}.
+         */
+        Snapshot snapshot;
+
+        /**
+         * The changed values by property name, <tt>null</tt> for removed
+         * properties.
+         */
+        final Map<String, String> changes
+            = new LinkedHashMap<String, String>();
+
+        /**
+         * The change events to fire on commit, in the order of the changes.
+         */
+        final List<PropertyChangeEvent> events
+            = new ArrayList<PropertyChangeEvent>();
+
+        /**
+         * The number of nested transactions.
+         */
+        int depth;
+
+        /**
+         * Whether a nested transaction was rolled back.
+         */
+        boolean rollbackOnly;
+
+        Transaction(Snapshot snapshot)
+        {
+            this.properties = new HashMap<String, String>(snapshot.properties);
+            this.names = snapshot.names;
+            this.snapshot = snapshot;
+        }
+
+        /**
+         * Changes a property in this transaction.
+         * 
+         * @param propertyName the name of the property
+         * @param value the new value or <tt>null</tt> to remove the property
+         */
+        void set(String propertyName, String value)
+        {
+            if (value == null)
+            {
+                this.properties.remove(propertyName);
+                this.names = this.names.remove(propertyName);
+            }
+            else
+            {
+                this.properties.put(propertyName, value);
+                this.names = this.names.add(propertyName);
+            }
+
+            this.changes.put(propertyName, value);
+            this.snapshot = new Snapshot(this.properties, this.names);
+        }
+    }
 }
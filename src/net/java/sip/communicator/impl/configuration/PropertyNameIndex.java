@@ -0,0 +1,364 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.configuration;
+
+import java.util.*;
+
+/**
+ * An immutable index of property names split at their dots. Names are kept in
+ * a trie of their segments, e.g. <tt>a.b.c</tt> is stored below the nodes
+ * <tt>a</tt> and <tt>a.b</tt>, and in a second trie of their segments in
+ * reverse order for the lookups by suffix.
+ * <p>
+ * Adding or removing a name returns a new index which shares all nodes off
+ * the path of the name with this one, so an index can be read without
+ * locking while a newer one is being published.
+ */
+final class PropertyNameIndex
+{
+    /**
+     * An index without any names.
+     */
+    static final PropertyNameIndex EMPTY
+        = new PropertyNameIndex(new Node(), new Node());
+
+    /**
+     * The root of the trie of the segments of the names.
+     */
+    private final Node names;
+
+    /**
+     * The root of the trie of the segments of the names in reverse order.
+     */
+    private final Node reversedNames;
+
+    private PropertyNameIndex(Node names, Node reversedNames)
+    {
+        this.names = names;
+        this.reversedNames = reversedNames;
+    }
+
+    /**
+     * Creates an index of the given property names.
+     *
+     * @param propertyNames the names to index
+     */
+    PropertyNameIndex(Collection<String> propertyNames)
+    {
+        this.names = new Node();
+        this.reversedNames = new Node();
+        for (String propertyName : propertyNames)
+        {
+            String[] segments = split(propertyName);
+            insert(this.names, segments, propertyName);
+            insert(this.reversedNames, reverse(segments), propertyName);
+        }
+    }
+
+    /**
+     * Returns an index containing the names of this one and
+     * <tt>propertyName</tt>.
+     *
+     * @param propertyName the name to add
+     * @return the new index or this one if it already contains the name
+     */
+    PropertyNameIndex add(String propertyName)
+    {
+        String[] segments = split(propertyName);
+        Node newNames = add(this.names, segments, 0, propertyName);
+        if (newNames == this.names)
+        {
+            return this;
+        }
+
+        return new PropertyNameIndex(newNames,
+            add(this.reversedNames, reverse(segments), 0, propertyName));
+    }
+
+    /**
+     * Returns an index containing the names of this one except
+     * <tt>propertyName</tt>.
+     *
+     * @param propertyName the name to remove
+     * @return the new index or this one if it does not contain the name
+     */
+    PropertyNameIndex remove(String propertyName)
+    {
+        String[] segments = split(propertyName);
+        Node newNames = remove(this.names, segments, 0);
+        if (newNames == this.names)
+        {
+            return this;
+        }
+
+        Node newReversedNames
+            = remove(this.reversedNames, reverse(segments), 0);
+        return new PropertyNameIndex(
+            newNames == null ? new Node() : newNames,
+            newReversedNames == null ? new Node() : newReversedNames);
+    }
+
+    /**
+     * Returns the names whose part before the last dot is <tt>prefix</tt>.
+     *
+     * @param prefix the name of the parent node
+     * @return the names of the properties directly below <tt>prefix</tt>
+     */
+    List<String> getChildProperties(String prefix)
+    {
+        List<String> result = new ArrayList<String>();
+        Node node = find(this.names, split(prefix));
+        if (node != null)
+        {
+            for (Node child : node.children.values())
+            {
+                if (child.propertyName != null)
+                {
+                    result.add(child.propertyName);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the names whose part before the last dot starts with
+     * <tt>prefix</tt>. As with <tt>String.startsWith</tt>, the last segment of
+     * <tt>prefix</tt> may be the beginning of a segment of the names.
+     *
+     * @param prefix the beginning of the parent node of the names
+     * @return the names of the properties below the nodes starting with
+     * <tt>prefix</tt>
+     */
+    List<String> getDescendantProperties(String prefix)
+    {
+        List<String> result = new ArrayList<String>();
+        String[] segments = split(prefix);
+        String partialSegment = segments[segments.length - 1];
+        Node node = find(this.names,
+            Arrays.copyOf(segments, segments.length - 1));
+        if (node != null)
+        {
+            for (Map.Entry<String, Node> e : node.children.entrySet())
+            {
+                if (e.getKey().startsWith(partialSegment))
+                {
+                    collectDescendants(e.getValue(), result);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the names whose part after the last dot is <tt>suffix</tt>.
+     *
+     * @param suffix the last segment of the names
+     * @return the names of the properties ending with <tt>suffix</tt>
+     */
+    List<String> getPropertiesBySuffix(String suffix)
+    {
+        List<String> result = new ArrayList<String>();
+        Node node = this.reversedNames.children.get(suffix);
+        if (node != null)
+        {
+            collectDescendants(node, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Adds the names of all properties below <tt>node</tt> to
+     * <tt>result</tt>, without the name of <tt>node</tt> itself.
+     */
+    private static void collectDescendants(Node node, List<String> result)
+    {
+        for (Node child : node.children.values())
+        {
+            if (child.propertyName != null)
+            {
+                result.add(child.propertyName);
+            }
+
+            collectDescendants(child, result);
+        }
+    }
+
+    private static Node find(Node root, String[] segments)
+    {
+        Node node = root;
+        for (int i = 0; i < segments.length && node != null; i++)
+        {
+            node = node.children.get(segments[i]);
+        }
+
+        return node;
+    }
+
+    /**
+     * Inserts a name into a trie which is not published yet.
+     */
+    private static void insert(Node root, String[] segments,
+        String propertyName)
+    {
+        Node node = root;
+        for (String segment : segments)
+        {
+            Node child = node.children.get(segment);
+            if (child == null)
+            {
+                child = new Node();
+                node.children.put(segment, child);
+            }
+
+            node = child;
+        }
+
+        node.propertyName = propertyName;
+    }
+
+    /**
+     * Returns a copy of the path to <tt>segments[i]</tt> below <tt>node</tt>
+     * ending at a node for <tt>propertyName</tt>.
+     */
+    private static Node add(Node node, String[] segments, int i,
+        String propertyName)
+    {
+        if (i == segments.length)
+        {
+            if (node != null && node.propertyName != null)
+            {
+                return node;
+            }
+
+            return new Node(propertyName,
+                node == null ? new HashMap<String, Node>() : node.children);
+        }
+
+        Node child = node == null ? null : node.children.get(segments[i]);
+        Node newChild = add(child, segments, i + 1, propertyName);
+        if (newChild == child)
+        {
+            return node;
+        }
+
+        Map<String, Node> children = node == null
+            ? new HashMap<String, Node>()
+            : new HashMap<String, Node>(node.children);
+        children.put(segments[i], newChild);
+        return new Node(node == null ? null : node.propertyName, children);
+    }
+
+    /**
+     * Returns a copy of the path to <tt>segments[i]</tt> below <tt>node</tt>
+     * without the property at its end, or <tt>null</tt> if nothing is left
+     * below <tt>node</tt>.
+     */
+    private static Node remove(Node node, String[] segments, int i)
+    {
+        if (i == segments.length)
+        {
+            if (node.propertyName == null)
+            {
+                return node;
+            }
+
+            return node.children.isEmpty()
+                ? null
+                : new Node(null, node.children);
+        }
+
+        Node child = node.children.get(segments[i]);
+        if (child == null)
+        {
+            return node;
+        }
+
+        Node newChild = remove(child, segments, i + 1);
+        if (newChild == child)
+        {
+            return node;
+        }
+
+        Map<String, Node> children = new HashMap<String, Node>(node.children);
+        if (newChild == null)
+        {
+            children.remove(segments[i]);
+            if (children.isEmpty() && node.propertyName == null)
+            {
+                return null;
+            }
+        }
+        else
+        {
+            children.put(segments[i], newChild);
+        }
+
+        return new Node(node.propertyName, children);
+    }
+
+    /**
+     * Splits a name at its dots, keeping empty segments.
+     */
+    private static String[] split(String name)
+    {
+        List<String> segments = new ArrayList<String>();
+        int start = 0;
+        int ix;
+        while ((ix = name.indexOf('.', start)) != -1)
+        {
+            segments.add(name.substring(start, ix));
+            start = ix + 1;
+        }
+
+        segments.add(name.substring(start));
+        return segments.toArray(new String[segments.size()]);
+    }
+
+    private static String[] reverse(String[] segments)
+    {
+        String[] reversed = new String[segments.length];
+        for (int i = 0; i < segments.length; i++)
+        {
+            reversed[i] = segments[segments.length - 1 - i];
+        }
+
+        return reversed;
+    }
+
+    /**
+     * A segment of the names in a trie. The children of a node are not
+     * modified after the index containing it has been created.
+     */
+    private static final class Node
+    {
+        /**
+         * The name of the property ending at this node, or <tt>null</tt> if
+         * the node is only the parent of other properties.
+         */
+        String propertyName;
+
+        /**
+         * The nodes below this one, by their segment.
+         */
+        final Map<String, Node> children;
+
+        Node()
+        {
+            this(null, new HashMap<String, Node>());
+        }
+
+        Node(String propertyName, Map<String, Node> children)
+        {
+            this.propertyName = propertyName;
+            this.children = children;
+        }
+    }
+}
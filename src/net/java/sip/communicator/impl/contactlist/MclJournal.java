@@ -0,0 +1,364 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+import javax.xml.transform.*;
+import javax.xml.transform.dom.*;
+import javax.xml.transform.stream.*;
+
+import net.java.sip.communicator.util.*;
+
+import org.w3c.dom.*;
+
+/**
+ * An append-only log of the changes made to the XML contact list since it was
+ * last written in full. Every record replaces or removes the node of a single
+ * meta contact or meta contact group, identified by its UID, so records can be
+ * applied again to a contact list which already contains them.
+ * <p>
+ * Each record is framed by its length and checksum. A record which was not
+ * completely written, e.g. because the application was killed, ends the log.
+ */
+public class MclJournal
+{
+    private static final Logger logger = Logger.getLogger(MclJournal.class);
+
+    /**
+     * Replaces the node of a meta contact or adds it to its parent group.
+     */
+    public static final byte PUT_META_CONTACT = 1;
+
+    /**
+     * Removes the node of a meta contact.
+     */
+    public static final byte REMOVE_META_CONTACT = 2;
+
+    /**
+     * Replaces the node of a meta contact group, with its subgroups and
+     * child contacts, or adds it to its parent group.
+     */
+    public static final byte PUT_GROUP = 3;
+
+    /**
+     * Removes the node of a meta contact group.
+     */
+    public static final byte REMOVE_GROUP = 4;
+
+    /**
+     * The file the records are appended to.
+     */
+    private final File file;
+
+    /**
+     * The number of records in the file.
+     */
+    private int recordCount = 0;
+
+    /**
+     * Creates a journal kept in <tt>file</tt>.
+     *
+     * @param file the file of the journal
+     */
+    public MclJournal(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Creates a record replacing or adding <tt>node</tt>.
+     *
+     * @param type {@link #PUT_META_CONTACT} or {@link #PUT_GROUP}
+     * @param uid the UID of the meta contact or group
+     * @param parentUID the UID of the parent group or <tt>null</tt> for the
+     * root group
+     * @param node the current node of the meta contact or group
+     * @return the new record
+     */
+    public static Record createPutRecord(byte type, String uid, String parentUID,
+        Element node)
+    {
+        return new Record(type, uid, parentUID, toXml(node));
+    }
+
+    /**
+     * Creates a record removing the node of a meta contact or group.
+     *
+     * @param type {@link #REMOVE_META_CONTACT} or {@link #REMOVE_GROUP}
+     * @param uid the UID of the meta contact or group
+     * @return the new record
+     */
+    public static Record createRemoveRecord(byte type, String uid)
+    {
+        return new Record(type, uid, null, null);
+    }
+
+    /**
+     * Returns the number of records appended since the journal was last
+     * cleared.
+     *
+     * @return the number of records in the journal
+     */
+    public int getRecordCount()
+    {
+        return recordCount;
+    }
+
+    /**
+     * Returns the size of the journal file.
+     *
+     * @return the size in bytes
+     */
+    public long getSize()
+    {
+        return file.length();
+    }
+
+    /**
+     * Appends <tt>records</tt> to the journal file.
+     *
+     * @param records the records to append
+     * @throws IOException if writing the file fails
+     */
+    public void append(List<Record> records)
+        throws IOException
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+
+        for (Record record : records)
+        {
+            byte[] payload = record.toBytes();
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+
+            out.writeInt(payload.length);
+            out.writeLong(crc.getValue());
+            out.write(payload);
+        }
+        out.flush();
+
+        FileOutputStream stream = new FileOutputStream(file, true);
+        try
+        {
+            buffer.writeTo(stream);
+            stream.getFD().sync();
+        }
+        finally
+        {
+            stream.close();
+        }
+
+        recordCount += records.size();
+    }
+
+    /**
+     * Reads the records of the journal file up to the first incomplete or
+     * damaged one.
+     *
+     * @return the records in the order they were appended
+     */
+    public List<Record> read()
+    {
+        List<Record> records = new ArrayList<Record>();
+
+        if (!file.exists())
+            return records;
+
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+
+            while (true)
+            {
+                int length;
+                try
+                {
+                    length = in.readInt();
+                }
+                catch (EOFException ex)
+                {
+                    break;
+                }
+
+                long checksum = in.readLong();
+                if (length < 0 || length > file.length())
+                    throw new IOException("Invalid record length " + length);
+
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if (crc.getValue() != checksum)
+                    throw new IOException("Invalid record checksum");
+
+                records.add(Record.fromBytes(payload));
+            }
+        }
+        catch (IOException ex)
+        {
+            logger.warn("Ignoring the end of the contact list journal after "
+                + records.size() + " records", ex);
+        }
+        finally
+        {
+            if (in != null)
+            {
+                try
+                {
+                    in.close();
+                }
+                catch (IOException ex)
+                {
+                    // nothing to do
+                }
+            }
+        }
+
+        recordCount = records.size();
+        return records;
+    }
+
+    /**
+     * Removes all records, once the contact list containing them has been
+     * written in full.
+     */
+    public void clear()
+    {
+        if (file.exists() && !file.delete())
+            logger.error("Failed to delete the contact list journal " + file);
+
+        recordCount = 0;
+    }
+
+    /**
+     * Returns the XML text of <tt>node</tt> and its children.
+     *
+     * @param node the node to serialize
+     * @return the XML of <tt>node</tt> without XML declaration
+     */
+    private static String toXml(Element node)
+    {
+        try
+        {
+            Transformer transformer
+                = TransformerFactory.newInstance().newTransformer();
+            transformer.setOutputProperty(
+                OutputKeys.OMIT_XML_DECLARATION, "yes");
+
+            StringWriter writer = new StringWriter();
+            transformer.transform(
+                new DOMSource(node), new StreamResult(writer));
+            return writer.toString();
+        }
+        catch (TransformerException ex)
+        {
+            throw new IllegalStateException(
+                "Failed to serialize a contact list node", ex);
+        }
+    }
+
+    /**
+     * A change of the node of a meta contact or meta contact group.
+     */
+    public static class Record
+    {
+        /**
+         * The type of the change.
+         */
+        public final byte type;
+
+        /**
+         * The UID of the meta contact or group.
+         */
+        public final String uid;
+
+        /**
+         * The UID of the parent group of a put node, <tt>null</tt> for the
+         * root group and for removals.
+         */
+        public final String parentUID;
+
+        /**
+         * The XML of a put node, <tt>null</tt> for removals.
+         */
+        public final String xml;
+
+        Record(byte type, String uid, String parentUID, String xml)
+        {
+            this.type = type;
+            this.uid = uid;
+            this.parentUID = parentUID;
+            this.xml = xml;
+        }
+
+        private byte[] toBytes()
+            throws IOException
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            out.writeByte(type);
+            out.writeUTF(uid);
+            writeString(out, parentUID);
+            writeString(out, xml);
+            out.flush();
+
+            return bytes.toByteArray();
+        }
+
+        private static Record fromBytes(byte[] payload)
+            throws IOException
+        {
+            DataInputStream in
+                = new DataInputStream(new ByteArrayInputStream(payload));
+
+            byte type = in.readByte();
+            String uid = in.readUTF();
+            String parentUID = readString(in);
+            String xml = readString(in);
+
+            return new Record(type, uid, parentUID, xml);
+        }
+
+        /**
+         * Writes a string which may be <tt>null</tt> or longer than
+         * <tt>writeUTF</tt> allows.
+         */
+        private static void writeString(DataOutputStream out, String s)
+            throws IOException
+        {
+            if (s == null)
+            {
+                out.writeInt(-1);
+                return;
+            }
+
+            byte[] bytes = s.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private static String readString(DataInputStream in)
+            throws IOException
+        {
+            int length = in.readInt();
+            if (length < 0)
+                return null;
+
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, "UTF-8");
+        }
+    }
+}
@@ -8,6 +8,7 @@ package net.java.sip.communicator.impl.contactlist;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import javax.xml.parsers.*;
 
@@ -38,6 +39,12 @@ import org.w3c.dom.*;
  * belonging to this new provider. Unresolved proto groups and contacts will be
  * created for every one of them.
  * <p>
+ * Changes to single meta contacts and groups are appended to a journal next to
+ * the contact list file instead of rewriting the whole file. The journal is
+ * replayed when the contact list is loaded and is merged into the file once it
+ * grows beyond {@link #CHECKPOINT_RECORD_COUNT} records or
+ * {@link #CHECKPOINT_JOURNAL_SIZE} bytes, and when the storage manager stops.
+ * <p>
  *
  * @author Emil Ivov
  */
@@ -217,6 +224,65 @@ public class MclStorageManager
      */
     private static final String CHILD_CONTACTS_NODE_NAME = "child-contacts";
 
+    /**
+     * The suffix added to the name of the contact list file to get the name of
+     * its journal.
+     */
+    private static final String JOURNAL_FILE_SUFFIX = ".journal";
+
+    /**
+     * The number of journal records after which the contact list file is
+     * written in full and the journal cleared.
+     */
+    static final int CHECKPOINT_RECORD_COUNT = 1000;
+
+    /**
+     * The size in bytes of the journal after which the contact list file is
+     * written in full and the journal cleared.
+     */
+    static final long CHECKPOINT_JOURNAL_SIZE = 512 * 1024;
+
+    /**
+     * The journal of the changes made since the contact list file was last
+     * written.
+     */
+    private MclJournal journal = null;
+
+    /**
+     * The journal records waiting to be appended by the storage thread.
+     * Guarded by {@link #contactListRWLock}.
+     */
+    private final List<MclJournal.Record> pendingRecords
+        = new ArrayList<MclJournal.Record>();
+
+    /**
+     * The meta contact nodes of the document by the UID of their meta contact.
+     * Every meta contact node is added when it is created or loaded, so that a
+     * UID missing here is missing from the document too.
+     */
+    private final Map<String, Element> metaContactNodes
+        = new ConcurrentHashMap<String, Element>();
+
+    /**
+     * The group nodes of the document by the UID of their meta group.
+     */
+    private final Map<String, Element> groupNodes
+        = new ConcurrentHashMap<String, Element>();
+
+    /**
+     * The groups and contacts of the contact list by account, collected in a
+     * single pass over the document when the first account is loaded. The
+     * contacts of an account are removed from here when it is loaded, and
+     * parsed from the document again if they were moved in the meantime.
+     */
+    private Map<String, StoredGroup> storedContacts = null;
+
+    /**
+     * The accounts whose contacts have been loaded at least once. Their
+     * contacts are looked up in the document when they are loaded again.
+     */
+    private final Set<String> extractedAccounts = new HashSet<String>();
+
     /**
      * A lock that we use when storing the contact list to avoid being exited
      * while in there.
@@ -326,6 +392,9 @@ public class MclStorageManager
             logger.error("The contactlist file can't be found", e);
         }
 
+        journal = new MclJournal(
+            new File(contactlistFile.getPath() + JOURNAL_FILE_SUFFIX));
+
         try
         {
             // load the contact list
@@ -335,6 +404,7 @@ public class MclStorageManager
             if (contactlistFile.length() == 0)
             {
                 // if the contact list does not exist - create it.
+                journal.clear();
                 contactListDocument = builder.newDocument();
                 initVirginDocument(mclServImpl, contactListDocument);
 
@@ -346,6 +416,8 @@ public class MclStorageManager
                 try
                 {
                     contactListDocument = builder.parse(contactlistFile);
+                    indexNodes(contactListDocument.getDocumentElement());
+                    replayJournal();
                 }
                 catch (Throwable ex)
                 {
@@ -355,6 +427,9 @@ public class MclStorageManager
                     // re-create and re-init the new document
                     contactlistFile.delete();
                     contactlistFile.createNewFile();
+                    journal.clear();
+                    metaContactNodes.clear();
+                    groupNodes.clear();
                     contactListDocument = builder.newDocument();
                     initVirginDocument(mclServImpl, contactListDocument);
 
@@ -378,10 +453,8 @@ public class MclStorageManager
 
     /**
      * Stores the contact list in its current state.
-     *
-     * @throws IOException if writing fails.
      */
-    private void scheduleContactListStorage() throws IOException
+    private void scheduleContactListStorage()
     {
         synchronized (contactListRWLock)
         {
@@ -432,6 +505,210 @@ public class MclStorageManager
             {
                 logger.error("the contactlist file is missing", e);
             }
+
+            // the document we wrote contains all pending changes
+            synchronized (contactListRWLock)
+            {
+                pendingRecords.clear();
+            }
+            journal.clear();
+        }
+    }
+
+    /**
+     * Queues a change for the storage thread to append to the journal.
+     *
+     * @param record the journal record of the change
+     */
+    private void scheduleJournalRecord(MclJournal.Record record)
+    {
+        synchronized (contactListRWLock)
+        {
+            if (!isStarted())
+                return;
+
+            pendingRecords.add(record);
+            contactListRWLock.notifyAll();
+        }
+    }
+
+    /**
+     * Appends the pending changes to the journal and writes the contact list
+     * in full if the journal has grown too large. Called by the storage thread
+     * with {@link #contactListRWLock} held.
+     *
+     * @throws IOException if writing the contact list file fails.
+     */
+    private void storePendingRecords() throws IOException
+    {
+        try
+        {
+            journal.append(pendingRecords);
+            pendingRecords.clear();
+        }
+        catch (IOException ex)
+        {
+            logger.error("Failed to append to the contact list journal", ex);
+            storeContactList0();
+            return;
+        }
+
+        if (journal.getRecordCount() >= CHECKPOINT_RECORD_COUNT
+            || journal.getSize() >= CHECKPOINT_JOURNAL_SIZE)
+        {
+            storeContactList0();
+        }
+    }
+
+    /**
+     * Queues the current state of <tt>metaContactNode</tt> for the journal.
+     *
+     * @param metaContactNode the node of a meta contact which was added or
+     *            changed.
+     */
+    private void journalMetaContact(Element metaContactNode)
+    {
+        Node childContactsNode = metaContactNode.getParentNode();
+        if (childContactsNode == null)
+            return;
+
+        Element groupNode = (Element) childContactsNode.getParentNode();
+
+        try
+        {
+            scheduleJournalRecord(MclJournal.createPutRecord(
+                MclJournal.PUT_META_CONTACT,
+                metaContactNode.getAttribute(UID_ATTR_NAME),
+                groupNode.getAttribute(UID_ATTR_NAME),
+                metaContactNode));
+        }
+        catch (IllegalStateException ex)
+        {
+            logger.error("Failed to journal a meta contact change", ex);
+            scheduleContactListStorage();
+        }
+    }
+
+    /**
+     * Queues the current state of <tt>groupNode</tt>, with its subgroups and
+     * child contacts, for the journal. Changes to the root group are stored by
+     * writing the whole contact list instead.
+     *
+     * @param groupNode the node of a meta contact group which was added or
+     *            changed.
+     */
+    private void journalGroup(Element groupNode)
+    {
+        Node parentNode = groupNode.getParentNode();
+        if (parentNode == null
+            || !SUBGROUPS_NODE_NAME.equals(parentNode.getNodeName()))
+        {
+            scheduleContactListStorage();
+            return;
+        }
+
+        Element parentGroupNode = (Element) parentNode.getParentNode();
+
+        try
+        {
+            scheduleJournalRecord(MclJournal.createPutRecord(
+                MclJournal.PUT_GROUP,
+                groupNode.getAttribute(UID_ATTR_NAME),
+                parentGroupNode.getAttribute(UID_ATTR_NAME),
+                groupNode));
+        }
+        catch (IllegalStateException ex)
+        {
+            logger.error("Failed to journal a meta contact group change", ex);
+            scheduleContactListStorage();
+        }
+    }
+
+    /**
+     * Applies the changes of the journal to the document just loaded from the
+     * contact list file and schedules writing the result.
+     */
+    private void replayJournal()
+    {
+        List<MclJournal.Record> records = journal.read();
+        if (records.isEmpty())
+            return;
+
+        int applied = 0;
+        for (MclJournal.Record record : records)
+        {
+            try
+            {
+                if (applyJournalRecord(record))
+                    applied++;
+            }
+            catch (Exception ex)
+            {
+                logger.error("Failed to apply a contact list journal record "
+                    + "for " + record.uid, ex);
+            }
+        }
+
+        if (logger.isInfoEnabled())
+            logger.info("Applied " + applied + " of " + records.size()
+                + " changes from the contact list journal");
+
+        // merge the journal into the contact list file once we are started
+        isModified = true;
+    }
+
+    /**
+     * Applies a journal record to the document.
+     *
+     * @param record the record to apply
+     * @return <tt>true</tt> if the record changed the document
+     * @throws Exception if the XML of the record cannot be parsed
+     */
+    private boolean applyJournalRecord(MclJournal.Record record)
+        throws Exception
+    {
+        switch (record.type)
+        {
+        case MclJournal.PUT_META_CONTACT:
+        case MclJournal.PUT_GROUP:
+            if (record.parentUID == null)
+                return false;
+
+            boolean isGroup = record.type == MclJournal.PUT_GROUP;
+            Element parentGroupNode
+                = findMetaContactGroupNode(record.parentUID);
+            if (parentGroupNode == null)
+                return false;
+
+            Element oldNode = isGroup
+                ? findMetaContactGroupNode(record.uid)
+                : findMetaContactNode(record.uid);
+            if (oldNode != null)
+                oldNode.getParentNode().removeChild(oldNode);
+
+            Element newNode = (Element) contactListDocument.importNode(
+                XMLUtils.createDocument(record.xml).getDocumentElement(),
+                true);
+            XMLUtils.findChild(parentGroupNode,
+                    isGroup ? SUBGROUPS_NODE_NAME : CHILD_CONTACTS_NODE_NAME)
+                .appendChild(newNode);
+            indexNodes(newNode);
+            return true;
+
+        case MclJournal.REMOVE_META_CONTACT:
+        case MclJournal.REMOVE_GROUP:
+            Element node = record.type == MclJournal.REMOVE_GROUP
+                ? findMetaContactGroupNode(record.uid)
+                : findMetaContactNode(record.uid);
+            if (node == null)
+                return false;
+
+            node.getParentNode().removeChild(node);
+            return true;
+
+        default:
+            logger.warn("Unknown contact list journal record " + record.type);
+            return false;
         }
     }
 
@@ -459,6 +736,10 @@ public class MclStorageManager
                                 storeContactList0();
                                 isModified = false;
                             }
+                            else if (!pendingRecords.isEmpty())
+                            {
+                                storePendingRecords();
+                            }
                         }
                     }
                 }
@@ -487,21 +768,35 @@ public class MclStorageManager
             if (!isStarted())
                 return;
 
-            started = false;
-
-            // make sure everyone gets released after we finish.
-            contactListRWLock.notifyAll();
-
-            // write the contact list ourselves before we go out..
+            // write the contact list ourselves before we go out, while we
+            // are still started..
             try
             {
                 storeContactList0();
+                isModified = false;
             }
             catch (IOException ex)
             {
                 logger
                     .debug("Failed to store contact list before stopping", ex);
+
+                // keep at least the pending changes in the journal
+                try
+                {
+                    journal.append(pendingRecords);
+                    pendingRecords.clear();
+                }
+                catch (IOException jex)
+                {
+                    logger.error(
+                        "Failed to append to the contact list journal", jex);
+                }
             }
+
+            started = false;
+
+            // make sure everyone gets released after we finish.
+            contactListRWLock.notifyAll();
         }
     }
 
@@ -612,12 +907,38 @@ public class MclStorageManager
                     DocumentBuilderFactory.newInstance();
                 DocumentBuilder builder = factory.newDocumentBuilder();
                 contactListDocument = builder.newDocument();
+                metaContactNodes.clear();
+                groupNodes.clear();
+                storedContacts = new HashMap<String, StoredGroup>();
 
                 initVirginDocument(mclServiceImpl, contactListDocument);
 
                 // write the contact list so that it is there for the parser
                 storeContactList0();
             }
+            else if (extractedAccounts.add(accountID))
+            {
+                // the first time an account is loaded we take its contacts
+                // from those collected for all accounts at once.
+                if (storedContacts == null)
+                    storedContacts = collectStoredContacts(root);
+
+                StoredGroup storedRoot = storedContacts.remove(accountID);
+
+                if (storedRoot != null && !isCurrent(storedRoot))
+                {
+                    // contacts were moved or removed since they were
+                    // collected, so we have to parse the document again
+                    processGroupXmlNode(mclServiceImpl, accountID, root, null,
+                        null);
+                    scheduleContactListStorage();
+                }
+                // save the contact list if faulty nodes were removed
+                else if (storedRoot != null
+                    && loadStoredGroup(mclServiceImpl, accountID, storedRoot,
+                            null, null))
+                    scheduleContactListStorage();
+            }
             else
             {
                 // if there is root lets parse it
@@ -802,40 +1123,8 @@ public class MclStorageManager
                     continue;
 
                 // Extract contact details.
-                Map<String, List<String>> details = null;
-                try
-                {
-                    List<Element> detailsNodes =
-                        XMLUtils.findChildren((Element) currentMetaContactNode,
-                            META_CONTACT_DETAIL_NAME_NODE_NAME);
-                    if (detailsNodes.size() > 0)
-                    {
-                        details = new Hashtable<String, List<String>>();
-                        for (Element e : detailsNodes)
-                        {
-                            String name = e.getAttribute(DETAIL_NAME_ATTR_NAME);
-                            String value
-                                = e.getAttribute(DETAIL_VALUE_ATTR_NAME);
-
-                            List<String> detailsObj = details.get(name);
-                            if (detailsObj == null)
-                            {
-                                List<String> ds = new ArrayList<String>();
-                                ds.add(value);
-                                details.put(name, ds);
-                            }
-                            else
-                                detailsObj.add(value);
-                        }
-                    }
-                }
-                catch (Exception ex)
-                {
-                    // catch any exception from loading contacts
-                    // that will prevent loading the contact
-                    logger.error("Cannot load details for contact node "
-                        + currentMetaContactNode, ex);
-                }
+                Map<String, List<String>> details =
+                    extractDetails((Element) currentMetaContactNode);
 
                 // pass the parsed proto contacts to the mcl service
                 MetaContactImpl mc = mclServImpl.loadStoredMetaContact(
@@ -875,55 +1164,529 @@ public class MclStorageManager
             }
         }
 
-        // now, last thing that's left to do - go over all subgroups if any
-        Node subgroupsNode = XMLUtils.findChild(groupNode, SUBGROUPS_NODE_NAME);
+        // now, last thing that's left to do - go over all subgroups if any
+        Node subgroupsNode = XMLUtils.findChild(groupNode, SUBGROUPS_NODE_NAME);
+
+        if (subgroupsNode == null)
+            return;
+
+        NodeList subgroups = subgroupsNode.getChildNodes();
+
+        // recurse for every sub meta group
+        for (int i = 0; i < subgroups.getLength(); i++)
+        {
+            Node currentGroupNode = subgroups.item(i);
+
+            if (currentGroupNode.getNodeType() != Node.ELEMENT_NODE
+                || !currentGroupNode.getNodeName().equals(GROUP_NODE_NAME))
+                continue;
+
+            try
+            {
+                processGroupXmlNode(mclServImpl, accountID,
+                    (Element) currentGroupNode, currentMetaGroup,
+                    protoGroupsMap);
+            }
+            catch (Throwable throwable)
+            {
+                // catch everything and bravely continue with remaining groups
+                // and contacts
+                logger.error("Failed to process group node " + currentGroupNode
+                    + ". Removing.", throwable);
+
+                // remove the node so that it doesn't cause us problems again
+                if (currentGroupNode.getParentNode() != null)
+                {
+                    try
+                    {
+                        currentGroupNode.getParentNode().removeChild(
+                            currentGroupNode);
+                    }
+                    catch (Throwable thr)
+                    {
+                        // hmm, failed to remove the faulty node. we must be
+                        // in some kind of serious troble (but i don't see
+                        // what we can do about it)
+                        logger.error("Failed to remove group node "
+                            + currentGroupNode, thr);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the details stored for the meta contact represented by
+     * <tt>metaContactNode</tt>.
+     *
+     * @param metaContactNode the Element whose details we'd like to extract.
+     * @return the detail values by detail name or null if the meta contact has
+     *         no details or they could not be parsed.
+     */
+    private Map<String, List<String>> extractDetails(Element metaContactNode)
+    {
+        Map<String, List<String>> details = null;
+        try
+        {
+            List<Element> detailsNodes =
+                XMLUtils.findChildren(metaContactNode,
+                    META_CONTACT_DETAIL_NAME_NODE_NAME);
+            if (detailsNodes.size() > 0)
+            {
+                details = new Hashtable<String, List<String>>();
+                for (Element e : detailsNodes)
+                {
+                    String name = e.getAttribute(DETAIL_NAME_ATTR_NAME);
+                    String value = e.getAttribute(DETAIL_VALUE_ATTR_NAME);
+
+                    List<String> detailsObj = details.get(name);
+                    if (detailsObj == null)
+                    {
+                        List<String> ds = new ArrayList<String>();
+                        ds.add(value);
+                        details.put(name, ds);
+                    }
+                    else
+                        detailsObj.add(value);
+                }
+            }
+        }
+        catch (Exception ex)
+        {
+            // catch any exception from loading contacts
+            // that will prevent loading the contact
+            logger.error("Cannot load details for contact node "
+                + metaContactNode, ex);
+            details = null;
+        }
+        return details;
+    }
+
+    /**
+     * Walks the contact list once and collects the groups and meta contacts
+     * of every account found in it, the same way
+     * {@link #processGroupXmlNode(MetaContactListServiceImpl, String, Element,
+     * MetaContactGroupImpl, Map)} would find them for each account. Duplicate
+     * and faulty nodes are removed from the document.
+     *
+     * @param rootNode the node of the root group of the contact list.
+     * @return the contents of the root group by account ID.
+     */
+    private Map<String, StoredGroup> collectStoredContacts(Element rootNode)
+    {
+        Map<String, StoredGroup> roots = new HashMap<String, StoredGroup>();
+
+        if (collectStoredGroup(rootNode, roots, true))
+            scheduleContactListStorage();
+
+        return roots;
+    }
+
+    /**
+     * Collects the meta contacts and subgroups of <tt>groupNode</tt> for every
+     * account that <tt>groups</tt> contains a stored group for.
+     *
+     * @param groupNode the XML <tt>Element</tt> of the group.
+     * @param groups the stored groups of <tt>groupNode</tt> by account ID.
+     * @param isRoot whether <tt>groupNode</tt> is the root group, which
+     *            contains the contacts of all accounts and whose stored groups
+     *            are created as accounts are found.
+     * @return true if nodes were removed from the document.
+     */
+    private boolean collectStoredGroup(Element groupNode,
+        Map<String, StoredGroup> groups, boolean isRoot)
+    {
+        boolean modified = false;
+
+        Element childContactsNode =
+            XMLUtils.findChild(groupNode, CHILD_CONTACTS_NODE_NAME);
+
+        for (Element metaContactNode : findChildElements(childContactsNode))
+        {
+            try
+            {
+                modified |= collectStoredMetaContact(metaContactNode,
+                    groupNode, groups, isRoot);
+            }
+            catch (Throwable thr)
+            {
+                logger.warn("Failed to parse meta contact " + metaContactNode
+                    + ". Will remove and continue with other contacts", thr);
+                modified |= removeFaultyNode(metaContactNode);
+            }
+        }
+
+        Element subgroupsNode =
+            XMLUtils.findChild(groupNode, SUBGROUPS_NODE_NAME);
+
+        for (Element subgroupNode : findChildElements(subgroupsNode))
+        {
+            if (!subgroupNode.getNodeName().equals(GROUP_NODE_NAME))
+                continue;
+
+            try
+            {
+                Map<String, StoredGroup> subgroups =
+                    new HashMap<String, StoredGroup>();
+                Element protoGroupsNode =
+                    XMLUtils.findChild(subgroupNode, PROTO_GROUPS_NODE_NAME);
+
+                for (Element protoGroupNode
+                        : findChildElements(protoGroupsNode))
+                {
+                    String accountID =
+                        XMLUtils.getAttribute(protoGroupNode,
+                            ACCOUNT_ID_ATTR_NAME);
+                    StoredGroup parent =
+                        getStoredGroup(groups, accountID, groupNode, isRoot);
+
+                    if (parent == null)
+                        continue;
+
+                    StoredGroup subgroup = subgroups.get(accountID);
+                    if (subgroup == null)
+                    {
+                        subgroup = new StoredGroup(subgroupNode,
+                            XMLUtils.getAttribute(subgroupNode,
+                                GROUP_UID_ATTR_NAME),
+                            XMLUtils.getAttribute(subgroupNode,
+                                GROUP_NAME_ATTR_NAME));
+                        parent.subgroups.add(subgroup);
+                        subgroups.put(accountID, subgroup);
+                    }
+
+                    Element persistentDataNode =
+                        XMLUtils.findChild(protoGroupNode,
+                            PERSISTENT_DATA_NODE_NAME);
+
+                    subgroup.protoGroups.add(new StoredProtoGroup(
+                        XMLUtils.getAttribute(protoGroupNode, UID_ATTR_NAME),
+                        XMLUtils.getAttribute(protoGroupNode,
+                            PARENT_PROTO_GROUP_UID_ATTR_NAME),
+                        (persistentDataNode == null)
+                            ? ""
+                            : XMLUtils.getText(persistentDataNode)));
+                }
+
+                // groups without proto groups of an account cannot contain
+                // contacts of that account.
+                if (!subgroups.isEmpty())
+                    modified |= collectStoredGroup(subgroupNode, subgroups,
+                        false);
+            }
+            catch (Throwable throwable)
+            {
+                logger.error("Failed to process group node " + subgroupNode
+                    + ". Removing.", throwable);
+                modified |= removeFaultyNode(subgroupNode);
+            }
+        }
+
+        return modified;
+    }
+
+    /**
+     * Adds the meta contact represented by <tt>metaContactNode</tt> to the
+     * stored groups of the accounts its proto contacts belong to.
+     *
+     * @param metaContactNode the XML <tt>Element</tt> of the meta contact.
+     * @param groupNode the XML <tt>Element</tt> of its group.
+     * @param groups the stored groups of <tt>groupNode</tt> by account ID.
+     * @param isRoot whether <tt>groupNode</tt> is the root group.
+     * @return true if duplicate proto contacts were removed from the document.
+     */
+    private boolean collectStoredMetaContact(Element metaContactNode,
+        Element groupNode, Map<String, StoredGroup> groups, boolean isRoot)
+    {
+        String uid = XMLUtils.getAttribute(metaContactNode, UID_ATTR_NAME);
+        Element displayNameNode =
+            XMLUtils.findChild(metaContactNode,
+                META_CONTACT_DISPLAY_NAME_NODE_NAME);
+        String displayName = XMLUtils.getText(displayNameNode);
+        boolean isDisplayNameUserDefined =
+            Boolean.valueOf(displayNameNode
+                .getAttribute(USER_DEFINED_DISPLAY_NAME_ATTR_NAME));
+
+        Map<String, StoredMetaContact> metaContacts =
+            new HashMap<String, StoredMetaContact>();
+        List<Element> duplicates = new LinkedList<Element>();
+
+        for (Element contactNode : findChildElements(metaContactNode))
+        {
+            if (!contactNode.getNodeName().equals(PROTO_CONTACT_NODE_NAME))
+                continue;
+
+            String accountID =
+                XMLUtils.getAttribute(contactNode, ACCOUNT_ID_ATTR_NAME);
+            StoredGroup group =
+                getStoredGroup(groups, accountID, groupNode, isRoot);
+
+            if (group == null)
+                continue;
+
+            StoredMetaContact metaContact = metaContacts.get(accountID);
+            if (metaContact == null)
+            {
+                metaContact = new StoredMetaContact(metaContactNode, uid,
+                    displayName, isDisplayNameUserDefined,
+                    extractDetails(metaContactNode));
+                group.metaContacts.add(metaContact);
+                metaContacts.put(accountID, metaContact);
+            }
+
+            String contactAddress =
+                XMLUtils.getAttribute(contactNode,
+                    PROTO_CONTACT_ADDRESS_ATTR_NAME);
+
+            if (!metaContact.contactAddresses.add(contactAddress))
+            {
+                // this is a duplicate. mark for removal and continue
+                duplicates.add(contactNode);
+                continue;
+            }
+
+            Element persistentDataNode =
+                XMLUtils.findChild(contactNode, PERSISTENT_DATA_NODE_NAME);
+
+            metaContact.protoContacts.add(new StoredProtoContact(
+                contactAddress,
+                XMLUtils.getAttribute(contactNode,
+                    PARENT_PROTO_GROUP_UID_ATTR_NAME),
+                (persistentDataNode == null)
+                    ? ""
+                    : XMLUtils.getText(persistentDataNode)));
+        }
+
+        for (Element duplicate : duplicates)
+            metaContactNode.removeChild(duplicate);
+
+        return !duplicates.isEmpty();
+    }
+
+    /**
+     * Returns the stored group of an account, creating it for the root group.
+     *
+     * @param groups the stored groups of <tt>groupNode</tt> by account ID.
+     * @param accountID the account of the stored group.
+     * @param groupNode the XML <tt>Element</tt> of the group.
+     * @param isRoot whether <tt>groupNode</tt> is the root group.
+     * @return the stored group or null if the group does not contain any proto
+     *         groups of the account.
+     */
+    private static StoredGroup getStoredGroup(Map<String, StoredGroup> groups,
+        String accountID, Element groupNode, boolean isRoot)
+    {
+        StoredGroup group = groups.get(accountID);
+
+        if (group == null && isRoot && accountID != null)
+        {
+            group = new StoredGroup(groupNode, null, null);
+            groups.put(accountID, group);
+        }
+        return group;
+    }
+
+    /**
+     * Returns the child elements of <tt>node</tt>.
+     *
+     * @param node the parent node, may be null.
+     * @return the child elements of <tt>node</tt> or an empty list if
+     *         <tt>node</tt> is null.
+     */
+    private static List<Element> findChildElements(Element node)
+    {
+        List<Element> elements = new ArrayList<Element>();
+
+        if (node == null)
+            return elements;
+
+        NodeList children = node.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++)
+        {
+            Node child = children.item(i);
+
+            if (child.getNodeType() == Node.ELEMENT_NODE)
+                elements.add((Element) child);
+        }
+        return elements;
+    }
+
+    /**
+     * Determines whether the meta contacts and subgroups collected in
+     * <tt>storedGroup</tt>, and below it, are still in the group they were
+     * collected in. A meta contact moved to another group, or merged into a
+     * meta contact of another group, would otherwise be loaded in both.
+     *
+     * @param storedGroup the collected group to check
+     * @return true if all collected nodes are still in their group
+     */
+    private boolean isCurrent(StoredGroup storedGroup)
+    {
+        if (!isInDocument(storedGroup.node))
+            return false;
+
+        for (StoredMetaContact metaContact : storedGroup.metaContacts)
+        {
+            if (getGroupNode(metaContact.node) != storedGroup.node)
+                return false;
+        }
+
+        for (StoredGroup subgroup : storedGroup.subgroups)
+        {
+            if (getGroupNode(subgroup.node) != storedGroup.node
+                || !isCurrent(subgroup))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the node of the group containing a meta contact or subgroup
+     * node.
+     *
+     * @param node the node of a meta contact or of a subgroup
+     * @return the node of its group or null if <tt>node</tt> has been removed
+     *         from its group
+     */
+    private static Node getGroupNode(Node node)
+    {
+        Node parent = node.getParentNode();
+
+        return (parent == null) ? null : parent.getParentNode();
+    }
+
+    /**
+     * Creates the groups and meta contacts collected for an account through
+     * <tt>mclServImpl</tt>, skipping those whose nodes have been removed from
+     * the document since they were collected.
+     *
+     * @param mclServImpl the <tt>MetaContactListServiceImpl</tt> for
+     *            creating new contacts and groups.
+     * @param accountID the identifier of the account being loaded.
+     * @param storedGroup the group to load with its contacts and subgroups.
+     * @param parentGroup the <tt>MetaContactGroupImpl</tt> where we should be
+     *            creating children or null for the root group.
+     * @param parentProtoGroups the proto groups of the parent group by UID or
+     *            null for top level groups.
+     * @return true if faulty nodes were removed from the document.
+     */
+    private boolean loadStoredGroup(MetaContactListServiceImpl mclServImpl,
+        String accountID, StoredGroup storedGroup,
+        MetaContactGroupImpl parentGroup,
+        Map<String, ContactGroup> parentProtoGroups)
+    {
+        boolean modified = false;
+        MetaContactGroupImpl currentMetaGroup;
+        Map<String, ContactGroup> protoGroupsMap =
+            new Hashtable<String, ContactGroup>();
+
+        if (parentGroup == null)
+        {
+            currentMetaGroup = mclServImpl.rootMetaGroup;
+        }
+        else
+        {
+            currentMetaGroup =
+                mclServImpl.loadStoredMetaContactGroup(parentGroup,
+                    storedGroup.uid, storedGroup.name);
+
+            for (StoredProtoGroup protoGroup : storedGroup.protoGroups)
+            {
+                ContactGroup parentProtoGroup = null;
+                if (parentProtoGroups != null && protoGroup.parentUID != null)
+                    parentProtoGroup =
+                        parentProtoGroups.get(protoGroup.parentUID);
+
+                ContactGroup newProtoGroup =
+                    mclServImpl.loadStoredContactGroup(currentMetaGroup,
+                        protoGroup.uid, parentProtoGroup,
+                        protoGroup.persistentData, accountID);
+
+                protoGroupsMap.put(protoGroup.uid, newProtoGroup);
+            }
+        }
+
+        for (StoredMetaContact metaContact : storedGroup.metaContacts)
+        {
+            if (!isInDocument(metaContact.node))
+                continue;
 
-        if (subgroupsNode == null)
-            return;
+            try
+            {
+                List<StoredProtoContactDescriptor> protoContacts =
+                    new LinkedList<StoredProtoContactDescriptor>();
 
-        NodeList subgroups = subgroupsNode.getChildNodes();
+                for (StoredProtoContact protoContact
+                        : metaContact.protoContacts)
+                {
+                    protoContacts.add(new StoredProtoContactDescriptor(
+                        protoContact.address,
+                        protoContact.persistentData,
+                        (protoContact.parentUID == null)
+                            ? null
+                            : protoGroupsMap.get(protoContact.parentUID)));
+                }
 
-        // recurse for every sub meta group
-        for (int i = 0; i < subgroups.getLength(); i++)
-        {
-            Node currentGroupNode = subgroups.item(i);
+                MetaContactImpl mc = mclServImpl.loadStoredMetaContact(
+                    currentMetaGroup, metaContact.uid, metaContact.displayName,
+                    metaContact.details, protoContacts, accountID);
 
-            if (currentGroupNode.getNodeType() != Node.ELEMENT_NODE
-                || !currentGroupNode.getNodeName().equals(GROUP_NODE_NAME))
+                if (metaContact.isDisplayNameUserDefined)
+                    mc.setDisplayNameUserDefined(true);
+            }
+            catch (Throwable thr)
+            {
+                logger.warn("Failed to load meta contact " + metaContact.uid
+                    + ". Will remove and continue with other contacts", thr);
+                modified |= removeFaultyNode(metaContact.node);
+            }
+        }
+
+        for (StoredGroup subgroup : storedGroup.subgroups)
+        {
+            if (!isInDocument(subgroup.node))
                 continue;
 
             try
             {
-                processGroupXmlNode(mclServImpl, accountID,
-                    (Element) currentGroupNode, currentMetaGroup,
-                    protoGroupsMap);
+                modified |= loadStoredGroup(mclServImpl, accountID, subgroup,
+                    currentMetaGroup, protoGroupsMap);
             }
             catch (Throwable throwable)
             {
-                // catch everything and bravely continue with remaining groups
-                // and contacts
-                logger.error("Failed to process group node " + currentGroupNode
+                logger.error("Failed to load group " + subgroup.uid
                     + ". Removing.", throwable);
-
-                // remove the node so that it doesn't cause us problems again
-                if (currentGroupNode.getParentNode() != null)
-                {
-                    try
-                    {
-                        currentGroupNode.getParentNode().removeChild(
-                            currentGroupNode);
-                    }
-                    catch (Throwable thr)
-                    {
-                        // hmm, failed to remove the faulty node. we must be
-                        // in some kind of serious troble (but i don't see
-                        // what we can do about it)
-                        logger.error("Failed to remove group node "
-                            + currentGroupNode, thr);
-                    }
-                }
+                modified |= removeFaultyNode(subgroup.node);
             }
         }
+
+        return modified;
+    }
+
+    /**
+     * Removes a node which could not be loaded so that it doesn't cause us
+     * problems again.
+     *
+     * @param node the node to remove
+     * @return true if the node was removed
+     */
+    private boolean removeFaultyNode(Node node)
+    {
+        if (node.getParentNode() == null)
+            return false;
+
+        try
+        {
+            node.getParentNode().removeChild(node);
+            return true;
+        }
+        catch (Throwable throwable)
+        {
+            // hmm, failed to remove the faulty node. we must be in some kind
+            // of serious troble (but i don't see what we can do about it)
+            logger.error("Failed to remove node " + node, throwable);
+            return false;
+        }
     }
 
     /**
@@ -1124,6 +1887,7 @@ public class MclStorageManager
 
         metaContactElement
             .setAttribute(UID_ATTR_NAME, metaContact.getMetaUID());
+        metaContactNodes.put(metaContact.getMetaUID(), metaContactElement);
 
         // create the display name node
         Element displayNameNode =
@@ -1168,6 +1932,7 @@ public class MclStorageManager
             .getGroupName());
 
         metaGroupElement.setAttribute(UID_ATTR_NAME, metaGroup.getMetaUID());
+        groupNodes.put(metaGroup.getMetaUID(), metaGroupElement);
 
         // create and fill the proto groups node
         Element protoGroupsElement =
@@ -1254,20 +2019,7 @@ public class MclStorageManager
 
         parentGroupNode.appendChild(metaContactElement);
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after adding contact "
-                + evt.getSourceMetaContact(), ex);
-        }
+        journalMetaContact(metaContactElement);
     }
 
     /**
@@ -1308,20 +2060,7 @@ public class MclStorageManager
 
         subgroupsNode.appendChild(newGroupElement);
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after adding contact "
-                + evt.getSourceMetaContactGroup(), ex);
-        }
+        journalGroup(newGroupElement);
     }
 
     /**
@@ -1347,20 +2086,10 @@ public class MclStorageManager
         // remove the meta contact node.
         metaContactGroupNode.getParentNode().removeChild(metaContactGroupNode);
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after removing group "
-                + evt.getSourceMetaContactGroup(), ex);
-        }
+        String groupUID = evt.getSourceMetaContactGroup().getMetaUID();
+        groupNodes.remove(groupUID);
+        scheduleJournalRecord(MclJournal.createRemoveRecord(
+            MclJournal.REMOVE_GROUP, groupUID));
     }
 
     /**
@@ -1406,20 +2135,7 @@ public class MclStorageManager
 
         childContacts.appendChild(metaContactNode);
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after moving "
-                + evt.getSourceMetaContact(), ex);
-        }
+        journalMetaContact(metaContactNode);
 
     }
 
@@ -1492,20 +2208,10 @@ public class MclStorageManager
         // remove the meta contact node.
         metaContactNode.getParentNode().removeChild(metaContactNode);
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after removing "
-                + evt.getSourceMetaContact(), ex);
-        }
+        String metaUID = evt.getSourceMetaContact().getMetaUID();
+        metaContactNodes.remove(metaUID);
+        scheduleJournalRecord(MclJournal.createRemoveRecord(
+            MclJournal.REMOVE_META_CONTACT, metaUID));
     }
 
     /**
@@ -1547,20 +2253,7 @@ public class MclStorageManager
 
         updatePersistentDataForMetaContact(evt.getSourceMetaContact());
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after rename of "
-                + evt.getSourceMetaContact(), ex);
-        }
+        journalMetaContact(metaContactNode);
     }
 
     /**
@@ -1587,20 +2280,7 @@ public class MclStorageManager
         // i don't think we could do anything else in addition to updating the
         // persistent data.
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error(
-                "Writing CL failed after rename of " + evt.getParent(), ex);
-        }
+        journalMetaContact(metaContactNode);
     }
 
     /**
@@ -1733,20 +2413,7 @@ public class MclStorageManager
         if (!isChanged)
             return;
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after rename of "
-                + evt.getSourceMetaContact(), ex);
-        }
+        journalMetaContact(metaContactNode);
     }
 
     /**
@@ -1775,20 +2442,7 @@ public class MclStorageManager
 
         protoNode.getParentNode().removeChild(protoNode);
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after removing proto contact "
-                + evt.getProtoContact(), ex);
-        }
+        journalMetaContact(oldMcNode);
     }
 
     /**
@@ -1843,44 +2497,14 @@ public class MclStorageManager
 
             parentNode.appendChild(newGroupElement);
 
-            try
-            {
-                scheduleContactListStorage();
-            }
-            catch (IOException ex)
-            {
-                /**
-                 * given we're being invoked from an event dispatch thread that
-                 * was probably triggered by a net operation - we could not do
-                 * much. so ... log and @todo one day we'll have a global error
-                 * dispatcher
-                 */
-                logger.error(
-                    "Writing CL failed after adding contact " + mcGroup,
-                    ex);
-            }
+            journalGroup(newGroupElement);
             break;
         case MetaContactGroupEvent.META_CONTACT_GROUP_RENAMED:
             mcGroupNode
                 .setAttribute(GROUP_NAME_ATTR_NAME, mcGroup.getGroupName());
-            break;
-        }
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error(
-                "Writing CL failed after removing proto group "
-                    + mcGroup.getGroupName(),
-                ex);
+            journalGroup(mcGroupNode);
+            break;
         }
 
     }
@@ -1908,20 +2532,7 @@ public class MclStorageManager
 
         mcNode.appendChild(protoNode);
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after adding proto contact "
-                + evt.getProtoContact(), ex);
-        }
+        journalMetaContact(mcNode);
 
     }
 
@@ -1966,20 +2577,8 @@ public class MclStorageManager
             .getProtoContact().getParentContactGroup().getUID());
         newMcNode.appendChild(protoNode);
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after moving proto contact "
-                + evt.getProtoContact(), ex);
-        }
+        journalMetaContact(oldMcNode);
+        journalMetaContact(newMcNode);
     }
 
     /**
@@ -1994,10 +2593,8 @@ public class MclStorageManager
      */
     private Element findMetaContactNode(String metaContactUID)
     {
-        Element root = (Element) contactListDocument.getFirstChild();
-
-        return XMLUtils.locateElement(root, META_CONTACT_NODE_NAME,
-            UID_ATTR_NAME, metaContactUID);
+        return findNode(metaContactNodes, META_CONTACT_NODE_NAME,
+            metaContactUID);
     }
 
     /**
@@ -2012,10 +2609,81 @@ public class MclStorageManager
      */
     private Element findMetaContactGroupNode(String metaContactGroupUID)
     {
+        return findNode(groupNodes, GROUP_NODE_NAME, metaContactGroupUID);
+    }
+
+    /**
+     * Returns the node with the specified UID from <tt>nodes</tt>. A node
+     * which is no longer part of the document, e.g. because one of its
+     * ancestors was removed or re-created, is looked up in the document again.
+     *
+     * @param nodes the nodes of the document by UID
+     * @param nodeName the name of the node we are looking for
+     * @param uid the UID of the node we are looking for
+     * @return the node with the specified UID or null if no such node was
+     *         found in the document.
+     */
+    private Element findNode(Map<String, Element> nodes, String nodeName,
+        String uid)
+    {
+        Element node = nodes.get(uid);
+
+        if (node == null || isInDocument(node))
+            return node;
+
         Element root = (Element) contactListDocument.getFirstChild();
 
-        return XMLUtils.locateElement(root, GROUP_NODE_NAME, UID_ATTR_NAME,
-            metaContactGroupUID);
+        node = XMLUtils.locateElement(root, nodeName, UID_ATTR_NAME, uid);
+        if (node == null)
+            nodes.remove(uid);
+        else
+            nodes.put(uid, node);
+
+        return node;
+    }
+
+    /**
+     * Determines whether <tt>node</tt> is part of the current contact list
+     * document.
+     *
+     * @param node the node to check
+     * @return true if <tt>node</tt> can be reached from the document
+     */
+    private boolean isInDocument(Node node)
+    {
+        while (node != null && node != contactListDocument)
+            node = node.getParentNode();
+
+        return node != null;
+    }
+
+    /**
+     * Adds <tt>element</tt> and the meta contact and group nodes below it to
+     * the nodes by UID.
+     *
+     * @param element the element which was loaded into the document
+     */
+    private void indexNodes(Element element)
+    {
+        String nodeName = element.getNodeName();
+
+        if (META_CONTACT_NODE_NAME.equals(nodeName))
+        {
+            metaContactNodes.put(element.getAttribute(UID_ATTR_NAME), element);
+            return;
+        }
+
+        if (GROUP_NODE_NAME.equals(nodeName))
+            groupNodes.put(element.getAttribute(UID_ATTR_NAME), element);
+
+        NodeList children = element.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++)
+        {
+            Node child = children.item(i);
+
+            if (child.getNodeType() == Node.ELEMENT_NODE)
+                indexNodes((Element) child);
+        }
     }
 
     /**
@@ -2024,6 +2692,7 @@ public class MclStorageManager
     void removeContactListFile()
     {
         this.contactlistFile.delete();
+        this.journal.clear();
     }
 
     /**
@@ -2094,6 +2763,105 @@ public class MclStorageManager
         }
     }
 
+    /**
+     * The contents of a meta contact group of the contact list file which
+     * belong to one account.
+     */
+    private static class StoredGroup
+    {
+        final Element node;
+
+        final String uid;
+
+        final String name;
+
+        final List<StoredProtoGroup> protoGroups =
+            new ArrayList<StoredProtoGroup>();
+
+        final List<StoredMetaContact> metaContacts =
+            new ArrayList<StoredMetaContact>();
+
+        final List<StoredGroup> subgroups = new ArrayList<StoredGroup>();
+
+        StoredGroup(Element node, String uid, String name)
+        {
+            this.node = node;
+            this.uid = uid;
+            this.name = name;
+        }
+    }
+
+    /**
+     * A proto group stored in the contact list file.
+     */
+    private static class StoredProtoGroup
+    {
+        final String uid;
+
+        final String parentUID;
+
+        final String persistentData;
+
+        StoredProtoGroup(String uid, String parentUID, String persistentData)
+        {
+            this.uid = uid;
+            this.parentUID = parentUID;
+            this.persistentData = persistentData;
+        }
+    }
+
+    /**
+     * A meta contact of the contact list file with the proto contacts of one
+     * account.
+     */
+    private static class StoredMetaContact
+    {
+        final Element node;
+
+        final String uid;
+
+        final String displayName;
+
+        final boolean isDisplayNameUserDefined;
+
+        final Map<String, List<String>> details;
+
+        final List<StoredProtoContact> protoContacts =
+            new ArrayList<StoredProtoContact>();
+
+        final Set<String> contactAddresses = new HashSet<String>();
+
+        StoredMetaContact(Element node, String uid, String displayName,
+            boolean isDisplayNameUserDefined, Map<String, List<String>> details)
+        {
+            this.node = node;
+            this.uid = uid;
+            this.displayName = displayName;
+            this.isDisplayNameUserDefined = isDisplayNameUserDefined;
+            this.details = details;
+        }
+    }
+
+    /**
+     * A proto contact stored in the contact list file.
+     */
+    private static class StoredProtoContact
+    {
+        final String address;
+
+        final String parentUID;
+
+        final String persistentData;
+
+        StoredProtoContact(String address, String parentUID,
+            String persistentData)
+        {
+            this.address = address;
+            this.parentUID = parentUID;
+            this.persistentData = persistentData;
+        }
+    }
+
     /**
      * Indicates that a new avatar is available for a <tt>MetaContact</tt>.
      * @param evt the <tt>MetaContactAvatarUpdateEvent</tt> containing details
@@ -699,6 +699,8 @@ public class MetaContactGroupImpl
         metaContact.setParentGroup(this);
 
         lightAddMetaContact(metaContact);
+
+        mclServiceImpl.getMetaContactIndex().addMetaContact(metaContact);
     }
 
     /**
@@ -747,6 +749,54 @@ public class MetaContactGroupImpl
     }
 
 
+    /**
+     * Removes <tt>metaContact</tt> from the sorted child contacts before its
+     * status is re-evaluated, leaving the ordered copy unchanged until
+     * {@link #updateOrderedChildContacts()} is called.
+     *
+     * @param metaContact the <tt>MetaContact</tt> about to be re-sorted
+     */
+    void removeForResort(MetaContactImpl metaContact)
+    {
+        synchronized(childContacts)
+        {
+            this.childContacts.remove(metaContact);
+        }
+    }
+
+    /**
+     * Adds <tt>metaContact</tt> back to the sorted child contacts after its
+     * status was re-evaluated, leaving the ordered copy unchanged until
+     * {@link #updateOrderedChildContacts()} is called.
+     *
+     * @param metaContact the re-sorted <tt>MetaContact</tt>
+     */
+    void addForResort(MetaContactImpl metaContact)
+    {
+        synchronized(childContacts)
+        {
+            this.childContacts.add(metaContact);
+        }
+    }
+
+    /**
+     * Regenerates the ordered copy of the child contacts after some of them
+     * were re-sorted.
+     *
+     * @return <tt>true</tt> if the order of the child contacts changed
+     */
+    boolean updateOrderedChildContacts()
+    {
+        synchronized(childContacts)
+        {
+            List<MetaContact> oldOrder = childContactsOrderedCopy;
+
+            childContactsOrderedCopy
+                = new LinkedList<MetaContact>(childContacts);
+            return !oldOrder.equals(childContactsOrderedCopy);
+        }
+    }
+
     /**
      * Removes the specified <tt>metaContact</tt> from the local list of
      * contacts.
@@ -756,6 +806,13 @@ public class MetaContactGroupImpl
     {
         metaContact.unsetParentGroup(this);
         lightRemoveMetaContact(metaContact);
+
+        // the contact may have been added to another group already
+        if (metaContact.getParentGroup() == null)
+        {
+            mclServiceImpl.getMetaContactIndex()
+                .removeMetaContact(metaContact);
+        }
     }
 
     /**
@@ -966,6 +1023,9 @@ public class MetaContactGroupImpl
 
         this.subgroupsOrderedCopy =
             new LinkedList<MetaContactGroup>(subgroups);
+
+        mclServiceImpl.getMetaContactIndex()
+            .addGroup((MetaContactGroupImpl)subgroup);
     }
 
     /**
@@ -979,7 +1039,10 @@ public class MetaContactGroupImpl
             (MetaContactGroupImpl)subgroupsOrderedCopy.get(index);
 
         if (subgroups.remove(subgroup))
+        {
             subgroup.parentMetaContactGroup = null;
+            mclServiceImpl.getMetaContactIndex().removeGroup(subgroup);
+        }
 
         subgroupsOrderedCopy = new LinkedList<MetaContactGroup>(subgroups);
 
@@ -672,6 +672,10 @@ public class MetaContactImpl
 
             this.protoContacts.add(contact);
 
+            MetaContactIndex index = getMetaContactIndex();
+            if (index != null)
+                index.addContact(contact, this);
+
             // Re-init the default contact.
             defaultContact = null;
 
@@ -711,18 +715,24 @@ public class MetaContactImpl
      * Called by MetaContactListServiceImpl after a contact has changed its
      * status, so that ordering in the parent group is updated. The method also
      * elects the most connected contact as default contact.
+     * <p>
+     * The contact is re-sorted in the parent group, but the ordered copy of
+     * the children of the group is not regenerated, so that several contacts
+     * of the group can be re-evaluated before the group is reordered once with
+     * <tt>MetaContactGroupImpl.updateOrderedChildContacts()</tt>.
      *
-     * @return the new index at which the contact was added.
+     * @return the parent group which has to be reordered or <tt>null</tt> if
+     * the contact is not in a group.
      */
-    int reevalContact()
+    MetaContactGroupImpl reevalContact()
     {
         synchronized (getParentGroupModLock())
         {
-            //first lightremove or otherwise we won't be able to get hold of the
+            //first remove or otherwise we won't be able to get hold of the
             //contact
             if (parentGroup != null)
             {
-                parentGroup.lightRemoveMetaContact(this);
+                parentGroup.removeForResort(this);
             }
 
             this.contactsOnline = 0;
@@ -745,11 +755,11 @@ public class MetaContactImpl
             //properly by the containing group
             if (parentGroup != null)
             {
-                return parentGroup.lightAddMetaContact(this);
+                parentGroup.addForResort(this);
             }
-        }
 
-        return -1;
+            return parentGroup;
+        }
     }
 
     /**
@@ -770,6 +780,10 @@ public class MetaContactImpl
             contactsOnline -= contact.getPresenceStatus().isOnline() ? 1 : 0;
             this.protoContacts.remove(contact);
 
+            MetaContactIndex index = getMetaContactIndex();
+            if (index != null)
+                index.removeContact(contact, this);
+
             if (defaultContact == contact)
                 defaultContact = null;
 
@@ -820,6 +834,7 @@ public class MetaContactImpl
             if (contact.getProtocolProvider() == provider)
             {
                 contactsIter.remove();
+                removeFromIndex(contact);
                 modified = true;
             }
         }
@@ -853,6 +868,7 @@ public class MetaContactImpl
             if (contact.getParentContactGroup() == protoGroup)
             {
                 contactsIter.remove();
+                removeFromIndex(contact);
                 modified = true;
             }
         }
@@ -867,6 +883,34 @@ public class MetaContactImpl
     }
 
 
+    /**
+     * Removes a protocol contact no longer merged in this meta contact from
+     * the index of the contact list.
+     *
+     * @param contact the removed protocol contact
+     */
+    private void removeFromIndex(Contact contact)
+    {
+        MetaContactIndex index = getMetaContactIndex();
+        if (index != null)
+            index.removeContact(contact, this);
+    }
+
+    /**
+     * Returns the index of the contact list holding this meta contact.
+     *
+     * @return the index or <tt>null</tt> if this meta contact is not in a
+     * group
+     */
+    private MetaContactIndex getMetaContactIndex()
+    {
+        MetaContactGroupImpl parent = parentGroup;
+
+        return (parent == null)
+            ? null
+            : parent.getMclServiceImpl().getMetaContactIndex();
+    }
+
     /**
      * Sets <tt>parentGroup</tt> as a parent of this meta contact. Do not
      * call this method with a null argument even if a group is removing
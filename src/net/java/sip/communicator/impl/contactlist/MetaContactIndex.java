@@ -0,0 +1,220 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.protocol.*;
+
+/**
+ * Maps the protocol contacts and the UIDs of a meta contact list to the meta
+ * contacts and meta groups holding them, so that they can be found without
+ * walking the whole list. The index is updated by the meta contacts and meta
+ * groups whenever they gain or lose children.
+ * <p>
+ * Entries are only hints: the meta contact list service verifies that a
+ * meta contact returned by the index still holds the contact and is still
+ * part of the list before using it.
+ */
+class MetaContactIndex
+{
+    /**
+     * The meta contacts by the address and account of their protocol
+     * contacts.
+     */
+    private final ConcurrentMap<ContactKey, MetaContactImpl> contacts
+        = new ConcurrentHashMap<ContactKey, MetaContactImpl>();
+
+    /**
+     * The meta contacts by their meta UID.
+     */
+    private final ConcurrentMap<String, MetaContactImpl> metaContacts
+        = new ConcurrentHashMap<String, MetaContactImpl>();
+
+    /**
+     * The meta groups by their meta UID.
+     */
+    private final ConcurrentMap<String, MetaContactGroupImpl> groups
+        = new ConcurrentHashMap<String, MetaContactGroupImpl>();
+
+    /**
+     * Records that <tt>contact</tt> is held by <tt>metaContact</tt>.
+     *
+     * @param contact the protocol contact
+     * @param metaContact the meta contact holding it
+     */
+    void addContact(Contact contact, MetaContactImpl metaContact)
+    {
+        this.contacts.put(new ContactKey(contact), metaContact);
+    }
+
+    /**
+     * Forgets that <tt>contact</tt> is held by <tt>metaContact</tt>, unless
+     * another meta contact holds it in the meantime.
+     *
+     * @param contact the protocol contact
+     * @param metaContact the meta contact which held it
+     */
+    void removeContact(Contact contact, MetaContactImpl metaContact)
+    {
+        this.contacts.remove(new ContactKey(contact), metaContact);
+    }
+
+    /**
+     * Records <tt>metaContact</tt> and all its protocol contacts.
+     *
+     * @param metaContact the meta contact added to the list
+     */
+    void addMetaContact(MetaContactImpl metaContact)
+    {
+        this.metaContacts.put(metaContact.getMetaUID(), metaContact);
+
+        Iterator<Contact> protoContacts = metaContact.getContacts();
+        while (protoContacts.hasNext())
+        {
+            addContact(protoContacts.next(), metaContact);
+        }
+    }
+
+    /**
+     * Forgets <tt>metaContact</tt> and all its protocol contacts.
+     *
+     * @param metaContact the meta contact removed from the list
+     */
+    void removeMetaContact(MetaContactImpl metaContact)
+    {
+        this.metaContacts.remove(metaContact.getMetaUID(), metaContact);
+
+        Iterator<Contact> protoContacts = metaContact.getContacts();
+        while (protoContacts.hasNext())
+        {
+            removeContact(protoContacts.next(), metaContact);
+        }
+    }
+
+    /**
+     * Records <tt>group</tt> with its meta contacts and subgroups.
+     *
+     * @param group the meta group added to the list
+     */
+    void addGroup(MetaContactGroupImpl group)
+    {
+        this.groups.put(group.getMetaUID(), group);
+
+        Iterator<MetaContact> childContacts = group.getChildContacts();
+        while (childContacts.hasNext())
+        {
+            addMetaContact((MetaContactImpl) childContacts.next());
+        }
+
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+        {
+            addGroup((MetaContactGroupImpl) subgroups.next());
+        }
+    }
+
+    /**
+     * Forgets <tt>group</tt> with its meta contacts and subgroups.
+     *
+     * @param group the meta group removed from the list
+     */
+    void removeGroup(MetaContactGroupImpl group)
+    {
+        this.groups.remove(group.getMetaUID(), group);
+
+        Iterator<MetaContact> childContacts = group.getChildContacts();
+        while (childContacts.hasNext())
+        {
+            removeMetaContact((MetaContactImpl) childContacts.next());
+        }
+
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+        {
+            removeGroup((MetaContactGroupImpl) subgroups.next());
+        }
+    }
+
+    /**
+     * Returns the meta contact recorded for a protocol contact.
+     *
+     * @param contactAddress the address of the protocol contact
+     * @param accountID the unique ID of the account of the protocol contact
+     * @return the meta contact or <tt>null</tt> if none was recorded
+     */
+    MetaContactImpl findMetaContactByContact(String contactAddress,
+                                             String accountID)
+    {
+        return this.contacts.get(new ContactKey(contactAddress, accountID));
+    }
+
+    /**
+     * Returns the meta contact recorded for a meta UID.
+     *
+     * @param metaUID the meta UID of the meta contact
+     * @return the meta contact or <tt>null</tt> if none was recorded
+     */
+    MetaContactImpl findMetaContactByMetaUID(String metaUID)
+    {
+        return this.metaContacts.get(metaUID);
+    }
+
+    /**
+     * Returns the meta group recorded for a meta UID.
+     *
+     * @param metaUID the meta UID of the meta group
+     * @return the meta group or <tt>null</tt> if none was recorded
+     */
+    MetaContactGroupImpl findMetaContactGroupByMetaUID(String metaUID)
+    {
+        return this.groups.get(metaUID);
+    }
+
+    /**
+     * Identifies a protocol contact by its address and the unique ID of its
+     * account, so that it is found again after its provider was recreated.
+     */
+    private static class ContactKey
+    {
+        private final String address;
+
+        private final String accountID;
+
+        ContactKey(Contact contact)
+        {
+            this(contact.getAddress(),
+                contact.getProtocolProvider().getAccountID()
+                    .getAccountUniqueID());
+        }
+
+        ContactKey(String address, String accountID)
+        {
+            this.address = address;
+            this.accountID = accountID;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * this.address.hashCode() + this.accountID.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof ContactKey))
+                return false;
+
+            ContactKey other = (ContactKey) obj;
+            return this.address.equals(other.address)
+                && this.accountID.equals(other.accountID);
+        }
+    }
+}
@@ -55,6 +55,12 @@ public class MetaContactListServiceImpl
      */
     final MetaContactGroupImpl rootMetaGroup;
 
+    /**
+     * The index of the contacts and groups in the meta contact list, which
+     * spares walking the whole list on every lookup.
+     */
+    private final MetaContactIndex metaContactIndex = new MetaContactIndex();
+
     /**
      * The event handler that will be handling our subscription events.
      */
@@ -108,6 +114,46 @@ public class MetaContactListServiceImpl
         contactEventIgnoreList = new Hashtable<String,
                                                List<ProtocolProviderService>>();
 
+    /**
+     * The length of the window in which presence changes are counted, and
+     * the delay after which they are applied during a presence storm.
+     */
+    private static final long PRESENCE_REORDER_WINDOW = 200;
+
+    /**
+     * The number of presence changes in a window above which further changes
+     * are coalesced instead of reordering their groups one by one.
+     */
+    private static final int PRESENCE_REORDER_BURST = 20;
+
+    /**
+     * The meta contacts whose presence changed and whose groups are to be
+     * reordered at the end of the current window.
+     */
+    private final Set<MetaContactImpl> pendingPresenceChanges
+        = new LinkedHashSet<MetaContactImpl>();
+
+    /**
+     * The start of the current window of presence changes.
+     */
+    private long presenceWindowStart;
+
+    /**
+     * The number of presence changes in the current window.
+     */
+    private int presenceWindowCount;
+
+    /**
+     * The timer applying the coalesced presence changes, created on the first
+     * presence storm.
+     */
+    private Timer presenceReorderTimer;
+
+    /**
+     * Whether the pending presence changes are scheduled to be applied.
+     */
+    private boolean presenceReorderScheduled;
+
     /**
      * The instance of the storage manager which is handling the local copy of
      * our contact list.
@@ -123,6 +169,34 @@ public class MetaContactListServiceImpl
             = new MetaContactGroupImpl(
                     this, ContactlistActivator.getResources().getI18NString(
                         "service.gui.CONTACTS"), "RootMetaContactGroup");
+        metaContactIndex.addGroup(rootMetaGroup);
+    }
+
+    /**
+     * Returns the index of the contacts and groups in the meta contact list.
+     *
+     * @return the index of this meta contact list
+     */
+    MetaContactIndex getMetaContactIndex()
+    {
+        return metaContactIndex;
+    }
+
+    /**
+     * Determines whether a meta contact or group hint returned by the index
+     * is still part of this contact list.
+     *
+     * @param group the group to check, or the parent of the meta contact to
+     * check
+     * @return <tt>true</tt> if <tt>group</tt> is the root group or one of its
+     * descendants
+     */
+    private boolean isInContactList(MetaContactGroup group)
+    {
+        while (group != null && group != rootMetaGroup)
+            group = group.getParentMetaContactGroup();
+
+        return group != null;
     }
 
     /**
@@ -210,6 +284,17 @@ public class MetaContactListServiceImpl
      */
     public void stop(BundleContext bc)
     {
+        synchronized (pendingPresenceChanges)
+        {
+            if (presenceReorderTimer != null)
+            {
+                presenceReorderTimer.cancel();
+                presenceReorderTimer = null;
+            }
+            pendingPresenceChanges.clear();
+            presenceReorderScheduled = false;
+        }
+
         storageManager.storeContactListAndStopStorageManager();
         bc.removeServiceListener(this);
 
@@ -1637,6 +1722,21 @@ public class MetaContactListServiceImpl
      */
     public MetaContact findMetaContactByContact(Contact contact)
     {
+        ProtocolProviderService provider = contact.getProtocolProvider();
+        MetaContactImpl metaContact
+            = metaContactIndex.findMetaContactByContact(
+                contact.getAddress(),
+                provider.getAccountID().getAccountUniqueID());
+
+        if (metaContact == null)
+            return null;
+
+        if (metaContact.getContact(contact.getAddress(), provider) != null
+            && isInContactList(metaContact.getParentMetaContactGroup()))
+            return metaContact;
+
+        // the index is out of date, e.g. the contact belongs to a provider
+        // which was recreated for the same account
         return rootMetaGroup.findMetaContactByContact(contact);
     }
 
@@ -1660,6 +1760,17 @@ public class MetaContactListServiceImpl
     public MetaContact findMetaContactByContact(String contactAddress,
                                                 String accountID)
     {
+        MetaContactImpl metaContact
+            = metaContactIndex.findMetaContactByContact(
+                contactAddress, accountID);
+
+        if (metaContact == null)
+            return null;
+
+        if (metaContact.getContact(contactAddress, accountID) != null
+            && isInContactList(metaContact.getParentMetaContactGroup()))
+            return metaContact;
+
         return rootMetaGroup.findMetaContactByContact(contactAddress
                                                       , accountID);
     }
@@ -1674,6 +1785,12 @@ public class MetaContactListServiceImpl
      */
     public MetaContact findMetaContactByMetaUID(String metaContactID)
     {
+        MetaContactImpl metaContact
+            = metaContactIndex.findMetaContactByMetaUID(metaContactID);
+
+        if (metaContact == null
+            || isInContactList(metaContact.getParentMetaContactGroup()))
+            return metaContact;
 
         return rootMetaGroup.findMetaContactByMetaUID(metaContactID);
     }
@@ -1689,6 +1806,12 @@ public class MetaContactListServiceImpl
      */
     public MetaContactGroup findMetaContactGroupByMetaUID(String metaGroupID)
     {
+        MetaContactGroupImpl metaGroup
+            = metaContactIndex.findMetaContactGroupByMetaUID(metaGroupID);
+
+        if (metaGroup == null || isInContactList(metaGroup))
+            return metaGroup;
+
         return rootMetaGroup.findMetaContactGroupByMetaUID(metaGroupID);
     }
 
@@ -3153,18 +3276,107 @@ public class MetaContactListServiceImpl
         if(metaContactImpl == null)
             return;
 
-        int oldContactIndex = metaContactImpl.getParentGroup()
-            .indexOf(metaContactImpl);
+        synchronized (pendingPresenceChanges)
+        {
+            long now = System.currentTimeMillis();
 
-        int newContactIndex = metaContactImpl.reevalContact();
+            if (now - presenceWindowStart >= PRESENCE_REORDER_WINDOW)
+            {
+                presenceWindowStart = now;
+                presenceWindowCount = 0;
+            }
+            presenceWindowCount++;
 
-        if(oldContactIndex != newContactIndex)
+            // during a presence storm, e.g. after a reconnect, the groups are
+            // reordered once at the end of the window instead of once per
+            // change
+            if (presenceReorderScheduled
+                || presenceWindowCount > PRESENCE_REORDER_BURST)
+            {
+                pendingPresenceChanges.add(metaContactImpl);
+                if (!presenceReorderScheduled)
+                {
+                    if (presenceReorderTimer == null)
+                    {
+                        presenceReorderTimer
+                            = new Timer("MetaContactList presence reorder",
+                                        true);
+                    }
+                    presenceReorderTimer.schedule(
+                        new PresenceReorderTask(), PRESENCE_REORDER_WINDOW);
+                    presenceReorderScheduled = true;
+                }
+                return;
+            }
+        }
+
+        reevalContacts(
+            Collections.singleton(metaContactImpl), evt.getSourceProvider());
+    }
+
+    /**
+     * Re-evaluates the status of <tt>metaContacts</tt> and reorders each of
+     * their groups once, firing a <tt>CHILD_CONTACTS_REORDERED</tt> event for
+     * every group whose order changed.
+     *
+     * @param metaContacts the meta contacts whose presence changed
+     * @param sourceProvider the provider of the presence change, or
+     * <tt>null</tt> if the changes come from several providers
+     */
+    private void reevalContacts(Collection<MetaContactImpl> metaContacts,
+                                ProtocolProviderService sourceProvider)
+    {
+        Set<MetaContactGroupImpl> groups
+            = new LinkedHashSet<MetaContactGroupImpl>();
+
+        for (MetaContactImpl metaContact : metaContacts)
         {
-            fireMetaContactGroupEvent(
-                findParentMetaContactGroup(metaContactImpl)
-                , evt.getSourceProvider()
-                , null
-                , MetaContactGroupEvent.CHILD_CONTACTS_REORDERED);
+            MetaContactGroupImpl group = metaContact.reevalContact();
+
+            if (group != null)
+                groups.add(group);
+        }
+
+        for (MetaContactGroupImpl group : groups)
+        {
+            if (group.updateOrderedChildContacts())
+            {
+                fireMetaContactGroupEvent(
+                    group
+                    , sourceProvider
+                    , null
+                    , MetaContactGroupEvent.CHILD_CONTACTS_REORDERED);
+            }
+        }
+    }
+
+    /**
+     * Applies the presence changes coalesced during a presence storm.
+     */
+    private class PresenceReorderTask
+        extends TimerTask
+    {
+        @Override
+        public void run()
+        {
+            List<MetaContactImpl> metaContacts;
+
+            synchronized (pendingPresenceChanges)
+            {
+                metaContacts
+                    = new ArrayList<MetaContactImpl>(pendingPresenceChanges);
+                pendingPresenceChanges.clear();
+                presenceReorderScheduled = false;
+            }
+
+            try
+            {
+                reevalContacts(metaContacts, null);
+            }
+            catch (Throwable t)
+            {
+                logger.error("Failed to reorder the contact list", t);
+            }
         }
     }
 
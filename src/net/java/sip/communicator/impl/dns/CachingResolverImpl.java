@@ -0,0 +1,769 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.dns;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.dns.*;
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.service.configuration.*;
+import org.xbill.DNS.*;
+
+/**
+ * Caches the answers of the resolver it wraps for all the lookups of the
+ * application. It is installed as the default resolver of dnsjava, in front
+ * of the resolver in use, so that the lookups of <tt>NetworkUtils</tt> share
+ * the same answers whichever <tt>Lookup</tt> and dnsjava cache they use.
+ * <p>
+ * The answers are kept for the smallest TTL of their records and returned
+ * with the TTL they have left. Negative answers are kept for the TTL of the
+ * SOA record of their authority section. When the wrapped resolver fails or
+ * the servers answer with a failure, an expired answer is returned with a
+ * short TTL until the stale period ends.
+ * <p>
+ * An answer asked for again, whether it was still in the cache or had
+ * expired, and used during its last TTL is in active use. Such answers are
+ * queried again in the background shortly before they expire and replaced
+ * by the new answer. The caches of dnsjava keep the answers for their whole
+ * TTL, so they usually only ask for an answer again once it has expired.
+ */
+public class CachingResolverImpl
+    implements CachingResolver
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>CachingResolverImpl</tt>
+     * class and its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(CachingResolverImpl.class);
+
+    /**
+     * The TTL in seconds of the negative answers without SOA record.
+     */
+    private static final long DEFAULT_NEGATIVE_TTL = 60;
+
+    /**
+     * The TTL in seconds of the records of an expired answer.
+     */
+    private static final long STALE_TTL = 30;
+
+    /**
+     * The number of milliseconds between two searches for the answers in
+     * active use about to expire.
+     */
+    private static final long REFRESH_INTERVAL = 10 * 1000;
+
+    /**
+     * The number of milliseconds after its last use an answer is no longer
+     * in active use.
+     */
+    private static final long ACTIVE_PERIOD = 10 * 60 * 1000;
+
+    /**
+     * The minimum TTL in milliseconds of the answers refreshed in the
+     * background. Shorter TTLs are meant to be queried again.
+     */
+    private static final long MIN_REFRESHED_TTL = 10 * 1000;
+
+    /**
+     * The answers, by question, the least recently used first.
+     */
+    private final Map<CacheKey, CacheEntry> cache;
+
+    /**
+     * The questions which are being queried in the background.
+     */
+    private final Set<CacheKey> refreshing
+        = Collections.synchronizedSet(new HashSet<CacheKey>());
+
+    /**
+     * The executor querying the answers in active use in the background.
+     */
+    private final ScheduledExecutorService refresher;
+
+    /**
+     * The maximum TTL in milliseconds of the answers.
+     */
+    private final long maxTtl;
+
+    /**
+     * The maximum TTL in milliseconds of the negative answers.
+     */
+    private final long maxNegativeTtl;
+
+    /**
+     * The number of milliseconds an expired answer is returned when the
+     * wrapped resolver fails.
+     */
+    private final long stalePeriod;
+
+    /**
+     * Whether the answers in active use are refreshed before they expire.
+     */
+    private final boolean prefetch;
+
+    /**
+     * The resolver sending the queries which are not answered by the cache.
+     */
+    private volatile Resolver resolver;
+
+    /**
+     * Creates a cache in front of <tt>resolver</tt> and installs it as the
+     * default resolver of dnsjava.
+     *
+     * @param resolver the resolver sending the queries which are not
+     * answered by the cache.
+     * @param config the configuration of the cache
+     */
+    public CachingResolverImpl(Resolver resolver, ConfigurationService config)
+    {
+        this.resolver = resolver;
+
+        final int maxSize
+            = config.getInt(PNAME_DNS_CACHE_SIZE, PDEFAULT_DNS_CACHE_SIZE);
+
+        maxTtl = 1000L * config.getInt(
+            PNAME_DNS_CACHE_MAX_TTL, PDEFAULT_DNS_CACHE_MAX_TTL);
+        maxNegativeTtl = 1000L * config.getInt(
+            PNAME_DNS_CACHE_MAX_NEGATIVE_TTL,
+            PDEFAULT_DNS_CACHE_MAX_NEGATIVE_TTL);
+        stalePeriod = 1000L * config.getInt(
+            PNAME_DNS_CACHE_STALE_PERIOD, PDEFAULT_DNS_CACHE_STALE_PERIOD);
+        prefetch = config.getBoolean(
+            PNAME_DNS_CACHE_PREFETCH_ENABLED,
+            PDEFAULT_DNS_CACHE_PREFETCH_ENABLED);
+
+        cache = new LinkedHashMap<CacheKey, CacheEntry>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 0L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<CacheKey, CacheEntry> eldest)
+            {
+                return size() > maxSize;
+            }
+        };
+
+        refresher = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "DNS cache refresher");
+
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        refresher.scheduleWithFixedDelay(
+            new Runnable()
+            {
+                public void run()
+                {
+                    refreshActiveEntries();
+                }
+            },
+            REFRESH_INTERVAL,
+            REFRESH_INTERVAL,
+            TimeUnit.MILLISECONDS);
+
+        Lookup.setDefaultResolver(this);
+    }
+
+    /**
+     * Returns the answer to <tt>query</tt> from the cache, or sends it with
+     * the wrapped resolver and caches the response.
+     *
+     * @param query The query to send.
+     * @return The response
+     *
+     * @throws IOException An error occurred while sending or receiving, and
+     * the cache has no answer to return instead.
+     */
+    public Message send(Message query)
+        throws IOException
+    {
+        Record question = query.getQuestion();
+
+        if ((question == null)
+            || (query.getHeader().getOpcode() != Opcode.QUERY))
+            return resolver.send(query);
+
+        CacheKey key = new CacheKey(question);
+        long now = currentTimeMillis();
+        CacheEntry entry;
+
+        synchronized (cache)
+        {
+            entry = cache.get(key);
+        }
+
+        if (entry != null)
+        {
+            // an expired answer is in use too, the new answer inherits it
+            entry.lastUsed = now;
+            entry.reused = true;
+
+            if (entry.expiration > now)
+            {
+                if (prefetch && entry.isActive(now) && entry.isExpiring(now))
+                    scheduleRefresh(key);
+
+                return entry.createResponse(query, now);
+            }
+        }
+
+        Message response;
+        try
+        {
+            response = resolver.send(query);
+        }
+        catch (IOException e)
+        {
+            if ((entry != null) && entry.isServable(now))
+            {
+                logger.warn("Returning expired answer for " + key
+                    + ": " + e.getMessage());
+                return entry.createResponse(query, now);
+            }
+            throw e;
+        }
+
+        if (!store(key, response, now)
+            && (response.getRcode() != Rcode.NOERROR)
+            && (response.getRcode() != Rcode.NXDOMAIN)
+            && (entry != null)
+            && entry.isServable(now))
+        {
+            logger.warn("Returning expired answer for " + key + ": "
+                + Rcode.string(response.getRcode()));
+            return entry.createResponse(query, now);
+        }
+
+        return response;
+    }
+
+    /**
+     * Caches a response if it can be cached, keeping the usage of the
+     * answer it replaces.
+     *
+     * @param key the question <tt>response</tt> answers
+     * @param response the response to cache
+     * @param now the time the response was received
+     * @return <tt>true</tt> if the response was cached
+     */
+    private boolean store(CacheKey key, Message response, long now)
+    {
+        long ttl = getTtl(response);
+
+        if (ttl <= 0)
+            return false;
+
+        CacheEntry entry = new CacheEntry(response, now, ttl);
+
+        synchronized (cache)
+        {
+            CacheEntry previous = cache.get(key);
+
+            if (previous != null)
+            {
+                entry.lastUsed = previous.lastUsed;
+                entry.reused = previous.reused;
+            }
+            cache.put(key, entry);
+        }
+        return true;
+    }
+
+    /**
+     * Returns how long a response can be cached.
+     *
+     * @param response the response to cache
+     * @return the TTL of <tt>response</tt> in milliseconds, <tt>0</tt> if it
+     * cannot be cached
+     */
+    private long getTtl(Message response)
+    {
+        int rcode = response.getRcode();
+
+        if (response.getHeader().getFlag(Flags.TC)
+            || ((rcode != Rcode.NOERROR) && (rcode != Rcode.NXDOMAIN)))
+            return 0;
+
+        Record[] answers = response.getSectionArray(Section.ANSWER);
+
+        if ((rcode == Rcode.NOERROR) && (answers.length > 0))
+        {
+            long ttl = Long.MAX_VALUE;
+
+            for (Record answer : answers)
+                ttl = Math.min(ttl, answer.getTTL());
+
+            return Math.min(1000L * ttl, maxTtl);
+        }
+
+        long ttl = DEFAULT_NEGATIVE_TTL;
+
+        for (Record authority : response.getSectionArray(Section.AUTHORITY))
+        {
+            if (authority instanceof SOARecord)
+            {
+                ttl = Math.min(
+                    authority.getTTL(),
+                    ((SOARecord) authority).getMinimum());
+            }
+        }
+        return Math.min(1000L * ttl, maxNegativeTtl);
+    }
+
+    /**
+     * Queries again in the background the answers in active use which are
+     * about to expire, and removes the answers which can no longer be
+     * returned.
+     */
+    private void refreshActiveEntries()
+    {
+        long now = currentTimeMillis();
+        List<CacheKey> expiring = new ArrayList<CacheKey>();
+
+        synchronized (cache)
+        {
+            Iterator<Map.Entry<CacheKey, CacheEntry>> iter
+                = cache.entrySet().iterator();
+
+            while (iter.hasNext())
+            {
+                Map.Entry<CacheKey, CacheEntry> e = iter.next();
+                CacheEntry entry = e.getValue();
+
+                if (prefetch && entry.isActive(now) && entry.isExpiring(now))
+                    expiring.add(e.getKey());
+                else if (!entry.isServable(now))
+                    iter.remove();
+            }
+        }
+
+        for (CacheKey key : expiring)
+            scheduleRefresh(key);
+    }
+
+    /**
+     * Queries an answer again in the background, unless it is already being
+     * queried.
+     *
+     * @param key the question to query
+     */
+    private void scheduleRefresh(final CacheKey key)
+    {
+        if (!refreshing.add(key))
+            return;
+
+        try
+        {
+            refresher.execute(
+                new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            refresh(key);
+                        }
+                        finally
+                        {
+                            refreshing.remove(key);
+                        }
+                    }
+                });
+        }
+        catch (RejectedExecutionException e)
+        {
+            refreshing.remove(key);
+        }
+    }
+
+    /**
+     * Queries an answer again with the wrapped resolver and caches the
+     * response. The answer in the cache is kept if the query fails.
+     *
+     * @param key the question to query
+     */
+    private void refresh(CacheKey key)
+    {
+        Message query = Message.newQuery(
+            Record.newRecord(key.name, key.type, key.dclass));
+
+        try
+        {
+            Message response = resolver.send(query);
+
+            if (!store(key, response, currentTimeMillis())
+                && logger.isDebugEnabled())
+            {
+                logger.debug("Keeping answer for " + key + ", got "
+                    + Rcode.string(response.getRcode()));
+            }
+        }
+        catch (Throwable t)
+        {
+            if (logger.isDebugEnabled())
+                logger.debug("Failed to refresh answer for " + key, t);
+        }
+    }
+
+    /**
+     * Removes all the answers from the cache, so that the following queries
+     * are sent to the DNS servers.
+     */
+    public void clearCache()
+    {
+        synchronized (cache)
+        {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Clears the cache, resets the wrapped resolver with the newly configured
+     * servers and installs the cache as the default resolver again.
+     */
+    public void reset()
+    {
+        clearCache();
+
+        if (resolver instanceof CustomResolver)
+            ((CustomResolver) resolver).reset();
+        else
+        {
+            Lookup.refreshDefault();
+            resolver = Lookup.getDefaultResolver();
+        }
+
+        Lookup.setDefaultResolver(this);
+    }
+
+    /**
+     * Stops refreshing the answers in the background and installs the
+     * wrapped resolver as the default resolver of dnsjava again.
+     */
+    public void shutdown()
+    {
+        refresher.shutdownNow();
+
+        if (Lookup.getDefaultResolver() == this)
+            Lookup.setDefaultResolver(resolver);
+    }
+
+    /**
+     * Returns the current time of the cache.
+     *
+     * @return the current time in milliseconds
+     */
+    protected long currentTimeMillis()
+    {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Asynchronously sends a message with the wrapped resolver, bypassing the
+     * cache.
+     *
+     * @param query The query to send
+     * @param listener The object containing the callbacks.
+     * @return An identifier, which is also a parameter in the callback
+     */
+    public Object sendAsync(Message query, ResolverListener listener)
+    {
+        return resolver.sendAsync(query, listener);
+    }
+
+    /**
+     * Sets the port to communicate on with the wrapped resolver.
+     *
+     * @param port The port to send messages to
+     */
+    public void setPort(int port)
+    {
+        resolver.setPort(port);
+    }
+
+    /**
+     * Sets whether TCP connections will be sent by default with the wrapped
+     * resolver.
+     *
+     * @param flag Indicates whether TCP connections are made
+     */
+    public void setTCP(boolean flag)
+    {
+        resolver.setTCP(flag);
+    }
+
+    /**
+     * Sets whether truncated responses will be ignored by the wrapped
+     * resolver.
+     *
+     * @param flag Indicates whether truncated responses should be ignored.
+     */
+    public void setIgnoreTruncation(boolean flag)
+    {
+        resolver.setIgnoreTruncation(flag);
+    }
+
+    /**
+     * Sets the EDNS version used on outgoing messages.
+     *
+     * @param level The EDNS level to use.  0 indicates EDNS0 and -1 indicates no
+     * EDNS.
+     * @throws IllegalArgumentException An invalid level was indicated.
+     */
+    public void setEDNS(int level)
+    {
+        resolver.setEDNS(level);
+    }
+
+    /**
+     * Sets the EDNS information on outgoing messages.
+     *
+     * @param level The EDNS level to use.  0 indicates EDNS0 and -1 indicates no
+     * EDNS.
+     * @param payloadSize The maximum DNS packet size that this host is capable
+     * of receiving over UDP.  If 0 is specified, the default (1280) is used.
+     * @param flags EDNS extended flags to be set in the OPT record.
+     * @param options EDNS options to be set in the OPT record, specified as a
+     * List of OPTRecord.Option elements.
+     *
+     * @throws IllegalArgumentException An invalid field was specified.
+     * @see OPTRecord
+     */
+    @SuppressWarnings("rawtypes") // that's the way it is in dnsjava
+    public void setEDNS(int level, int payloadSize, int flags, List options)
+    {
+        resolver.setEDNS(level, payloadSize, flags, options);
+    }
+
+    /**
+     * Specifies the TSIG key that messages will be signed with
+     * @param key The key
+     */
+    public void setTSIGKey(TSIG key)
+    {
+        resolver.setTSIGKey(key);
+    }
+
+    /**
+     * Sets the amount of time to wait for a response before giving up.
+     *
+     * @param secs The number of seconds to wait.
+     * @param msecs The number of milliseconds to wait.
+     */
+    public void setTimeout(int secs, int msecs)
+    {
+        resolver.setTimeout(secs, msecs);
+    }
+
+    /**
+     * Sets the amount of time to wait for a response before giving up.
+     *
+     * @param secs The number of seconds to wait.
+     */
+    public void setTimeout(int secs)
+    {
+        resolver.setTimeout(secs);
+    }
+
+    /**
+     * The name, type and class of a question.
+     */
+    private static class CacheKey
+    {
+        final Name name;
+
+        final int type;
+
+        final int dclass;
+
+        CacheKey(Record question)
+        {
+            name = question.getName();
+            type = question.getType();
+            dclass = question.getDClass();
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof CacheKey))
+                return false;
+
+            CacheKey other = (CacheKey) obj;
+
+            return (type == other.type)
+                && (dclass == other.dclass)
+                && name.equals(other.name);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (name.hashCode() * 31 + type) * 31 + dclass;
+        }
+
+        @Override
+        public String toString()
+        {
+            return name + "/" + Type.string(type);
+        }
+    }
+
+    /**
+     * A cached response and its usage.
+     */
+    private class CacheEntry
+    {
+        /**
+         * The cached response.
+         */
+        final Message response;
+
+        /**
+         * The TTL of the response in milliseconds.
+         */
+        final long ttl;
+
+        /**
+         * The time the response expires.
+         */
+        final long expiration;
+
+        /**
+         * The last time the response was used.
+         */
+        volatile long lastUsed;
+
+        /**
+         * Whether the response has been asked for again since it was first
+         * received.
+         */
+        volatile boolean reused = false;
+
+        CacheEntry(Message response, long received, long ttl)
+        {
+            this.response = response;
+            this.ttl = ttl;
+            expiration = received + ttl;
+            lastUsed = received;
+        }
+
+        /**
+         * Indicates whether the response is in active use and is worth
+         * refreshing before it expires. A response used during its TTL, or
+         * during the active period if it is longer, is in active use, since
+         * a dnsjava cache asks for it again at most once per TTL.
+         *
+         * @param now the current time
+         * @return <tt>true</tt> if the response is in active use
+         */
+        boolean isActive(long now)
+        {
+            return reused
+                && (now - lastUsed < Math.max(ACTIVE_PERIOD, ttl))
+                && (ttl >= MIN_REFRESHED_TTL);
+        }
+
+        /**
+         * Indicates whether the response is about to expire. The answers in
+         * active use are refreshed during the last tenth of their TTL, or
+         * the last refresh interval if it is longer but no more than half of
+         * their TTL.
+         *
+         * @param now the current time
+         * @return <tt>true</tt> if the response is about to expire
+         */
+        boolean isExpiring(long now)
+        {
+            long window = Math.min(
+                Math.max(ttl / 10, REFRESH_INTERVAL),
+                ttl / 2);
+
+            return expiration - now <= window;
+        }
+
+        /**
+         * Indicates whether the response can still be returned, possibly
+         * after its expiration when the wrapped resolver fails.
+         *
+         * @param now the current time
+         * @return <tt>true</tt> if the response can be returned
+         */
+        boolean isServable(long now)
+        {
+            return now < expiration + stalePeriod;
+        }
+
+        /**
+         * Creates a copy of the response for <tt>query</tt>, its records
+         * having the TTL they have left or a short TTL if it has expired.
+         *
+         * @param query the query answered
+         * @param now the current time
+         * @return the response to <tt>query</tt>
+         * @throws IOException if the records cannot be copied
+         */
+        Message createResponse(Message query, long now)
+            throws IOException
+        {
+            long ttl = (expiration > now)
+                ? (expiration - now + 999) / 1000
+                : STALE_TTL;
+            Message copy = (Message) response.clone();
+
+            copy.getHeader().setID(query.getHeader().getID());
+            for (int section = Section.ANSWER;
+                    section <= Section.ADDITIONAL;
+                    section++)
+            {
+                Record[] records = copy.getSectionArray(section);
+
+                copy.removeAllRecords(section);
+                for (Record record : records)
+                {
+                    if ((record.getType() != Type.OPT)
+                        && (record.getTTL() > ttl))
+                        record = withTtl(record, ttl);
+                    copy.addRecord(record, section);
+                }
+            }
+            return copy;
+        }
+    }
+
+    /**
+     * Creates a copy of a record with another TTL.
+     *
+     * @param record the record to copy
+     * @param ttl the TTL of the copy in seconds
+     * @return the copy of <tt>record</tt>
+     * @throws IOException if the record cannot be copied
+     */
+    private static Record withTtl(Record record, long ttl)
+        throws IOException
+    {
+        byte[] wire = record.toWire(Section.ANSWER);
+        // the TTL follows the name, the type and the class
+        int offset = record.getName().length() + 4;
+
+        wire[offset] = (byte) (ttl >>> 24);
+        wire[offset + 1] = (byte) (ttl >>> 16);
+        wire[offset + 2] = (byte) (ttl >>> 8);
+        wire[offset + 3] = (byte) ttl;
+        return Record.fromWire(wire, Section.ANSWER);
+    }
+}
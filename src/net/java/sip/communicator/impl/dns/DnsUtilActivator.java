@@ -24,7 +24,8 @@ import org.xbill.DNS.*;
 import java.net.*;
 
 /**
- * The DNS Util activator registers the DNSSEC resolver if enabled.
+ * The DNS Util activator registers the DNSSEC resolver if enabled, or the
+ * resolver caching the DNS answers otherwise.
  *
  * @author Emil Ivov
  * @author Ingo Bauersachs
@@ -91,6 +92,12 @@ public class DnsUtilActivator
     public static final String PNAME_BACKUP_RESOLVER
         = "net.java.sip.communicator.util.dns.BACKUP_RESOLVER";
 
+    /**
+     * The cache of the DNS answers installed as the default resolver of
+     * dnsjava, <tt>null</tt> if it is disabled.
+     */
+    private CachingResolverImpl cachingResolver;
+
     /**
      * Calls <tt>Thread.setUncaughtExceptionHandler()</tt>
      *
@@ -117,23 +124,36 @@ public class DnsUtilActivator
             return;
         }
 
+        boolean dnssecEnabled = getConfigurationService().getBoolean(
+            CustomResolver.PNAME_DNSSEC_RESOLVER_ENABLED,
+            CustomResolver.PDEFAULT_DNSSEC_RESOLVER_ENABLED);
+        // the validation results of the DNSSEC resolver are not cached,
+        // so its answers are only kept in the dnsjava caches
+        boolean cacheEnabled = !dnssecEnabled
+            && getConfigurationService().getBoolean(
+                CachingResolver.PNAME_DNS_CACHE_ENABLED,
+                CachingResolver.PDEFAULT_DNS_CACHE_ENABLED);
+
         if(UtilActivator.getConfigurationService().getBoolean(
                 DnsUtilActivator.PNAME_BACKUP_RESOLVER_ENABLED,
                 DnsUtilActivator.PDEFAULT_BACKUP_RESOLVER_ENABLED)
-            && !getConfigurationService().getBoolean(
-                CustomResolver.PNAME_DNSSEC_RESOLVER_ENABLED,
-                CustomResolver.PDEFAULT_DNSSEC_RESOLVER_ENABLED))
+            && !dnssecEnabled)
         {
-            bundleContext.registerService(
-                CustomResolver.class.getName(),
-                new ParallelResolverImpl(),
-                null);
-            logger.info("ParallelResolver ... [REGISTERED]");
+            // installs itself as the default resolver, which the cache wraps
+            // and is registered in place of
+            ParallelResolverImpl parallelResolver = new ParallelResolverImpl();
+
+            if (!cacheEnabled)
+            {
+                bundleContext.registerService(
+                    CustomResolver.class.getName(),
+                    parallelResolver,
+                    null);
+                logger.info("ParallelResolver ... [REGISTERED]");
+            }
         }
 
-        if(getConfigurationService().getBoolean(
-            CustomResolver.PNAME_DNSSEC_RESOLVER_ENABLED,
-            CustomResolver.PDEFAULT_DNSSEC_RESOLVER_ENABLED))
+        if(dnssecEnabled)
         {
             bundleContext.registerService(
                 CustomResolver.class.getName(),
@@ -141,6 +161,21 @@ public class DnsUtilActivator
                 null);
             logger.info("DnssecResolver ... [REGISTERED]");
         }
+        else if(cacheEnabled)
+        {
+            cachingResolver = new CachingResolverImpl(
+                Lookup.getDefaultResolver(),
+                getConfigurationService());
+            bundleContext.registerService(
+                new String[]
+                {
+                    CachingResolver.class.getName(),
+                    CustomResolver.class.getName()
+                },
+                cachingResolver,
+                null);
+            logger.info("CachingResolver ... [REGISTERED]");
+        }
 
         logger.info("DNS service ... [STARTED]");
     }
@@ -262,7 +297,8 @@ public class DnsUtilActivator
     }
 
     /**
-     * Doesn't do anything.
+     * Stops the cache of the DNS answers and installs the resolver it wraps
+     * as the default resolver again.
      *
      * @param context The execution context of the bundle being stopped.
      * @throws Exception If this method throws an exception, the bundle is
@@ -273,6 +309,11 @@ public class DnsUtilActivator
     public void stop(BundleContext context)
         throws Exception
     {
+        if (cachingResolver != null)
+        {
+            cachingResolver.shutdown();
+            cachingResolver = null;
+        }
     }
 
     /**
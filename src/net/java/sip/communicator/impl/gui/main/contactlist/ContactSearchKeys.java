@@ -0,0 +1,225 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.gui.main.contactlist;
+
+import java.text.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * The search strings of a contact in the form they are compared to a search
+ * query: case-folded and without accents, so that "jose" finds "José", plus
+ * the digits of every string containing some, so that "555 12" finds
+ * "+1-555-12-34". Computed once per contact and reused for every key stroke
+ * in the search field.
+ */
+public class ContactSearchKeys
+{
+    /**
+     * The keys of a contact without search strings.
+     */
+    public static final ContactSearchKeys EMPTY
+        = new ContactSearchKeys(null);
+
+    /**
+     * Matches the combining marks left by the canonical decomposition of
+     * accented characters.
+     */
+    private static final Pattern COMBINING_MARKS
+        = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+
+    /**
+     * The characters besides digits a query for a phone number may contain.
+     */
+    private static final String PHONE_NUMBER_SEPARATORS = "+-()./ ";
+
+    /**
+     * The normalized search strings.
+     */
+    private final String[] keys;
+
+    /**
+     * The digits of the search strings containing digits.
+     */
+    private final String[] digitKeys;
+
+    /**
+     * Creates the search keys of a contact.
+     *
+     * @param searchStrings the search strings of the contact, may be
+     * <tt>null</tt>
+     */
+    public ContactSearchKeys(Iterator<String> searchStrings)
+    {
+        List<String> keys = new ArrayList<String>();
+        List<String> digitKeys = new ArrayList<String>();
+
+        while (searchStrings != null && searchStrings.hasNext())
+        {
+            String searchString = searchStrings.next();
+
+            if (searchString == null)
+                continue;
+
+            keys.add(normalize(searchString));
+
+            String digits = getDigits(searchString);
+            if (digits.length() > 0)
+                digitKeys.add(digits);
+        }
+
+        this.keys = keys.toArray(new String[keys.size()]);
+        this.digitKeys = digitKeys.toArray(new String[digitKeys.size()]);
+    }
+
+    /**
+     * Indicates if one of the search strings contains the text of
+     * <tt>query</tt>, or if <tt>query</tt> is a phone number, if one of them
+     * contains its digits.
+     *
+     * @param query the query to check
+     * @return <tt>true</tt> if the contact matches <tt>query</tt>
+     */
+    public boolean matches(Query query)
+    {
+        for (String key : keys)
+        {
+            if (key.contains(query.text))
+                return true;
+        }
+
+        if (query.digits != null)
+        {
+            for (String digitKey : digitKeys)
+            {
+                if (digitKey.contains(query.digits))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Creates the query matching the contacts whose search strings contain
+     * <tt>filterString</tt>.
+     *
+     * @param filterString the string searched for
+     * @return the query for <tt>filterString</tt>
+     */
+    public static Query createQuery(String filterString)
+    {
+        String digits = null;
+
+        if (isPhoneNumber(filterString))
+            digits = getDigits(filterString);
+
+        return new Query(normalize(filterString), digits);
+    }
+
+    /**
+     * Case-folds <tt>text</tt> and removes its accents.
+     *
+     * @param text the text to normalize
+     * @return the normalized text
+     */
+    static String normalize(String text)
+    {
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        String stripped = COMBINING_MARKS.matcher(decomposed).replaceAll("");
+
+        // Upper-casing first folds characters like the German sharp s and the
+        // final sigma to the same lower case as their other forms.
+        return stripped.toUpperCase(Locale.ENGLISH)
+            .toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Returns the digits of <tt>text</tt>.
+     *
+     * @param text the text to get the digits of
+     * @return the digits of <tt>text</tt> in their order
+     */
+    private static String getDigits(String text)
+    {
+        StringBuilder digits = new StringBuilder();
+
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+
+            if (c >= '0' && c <= '9')
+                digits.append(c);
+        }
+        return digits.toString();
+    }
+
+    /**
+     * Indicates if <tt>text</tt> only consists of digits and the characters
+     * used to group them in phone numbers.
+     *
+     * @param text the text to check
+     * @return <tt>true</tt> if <tt>text</tt> looks like a phone number
+     */
+    private static boolean isPhoneNumber(String text)
+    {
+        boolean hasDigits = false;
+
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+
+            if (c >= '0' && c <= '9')
+                hasDigits = true;
+            else if (PHONE_NUMBER_SEPARATORS.indexOf(c) == -1)
+                return false;
+        }
+        return hasDigits;
+    }
+
+    /**
+     * A search string in the form it is compared to the search keys.
+     */
+    public static class Query
+    {
+        /**
+         * The normalized search string.
+         */
+        private final String text;
+
+        /**
+         * The digits of the search string if it is a phone number, otherwise
+         * <tt>null</tt>.
+         */
+        private final String digits;
+
+        private Query(String text, String digits)
+        {
+            this.text = text;
+            this.digits = digits;
+        }
+
+        /**
+         * Indicates if the contacts matching this query are among the ones
+         * matching <tt>previous</tt>, so that this query can be answered
+         * from the matches of <tt>previous</tt>. This is the case when this
+         * query only adds characters after the ones of <tt>previous</tt> and
+         * both are phone numbers or both are not: a query which becomes a
+         * phone number, like "+4" after "+", also matches the digits.
+         *
+         * @param previous the query of a previous search
+         * @return <tt>true</tt> if this query narrows <tt>previous</tt>
+         */
+        public boolean refines(Query previous)
+        {
+            if ((digits == null) != (previous.digits == null))
+                return false;
+
+            return text.startsWith(previous.text)
+                && (digits == null || digits.startsWith(previous.digits));
+        }
+    }
+}
@@ -225,6 +225,7 @@ public class GenericUIContactImpl
     public void setSearchStrings(List<String> strings)
     {
         this.searchStrings = strings;
+        invalidateSearchKeys();
     }
 
     /**
@@ -34,6 +34,12 @@ public class SearchFilter
      */
     protected Pattern filterPattern;
 
+    /**
+     * The filter string in the form it is compared to the search keys of
+     * the contacts.
+     */
+    protected ContactSearchKeys.Query searchQuery;
+
     /**
      * The <tt>MetaContactListSource</tt> to search in.
      */
@@ -111,7 +117,9 @@ public class SearchFilter
             // First add the MetaContactListSource
             filterQuery.addContactQuery(defaultQuery);
             
-            mclSource.startQuery(defaultQuery, filterPattern);
+            // A query for a string extending the previous one only checks
+            // the contacts matched by the previous one.
+            mclSource.startQuery(defaultQuery, filterString, filterPattern);
         }
         else if (sourceContactList.getDefaultFilter()
                     .equals(TreeContactList.historyFilter))
@@ -208,6 +216,12 @@ public class SearchFilter
      */
     public boolean isMatching(UIContact uiContact)
     {
+        if (searchQuery != null && uiContact instanceof UIContactImpl)
+        {
+            return ((UIContactImpl) uiContact).getSearchKeys()
+                .matches(searchQuery);
+        }
+
         Iterator<String> searchStrings = uiContact.getSearchStrings();
 
         if (searchStrings != null)
@@ -240,6 +254,11 @@ public class SearchFilter
      */
     public void setFilterString(String filter)
     {
+        // The pattern and the query only depend on the string, so they are
+        // kept while it does not change.
+        if (filterPattern != null && filter.equals(filterString))
+            return;
+
         // First escape all special characters from the given filter string.
         this.filterString = filter;
 
@@ -254,6 +273,8 @@ public class SearchFilter
                         Pattern.MULTILINE
                             | Pattern.CASE_INSENSITIVE
                             | Pattern.UNICODE_CASE);
+
+        this.searchQuery = ContactSearchKeys.createQuery(filterString);
     }
 
     /**
@@ -6,6 +6,8 @@
  */
 package net.java.sip.communicator.impl.gui.main.contactlist;
 
+import java.util.*;
+
 import javax.swing.*;
 
 import net.java.sip.communicator.service.gui.*;
@@ -19,6 +21,12 @@ import net.java.sip.communicator.service.gui.*;
 public abstract class UIContactImpl
     extends UIContact
 {
+    /**
+     * The search keys built from the search strings of this contact, or
+     * <tt>null</tt> if they have not been built since they last changed.
+     */
+    private volatile ContactSearchKeys searchKeys;
+
     /**
      * Returns the corresponding <tt>ContactNode</tt>. The <tt>ContactNode</tt>
      * is the real node that is stored in the contact list component data model.
@@ -75,4 +83,35 @@ public abstract class UIContactImpl
      */
     @Override
     public abstract String getDisplayName();
+
+    /**
+     * Returns the search keys of this contact, built from its search strings
+     * the first time they are needed.
+     *
+     * @return the search keys of this contact
+     */
+    public ContactSearchKeys getSearchKeys()
+    {
+        ContactSearchKeys keys = searchKeys;
+
+        if (keys == null)
+        {
+            Iterator<String> searchStrings = getSearchStrings();
+
+            keys = (searchStrings == null)
+                ? ContactSearchKeys.EMPTY
+                : new ContactSearchKeys(searchStrings);
+            searchKeys = keys;
+        }
+        return keys;
+    }
+
+    /**
+     * Drops the search keys of this contact, to be called when its search
+     * strings change.
+     */
+    protected void invalidateSearchKeys()
+    {
+        searchKeys = null;
+    }
 }
@@ -10,6 +10,7 @@ import java.awt.*;
 import java.awt.event.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.*;
 import java.util.regex.*;
 
 import javax.swing.*;
@@ -62,12 +63,65 @@ public class MetaContactListSource
     private static final String GROUP_IS_NEW_KEY
         = MetaUIGroup.class.getName() + ".groupIsNew";
 
+    /**
+     * The data key of the <tt>ContactSearchKeys</tt> cached in a
+     * <tt>MetaContact</tt> until it is renamed or its protocol contacts
+     * change.
+     */
+    private static final String SEARCH_KEYS_DATA_KEY
+        = MetaUIContact.class.getName() + ".searchKeys";
+
     /**
      * The initial result count below which we insert all filter results
      * directly to the contact list without firing events.
      */
     private static final int INITIAL_CONTACT_COUNT = 30;
 
+    /**
+     * The maximum number of filter queries running at the same time.
+     */
+    private static final int QUERY_THREAD_COUNT = 2;
+
+    /**
+     * Runs the filter queries, so that typing in the search field does not
+     * start a new thread for every key stroke. Queries canceled while waiting
+     * in the queue return without looking at the contact list.
+     */
+    private static final ExecutorService queryExecutor;
+
+    static
+    {
+        ThreadPoolExecutor executor
+            = new ThreadPoolExecutor(
+                    QUERY_THREAD_COUNT, QUERY_THREAD_COUNT,
+                    30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory()
+                    {
+                        public Thread newThread(Runnable r)
+                        {
+                            Thread t
+                                = new Thread(r, "MetaContactListSource query");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        executor.allowCoreThreadTimeOut(true);
+        queryExecutor = executor;
+    }
+
+    /**
+     * The last search query which ran to completion. A query for a filter
+     * string containing its filter string only needs to check its matches.
+     */
+    private volatile CompletedSearch lastSearch;
+
+    /**
+     * Counts the changes of the meta contact list, so that a search which ran
+     * while the list changed is not used to refine later searches.
+     */
+    private volatile int listModificationCount = 0;
+
     /**
      * The list of action buttons for this meta contact.
      */
@@ -183,6 +237,66 @@ public class MetaContactListSource
         return group.equals(GuiActivator.getContactListService().getRoot());
     }
 
+    /**
+     * Returns the search keys of the given <tt>metaContact</tt>, built from
+     * its display name and the display names and addresses of its protocol
+     * contacts.
+     *
+     * @param metaContact the <tt>MetaContact</tt> to get the keys of
+     * @return the search keys of <tt>metaContact</tt>
+     */
+    public static ContactSearchKeys getSearchKeys(MetaContact metaContact)
+    {
+        ContactSearchKeys searchKeys
+            = (ContactSearchKeys) metaContact.getData(SEARCH_KEYS_DATA_KEY);
+
+        if (searchKeys == null)
+        {
+            searchKeys
+                = new ContactSearchKeys(getSearchStrings(metaContact));
+            metaContact.setData(SEARCH_KEYS_DATA_KEY, searchKeys);
+        }
+        return searchKeys;
+    }
+
+    /**
+     * Returns the strings the given <tt>metaContact</tt> can be found by:
+     * its display name and the display names and addresses of its protocol
+     * contacts.
+     *
+     * @param metaContact the <tt>MetaContact</tt> to get the strings of
+     * @return an <tt>Iterator</tt> over the search strings of
+     * <tt>metaContact</tt>
+     */
+    public static Iterator<String> getSearchStrings(MetaContact metaContact)
+    {
+        List<String> searchStrings = new ArrayList<String>();
+
+        searchStrings.add(metaContact.getDisplayName());
+
+        Iterator<Contact> contacts = metaContact.getContacts();
+        while (contacts.hasNext())
+        {
+            Contact contact = contacts.next();
+
+            searchStrings.add(contact.getDisplayName());
+            searchStrings.add(contact.getAddress());
+        }
+        return searchStrings.iterator();
+    }
+
+    /**
+     * Drops the search keys cached in the given <tt>metaContact</tt>.
+     *
+     * @param metaContact the <tt>MetaContact</tt> whose search strings have
+     * changed
+     */
+    private static void invalidateSearchKeys(MetaContact metaContact)
+    {
+        if (metaContact != null)
+            metaContact.setData(SEARCH_KEYS_DATA_KEY, null);
+    }
+
     /**
      * Starts the query.
      * 
@@ -192,25 +306,120 @@ public class MetaContactListSource
     public void startQuery(final MetaContactQuery query,
         final Pattern filterPattern)
     {
-        new Thread()
+        startQuery(query, null, filterPattern);
+    }
+
+    /**
+     * Starts a search query for <tt>filterString</tt>. If the last search
+     * which ran to completion was for a string contained in
+     * <tt>filterString</tt>, only the contacts it matched are checked instead
+     * of the whole contact list.
+     *
+     * @param query the query to be started
+     * @param filterString the string searched for or <tt>null</tt> if the
+     * query should neither refine nor be refined by other searches
+     * @param filterPattern the pattern to filter through
+     */
+    public void startQuery(final MetaContactQuery query,
+        final String filterString,
+        final Pattern filterPattern)
+    {
+        final ContactSearchKeys.Query searchQuery
+            = (filterString == null)
+                ? null
+                : ContactSearchKeys.createQuery(filterString);
+        final CompletedSearch refinedSearch
+            = (searchQuery == null) ? null : getRefinableSearch(searchQuery);
+        final int modificationCount = listModificationCount;
+
+        queryExecutor.execute(new Runnable()
         {
-            @Override
             public void run()
             {
-                int resultCount = 0;
-                queryMetaContactSource( filterPattern,
-                        GuiActivator.getContactListService().getRoot(),
-                        query,
-                        resultCount);
+                List<MetaContact> matches = new ArrayList<MetaContact>();
 
                 if (!query.isCanceled())
+                {
+                    if (refinedSearch != null)
+                        refineQuery(filterPattern, searchQuery,
+                            refinedSearch.matches, query, matches);
+                    else
+                        queryMetaContactSource(filterPattern, searchQuery,
+                            GuiActivator.getContactListService().getRoot(),
+                            query,
+                            0,
+                            matches);
+                }
+
+                if (!query.isCanceled())
+                {
+                    if (searchQuery != null
+                        && modificationCount == listModificationCount)
+                        lastSearch = new CompletedSearch(searchQuery, matches);
+
                     query.fireQueryEvent(
                         MetaContactQueryStatusEvent.QUERY_COMPLETED);
+                }
                 else
                     query.fireQueryEvent(
                         MetaContactQueryStatusEvent.QUERY_CANCELED);
             }
-        }.start();
+        });
+    }
+
+    /**
+     * Returns the last completed search if a search for
+     * <tt>searchQuery</tt> can be answered from its matches.
+     *
+     * @param searchQuery the query searched for
+     * @return the last completed search or <tt>null</tt> if the whole contact
+     * list has to be searched
+     */
+    private CompletedSearch getRefinableSearch(
+        ContactSearchKeys.Query searchQuery)
+    {
+        CompletedSearch search = lastSearch;
+
+        if (search == null || !searchQuery.refines(search.query))
+            return null;
+
+        return search;
+    }
+
+    /**
+     * Filters the matches of a previous search to match the given
+     * <tt>filterPattern</tt>.
+     * @param filterPattern the pattern to filter through
+     * @param searchQuery the search keys query to filter through instead of
+     * <tt>filterPattern</tt> or <tt>null</tt>
+     * @param candidates the contacts matched by the previous search
+     * @param query the object that tracks the query
+     * @param matches the list to add the matching contacts to
+     */
+    private void refineQuery(Pattern filterPattern,
+                             ContactSearchKeys.Query searchQuery,
+                             List<MetaContact> candidates,
+                             MetaContactQuery query,
+                             List<MetaContact> matches)
+    {
+        int resultCount = 0;
+
+        for (MetaContact metaContact : candidates)
+        {
+            if (query.isCanceled())
+                return;
+
+            MetaContactGroup parentGroup
+                = metaContact.getParentMetaContactGroup();
+
+            if (parentGroup != null
+                && isMatching(filterPattern, searchQuery, metaContact))
+            {
+                resultCount++;
+                matches.add(metaContact);
+                addQueryResult(metaContact, parentGroup, query, resultCount);
+            }
+        }
     }
 
     /**
@@ -227,6 +436,30 @@ public class MetaContactListSource
                                         MetaContactGroup parentGroup,
                                         MetaContactQuery query,
                                         int resultCount)
+    {
+        queryMetaContactSource(filterPattern, null, parentGroup, query,
+            resultCount, null);
+    }
+
+    /**
+     * Filters the children in the given <tt>MetaContactGroup</tt> to match the
+     * given <tt>filterPattern</tt> and stores the result in the given
+     * <tt>treeModel</tt>.
+     * @param filterPattern the pattern to filter through
+     * @param searchQuery the search keys query to filter through instead of
+     * <tt>filterPattern</tt> or <tt>null</tt>
+     * @param parentGroup the <tt>MetaContactGroup</tt> to filter
+     * @param query the object that tracks the query
+     * @param resultCount the initial result count we would insert directly to
+     * the contact list without firing events
+     * @param matches the list to add the matching contacts to or <tt>null</tt>
+     */
+    private void queryMetaContactSource(Pattern filterPattern,
+                                        ContactSearchKeys.Query searchQuery,
+                                        MetaContactGroup parentGroup,
+                                        MetaContactQuery query,
+                                        int resultCount,
+                                        List<MetaContact> matches)
     {
         Iterator<MetaContact> childContacts = parentGroup.getChildContacts();
 
@@ -234,51 +467,14 @@ public class MetaContactListSource
         {
             MetaContact metaContact = childContacts.next();
 
-            if (isMatching(filterPattern, metaContact))
+            if (isMatching(filterPattern, searchQuery, metaContact))
             {
                 resultCount++;
 
-                if (resultCount <= INITIAL_CONTACT_COUNT)
-                {
-                    UIGroup uiGroup = null;
-                    if (!MetaContactListSource.isRootGroup(parentGroup))
-                    {
-                        synchronized (parentGroup)
-                        {
-                            uiGroup = MetaContactListSource
-                                .getUIGroup(parentGroup);
-                            if (uiGroup == null)
-                                uiGroup = MetaContactListSource
-                                    .createUIGroup(parentGroup);
-                        }
-                    }
+                if (matches != null)
+                    matches.add(metaContact);
 
-                    UIContact newUIContact;
-                    synchronized (metaContact)
-                    {
-                        newUIContact 
-                            = MetaContactListSource.getUIContact(metaContact);
-    
-                        if (newUIContact == null)
-                        {
-                            newUIContact
-                                = MetaContactListSource
-                                    .createUIContact(metaContact);
-                        }
-                        
-                        GuiActivator.getContactList().addContact(
-                            newUIContact,
-                            uiGroup,
-                            true,
-                            true);
-                    }
-                    
-                    query.setInitialResultCount(resultCount);
-                }
-                else
-                {
-                    query.fireQueryEvent(metaContact);
-                }
+                addQueryResult(metaContact, parentGroup, query, resultCount);
             }
         }
 
@@ -291,7 +487,64 @@ public class MetaContactListSource
         {
             MetaContactGroup subgroup = subgroups.next();
 
-            queryMetaContactSource(filterPattern, subgroup, query, resultCount);
+            queryMetaContactSource(filterPattern, searchQuery, subgroup, query,
+                resultCount, matches);
+        }
+    }
+
+    /**
+     * Adds a contact matching a query to the contact list, directly for the
+     * first results and through the query for the rest.
+     * @param metaContact the matching <tt>MetaContact</tt>
+     * @param parentGroup the parent group of <tt>metaContact</tt>
+     * @param query the object that tracks the query
+     * @param resultCount the number of results including this one
+     */
+    private void addQueryResult(MetaContact metaContact,
+                                MetaContactGroup parentGroup,
+                                MetaContactQuery query,
+                                int resultCount)
+    {
+        if (resultCount <= INITIAL_CONTACT_COUNT)
+        {
+            UIGroup uiGroup = null;
+            if (!MetaContactListSource.isRootGroup(parentGroup))
+            {
+                synchronized (parentGroup)
+                {
+                    uiGroup = MetaContactListSource
+                        .getUIGroup(parentGroup);
+                    if (uiGroup == null)
+                        uiGroup = MetaContactListSource
+                            .createUIGroup(parentGroup);
+                }
+            }
+
+            UIContact newUIContact;
+            synchronized (metaContact)
+            {
+                newUIContact
+                    = MetaContactListSource.getUIContact(metaContact);
+
+                if (newUIContact == null)
+                {
+                    newUIContact
+                        = MetaContactListSource
+                            .createUIContact(metaContact);
+                }
+
+                GuiActivator.getContactList().addContact(
+                    newUIContact,
+                    uiGroup,
+                    true,
+                    true);
+            }
+
+            query.setInitialResultCount(resultCount);
+        }
+        else
+        {
+            query.fireQueryEvent(metaContact);
         }
     }
 
@@ -333,6 +586,27 @@ public class MetaContactListSource
         return false;
     }
 
+    /**
+     * Checks if the given <tt>metaContact</tt> is matching the given
+     * <tt>searchQuery</tt> or, if there is none, the given
+     * <tt>filterPattern</tt>.
+     * @param filterPattern the filter pattern to check for matches
+     * @param searchQuery the search keys query to check for matches or
+     * <tt>null</tt>
+     * @param metaContact the <tt>MetaContact</tt> to check
+     * @return <tt>true</tt> to indicate that the given <tt>metaContact</tt> is
+     * matching, otherwise returns <tt>false</tt>
+     */
+    private boolean isMatching(Pattern filterPattern,
+                               ContactSearchKeys.Query searchQuery,
+                               MetaContact metaContact)
+    {
+        if (searchQuery != null)
+            return getSearchKeys(metaContact).matches(searchQuery);
+
+        return isMatching(filterPattern, metaContact);
+    }
+
     /**
      * Checks if the given <tt>metaGroup</tt> is matching the current filter. A
      * group is matching the current filter only if it contains at least one
@@ -445,6 +719,16 @@ public class MetaContactListSource
         }
     }
 
+    /**
+     * Prevents searches from being refined from matches which may no longer
+     * reflect the meta contact list.
+     */
+    private void invalidateLastSearch()
+    {
+        listModificationCount++;
+        lastSearch = null;
+    }
+
     /**
      * Reorders contact list nodes, when <tt>MetaContact</tt>-s in a
      * <tt>MetaContactGroup</tt> has been reordered.
@@ -485,6 +769,8 @@ public class MetaContactListSource
      */
     public void metaContactAdded(final MetaContactEvent evt)
     {
+        invalidateLastSearch();
+
         metaContactAdded(evt.getSourceMetaContact(),
                         evt.getParentGroup());
     }
@@ -544,6 +830,8 @@ public class MetaContactListSource
      */
     public void metaContactGroupAdded(MetaContactGroupEvent evt)
     {
+        invalidateLastSearch();
+
         final MetaContactGroup metaGroup = evt.getSourceMetaContactGroup();
 
         UIGroup uiGroup;
@@ -591,6 +879,8 @@ public class MetaContactListSource
      */
     public void metaContactGroupModified(MetaContactGroupEvent evt)
     {
+        invalidateLastSearch();
+
         final MetaContactGroup metaGroup = evt.getSourceMetaContactGroup();
 
         UIGroupImpl uiGroup;
@@ -621,6 +911,8 @@ public class MetaContactListSource
      */
     public void metaContactGroupRemoved(final MetaContactGroupEvent evt)
     {
+        invalidateLastSearch();
+
         MetaContactGroup metaGroup = evt.getSourceMetaContactGroup();
 
         UIGroup uiGroup;
@@ -640,6 +932,9 @@ public class MetaContactListSource
      */
     public void metaContactModified(final MetaContactModifiedEvent evt)
     {
+        invalidateLastSearch();
+        invalidateSearchKeys(evt.getSourceMetaContact());
+
         MetaContact metaContact = evt.getSourceMetaContact();
 
         UIContactImpl uiContact;
@@ -667,6 +962,8 @@ public class MetaContactListSource
      */
     public void metaContactMoved(final MetaContactMovedEvent evt)
     {
+        invalidateLastSearch();
+
         // fixes an issue with moving meta contacts where removeContact
         // will set data to null in swing thread and it will be after we have
         // set the data here, so we also move this set to the swing thread
@@ -750,6 +1047,8 @@ public class MetaContactListSource
      */
     public void metaContactRemoved(final MetaContactEvent evt)
     {
+        invalidateLastSearch();
+
         MetaContact metaContact = evt.getSourceMetaContact();
 
         UIContact uiContact;
@@ -770,6 +1069,9 @@ public class MetaContactListSource
      */
     public void metaContactRenamed(final MetaContactRenamedEvent evt)
     {
+        invalidateLastSearch();
+        invalidateSearchKeys(evt.getSourceMetaContact());
+
         MetaContact metaContact = evt.getSourceMetaContact();
 
         UIContactImpl uiContact;
@@ -825,6 +1127,9 @@ public class MetaContactListSource
      */
     public void protoContactAdded(ProtoContactEvent evt)
     {
+        invalidateLastSearch();
+        invalidateSearchKeys(evt.getNewParent());
+
         final MetaContact metaContact = evt.getNewParent();
 
         UIContact parentUIContact;
@@ -882,6 +1187,9 @@ public class MetaContactListSource
      */
     public void protoContactModified(ProtoContactEvent evt)
     {
+        invalidateLastSearch();
+        invalidateSearchKeys(evt.getNewParent());
+
         MetaContact metaContact = evt.getNewParent();
 
         UIContactImpl uiContact;
@@ -909,6 +1217,10 @@ public class MetaContactListSource
      */
     public void protoContactMoved(ProtoContactEvent evt)
     {
+        invalidateLastSearch();
+        invalidateSearchKeys(evt.getOldParent());
+        invalidateSearchKeys(evt.getNewParent());
+
         final MetaContact oldParent = evt.getOldParent();
         final MetaContact newParent = evt.getNewParent();
 
@@ -982,6 +1294,9 @@ public class MetaContactListSource
      */
     public void protoContactRemoved(ProtoContactEvent evt)
     {
+        invalidateLastSearch();
+        invalidateSearchKeys(evt.getOldParent());
+
         final MetaContact oldParent = evt.getOldParent();
 
         UIContactImpl oldUIContact;
@@ -1230,4 +1545,21 @@ public class MetaContactListSource
         }
         return contactActionsServices;
     }
+
+    /**
+     * The query and the matches of a search which ran to completion.
+     */
+    private static class CompletedSearch
+    {
+        final ContactSearchKeys.Query query;
+
+        final List<MetaContact> matches;
+
+        CompletedSearch(ContactSearchKeys.Query query,
+                        List<MetaContact> matches)
+        {
+            this.query = query;
+            this.matches = matches;
+        }
+    }
 }
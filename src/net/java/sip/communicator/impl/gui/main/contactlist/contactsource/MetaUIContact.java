@@ -40,12 +40,6 @@ public class MetaUIContact
     private static final String AVATAR_DATA_KEY
         = MetaUIContact.class.getName() + ".avatar";
 
-    /**
-     * A list of all search strings available for the underlying
-     * <tt>MetaContact</tt>.
-     */
-    private final List<String> searchStrings = new LinkedList<String>();
-
     /**
      * The <tt>MetaContact</tt>, on which this implementation is based.
      */
@@ -77,8 +71,6 @@ public class MetaUIContact
     public MetaUIContact(MetaContact metaContact)
     {
         this.metaContact = metaContact;
-
-        initSearchStrings();
     }
 
     /**
@@ -176,7 +168,19 @@ public class MetaUIContact
     @Override
     public Iterator<String> getSearchStrings()
     {
-        return searchStrings.iterator();
+        return MetaContactListSource.getSearchStrings(metaContact);
+    }
+
+    /**
+     * Returns the search keys of the underlying <tt>MetaContact</tt>, which
+     * are kept up to date by the <tt>MetaContactListSource</tt>.
+     *
+     * @return the search keys of this contact
+     */
+    @Override
+    public ContactSearchKeys getSearchKeys()
+    {
+        return MetaContactListSource.getSearchKeys(metaContact);
     }
 
     /**
@@ -649,23 +653,6 @@ public class MetaUIContact
             MetaContactListSource.removeUIContact(metaContact);
     }
 
-    /**
-     * Initializes all search strings for this <tt>MetaUIGroup</tt>.
-     */
-    private void initSearchStrings()
-    {
-        searchStrings.add(metaContact.getDisplayName());
-
-        Iterator<Contact> contacts = metaContact.getContacts();
-        while (contacts.hasNext())
-        {
-            Contact contact = contacts.next();
-
-            searchStrings.add(contact.getDisplayName());
-            searchStrings.add(contact.getAddress());
-        }
-    }
-
     /**
      * The implementation of the <tt>UIContactDetail</tt> interface for the
      * <tt>MetaContactListService</tt>.
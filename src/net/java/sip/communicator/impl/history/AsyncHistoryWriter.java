@@ -0,0 +1,411 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Writes history records in the background. Added records are put in a
+ * bounded queue and a single writer thread stores them in batches, writing
+ * each touched file once per batch, so that bursts of messages do not cost
+ * one file rewrite each on the thread delivering them.
+ * <p>
+ * A batch is written once it holds <tt>MAX_BATCH_SIZE</tt> records, once
+ * <tt>MAX_BATCH_DELAY</tt> elapsed since its first record or as soon as
+ * someone waits for the records to be written. Adding a record blocks while
+ * the queue is full. Readers call <tt>flush(HistoryImpl)</tt> first, so they
+ * always see the records added before.
+ */
+public class AsyncHistoryWriter
+    implements Runnable
+{
+    private static final Logger logger
+        = Logger.getLogger(AsyncHistoryWriter.class);
+
+    /**
+     * The maximum number of records waiting to be written.
+     */
+    private static final int QUEUE_CAPACITY = 1024;
+
+    /**
+     * The maximum number of records written in one batch.
+     */
+    private static final int MAX_BATCH_SIZE = 128;
+
+    /**
+     * The maximum time in milliseconds a record waits for other records to
+     * be written with.
+     */
+    private static final long MAX_BATCH_DELAY = 50;
+
+    /**
+     * Wakes up the writer thread when somebody waits for the queue to be
+     * written.
+     */
+    private static final PendingRecord FLUSH_MARKER
+        = new PendingRecord(null, null);
+
+    /**
+     * The records waiting to be written.
+     */
+    private final BlockingQueue<PendingRecord> queue
+        = new ArrayBlockingQueue<PendingRecord>(QUEUE_CAPACITY);
+
+    /**
+     * The number of queued or currently written records of each history.
+     */
+    private final Map<HistoryImpl, Integer> pendingCounts
+        = new HashMap<HistoryImpl, Integer>();
+
+    /**
+     * The number of queued or currently written records of all histories.
+     */
+    private int pendingCount = 0;
+
+    /**
+     * The number of threads waiting for records to be written.
+     */
+    private int flushWaiters = 0;
+
+    /**
+     * Whether this writer is stopped and only writes the records still
+     * pending.
+     */
+    private boolean stopped = false;
+
+    /**
+     * The writer thread, started when the first record is added.
+     */
+    private Thread writerThread = null;
+
+    /**
+     * Queues a record of the given history to be written, blocking while the
+     * queue is full. Once this writer is stopped the record is written
+     * directly.
+     *
+     * @param history the history the record belongs to
+     * @param record the record to write
+     * @throws IOException if the record is written directly and fails or if
+     * the thread is interrupted while waiting for space in the queue
+     */
+    public void addRecord(HistoryImpl history, HistoryRecord record)
+        throws IOException
+    {
+        boolean direct;
+
+        synchronized (this)
+        {
+            direct = this.stopped;
+
+            if (!direct)
+                addPending(history);
+        }
+
+        if (direct)
+        {
+            // keep the order of the records still written by the thread
+            flush(history);
+            writeRecords(history, Collections.singletonList(record));
+            return;
+        }
+
+        try
+        {
+            this.queue.put(new PendingRecord(history, record));
+        }
+        catch (InterruptedException e)
+        {
+            written(Collections.singletonList(
+                new PendingRecord(history, record)));
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                "Interrupted while queuing a history record");
+        }
+    }
+
+    /**
+     * Counts a record of the given history as pending and starts the writer
+     * thread if needed.
+     *
+     * @param history the history the record belongs to
+     */
+    private synchronized void addPending(HistoryImpl history)
+    {
+        Integer count = this.pendingCounts.get(history);
+
+        this.pendingCounts.put(history,
+            (count == null) ? 1 : count.intValue() + 1);
+        this.pendingCount++;
+
+        if (this.writerThread == null)
+        {
+            this.writerThread = new Thread(this, "HistoryWriter");
+            this.writerThread.setDaemon(true);
+            this.writerThread.start();
+        }
+    }
+
+    /**
+     * Waits until all queued records of the given history are written.
+     *
+     * @param history the history to flush
+     */
+    public void flush(HistoryImpl history)
+    {
+        waitForRecords(history);
+    }
+
+    /**
+     * Waits until all queued records are written.
+     */
+    public void flush()
+    {
+        waitForRecords(null);
+    }
+
+    /**
+     * Writes all queued records and stops the writer thread. Records added
+     * afterwards are written directly.
+     */
+    public void stop()
+    {
+        synchronized (this)
+        {
+            this.stopped = true;
+        }
+        // wake up the writer thread so that it notices it is stopped
+        this.queue.offer(FLUSH_MARKER);
+        flush();
+    }
+
+    /**
+     * Waits until the queued records of the given history, or of all
+     * histories if it is <tt>null</tt>, are written.
+     *
+     * @param history the history to wait for or <tt>null</tt>
+     */
+    private synchronized void waitForRecords(HistoryImpl history)
+    {
+        if (Thread.currentThread() == this.writerThread)
+            return;
+
+        boolean interrupted = false;
+
+        this.flushWaiters++;
+        try
+        {
+            while ((history == null)
+                    ? (this.pendingCount > 0)
+                    : this.pendingCounts.containsKey(history))
+            {
+                // wake up the writer thread if it waits for more records
+                this.queue.offer(FLUSH_MARKER);
+
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+        }
+        finally
+        {
+            this.flushWaiters--;
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Takes the queued records in batches and writes them.
+     */
+    public void run()
+    {
+        List<PendingRecord> batch = new ArrayList<PendingRecord>();
+
+        while (true)
+        {
+            synchronized (this)
+            {
+                if (this.stopped && this.pendingCount == 0)
+                {
+                    this.writerThread = null;
+                    return;
+                }
+            }
+
+            try
+            {
+                collectBatch(batch);
+            }
+            catch (InterruptedException e)
+            {
+                // the records already taken are still written below
+            }
+
+            if (batch.isEmpty())
+                continue;
+
+            try
+            {
+                writeBatch(batch);
+            }
+            finally
+            {
+                written(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Waits for the next records and collects them in <tt>batch</tt> until
+     * the batch is full, its delay elapsed or a flush is requested.
+     *
+     * @param batch the list receiving the records
+     * @throws InterruptedException if the writer thread is interrupted
+     */
+    private void collectBatch(List<PendingRecord> batch)
+        throws InterruptedException
+    {
+        PendingRecord record = this.queue.take();
+        long deadline = System.currentTimeMillis() + MAX_BATCH_DELAY;
+
+        while (true)
+        {
+            if (record != FLUSH_MARKER)
+                batch.add(record);
+
+            this.queue.drainTo(batch, MAX_BATCH_SIZE - batch.size());
+
+            long delay = deadline - System.currentTimeMillis();
+
+            if (batch.size() >= MAX_BATCH_SIZE
+                    || delay <= 0
+                    || isFlushRequested())
+                break;
+
+            record = this.queue.poll(delay, TimeUnit.MILLISECONDS);
+            if (record == null)
+                break;
+        }
+
+        batch.removeAll(Collections.singleton(FLUSH_MARKER));
+    }
+
+    /**
+     * Returns whether someone is waiting for records to be written.
+     *
+     * @return <tt>true</tt> if a flush is requested
+     */
+    private synchronized boolean isFlushRequested()
+    {
+        return this.flushWaiters > 0;
+    }
+
+    /**
+     * Writes the given records, grouped by history in the order they were
+     * added.
+     *
+     * @param batch the records to write
+     */
+    private void writeBatch(List<PendingRecord> batch)
+    {
+        Map<HistoryImpl, List<HistoryRecord>> byHistory
+            = new LinkedHashMap<HistoryImpl, List<HistoryRecord>>();
+
+        for (PendingRecord pending : batch)
+        {
+            List<HistoryRecord> records = byHistory.get(pending.history);
+
+            if (records == null)
+            {
+                records = new ArrayList<HistoryRecord>();
+                byHistory.put(pending.history, records);
+            }
+            records.add(pending.record);
+        }
+
+        for (Map.Entry<HistoryImpl, List<HistoryRecord>> e
+                : byHistory.entrySet())
+        {
+            try
+            {
+                writeRecords(e.getKey(), e.getValue());
+            }
+            catch (Throwable t)
+            {
+                logger.error("Could not write " + e.getValue().size()
+                    + " records to history " + e.getKey().getID(), t);
+
+                if (t instanceof ThreadDeath)
+                    throw (ThreadDeath) t;
+            }
+        }
+    }
+
+    /**
+     * Stores the given records of a history and adds them to its indexes.
+     *
+     * @param history the history the records belong to
+     * @param records the records to write
+     * @throws IOException if the records cannot be stored
+     */
+    private static void writeRecords(HistoryImpl history,
+                                     List<HistoryRecord> records)
+        throws IOException
+    {
+        history.indexRecords(history.getStore().addRecords(records), records);
+    }
+
+    /**
+     * Removes the given records from the pending ones and wakes up the
+     * threads waiting for them.
+     *
+     * @param records the records which were written or dropped
+     */
+    private synchronized void written(List<PendingRecord> records)
+    {
+        for (PendingRecord pending : records)
+        {
+            int count = this.pendingCounts.get(pending.history).intValue();
+
+            if (count == 1)
+                this.pendingCounts.remove(pending.history);
+            else
+                this.pendingCounts.put(pending.history, count - 1);
+            this.pendingCount--;
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * A queued record and the history it belongs to.
+     */
+    private static class PendingRecord
+    {
+        final HistoryImpl history;
+
+        final HistoryRecord record;
+
+        PendingRecord(HistoryImpl history, HistoryRecord record)
+        {
+            this.history = history;
+            this.record = record;
+        }
+    }
+}
@@ -46,15 +46,29 @@ public class DBStructSerializer {
      */
     public void writeHistory(File dbDatFile, History history)
             throws IOException {
+        writeHistory(dbDatFile, history.getID(),
+            history.getHistoryRecordsStructure());
+    }
+
+    /**
+     * Write the description of a history.
+     *
+     * @param dbDatFile the database file
+     * @param historyID the ID of the history
+     * @param recordStructure the structure of the records of the history
+     * @throws IOException if write failed for any reason
+     */
+    public void writeHistory(File dbDatFile, HistoryID historyID,
+            HistoryRecordStructure recordStructure)
+            throws IOException {
         DocumentBuilder builder = this.historyService.getDocumentBuilder();
         Document doc = builder.newDocument();
 
         Element root = doc.createElement("dbstruct");
         root.setAttribute("version", "1.0");
 
-        Element structure = this.createStructureTag(doc, history
-                .getHistoryRecordsStructure());
-        Element id = this.createIDTag(doc, history.getID());
+        Element structure = this.createStructureTag(doc, recordStructure);
+        Element id = this.createIDTag(doc, historyID);
 
         root.appendChild(structure);
         root.appendChild(id);
@@ -123,14 +137,32 @@ public class DBStructSerializer {
      */
     public History loadHistory(File dbDatFile) throws SAXException,
             IOException, ParseException {
+        HistoryManifest.Entry entry = loadEntry(dbDatFile);
+
+        return new HistoryImpl(entry.id, entry.directory, entry.structure,
+                historyService);
+    }
+
+    /**
+     * Parses a dbstruct file like <tt>loadHistory</tt> without opening the
+     * history.
+     *
+     * @param dbDatFile the file to be parsed
+     * @return the manifest entry describing the history
+     * @throws SAXException if an error occurs during XML parsing
+     * @throws IOException if an IO error occurs
+     * @throws ParseException if there is error in the XML data format
+     */
+    public HistoryManifest.Entry loadEntry(File dbDatFile)
+            throws SAXException, IOException, ParseException {
         Document doc = historyService.parse(dbDatFile);
 
         Node root = doc.getFirstChild();
         HistoryID id = loadID(root);
         HistoryRecordStructure structure = loadStructure(root);
 
-        return new HistoryImpl(id, dbDatFile.getParentFile(), structure,
-                historyService);
+        return new HistoryManifest.Entry(id, dbDatFile.getParentFile(),
+                structure);
     }
 
     /**
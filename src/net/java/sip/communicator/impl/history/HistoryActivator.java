@@ -7,7 +7,9 @@
 package net.java.sip.communicator.impl.history;
 
 import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.util.*;
 
+import org.jitsi.service.configuration.*;
 import org.osgi.framework.*;
 
 /**
@@ -24,6 +26,11 @@ public class HistoryActivator
      */
     private ServiceRegistration serviceRegistration;
 
+    /**
+     * The registered history service.
+     */
+    private HistoryServiceImpl historyService;
+
     /**
      * Initialize and start history service
      *
@@ -32,9 +39,34 @@ public class HistoryActivator
      */
     public void start(BundleContext bundleContext) throws Exception
     {
+        historyService = new HistoryServiceImpl(bundleContext);
+
         serviceRegistration =
             bundleContext.registerService(HistoryService.class.getName(),
-                new HistoryServiceImpl(bundleContext), null);
+                historyService, null);
+
+        ConfigurationService configService
+            = ServiceUtils.getService(bundleContext, ConfigurationService.class);
+
+        if (configService != null
+            && configService.getBoolean(
+                HistoryServiceImpl.REBUILD_KEYWORD_INDEX_PROPERTY, false))
+        {
+            configService.removeProperty(
+                HistoryServiceImpl.REBUILD_KEYWORD_INDEX_PROPERTY);
+
+            final HistoryServiceImpl service = historyService;
+            Thread rebuildThread = new Thread("HistoryKeywordIndexRebuild")
+            {
+                @Override
+                public void run()
+                {
+                    service.rebuildKeywordIndexes();
+                }
+            };
+            rebuildThread.setDaemon(true);
+            rebuildThread.start();
+        }
     }
 
     /**
@@ -51,5 +83,12 @@ public class HistoryActivator
             serviceRegistration.unregister();
             serviceRegistration = null;
         }
+
+        // write the records still queued before the bundle goes away
+        if (historyService != null)
+        {
+            historyService.stop();
+            historyService = null;
+        }
     }
 }
@@ -0,0 +1,304 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.service.configuration.*;
+
+/**
+ * Periodically enforces the retention limits of the histories and merges
+ * their small segments.
+ * <p>
+ * Retention drops whole segments, oldest first, and never the segment being
+ * written to. The limits are read from <tt>RETENTION_MAX_AGE_DAYS_PROPERTY</tt>
+ * and <tt>RETENTION_MAX_RECORDS_PROPERTY</tt>, which can be overridden for a
+ * group of histories by appending the leading components of their
+ * <tt>HistoryID</tt>, e.g.
+ * <tt>net.java.sip.communicator.impl.history.RETENTION_MAX_AGE_DAYS.callhistory</tt>.
+ * The most specific override wins and <tt>0</tt> means no limit.
+ */
+public class HistoryCompactionService
+    extends TimerTask
+{
+    private static final Logger logger
+        = Logger.getLogger(HistoryCompactionService.class);
+
+    /**
+     * Whether the histories are compacted in the background. Enabled unless
+     * set to <tt>false</tt>.
+     */
+    public static final String COMPACTION_ENABLED_PROPERTY
+        = "net.java.sip.communicator.impl.history.COMPACTION_ENABLED";
+
+    /**
+     * The number of days after which the records of a history are deleted.
+     */
+    public static final String RETENTION_MAX_AGE_DAYS_PROPERTY
+        = "net.java.sip.communicator.impl.history.RETENTION_MAX_AGE_DAYS";
+
+    /**
+     * The number of most recent records kept in a history.
+     */
+    public static final String RETENTION_MAX_RECORDS_PROPERTY
+        = "net.java.sip.communicator.impl.history.RETENTION_MAX_RECORDS";
+
+    /**
+     * The delay in milliseconds before the first compaction, which keeps it
+     * away from the startup of the application.
+     */
+    private static final long INITIAL_DELAY = 10 * 60 * 1000;
+
+    /**
+     * The length of a day in milliseconds, which is also the period of the
+     * compaction.
+     */
+    private static final long DAY = 24 * 60 * 60 * 1000;
+
+    /**
+     * The maximum number of records of a merged segment.
+     */
+    private static final int MAX_MERGED_RECORDS = 5000;
+
+    /**
+     * The history service whose histories are compacted.
+     */
+    private final HistoryServiceImpl historyService;
+
+    /**
+     * The configuration service providing the retention limits.
+     */
+    private final ConfigurationService configService;
+
+    /**
+     * The timer running this task or <tt>null</tt> if it is not scheduled.
+     */
+    private Timer timer = null;
+
+    /**
+     * Creates the compaction task of the given history service.
+     *
+     * @param historyService the history service whose histories are compacted
+     * @param configService the configuration service providing the retention
+     * limits
+     */
+    public HistoryCompactionService(HistoryServiceImpl historyService,
+                                    ConfigurationService configService)
+    {
+        this.historyService = historyService;
+        this.configService = configService;
+    }
+
+    /**
+     * Schedules the compaction in a background thread.
+     */
+    public synchronized void start()
+    {
+        if (this.timer != null)
+            return;
+
+        this.timer = new Timer("HistoryCompaction", true);
+        this.timer.schedule(this, INITIAL_DELAY, DAY);
+    }
+
+    /**
+     * Stops the scheduled compaction. A compaction currently running
+     * completes.
+     */
+    public synchronized void stop()
+    {
+        if (this.timer == null)
+            return;
+
+        cancel();
+        this.timer.cancel();
+        this.timer = null;
+    }
+
+    /**
+     * Compacts all existing histories.
+     */
+    @Override
+    public void run()
+    {
+        try
+        {
+            compactAll();
+        }
+        catch (Throwable t)
+        {
+            logger.error("History compaction failed", t);
+
+            if (t instanceof ThreadDeath)
+                throw (ThreadDeath) t;
+        }
+    }
+
+    /**
+     * Enforces the retention limits of all existing histories and merges
+     * their small segments.
+     */
+    public void compactAll()
+    {
+        long start = System.currentTimeMillis();
+        Iterator<HistoryID> ids = this.historyService.getExistingIDs();
+        int count = 0;
+
+        while (ids.hasNext())
+        {
+            HistoryID id = ids.next();
+            History history;
+
+            try
+            {
+                history = this.historyService.getHistory(id);
+            }
+            catch (IllegalArgumentException e)
+            {
+                // purged meanwhile
+                continue;
+            }
+
+            if (history instanceof HistoryImpl)
+            {
+                compact((HistoryImpl) history);
+                count++;
+            }
+        }
+
+        if (logger.isInfoEnabled())
+            logger.info("Compacted " + count + " histories in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Enforces the retention limits of a history and merges its small
+     * segments.
+     *
+     * @param history the history to compact
+     */
+    void compact(HistoryImpl history)
+    {
+        String[] id = history.getID().getID();
+        long maxAgeDays = getLimit(RETENTION_MAX_AGE_DAYS_PROPERTY, id);
+        long maxRecords = getLimit(RETENTION_MAX_RECORDS_PROPERTY, id);
+
+        if (maxAgeDays > 0 || maxRecords > 0)
+        {
+            List<String> expired = findExpiredSegments(
+                history.getFlushedStore(),
+                (maxAgeDays > 0)
+                    ? System.currentTimeMillis() - maxAgeDays * DAY
+                    : Long.MIN_VALUE,
+                (maxRecords > 0) ? maxRecords : Long.MAX_VALUE);
+
+            if (!expired.isEmpty())
+            {
+                history.removeSegments(expired);
+
+                if (logger.isInfoEnabled())
+                    logger.info("Removed " + expired.size()
+                        + " expired segments of history " + history.getID());
+            }
+        }
+
+        try
+        {
+            history.compact(MAX_MERGED_RECORDS);
+        }
+        catch (Exception e)
+        {
+            logger.error("Cannot compact history " + history.getID(), e);
+        }
+    }
+
+    /**
+     * Returns the oldest segments of a store which only hold records older
+     * than <tt>minTimestamp</tt> or which can be dropped while keeping at
+     * least <tt>maxRecords</tt> records. The newest segment is never
+     * returned, nor are the segments which cannot be read: they are kept
+     * and skipped rather than taken for expired ones.
+     *
+     * @param store the store of the history
+     * @param minTimestamp the timestamp of the oldest record to keep
+     * @param maxRecords the number of records to keep
+     * @return the names of the expired segments, oldest first
+     */
+    static List<String> findExpiredSegments(HistoryStore store,
+                                            long minTimestamp,
+                                            long maxRecords)
+    {
+        List<String> segments = store.getSegments();
+        List<SegmentSummary> summaries
+            = new ArrayList<SegmentSummary>(segments.size());
+        long total = 0;
+
+        for (String segment : segments)
+        {
+            SegmentSummary summary = store.getSummary(segment);
+
+            summaries.add(summary);
+            total += summary.getRecordCount();
+        }
+
+        List<String> expired = new ArrayList<String>();
+
+        for (int i = 0; i < segments.size() - 1; i++)
+        {
+            SegmentSummary summary = summaries.get(i);
+
+            if (summary.isUnknown())
+                continue;
+
+            if (summary.getMaxTimestamp() >= minTimestamp
+                    && total - summary.getRecordCount() < maxRecords)
+                break;
+
+            expired.add(segments.get(i));
+            total -= summary.getRecordCount();
+        }
+
+        return expired;
+    }
+
+    /**
+     * Returns the value of a retention limit for a history, taking the most
+     * specific override for its <tt>HistoryID</tt>.
+     *
+     * @param property the name of the limit property
+     * @param id the components of the <tt>HistoryID</tt> of the history
+     * @return the limit or <tt>0</tt> if there is none
+     */
+    private long getLimit(String property, String[] id)
+    {
+        for (int length = id.length; length >= 0; length--)
+        {
+            StringBuilder name = new StringBuilder(property);
+
+            for (int i = 0; i < length; i++)
+                name.append('.').append(id[i]);
+
+            String value = this.configService.getString(name.toString());
+
+            if (value != null)
+            {
+                try
+                {
+                    return Long.parseLong(value.trim());
+                }
+                catch (NumberFormatException e)
+                {
+                    logger.warn("Invalid value of " + name + ": " + value);
+                }
+            }
+        }
+        return 0;
+    }
+}
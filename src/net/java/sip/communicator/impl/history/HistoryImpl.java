@@ -7,16 +7,12 @@
 package net.java.sip.communicator.impl.history;
 
 import java.io.*;
-import java.security.*;
 import java.util.*;
 
 import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.records.*;
 import net.java.sip.communicator.util.*;
 
-import org.jitsi.util.xml.XMLUtils;
-import org.w3c.dom.*;
-
 /**
  * @author Alexander Pelov
  * @author Yana Stamcheva
@@ -26,11 +22,6 @@ public class HistoryImpl
 {
     private static Logger log = Logger.getLogger(HistoryImpl.class);
 
-    /**
-     * The supported filetype.
-     */
-    public static final String SUPPORTED_FILETYPE = "xml";
-
     private HistoryID id;
 
     private HistoryRecordStructure historyRecordStructure;
@@ -48,8 +39,20 @@ public class HistoryImpl
 
     private HistoryWriter writer;
 
-    private SortedMap<String, Object> historyDocuments
-        = new TreeMap<String, Object>();
+    /**
+     * The storage engine keeping the records of this history.
+     */
+    private final HistoryStore store;
+
+    /**
+     * The keyword index of the records of this history.
+     */
+    private final HistoryKeywordIndex keywordIndex;
+
+    /**
+     * The index of the id properties of the records of this history.
+     */
+    private final HistoryRecordIdIndex recordIdIndex;
 
     /**
      * Creates an instance of <tt>HistoryImpl</tt> by specifying the history
@@ -81,7 +84,10 @@ public class HistoryImpl
             this.reader = null;
             this.writer = null;
 
-            this.reloadDocumentList();
+            this.store = createStore(directory, historyServiceImpl);
+            this.keywordIndex = new HistoryKeywordIndex(directory);
+            this.recordIdIndex = new HistoryRecordIdIndex(directory,
+                historyServiceImpl.getRecordIdProperties());
         } finally {
             log.logExit();
         }
@@ -119,6 +125,7 @@ public class HistoryImpl
             File dbDatFile = new File(directory, HistoryServiceImpl.DATA_FILE);
             DBStructSerializer dbss = new DBStructSerializer(historyServiceImpl);
             dbss.writeHistory(dbDatFile, this);
+            historyServiceImpl.updateManifest(this);
         }
         catch (IOException e)
         {
@@ -157,273 +164,157 @@ public class HistoryImpl
         return writer;
     }
 
-    protected HistoryServiceImpl getHistoryServiceImpl()
+    /**
+     * Returns the directory keeping the files of this history.
+     * @return the directory of this history
+     */
+    File getDirectory()
     {
-        return this.historyServiceImpl;
+        return this.directory;
     }
 
-    void reloadDocumentList()
+    protected HistoryServiceImpl getHistoryServiceImpl()
     {
-        synchronized (this.historyDocuments)
-        {
-            this.historyDocuments.clear();
-
-            File[] files = this.directory.listFiles();
-            // TODO: Assert: Assert.assertNonNull(files, "The list of files
-            // should be non-null.");
-
-            for (int i = 0; i < files.length; i++)
-            {
-                if (!files[i].isDirectory())
-                {
-                    String filename = files[i].getName();
-
-                    if (filename.endsWith(SUPPORTED_FILETYPE))
-                    {
-                        this.historyDocuments.put(filename, files[i]);
-                    }
-                }
-            }
-        }
+        return this.historyServiceImpl;
     }
 
-    protected Document createDocument(String filename)
+    /**
+     * Returns the storage engine keeping the records of this history.
+     * @return the <tt>HistoryStore</tt> of this history
+     */
+    HistoryStore getStore()
     {
-        Document retVal = null;
-
-        synchronized (this.historyDocuments)
-        {
-            if (this.historyDocuments.containsKey(filename))
-            {
-                retVal = getDocumentForFile(filename);
-            } else {
-                retVal = this.historyServiceImpl.getDocumentBuilder()
-                        .newDocument();
-                retVal.appendChild(retVal.createElement("history"));
-
-                this.historyDocuments.put(filename, retVal);
-            }
-        }
-
-        return retVal;
+        return this.store;
     }
 
-    protected void writeFile(String filename) throws InvalidParameterException,
-            IOException {
-        File file = new File(this.directory, filename);
-
-        synchronized (this.historyDocuments)
-        {
-            if (!this.historyDocuments.containsKey(filename))
-            {
-                throw new InvalidParameterException("The requested "
-                        + "filename does not exist in the document list.");
-            }
-
-            Object obj = this.historyDocuments.get(filename);
-
-            if (obj instanceof Document)
-            {
-                Document doc = (Document) obj;
+    /**
+     * Returns the storage engine of this history once the records queued
+     * for it by the asynchronous writer are written, so that readers see all
+     * records added before.
+     * @return the <tt>HistoryStore</tt> of this history
+     */
+    HistoryStore getFlushedStore()
+    {
+        AsyncHistoryWriter asyncWriter
+            = this.historyServiceImpl.getAsyncWriter();
 
-                synchronized (doc)
-                {
-                    XMLUtils.writeXML(doc, file);
-                }
-            }
-        }
+        if (asyncWriter != null)
+            asyncWriter.flush(this);
+        return this.store;
     }
 
-    protected void writeFile(String filename, Document doc)
-        throws InvalidParameterException, IOException
+    /**
+     * Returns the keyword index of the records of this history.
+     * @return the <tt>HistoryKeywordIndex</tt> of this history
+     */
+    HistoryKeywordIndex getKeywordIndex()
     {
-        File file = new File(this.directory, filename);
-
-        synchronized (this.historyDocuments)
-        {
-            if (!this.historyDocuments.containsKey(filename))
-            {
-                throw new InvalidParameterException("The requested "
-                        + "filename does not exist in the document list.");
-            }
-
-            synchronized (doc)
-            {
-                XMLUtils.writeXML(doc, file);
-            }
-        }
+        return this.keywordIndex;
     }
 
-    protected Iterator<String> getFileList()
+    /**
+     * Returns the index of the id properties of the records of this history.
+     * @return the <tt>HistoryRecordIdIndex</tt> of this history
+     */
+    HistoryRecordIdIndex getRecordIdIndex()
     {
-        return this.historyDocuments.keySet().iterator();
+        return this.recordIdIndex;
     }
 
-    protected Document getDocumentForFile(String filename)
-            throws InvalidParameterException, RuntimeException {
-        Document retVal = null;
-
-        synchronized (this.historyDocuments)
-        {
-            if (!this.historyDocuments.containsKey(filename))
-            {
-                throw new InvalidParameterException("The requested "
-                        + "filename does not exist in the document list.");
-            }
-
-            Object obj = this.historyDocuments.get(filename);
-            if (obj instanceof Document)
-            {
-                // Document already loaded. Use it directly
-                retVal = (Document) obj;
-            } else if (obj instanceof File)
-            {
-                File file = (File) obj;
-
-                try {
-                    retVal = this.historyServiceImpl.parse(file);
-                } catch (Exception e)
-                {
-//                    throw new RuntimeException("Error occured while "
-//                            + "parsing XML document.", e);
-//                    log.error("Error occured while parsing XML document.", e);
-                    log.error("Error occured while parsing XML document.", e);
-
-                    // will try to fix the xml file
-                    retVal = getFixedDocument(file);
-
-                    // if is not fixed return
-                    if(retVal == null)
-                        return null;
-                }
-
-                // Cache the loaded document for reuse if configured
-                if(historyServiceImpl.isCacheEnabled())
-                    this.historyDocuments.put(filename, retVal);
-            } else {
-                // TODO: Assert: Assert.fail("Internal error - the data type " +
-                // "should be either Document or File.");
-            }
-        }
-
-        return retVal;
+    /**
+     * Adds records which were just written to the store to the indexes of
+     * this history.
+     * @param locations the locations of the records
+     * @param records the written records
+     */
+    void indexRecords(List<RecordLocation> locations,
+                      List<HistoryRecord> records)
+    {
+        for (int i = 0; i < locations.size(); i++)
+            this.keywordIndex.addRecord(locations.get(i), records.get(i));
+        this.recordIdIndex.addRecords(locations, records);
     }
 
     /**
-     * Methods trying to fix histry xml files if corrupted
+     * Drops the keyword index of this history and indexes all its records
+     * again.
      */
+    public void rebuildKeywordIndex()
+    {
+        this.keywordIndex.rebuild(getFlushedStore());
+    }
+
     /**
-     * Returns the fixed document as xml Document
-     * if file cannot be fixed return null
-     *
-     * @param file File the file trying to fix
-     * @return Document the fixed doc
+     * Deletes the given segments of this history with all their records.
+     * @param segments the names of the segments to delete
      */
-    public Document getFixedDocument(File file)
+    void removeSegments(Collection<String> segments)
     {
-        log.info("Will try to fix file : " + file);
-        StringBuffer resultDocStr = new StringBuffer("<history>");
-
-        try
-        {
-            BufferedReader inReader = new BufferedReader(new FileReader(file));
-            String line = null;
-            while ( (line = inReader.readLine()) != null)
-            {
-                // find the next start of record node
-                if (line.indexOf("<record") == -1)
-                {
-                    continue;
-                }
-
-                String record = getRecordNodeString(line, inReader).toString();
-
-                if (record != null && isValidXML(record))
-                {
-                    resultDocStr.append(record);
-                }
-            }
-        }
-        catch (Exception ex1)
-        {
-            log.error("File cannot be fixed. Erro reading! " +
-                      ex1.getLocalizedMessage());
-        }
-
-        resultDocStr.append("</history>");
-
-        try
-        {
-            Document result =
-                this.historyServiceImpl.parse(new ByteArrayInputStream(
-                    resultDocStr.toString().getBytes("UTF-8")));
-
-            // parsing is ok . lets overwrite with correct values
-            log.trace("File fixed will write to disk!");
-            XMLUtils.writeXML(result, file);
-
-            return result;
-        }
-        catch (Exception ex)
-        {
-            System.out.println("again cannot parse " + ex.getMessage());
-            return null;
-        }
+        getFlushedStore().removeSegments(segments);
+        this.keywordIndex.removeSegments(segments);
+        this.recordIdIndex.removeSegments(segments);
     }
 
     /**
-     * Returns the string containing the record node from the xml -
-     * the supplied Reader
-     * @param startingLine String
-     * @param inReader BufferedReader
-     * @return StringBuffer
+     * Merges the small segments of this history if its store supports it.
+     * @param maxRecords the maximum number of records of a merged segment
+     * @throws IOException if a merged segment cannot be written
      */
-    private StringBuffer getRecordNodeString(
-        String startingLine, BufferedReader inReader)
+    void compact(int maxRecords)
+        throws IOException
     {
-        try
+        HistoryStore store = getFlushedStore();
+
+        if (store instanceof SegmentHistoryStore)
         {
-            StringBuffer result = new StringBuffer(startingLine);
+            List<String> removed
+                = ((SegmentHistoryStore) store).compact(maxRecords);
 
-            String line = null;
-            while ( (line = inReader.readLine()) != null)
+            // the records moved to the merged segments are indexed again
+            // the next time they are searched
+            if (!removed.isEmpty())
             {
-                // find the next start of record node
-                if (line.indexOf("</record>") != -1)
-                {
-                    result.append(line);
-                    break;
-                }
-                result.append(line);
+                this.keywordIndex.removeSegments(removed);
+                this.recordIdIndex.removeSegments(removed);
             }
-
-            return result;
-        }
-        catch (IOException ex)
-        {
-            log.info("Error reading record " + ex.getLocalizedMessage());
-            return null;
         }
     }
 
+    void reloadDocumentList()
+    {
+        this.store.reload();
+    }
+
     /**
-     * Checks whether the given xml is valid
-     * @param str String
-     * @return boolean
+     * Creates the storage engine configured in the history service for the
+     * given directory, migrating existing XML files to the segment store
+     * when it is enabled.
+     *
+     * @param directory the directory of the history
+     * @param historyServiceImpl the parent history service
+     * @return the <tt>HistoryStore</tt> to use
      */
-    private boolean isValidXML(String str)
+    private static HistoryStore createStore(File directory,
+            HistoryServiceImpl historyServiceImpl)
     {
-        try
-        {
-            this.historyServiceImpl.parse(
-                new ByteArrayInputStream(str.getBytes("UTF-8")));
-        }
-        catch (Exception ex)
+        if (!historyServiceImpl.isSegmentStoreEnabled())
+            return new XmlHistoryStore(directory, historyServiceImpl);
+
+        SegmentHistoryStore store = new SegmentHistoryStore(directory);
+
+        if (XmlHistoryStore.hasHistoryFiles(directory))
         {
-            log.error("not valid xml " + str + " " + ex.getMessage());
-            return false;
+            try
+            {
+                HistoryStoreMigrator.migrate(
+                    directory, historyServiceImpl, store);
+            }
+            catch (IOException e)
+            {
+                log.error("Cannot migrate history in " + directory, e);
+            }
         }
 
-        return true;
+        return store;
     }
 }
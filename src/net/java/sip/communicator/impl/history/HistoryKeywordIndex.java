@@ -0,0 +1,901 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * An inverted index of the words found in the records of a history, mapping
+ * every word of every property to the records containing it.
+ * <p>
+ * Keyword searches match any substring of a property value, so the index is
+ * only used to find the candidate records of a segment: a record containing
+ * a keyword necessarily contains each run of letters and digits of that
+ * keyword inside one of its words. Candidates are still checked against the
+ * keyword by the readers, so the index never changes search results and
+ * stale entries (e.g. the words of an updated value) only cost an extra
+ * check. Segments or records the index does not know about are searched
+ * without it and get indexed on the way.
+ * <p>
+ * The index is persisted as an append-only journal next to the history files
+ * and is only loaded the first time a keyword search needs it. The journal is
+ * rewritten once it holds much more entries than there are indexed records,
+ * and the loaded index can be dropped from memory when the history is no
+ * longer searched.
+ */
+public class HistoryKeywordIndex
+{
+    private static final Logger logger
+        = Logger.getLogger(HistoryKeywordIndex.class);
+
+    /**
+     * The name of the index file in the history directory.
+     */
+    public static final String INDEX_FILE = "keywordindex.dat";
+
+    /**
+     * The version of the index format.
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Journal entry adding the words of a record.
+     */
+    private static final byte ENTRY_RECORD = 1;
+
+    /**
+     * Journal entry forgetting everything about a segment.
+     */
+    private static final byte ENTRY_REMOVE_SEGMENT = 2;
+
+    /**
+     * The longest word stored in the index. Records with longer words are
+     * indexed under <tt>ANY_WORD</tt> for the property instead.
+     */
+    private static final int MAX_WORD_LENGTH = 64;
+
+    /**
+     * The word under which records are indexed when they have a word too long
+     * to be indexed. It matches every keyword.
+     */
+    private static final String ANY_WORD = "\0";
+
+    private static final String CDATA_SUFFIX = "_CDATA";
+
+    /**
+     * The index file.
+     */
+    private final File indexFile;
+
+    /**
+     * The postings: for every property, for every word, the records of every
+     * segment containing the word.
+     */
+    private final Map<String, SortedMap<String, Map<String, BitSet>>> postings
+        = new HashMap<String, SortedMap<String, Map<String, BitSet>>>();
+
+    /**
+     * The records of every segment known to the index.
+     */
+    private final Map<String, BitSet> indexedRecords
+        = new HashMap<String, BitSet>();
+
+    /**
+     * Whether the journal was loaded.
+     */
+    private boolean loaded = false;
+
+    /**
+     * The number of entries in the journal, including overridden ones and
+     * removals. Only counted while the index is loaded.
+     */
+    private int journalSize = 0;
+
+    /**
+     * The number of records known to the index.
+     */
+    private int indexedCount = 0;
+
+    /**
+     * The last time the index was used.
+     */
+    private long lastUsed = 0;
+
+    /**
+     * Creates the keyword index of the given history directory. The journal
+     * is loaded on first use.
+     *
+     * @param directory the directory of the history
+     */
+    public HistoryKeywordIndex(File directory)
+    {
+        this.indexFile = new File(directory, INDEX_FILE);
+    }
+
+    /**
+     * Splits a text in the lower case runs of letters and digits it
+     * contains.
+     *
+     * @param text the text to split
+     * @return the words of <tt>text</tt>
+     */
+    static List<String> tokenize(String text)
+    {
+        List<String> result = new ArrayList<String>();
+        int length = text.length();
+        int start = -1;
+
+        for (int i = 0; i <= length; i++)
+        {
+            boolean wordChar
+                = i < length && Character.isLetterOrDigit(text.charAt(i));
+
+            if (wordChar && start < 0)
+            {
+                start = i;
+            }
+            else if (!wordChar && start >= 0)
+            {
+                result.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Indexes all properties of a record.
+     *
+     * @param location the location of the record
+     * @param record the record
+     */
+    public synchronized void addRecord(RecordLocation location,
+                                       HistoryRecord record)
+    {
+        addProperties(location,
+            record.getPropertyNames(), record.getPropertyValues());
+    }
+
+    /**
+     * Indexes a property value of an existing record, e.g. after the record
+     * was updated.
+     *
+     * @param location the location of the record
+     * @param property the name of the property
+     * @param value the value of the property
+     */
+    public synchronized void addProperty(RecordLocation location,
+                                         String property,
+                                         String value)
+    {
+        addProperties(location, new String[] { property },
+            new String[] { value });
+    }
+
+    /**
+     * Forgets everything about the given segments, for example because they
+     * were merged or deleted.
+     *
+     * @param segments the names of the segments
+     */
+    public synchronized void removeSegments(Collection<String> segments)
+    {
+        if (!this.loaded && !this.indexFile.exists())
+            return;
+
+        ensureLoaded();
+
+        try
+        {
+            DataOutputStream out = openJournal();
+            try
+            {
+                for (String segment : segments)
+                {
+                    removeSegment(segment);
+                    out.writeByte(ENTRY_REMOVE_SEGMENT);
+                    out.writeUTF(segment);
+                    this.journalSize++;
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot update keyword index " + this.indexFile, e);
+        }
+
+        compactIfNeeded();
+    }
+
+    /**
+     * Drops the loaded index from memory if it was not used for the given
+     * time. It is loaded again from its journal when it is needed.
+     *
+     * @param idleTime the time in milliseconds after which the index is
+     * dropped
+     * @return <tt>true</tt> if the index was dropped
+     */
+    public synchronized boolean unloadIfIdle(long idleTime)
+    {
+        if (!this.loaded
+                || System.currentTimeMillis() - this.lastUsed < idleTime)
+            return false;
+
+        this.postings.clear();
+        this.indexedRecords.clear();
+        this.journalSize = 0;
+        this.indexedCount = 0;
+        this.loaded = false;
+        return true;
+    }
+
+    /**
+     * Returns the records of a segment which may contain all keywords in the
+     * given property.
+     *
+     * @param segment the segment to search
+     * @param recordCount the number of records in the segment
+     * @param field the property to search in
+     * @param keywords the keywords to search for
+     * @return the indexes of the candidate records or <tt>null</tt> if the
+     * index cannot tell, in which case all records should be checked
+     */
+    public synchronized BitSet findCandidates(String segment,
+                                              int recordCount,
+                                              String field,
+                                              String[] keywords)
+    {
+        ensureLoaded();
+
+        BitSet indexed = this.indexedRecords.get(segment);
+
+        if (indexed == null || indexed.cardinality() < recordCount)
+            return null;
+
+        // the segment lost records (e.g. a corrupted file was repaired), the
+        // indexes of its records cannot be trusted anymore
+        if (indexed.length() > recordCount)
+        {
+            removeSegments(Collections.singleton(segment));
+            return null;
+        }
+
+        BitSet result = null;
+
+        for (String keyword : keywords)
+        {
+            List<String> parts = tokenize(keyword);
+            int last = parts.size() - 1;
+
+            for (int i = 0; i <= last; i++)
+            {
+                // a part which is not at the edge of the keyword, or at an
+                // edge which is not a letter or digit, is at the edge of the
+                // word of the record too
+                boolean atWordStart = (i > 0)
+                    || !Character.isLetterOrDigit(keyword.charAt(0));
+                boolean atWordEnd = (i < last)
+                    || !Character.isLetterOrDigit(
+                            keyword.charAt(keyword.length() - 1));
+                BitSet matching
+                    = findMatching(segment, field, parts.get(i),
+                            atWordStart, atWordEnd);
+
+                if (result == null)
+                    result = matching;
+                else
+                    result.and(matching);
+
+                if (result.isEmpty())
+                    return result;
+            }
+        }
+
+        // keywords without letters or digits cannot be looked up
+        return result;
+    }
+
+    /**
+     * Indexes the records of a segment the index does not know yet.
+     *
+     * @param segment the segment
+     * @param fromIndex the index of the first record of <tt>records</tt>
+     * @param records records of the segment
+     */
+    public synchronized void addMissingRecords(String segment,
+                                               int fromIndex,
+                                               List<HistoryRecord> records)
+    {
+        ensureLoaded();
+
+        BitSet indexed = this.indexedRecords.get(segment);
+
+        for (int i = 0; i < records.size(); i++)
+        {
+            int index = fromIndex + i;
+
+            if (indexed == null || !indexed.get(index))
+            {
+                addRecord(new RecordLocation(segment, index), records.get(i));
+                indexed = this.indexedRecords.get(segment);
+            }
+        }
+    }
+
+    /**
+     * Drops the index and indexes all records of the given store again.
+     *
+     * @param store the store of the history
+     */
+    public synchronized void rebuild(HistoryStore store)
+    {
+        this.postings.clear();
+        this.indexedRecords.clear();
+        this.journalSize = 0;
+        this.indexedCount = 0;
+        this.loaded = true;
+        this.lastUsed = System.currentTimeMillis();
+
+        if (this.indexFile.exists() && !this.indexFile.delete())
+            logger.warn("Cannot delete keyword index " + this.indexFile);
+
+        for (String segment : store.getSegments())
+        {
+            List<HistoryRecord> records = store.readSegment(segment);
+
+            if (records != null)
+                addMissingRecords(segment, 0, records);
+        }
+    }
+
+    /**
+     * Returns the records of the segment having a word of <tt>field</tt>
+     * which contains <tt>part</tt>. Words equal to <tt>part</tt> or starting
+     * with it are looked up in the sorted words, the others are only scanned
+     * for when <tt>part</tt> can be in the middle of the word.
+     *
+     * @param segment the segment
+     * @param field the property
+     * @param part a lower case run of letters and digits
+     * @param atWordStart whether the words have to start with <tt>part</tt>
+     * @param atWordEnd whether the words have to end with <tt>part</tt>
+     * @return the indexes of the matching records
+     */
+    private BitSet findMatching(String segment,
+                                String field,
+                                String part,
+                                boolean atWordStart,
+                                boolean atWordEnd)
+    {
+        BitSet result = new BitSet();
+        SortedMap<String, Map<String, BitSet>> words = this.postings.get(field);
+
+        if (words == null)
+            return result;
+
+        addSegmentRecords(words.get(ANY_WORD), segment, result);
+
+        if (atWordStart && atWordEnd)
+        {
+            addSegmentRecords(words.get(part), segment, result);
+        }
+        else if (atWordStart)
+        {
+            for (Map<String, BitSet> segments
+                    : words.subMap(part, part + '\uffff').values())
+                addSegmentRecords(segments, segment, result);
+        }
+        else
+        {
+            for (Map.Entry<String, Map<String, BitSet>> e : words.entrySet())
+            {
+                String word = e.getKey();
+
+                if (atWordEnd ? word.endsWith(part) : word.contains(part))
+                    addSegmentRecords(e.getValue(), segment, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds the records of a segment having a word to <tt>result</tt>.
+     *
+     * @param segments the records of every segment having the word, or
+     * <tt>null</tt> if no record has it
+     * @param segment the segment
+     * @param result the indexes of the matching records
+     */
+    private static void addSegmentRecords(Map<String, BitSet> segments,
+                                          String segment,
+                                          BitSet result)
+    {
+        BitSet records = (segments == null) ? null : segments.get(segment);
+
+        if (records != null)
+            result.or(records);
+    }
+
+    /**
+     * Indexes the given properties of a record and appends them to the
+     * journal.
+     *
+     * @param location the location of the record
+     * @param names the names of the properties
+     * @param values the values of the properties
+     */
+    private void addProperties(RecordLocation location,
+                               String[] names,
+                               String[] values)
+    {
+        boolean wasLoaded = this.loaded;
+        Map<String, Set<String>> words = new HashMap<String, Set<String>>();
+
+        for (int i = 0; i < names.length; i++)
+        {
+            if (values[i] == null)
+                continue;
+
+            // stores drop the suffix marking values stored as CDATA
+            String field = names[i];
+            if (field.endsWith(CDATA_SUFFIX))
+            {
+                field = field.substring(
+                    0, field.length() - CDATA_SUFFIX.length());
+            }
+
+            Set<String> fieldWords = words.get(field);
+
+            if (fieldWords == null)
+            {
+                fieldWords = new HashSet<String>();
+                words.put(field, fieldWords);
+            }
+            for (String word : tokenize(values[i]))
+            {
+                fieldWords.add(
+                    (word.length() > MAX_WORD_LENGTH) ? ANY_WORD : word);
+            }
+        }
+
+        // the journal is replayed when loaded, no need to load it to add
+        if (wasLoaded)
+            addPostings(location.getSegment(), location.getIndex(), words);
+
+        try
+        {
+            // encode the whole entry first so that a failure does not leave
+            // half an entry in the journal
+            ByteArrayOutputStream entry = new ByteArrayOutputStream();
+            DataOutputStream entryOut = new DataOutputStream(entry);
+
+            entryOut.writeByte(ENTRY_RECORD);
+            entryOut.writeUTF(location.getSegment());
+            entryOut.writeInt(location.getIndex());
+            entryOut.writeInt(words.size());
+            for (Map.Entry<String, Set<String>> e : words.entrySet())
+            {
+                entryOut.writeUTF(e.getKey());
+                entryOut.writeInt(e.getValue().size());
+                for (String word : e.getValue())
+                    entryOut.writeUTF(word);
+            }
+            entryOut.flush();
+
+            DataOutputStream out = openJournal();
+            try
+            {
+                entry.writeTo(out);
+            }
+            finally
+            {
+                out.close();
+            }
+            if (wasLoaded)
+                this.journalSize++;
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot update keyword index " + this.indexFile, e);
+        }
+
+        if (wasLoaded)
+            compactIfNeeded();
+    }
+
+    private void addPostings(String segment,
+                             int index,
+                             Map<String, Set<String>> words)
+    {
+        for (Map.Entry<String, Set<String>> e : words.entrySet())
+        {
+            SortedMap<String, Map<String, BitSet>> fieldWords
+                = this.postings.get(e.getKey());
+
+            if (fieldWords == null)
+            {
+                fieldWords = new TreeMap<String, Map<String, BitSet>>();
+                this.postings.put(e.getKey(), fieldWords);
+            }
+
+            for (String word : e.getValue())
+            {
+                Map<String, BitSet> segments = fieldWords.get(word);
+
+                if (segments == null)
+                {
+                    segments = new HashMap<String, BitSet>();
+                    fieldWords.put(word, segments);
+                }
+
+                BitSet records = segments.get(segment);
+
+                if (records == null)
+                {
+                    records = new BitSet();
+                    segments.put(segment, records);
+                }
+                records.set(index);
+            }
+        }
+
+        BitSet indexed = this.indexedRecords.get(segment);
+
+        if (indexed == null)
+        {
+            indexed = new BitSet();
+            this.indexedRecords.put(segment, indexed);
+        }
+        if (!indexed.get(index))
+        {
+            indexed.set(index);
+            this.indexedCount++;
+        }
+    }
+
+    private void removeSegment(String segment)
+    {
+        BitSet indexed = this.indexedRecords.remove(segment);
+
+        if (indexed != null)
+            this.indexedCount -= indexed.cardinality();
+
+        for (SortedMap<String, Map<String, BitSet>> words
+                : this.postings.values())
+        {
+            Iterator<Map<String, BitSet>> iter = words.values().iterator();
+
+            while (iter.hasNext())
+            {
+                Map<String, BitSet> segments = iter.next();
+
+                segments.remove(segment);
+                if (segments.isEmpty())
+                    iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Opens the journal for appending, writing its header if it is new.
+     *
+     * @return the stream appending to the journal
+     * @throws IOException if the journal cannot be opened
+     */
+    private DataOutputStream openJournal()
+        throws IOException
+    {
+        boolean exists = this.indexFile.exists();
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(
+                new FileOutputStream(this.indexFile, true)));
+
+        if (!exists)
+            out.writeInt(FORMAT_VERSION);
+        return out;
+    }
+
+    /**
+     * Loads the journal if it was not loaded yet. An entry left incomplete by
+     * a crash is cut off.
+     */
+    private void ensureLoaded()
+    {
+        this.lastUsed = System.currentTimeMillis();
+
+        if (this.loaded)
+            return;
+        this.loaded = true;
+
+        if (!this.indexFile.exists())
+            return;
+
+        long validLength = 0;
+
+        try
+        {
+            CountingInputStream counter = new CountingInputStream(
+                new BufferedInputStream(new FileInputStream(this.indexFile)));
+            DataInputStream in = new DataInputStream(counter);
+            try
+            {
+                if (in.readInt() != FORMAT_VERSION)
+                {
+                    in.close();
+                    this.indexFile.delete();
+                    return;
+                }
+                validLength = counter.count;
+
+                while (in.available() > 0)
+                {
+                    byte type = in.readByte();
+                    String segment = in.readUTF();
+
+                    if (type == ENTRY_REMOVE_SEGMENT)
+                    {
+                        removeSegment(segment);
+                    }
+                    else
+                    {
+                        int index = in.readInt();
+                        int fieldCount = in.readInt();
+                        Map<String, Set<String>> words
+                            = new HashMap<String, Set<String>>();
+
+                        for (int i = 0; i < fieldCount; i++)
+                        {
+                            String field = in.readUTF();
+                            int wordCount = in.readInt();
+                            Set<String> fieldWords = new HashSet<String>();
+
+                            for (int j = 0; j < wordCount; j++)
+                                fieldWords.add(in.readUTF());
+                            words.put(field, fieldWords);
+                        }
+                        addPostings(segment, index, words);
+                    }
+                    validLength = counter.count;
+                    this.journalSize++;
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (EOFException e)
+        {
+            logger.warn("Truncating incomplete keyword index " + this.indexFile);
+            truncate(validLength);
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot load keyword index " + this.indexFile, e);
+        }
+
+        compactIfNeeded();
+    }
+
+    /**
+     * Rewrites the journal if it holds much more entries than there are
+     * indexed records, e.g. after segments were merged or deleted.
+     */
+    private void compactIfNeeded()
+    {
+        if (this.loaded && this.journalSize > 2 * this.indexedCount + 64)
+            compact();
+    }
+
+    /**
+     * Rewrites the journal with one entry per indexed record.
+     */
+    private void compact()
+    {
+        // group the postings back by record
+        Map<String, Map<Integer, Map<String, Set<String>>>> records
+            = new HashMap<String, Map<Integer, Map<String, Set<String>>>>();
+
+        for (Map.Entry<String, SortedMap<String, Map<String, BitSet>>> field
+                : this.postings.entrySet())
+        {
+            for (Map.Entry<String, Map<String, BitSet>> word
+                    : field.getValue().entrySet())
+            {
+                for (Map.Entry<String, BitSet> segment
+                        : word.getValue().entrySet())
+                {
+                    BitSet indexes = segment.getValue();
+
+                    for (int i = indexes.nextSetBit(0);
+                            i >= 0;
+                            i = indexes.nextSetBit(i + 1))
+                    {
+                        getWords(records, segment.getKey(), i, field.getKey())
+                            .add(word.getKey());
+                    }
+                }
+            }
+        }
+
+        File tmp = new File(
+            this.indexFile.getParentFile(), INDEX_FILE + ".tmp");
+
+        try
+        {
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+            try
+            {
+                out.writeInt(FORMAT_VERSION);
+                for (Map.Entry<String, BitSet> e
+                        : this.indexedRecords.entrySet())
+                {
+                    String segment = e.getKey();
+                    Map<Integer, Map<String, Set<String>>> segmentRecords
+                        = records.get(segment);
+                    BitSet indexes = e.getValue();
+
+                    for (int i = indexes.nextSetBit(0);
+                            i >= 0;
+                            i = indexes.nextSetBit(i + 1))
+                    {
+                        Map<String, Set<String>> words
+                            = (segmentRecords == null)
+                                ? null
+                                : segmentRecords.get(i);
+
+                        out.writeByte(ENTRY_RECORD);
+                        out.writeUTF(segment);
+                        out.writeInt(i);
+                        if (words == null)
+                        {
+                            out.writeInt(0);
+                            continue;
+                        }
+                        out.writeInt(words.size());
+                        for (Map.Entry<String, Set<String>> w
+                                : words.entrySet())
+                        {
+                            out.writeUTF(w.getKey());
+                            out.writeInt(w.getValue().size());
+                            for (String word : w.getValue())
+                                out.writeUTF(word);
+                        }
+                    }
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+
+            if (!tmp.renameTo(this.indexFile)
+                    && (!this.indexFile.delete()
+                        || !tmp.renameTo(this.indexFile)))
+                throw new IOException("Cannot replace " + this.indexFile);
+
+            this.journalSize = this.indexedCount;
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot compact keyword index " + this.indexFile, e);
+        }
+    }
+
+    /**
+     * Returns the words of a property of a record while grouping the
+     * postings by record, creating the missing levels.
+     */
+    private static Set<String> getWords(
+        Map<String, Map<Integer, Map<String, Set<String>>>> records,
+        String segment,
+        int index,
+        String field)
+    {
+        Map<Integer, Map<String, Set<String>>> segmentRecords
+            = records.get(segment);
+
+        if (segmentRecords == null)
+        {
+            segmentRecords = new HashMap<Integer, Map<String, Set<String>>>();
+            records.put(segment, segmentRecords);
+        }
+
+        Map<String, Set<String>> fields = segmentRecords.get(index);
+
+        if (fields == null)
+        {
+            fields = new HashMap<String, Set<String>>();
+            segmentRecords.put(index, fields);
+        }
+
+        Set<String> words = fields.get(field);
+
+        if (words == null)
+        {
+            words = new HashSet<String>();
+            fields.put(field, words);
+        }
+        return words;
+    }
+
+    private void truncate(long length)
+    {
+        try
+        {
+            RandomAccessFile raf = new RandomAccessFile(this.indexFile, "rw");
+            try
+            {
+                raf.setLength(length);
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot truncate keyword index " + this.indexFile, e);
+        }
+    }
+
+    /**
+     * Counts the bytes read from the journal so that the end of the last
+     * complete entry is known.
+     */
+    static class CountingInputStream
+        extends FilterInputStream
+    {
+        long count = 0;
+
+        CountingInputStream(InputStream in)
+        {
+            super(in);
+        }
+
+        @Override
+        public int read()
+            throws IOException
+        {
+            int b = super.read();
+
+            if (b >= 0)
+                count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+            throws IOException
+        {
+            int n = super.read(b, off, len);
+
+            if (n > 0)
+                count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n)
+            throws IOException
+        {
+            long skipped = super.skip(n);
+
+            count += skipped;
+            return skipped;
+        }
+    }
+}
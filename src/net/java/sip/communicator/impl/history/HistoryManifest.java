@@ -0,0 +1,448 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * The list of all histories stored under the history directory with their
+ * record structures, so that they can be listed without walking the
+ * directory tree and parsing the <tt>dbstruct.dat</tt> file of every
+ * history.
+ * <p>
+ * The manifest is kept in a single file in the history directory and is
+ * rewritten as a whole when a history is created, moved or purged. It also
+ * records how many subdirectories the directories above the histories had,
+ * so that a history created without the manifest, e.g. by an older version,
+ * is noticed by the next load. When the file is missing, cannot be read or
+ * no longer matches the directories, <tt>HistoryServiceImpl</tt> rebuilds it
+ * from the <tt>dbstruct.dat</tt> files.
+ */
+public class HistoryManifest
+{
+    private static final Logger logger
+        = Logger.getLogger(HistoryManifest.class);
+
+    /**
+     * The name of the manifest file in the history directory.
+     */
+    public static final String MANIFEST_FILE = "manifest.dat";
+
+    /**
+     * The version of the manifest format.
+     */
+    private static final int FORMAT_VERSION = 2;
+
+    /**
+     * The history directory.
+     */
+    private final File rootDirectory;
+
+    /**
+     * The manifest file.
+     */
+    private final File manifestFile;
+
+    /**
+     * The known histories in the order they were added.
+     */
+    private final Map<HistoryID, Entry> entries
+        = new LinkedHashMap<HistoryID, Entry>();
+
+    /**
+     * Creates an empty manifest of the given history directory.
+     *
+     * @param rootDirectory the directory containing all histories
+     */
+    public HistoryManifest(File rootDirectory)
+    {
+        this.rootDirectory = rootDirectory;
+        this.manifestFile = new File(rootDirectory, MANIFEST_FILE);
+    }
+
+    /**
+     * Loads the manifest file. Histories whose directory disappeared since
+     * the manifest was written are skipped.
+     *
+     * @return <tt>false</tt> if the file is missing or cannot be read, or if
+     * directories were added or removed above the histories since it was
+     * written, in which case the manifest has to be rebuilt
+     */
+    public synchronized boolean load()
+    {
+        this.entries.clear();
+
+        if (!this.manifestFile.exists())
+            return false;
+
+        try
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(this.manifestFile)));
+            try
+            {
+                if (in.readInt() != FORMAT_VERSION)
+                    return false;
+
+                int count = in.readInt();
+
+                for (int i = 0; i < count; i++)
+                {
+                    String path = in.readUTF();
+                    String[] id = readStrings(in);
+                    String[] structure = readStrings(in);
+                    File directory = new File(this.rootDirectory, path);
+
+                    if (!new File(directory, HistoryServiceImpl.DATA_FILE)
+                            .exists())
+                        continue;
+
+                    Entry entry = new Entry(
+                        HistoryID.createFromID(id),
+                        directory,
+                        new HistoryRecordStructure(structure));
+
+                    this.entries.put(entry.id, entry);
+                }
+
+                int directoryCount = in.readInt();
+
+                for (int i = 0; i < directoryCount; i++)
+                {
+                    String path = in.readUTF();
+                    int subdirectoryCount = in.readInt();
+
+                    if (countSubdirectories(getDirectory(path))
+                            != subdirectoryCount)
+                    {
+                        if (logger.isInfoEnabled())
+                            logger.info("History directory " + path
+                                + " changed since the manifest was written");
+                        this.entries.clear();
+                        return false;
+                    }
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+            return true;
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot read history manifest " + this.manifestFile,
+                e);
+            this.entries.clear();
+            return false;
+        }
+    }
+
+    /**
+     * Returns the known histories.
+     *
+     * @return the entries of the manifest
+     */
+    public synchronized List<Entry> getEntries()
+    {
+        return new ArrayList<Entry>(this.entries.values());
+    }
+
+    /**
+     * Returns the history with the given ID.
+     *
+     * @param id the ID of the history
+     * @return the entry of the history or <tt>null</tt> if it is unknown
+     */
+    public synchronized Entry get(HistoryID id)
+    {
+        return this.entries.get(id);
+    }
+
+    /**
+     * Replaces the content of the manifest, e.g. after listing the histories
+     * from the <tt>dbstruct.dat</tt> files, and saves it.
+     *
+     * @param newEntries the histories of the manifest
+     */
+    public synchronized void reset(Collection<Entry> newEntries)
+    {
+        this.entries.clear();
+        for (Entry entry : newEntries)
+            this.entries.put(entry.id, entry);
+        save();
+    }
+
+    /**
+     * Adds or replaces a history and saves the manifest.
+     *
+     * @param entry the history to add
+     */
+    public synchronized void put(Entry entry)
+    {
+        this.entries.put(entry.id, entry);
+        save();
+    }
+
+    /**
+     * Removes the histories with the given ID and those below it, e.g. after
+     * their directory was deleted, and saves the manifest.
+     *
+     * @param id the components of the ID
+     * @return the removed entries
+     */
+    public synchronized List<Entry> removeAll(String[] id)
+    {
+        List<Entry> removed = new ArrayList<Entry>();
+        Iterator<Entry> iter = this.entries.values().iterator();
+
+        while (iter.hasNext())
+        {
+            Entry entry = iter.next();
+
+            if (startsWith(entry.id.getID(), id))
+            {
+                removed.add(entry);
+                iter.remove();
+            }
+        }
+
+        if (!removed.isEmpty())
+            save();
+        return removed;
+    }
+
+    /**
+     * Writes the manifest to a temporary file and moves it over the
+     * manifest file.
+     */
+    private void save()
+    {
+        File tmp = new File(this.rootDirectory, MANIFEST_FILE + ".tmp");
+
+        try
+        {
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+            try
+            {
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(this.entries.size());
+                for (Entry entry : this.entries.values())
+                {
+                    out.writeUTF(getRelativePath(entry.directory));
+                    writeStrings(out, entry.id.getID());
+                    writeStrings(out,
+                        entry.structure.getPropertyNames());
+                }
+
+                Map<String, Integer> subdirectoryCounts
+                    = getSubdirectoryCounts();
+
+                out.writeInt(subdirectoryCounts.size());
+                for (Map.Entry<String, Integer> e
+                        : subdirectoryCounts.entrySet())
+                {
+                    out.writeUTF(e.getKey());
+                    out.writeInt(e.getValue());
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+
+            if (!tmp.renameTo(this.manifestFile)
+                    && (!this.manifestFile.delete()
+                        || !tmp.renameTo(this.manifestFile)))
+                throw new IOException("Cannot replace " + this.manifestFile);
+        }
+        catch (IOException e)
+        {
+            // the manifest is rebuilt from the history directories
+            logger.error("Cannot write history manifest " + this.manifestFile,
+                e);
+            this.manifestFile.delete();
+        }
+    }
+
+    /**
+     * Counts the subdirectories of the root directory and of the directories
+     * between it and the histories. A history created in one of them adds a
+     * subdirectory to it or to one of its ancestors. The directories of the
+     * histories themselves are left out as their stores add files and
+     * directories to them.
+     *
+     * @return the number of subdirectories by relative path
+     * @throws IOException if a history is not below the root directory
+     */
+    private Map<String, Integer> getSubdirectoryCounts()
+        throws IOException
+    {
+        Set<File> historyDirectories = new HashSet<File>();
+
+        for (Entry entry : this.entries.values())
+            historyDirectories.add(entry.directory.getAbsoluteFile());
+
+        Map<String, Integer> counts = new TreeMap<String, Integer>();
+        File root = this.rootDirectory.getAbsoluteFile();
+
+        counts.put("", countSubdirectories(root));
+        for (File directory : historyDirectories)
+        {
+            for (File parent = directory.getParentFile();
+                    (parent != null) && !parent.equals(root);
+                    parent = parent.getParentFile())
+            {
+                if (historyDirectories.contains(parent))
+                    continue;
+
+                String path = getRelativePath(parent);
+
+                if (counts.containsKey(path))
+                    break;
+                counts.put(path, countSubdirectories(parent));
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Returns the directory at a path relative to the root directory.
+     *
+     * @param path the relative path, empty for the root directory
+     * @return the directory
+     */
+    private File getDirectory(String path)
+    {
+        return (path.length() == 0)
+            ? this.rootDirectory
+            : new File(this.rootDirectory, path);
+    }
+
+    /**
+     * Returns the number of subdirectories of a directory.
+     *
+     * @param directory the directory
+     * @return the number of subdirectories of <tt>directory</tt>, <tt>-1</tt>
+     * if it does not exist
+     */
+    private static int countSubdirectories(File directory)
+    {
+        File[] subdirectories = directory.listFiles(new FileFilter()
+        {
+            public boolean accept(File file)
+            {
+                return file.isDirectory();
+            }
+        });
+
+        return (subdirectories == null) ? -1 : subdirectories.length;
+    }
+
+    /**
+     * Returns the path of a history directory relative to the root
+     * directory.
+     *
+     * @param directory the directory of a history
+     * @return the relative path of <tt>directory</tt>
+     * @throws IOException if <tt>directory</tt> is not below the root
+     * directory
+     */
+    private String getRelativePath(File directory)
+        throws IOException
+    {
+        String root = this.rootDirectory.getAbsolutePath() + File.separator;
+        String path = directory.getAbsolutePath();
+
+        if (!path.startsWith(root))
+            throw new IOException(
+                directory + " is not in the history directory");
+        return path.substring(root.length());
+    }
+
+    /**
+     * Returns whether <tt>id</tt> starts with the components of
+     * <tt>prefix</tt>.
+     *
+     * @param id the ID to check
+     * @param prefix the expected leading components
+     * @return <tt>true</tt> if <tt>id</tt> starts with <tt>prefix</tt>
+     */
+    static boolean startsWith(String[] id, String[] prefix)
+    {
+        if (id.length < prefix.length)
+            return false;
+
+        for (int i = 0; i < prefix.length; i++)
+        {
+            if (!prefix[i].equals(id[i]))
+                return false;
+        }
+        return true;
+    }
+
+    private static String[] readStrings(DataInputStream in)
+        throws IOException
+    {
+        String[] strings = new String[in.readInt()];
+
+        for (int i = 0; i < strings.length; i++)
+            strings[i] = in.readUTF();
+        return strings;
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] strings)
+        throws IOException
+    {
+        out.writeInt(strings.length);
+        for (String s : strings)
+            out.writeUTF(s);
+    }
+
+    /**
+     * A history of the manifest.
+     */
+    public static class Entry
+    {
+        /**
+         * The ID of the history.
+         */
+        final HistoryID id;
+
+        /**
+         * The directory of the history.
+         */
+        final File directory;
+
+        /**
+         * The structure of the records of the history.
+         */
+        final HistoryRecordStructure structure;
+
+        /**
+         * Creates a history entry.
+         *
+         * @param id the ID of the history
+         * @param directory the directory of the history
+         * @param structure the structure of the records of the history
+         */
+        public Entry(HistoryID id,
+                     File directory,
+                     HistoryRecordStructure structure)
+        {
+            this.id = id;
+            this.directory = directory;
+            this.structure = structure;
+        }
+    }
+}
@@ -6,10 +6,6 @@
  */
 package net.java.sip.communicator.impl.history;
 
-import static
-    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
-
-import java.text.*;
 import java.util.*;
 import java.util.regex.*;
 
@@ -17,8 +13,6 @@ import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.event.*;
 import net.java.sip.communicator.service.history.records.*;
 
-import org.w3c.dom.*;
-
 /**
  * @author Alexander Pelov
  * @author Damian Minkov
@@ -157,107 +151,53 @@ public class HistoryReaderImpl
      */
     public synchronized QueryResultSet<HistoryRecord> findLast(int count) throws RuntimeException
     {
+        HistoryStore store = this.historyImpl.getFlushedStore();
+
         // the files are supposed to be ordered from oldest to newest
-        Vector<String> filelist =
-            filterFilesByDate(this.historyImpl.getFileList(), null, null);
+        List<String> filelist = store.getSegments();
 
         TreeSet<HistoryRecord> result
             = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
         int leftCount = count;
         int currentFile = filelist.size() - 1;
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         while(leftCount > 0 && currentFile >= 0)
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
-
-            if(doc == null)
-            {
-                currentFile--;
-                continue;
-            }
-
-            // will get nodes and construct a List of nodes
-            // so we can easyly get sublist of it
-            List<Node> nodes = new ArrayList<Node>();
-            NodeList nodesList = doc.getElementsByTagName("record");
-            for (int i = 0; i < nodesList.getLength(); i++)
-            {
-                nodes.add(nodesList.item(i));
-            }
+            String filename = filelist.get(currentFile--);
 
-            List<Node> lNodes = null;
+            // only read the records we still need from the end of the file
+            int recordCount = store.getSummary(filename).getRecordCount();
 
-            if (nodes.size() > leftCount)
-            {
-                lNodes = nodes.subList(nodes.size() - leftCount , nodes.size());
-                leftCount = 0;
-            }
-            else
-            {
-                lNodes = nodes;
-                leftCount -= nodes.size();
-            }
-
-            Iterator<Node> i = lNodes.iterator();
-            while (i.hasNext())
-            {
-                Node node = i.next();
-
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                ArrayList<String> nameVals = new ArrayList<String>();
-
-                int len = propertyNodes.getLength();
-                for (int j = 0; j < len; j++)
-                {
-                    Node propertyNode = propertyNodes.item(j);
-                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
-                    {
-                        // Get nested TEXT node's value
-                        Node nodeValue = propertyNode.getFirstChild();
-
-                        if(nodeValue == null)
-                            continue;
-
-                        nameVals.add(propertyNode.getNodeName());
-                        nameVals.add(nodeValue.getNodeValue());
-                    }
-                }
-
-                String[] propertyNames = new String[nameVals.size() / 2];
-                String[] propertyValues = new String[propertyNames.length];
-                for (int j = 0; j < propertyNames.length; j++)
-                {
-                    propertyNames[j] = nameVals.get(j * 2);
-                    propertyValues[j] = nameVals.get(j * 2 + 1);
-                }
+            if(recordCount == 0)
+                continue;
 
-                HistoryRecord record = new HistoryRecord(propertyNames,
-                    propertyValues, timestamp);
+            List<HistoryRecord> records = store.readSegment(
+                filename, Math.max(0, recordCount - leftCount), recordCount);
 
-                result.add(record);
-            }
+            if(records == null)
+                continue;
 
-            currentFile--;
+            leftCount -= records.size();
+            result.addAll(records);
         }
 
         return new OrderedQueryResultSet<HistoryRecord>(result);
     }
 
+    /**
+     * Returns an iterator over all records of the history, most recent
+     * first. The files are read one at a time as the iterator advances.
+     *
+     * @return an iterator over the records from newest to oldest
+     * @throws RuntimeException
+     */
+    public Iterator<HistoryRecord> descendingIterator()
+        throws RuntimeException
+    {
+        return new DescendingRecordIterator(
+            this.historyImpl.getFlushedStore());
+    }
+
     /**
      * Searches the history for all records containing the <tt>keyword</tt>.
      *
@@ -327,88 +267,35 @@ public class HistoryReaderImpl
     public QueryResultSet<HistoryRecord> findFirstRecordsAfter(Date date, int count) throws
         RuntimeException
     {
+        HistoryStore store = this.historyImpl.getFlushedStore();
+
         TreeSet<HistoryRecord> result
             = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
 
         Vector<String> filelist =
-            filterFilesByDate(this.historyImpl.getFileList(), date, null);
+            filterSegmentsByDate(store, date, null, false);
 
         int leftCount = count;
         int currentFile = 0;
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         while(leftCount > 0 && currentFile < filelist.size())
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
+            List<HistoryRecord> records
+                = store.readSegment(filelist.get(currentFile));
 
-            if(doc == null)
+            if(records == null)
             {
                 currentFile++;
                 continue;
             }
 
-            NodeList nodes = doc.getElementsByTagName("record");
-
-            Node node;
-            for (int i = 0; i < nodes.getLength() && leftCount > 0; i++)
+            for (int i = 0; i < records.size() && leftCount > 0; i++)
             {
-                node = nodes.item(i);
+                HistoryRecord record = records.get(i);
 
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                if(!isInPeriod(timestamp, date, null))
-                    continue;
-
-                ArrayList<String> nameVals = new ArrayList<String>();
-
-                boolean isRecordOK = true;
-                int len = propertyNodes.getLength();
-                for (int j = 0; j < len; j++)
-                {
-                    Node propertyNode = propertyNodes.item(j);
-                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
-                    {
-                        // Get nested TEXT node's value
-                        Node nodeValue = propertyNode.getFirstChild();
-
-                        if(nodeValue != null)
-                        {
-                            nameVals.add(propertyNode.getNodeName());
-                            nameVals.add(nodeValue.getNodeValue());
-                        }
-                        else
-                            isRecordOK = false;
-                    }
-                }
-
-                // if we found a broken record - just skip it
-                if(!isRecordOK)
+                if(!isInPeriod(record.getTimestamp(), date, null))
                     continue;
 
-                String[] propertyNames = new String[nameVals.size() / 2];
-                String[] propertyValues = new String[propertyNames.length];
-                for (int j = 0; j < propertyNames.length; j++)
-                {
-                    propertyNames[j] = nameVals.get(j * 2);
-                    propertyValues[j] = nameVals.get(j * 2 + 1);
-                }
-
-                HistoryRecord record = new HistoryRecord(propertyNames,
-                    propertyValues, timestamp);
-
                 result.add(record);
                 leftCount--;
             }
@@ -430,9 +317,11 @@ public class HistoryReaderImpl
     public QueryResultSet<HistoryRecord> findLastRecordsBefore(Date date, int count) throws
         RuntimeException
     {
+        HistoryStore store = this.historyImpl.getFlushedStore();
+
         // the files are supposed to be ordered from oldest to newest
         Vector<String> filelist =
-            filterFilesByDate(this.historyImpl.getFileList(), null, date);
+            filterSegmentsByDate(store, null, date, false);
 
         TreeSet<HistoryRecord> result
             = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
@@ -440,78 +329,24 @@ public class HistoryReaderImpl
 
         int currentFile = filelist.size() - 1;
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         while(leftCount > 0 && currentFile >= 0)
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
+            List<HistoryRecord> records
+                = store.readSegment(filelist.get(currentFile));
 
-            if(doc == null)
+            if(records == null)
             {
                 currentFile--;
                 continue;
             }
 
-            NodeList nodes = doc.getElementsByTagName("record");
-
-            Node node;
-            for (int i = nodes.getLength() - 1; i >= 0 && leftCount > 0; i--)
+            for (int i = records.size() - 1; i >= 0 && leftCount > 0; i--)
             {
-                node = nodes.item(i);
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
+                HistoryRecord record = records.get(i);
 
-                if(!isInPeriod(timestamp, null, date))
+                if(!isInPeriod(record.getTimestamp(), null, date))
                     continue;
 
-                ArrayList<String> nameVals = new ArrayList<String>();
-
-                boolean isRecordOK = true;
-                int len = propertyNodes.getLength();
-                for (int j = 0; j < len; j++)
-                {
-                    Node propertyNode = propertyNodes.item(j);
-                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
-                    {
-                        // Get nested TEXT node's value
-                        Node nodeValue = propertyNode.getFirstChild();
-
-                        if(nodeValue != null)
-                        {
-                            nameVals.add(propertyNode.getNodeName());
-                            nameVals.add(nodeValue.getNodeValue());
-                        }
-                        else
-                            isRecordOK = false;
-                    }
-                }
-
-                // if we found a broken record - just skip it
-                if(!isRecordOK)
-                    continue;
-
-                String[] propertyNames = new String[nameVals.size() / 2];
-                String[] propertyValues = new String[propertyNames.length];
-                for (int j = 0; j < propertyNames.length; j++)
-                {
-                    propertyNames[j] = nameVals.get(j * 2);
-                    propertyValues[j] = nameVals.get(j * 2 + 1);
-                }
-
-                HistoryRecord record = new HistoryRecord(propertyNames,
-                    propertyValues, timestamp);
-
                 result.add(record);
                 leftCount--;
             }
@@ -526,12 +361,13 @@ public class HistoryReaderImpl
         Date startDate, Date endDate,
         String[] keywords, String field, boolean caseSensitive)
     {
+        HistoryStore store = this.historyImpl.getFlushedStore();
+
         TreeSet<HistoryRecord> result
             = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
 
         Vector<String> filelist
-            = filterFilesByDate(this.historyImpl.getFileList(),
-                                startDate, endDate);
+            = filterSegmentsByDate(store, startDate, endDate, false);
 
         double currentProgress
             = HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE;
@@ -547,71 +383,113 @@ public class HistoryReaderImpl
         fireProgressStateChanged(startDate, endDate,
             keywords, HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE);
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         Iterator<String> fileIterator = filelist.iterator();
         while (fileIterator.hasNext())
         {
             String filename = fileIterator.next();
 
-            Document doc = this.historyImpl.getDocumentForFile(filename);
+            List<HistoryRecord> records = readMatchingRecords(
+                this.historyImpl, filename, startDate, endDate,
+                keywords, field, caseSensitive);
 
-            if(doc == null)
-                continue;
+            if(records != null)
+                result.addAll(records);
 
-            NodeList nodes = doc.getElementsByTagName("record");
+            currentProgress += fileProgressStep;
+            fireProgressStateChanged(
+                startDate, endDate, keywords, (int)currentProgress);
+        }
 
-            double nodesProgressStep = fileProgressStep;
+        // if maximum value is not reached fire an event
+        if((int)currentProgress
+                < HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE)
+        {
+            fireProgressStateChanged(startDate, endDate, keywords,
+                                     HistorySearchProgressListener.
+                                     PROGRESS_MAXIMUM_VALUE);
+        }
 
-            if(nodes.getLength() != 0)
-                nodesProgressStep = fileProgressStep / nodes.getLength();
+        return new OrderedQueryResultSet<HistoryRecord>(result);
+    }
 
-            Node node;
-            for (int i = 0; i < nodes.getLength(); i++)
-            {
-                node = nodes.item(i);
+    /**
+     * Reads the records of a segment which are in the given period and match
+     * the given keywords. When searching for keywords, the keyword index of
+     * the history is used to only read and check the records which may
+     * contain them, and segments not fully indexed yet are indexed while
+     * they are read.
+     *
+     * @param history the history to read from
+     * @param segment the segment to read
+     * @param startDate start of the period or <tt>null</tt>
+     * @param endDate end of the period or <tt>null</tt>
+     * @param keywords the keywords to search for or <tt>null</tt>
+     * @param field the field where to look for the keywords
+     * @param caseSensitive is keywords search case sensitive
+     * @return the matching records in the order they are stored or
+     * <tt>null</tt> if the segment cannot be read
+     */
+    static List<HistoryRecord> readMatchingRecords(HistoryImpl history,
+                                                   String segment,
+                                                   Date startDate,
+                                                   Date endDate,
+                                                   String[] keywords,
+                                                   String field,
+                                                   boolean caseSensitive)
+    {
+        HistoryStore store = history.getStore();
+        HistoryKeywordIndex index = history.getKeywordIndex();
+        boolean useIndex
+            = keywords != null && keywords.length > 0 && field != null;
+        BitSet candidates = null;
 
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                        .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
+        if(useIndex)
+        {
+            candidates = index.findCandidates(segment,
+                store.getSummary(segment).getRecordCount(), field, keywords);
 
-                if(isInPeriod(timestamp, startDate, endDate))
-                {
-                    NodeList propertyNodes = node.getChildNodes();
+            if(candidates != null && candidates.isEmpty())
+                return new ArrayList<HistoryRecord>();
+        }
 
-                    HistoryRecord record =
-                        filterByKeyword(propertyNodes, timestamp,
-                                        keywords, field, caseSensitive);
+        List<HistoryRecord> records;
+        int fromIndex = 0;
 
-                    if(record != null)
-                    {
-                        result.add(record);
-                    }
-                }
+        if(candidates != null)
+        {
+            // only read the part of the segment holding the candidates
+            fromIndex = candidates.nextSetBit(0);
+            records = store.readSegment(
+                segment, fromIndex, candidates.length());
+        }
+        else
+        {
+            records = store.readSegment(segment);
 
-                currentProgress += nodesProgressStep;
-                fireProgressStateChanged(
-                    startDate, endDate, keywords, (int)currentProgress);
-            }
+            if(records != null && useIndex)
+                index.addMissingRecords(segment, 0, records);
         }
 
-        // if maximum value is not reached fire an event
-        if((int)currentProgress
-                < HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE)
+        if(records == null)
+            return null;
+
+        List<HistoryRecord> result = new ArrayList<HistoryRecord>();
+
+        for (int i = 0; i < records.size(); i++)
         {
-            fireProgressStateChanged(startDate, endDate, keywords,
-                                     HistorySearchProgressListener.
-                                     PROGRESS_MAXIMUM_VALUE);
+            if(candidates != null && !candidates.get(fromIndex + i))
+                continue;
+
+            HistoryRecord record = records.get(i);
+
+            if(isInPeriod(record.getTimestamp(), startDate, endDate)
+                && filterByKeyword(record, keywords, field, caseSensitive))
+            {
+                result.add(record);
+            }
         }
 
-        return new OrderedQueryResultSet<HistoryRecord>(result);
+        return result;
     }
 
     /**
@@ -642,54 +520,32 @@ public class HistoryReaderImpl
     }
 
     /**
-     * If there is keyword restriction and doesn't match the conditions
-     * return null. Otherwise return the HistoryRecord corresponding the
-     * given nodes.
+     * If there is keyword restriction checks whether the given record
+     * matches the conditions.
      *
-     * @param propertyNodes NodeList
-     * @param timestamp Date
+     * @param record HistoryRecord
      * @param keywords String[]
      * @param field String
      * @param caseSensitive boolean
-     * @return HistoryRecord
+     * @return boolean
      */
-    static HistoryRecord filterByKeyword(   NodeList propertyNodes,
-                                            Date timestamp,
-                                            String[] keywords,
-                                            String field,
-                                            boolean caseSensitive)
+    static boolean filterByKeyword( HistoryRecord record,
+                                    String[] keywords,
+                                    String field,
+                                    boolean caseSensitive)
     {
-        ArrayList<String> nameVals = new ArrayList<String>();
-        int len = propertyNodes.getLength();
+        String[] propertyNames = record.getPropertyNames();
+        String[] propertyValues = record.getPropertyValues();
         boolean targetNodeFound = false;
-        for (int j = 0; j < len; j++)
+
+        for (int j = 0; j < propertyNames.length; j++)
         {
-            Node propertyNode = propertyNodes.item(j);
-            if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
+            if(field != null && field.equals(propertyNames[j]))
             {
-                String nodeName = propertyNode.getNodeName();
-
-                Node nestedNode = propertyNode.getFirstChild();
-
-                if(nestedNode == null)
-                    continue;
-
-                // Get nested TEXT node's value
-                String nodeValue = nestedNode.getNodeValue();
-
-                if(field != null && field.equals(nodeName))
-                {
-                    targetNodeFound = true;
-
-                    if(!matchKeyword(nodeValue, keywords, caseSensitive))
-                        return null; // doesn't match the given keyword(s)
-                                    // so return nothing
-                }
-
-                nameVals.add(nodeName);
-                // Get nested TEXT node's value
-                nameVals.add(nodeValue);
+                targetNodeFound = true;
 
+                if(!matchKeyword(propertyValues[j], keywords, caseSensitive))
+                    return false; // doesn't match the given keyword(s)
             }
         }
 
@@ -697,18 +553,10 @@ public class HistoryReaderImpl
         // present skip this record
         if(keywords != null && keywords.length > 0 && !targetNodeFound)
         {
-            return null;
-        }
-
-        String[] propertyNames = new String[nameVals.size() / 2];
-        String[] propertyValues = new String[propertyNames.length];
-        for (int j = 0; j < propertyNames.length; j++)
-        {
-            propertyNames[j] = nameVals.get(j * 2);
-            propertyValues[j] = nameVals.get(j * 2 + 1);
+            return false;
         }
 
-        return new HistoryRecord(propertyNames, propertyValues, timestamp);
+        return true;
     }
 
     /**
@@ -747,6 +595,35 @@ public class HistoryReaderImpl
         return true;
     }
 
+    /**
+     * Returns the segments of the store which may hold records in the given
+     * period. The segments are first limited by their names and then by the
+     * time range the store has indexed for them, so segments outside of the
+     * period and empty segments are never read.
+     *
+     * @param store the store to search
+     * @param startDate Date
+     * @param endDate Date
+     * @param reverseOrder reverse order of segments
+     * @return Vector
+     */
+    static Vector<String> filterSegmentsByDate(
+        HistoryStore store, Date startDate, Date endDate,
+        boolean reverseOrder)
+    {
+        Vector<String> result = filterFilesByDate(
+            store.getSegments().iterator(), startDate, endDate, reverseOrder);
+
+        Iterator<String> iter = result.iterator();
+        while (iter.hasNext())
+        {
+            if (!store.getSummary(iter.next()).intersects(startDate, endDate))
+                iter.remove();
+        }
+
+        return result;
+    }
+
     /**
      * Used to limit the files if any starting or ending date exist
      * So only few files to be searched.
@@ -798,15 +675,18 @@ public class HistoryReaderImpl
 
             return result;
         }
-        // first convert all files to long
-        TreeSet<Long> files = new TreeSet<Long>();
+        // first convert all files to long, keeping their names
+        TreeMap<Long, String> filenames = new TreeMap<Long, String>();
         while (filelist.hasNext())
         {
             String filename = filelist.next();
 
-            files.add(
-                Long.parseLong(filename.substring(0, filename.length() - 4)));
+            filenames.put(
+                Long.parseLong(
+                    filename.substring(0, filename.lastIndexOf('.'))),
+                filename);
         }
+        NavigableSet<Long> files = filenames.navigableKeySet();
 
         TreeSet<Long> resultAsLong = new TreeSet<Long>();
 
@@ -855,7 +735,7 @@ public class HistoryReaderImpl
         while (iter.hasNext())
         {
             Long item = iter.next();
-            result.add(item.toString() + ".xml");
+            result.add(filenames.get(item));
         }
 
         Collections.sort(result, new Comparator<String>() {
@@ -917,11 +797,9 @@ public class HistoryReaderImpl
     }
 
     /**
-     * Count the number of messages that a search will return
-     * Actually only the last file is parsed and its nodes are counted.
-     * We accept that the other files are full with max records,
-     * this way we escape parsing all files which will significantly
-     * slow the process and for one search will parse the files twice.
+     * Count the number of messages that a search will return.
+     * The counts come from the time index of the store, so the files
+     * are only parsed the first time they are counted.
      *
      * @return the number of searched messages
      * @throws UnsupportedOperationException
@@ -931,28 +809,89 @@ public class HistoryReaderImpl
     public int countRecords()
         throws UnsupportedOperationException
     {
+        HistoryStore store = this.historyImpl.getFlushedStore();
         int result = 0;
-        String lastFile = null;
-        Iterator<String> filelistIter = this.historyImpl.getFileList();
-        while (filelistIter.hasNext())
+
+        for (String segment : store.getSegments())
+            result += store.getSummary(segment).getRecordCount();
+
+        return result;
+    }
+
+    /**
+     * Iterates over the records of a store from newest to oldest, reading
+     * the files one at a time starting with the last one.
+     */
+    private static class DescendingRecordIterator
+        implements Iterator<HistoryRecord>
+    {
+        private final HistoryStore store;
+
+        /**
+         * The files of the store, oldest first.
+         */
+        private final List<String> filelist;
+
+        /**
+         * The index in <tt>filelist</tt> of the next file to read.
+         */
+        private int nextFile;
+
+        /**
+         * The records of the current file, newest first.
+         */
+        private List<HistoryRecord> records
+            = Collections.emptyList();
+
+        /**
+         * The index in <tt>records</tt> of the next record.
+         */
+        private int nextRecord = 0;
+
+        DescendingRecordIterator(HistoryStore store)
         {
-            lastFile = filelistIter.next();
-            result += HistoryWriterImpl.MAX_RECORDS_PER_FILE;
+            this.store = store;
+            this.filelist = store.getSegments();
+            this.nextFile = this.filelist.size() - 1;
         }
 
-        if(lastFile == null)
-            return result;
+        public boolean hasNext()
+        {
+            while (this.nextRecord >= this.records.size())
+            {
+                if (this.nextFile < 0)
+                    return false;
 
-        Document doc = this.historyImpl.getDocumentForFile(lastFile);
+                List<HistoryRecord> fileRecords
+                    = this.store.readSegment(
+                        this.filelist.get(this.nextFile--));
 
-        if(doc == null)
-            return result;
+                if (fileRecords == null)
+                    continue;
 
-        NodeList nodes = doc.getElementsByTagName("record");
+                // the records of a file are not necessarily in order
+                this.records = new ArrayList<HistoryRecord>(fileRecords);
+                Collections.reverse(this.records);
+                Collections.sort(this.records, Collections.reverseOrder(
+                    new HistoryRecordComparator()));
+                this.nextRecord = 0;
+            }
+            return true;
+        }
 
-        result += nodes.getLength();
+        public HistoryRecord next()
+        {
+            if (!hasNext())
+                throw new NoSuchElementException();
 
-        return result;
+            return this.records.get(this.nextRecord++);
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException("Cannot remove elements "
+                + "from underlaying collection.");
+        }
     }
 
     /**
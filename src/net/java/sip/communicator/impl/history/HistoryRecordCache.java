@@ -0,0 +1,112 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * A least recently used cache of the decoded records of history files,
+ * shared by all histories of a <tt>HistoryServiceImpl</tt>. The cache is
+ * bounded by the total number of records it holds, so its memory use does
+ * not grow with the uptime or the number of opened histories.
+ */
+public class HistoryRecordCache
+{
+    /**
+     * The maximum number of records kept in the cache.
+     */
+    private final int maxRecords;
+
+    /**
+     * The cached records of each file in access order, eldest first.
+     */
+    private final LinkedHashMap<File, List<HistoryRecord>> files
+        = new LinkedHashMap<File, List<HistoryRecord>>(16, 0.75f, true);
+
+    /**
+     * The number of records currently in the cache.
+     */
+    private int recordCount = 0;
+
+    /**
+     * Creates a cache holding at most <tt>maxRecords</tt> records.
+     *
+     * @param maxRecords the maximum number of records kept in the cache
+     */
+    public HistoryRecordCache(int maxRecords)
+    {
+        this.maxRecords = maxRecords;
+    }
+
+    /**
+     * Returns the cached records of the given file.
+     *
+     * @param file the history file
+     * @return the unmodifiable records of the file or <tt>null</tt> if they
+     * are not cached
+     */
+    public synchronized List<HistoryRecord> get(File file)
+    {
+        return this.files.get(file);
+    }
+
+    /**
+     * Caches the records of the given file, evicting the least recently used
+     * files if the cache grows over its bound.
+     *
+     * @param file the history file
+     * @param records the records read from <tt>file</tt>
+     * @return the unmodifiable list of records kept in the cache
+     */
+    public synchronized List<HistoryRecord> put(File file,
+                                                List<HistoryRecord> records)
+    {
+        List<HistoryRecord> cached = Collections.unmodifiableList(records);
+
+        if (records.size() > this.maxRecords)
+            return cached;
+
+        remove(file);
+        this.files.put(file, cached);
+        this.recordCount += cached.size();
+
+        Iterator<List<HistoryRecord>> eldest = this.files.values().iterator();
+
+        while (this.recordCount > this.maxRecords && eldest.hasNext())
+        {
+            this.recordCount -= eldest.next().size();
+            eldest.remove();
+        }
+
+        return cached;
+    }
+
+    /**
+     * Removes the records of the given file, which changed on disk.
+     *
+     * @param file the history file
+     */
+    public synchronized void remove(File file)
+    {
+        List<HistoryRecord> removed = this.files.remove(file);
+
+        if (removed != null)
+            this.recordCount -= removed.size();
+    }
+
+    /**
+     * Removes all records from the cache.
+     */
+    public synchronized void clear()
+    {
+        this.files.clear();
+        this.recordCount = 0;
+    }
+}
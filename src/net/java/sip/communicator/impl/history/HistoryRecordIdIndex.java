@@ -0,0 +1,743 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Maps the values of the id properties of a history (e.g. the <tt>uid</tt>
+ * of a message) to the location of the first record having them, so that
+ * <tt>HistoryWriter.updateRecord</tt> only rewrites the segment holding the
+ * record instead of searching the whole history.
+ * <p>
+ * Every record written to the history is appended to a journal next to the
+ * history files, which is only loaded the first time a record is looked up.
+ * The index keeps track of how many records of every segment it knows;
+ * records written before the index existed or lost by a crash are indexed
+ * when a lookup misses, so a value the index does not know is not in the
+ * history. Locations are still checked by the store when updating, stale
+ * ones only cost a search of the whole history. The journal is rewritten
+ * once it holds much more entries than there are indexed records, e.g.
+ * after segments were merged or deleted.
+ */
+public class HistoryRecordIdIndex
+{
+    private static final Logger logger
+        = Logger.getLogger(HistoryRecordIdIndex.class);
+
+    /**
+     * The name of the index file in the history directory.
+     */
+    public static final String INDEX_FILE = "idindex.dat";
+
+    /**
+     * The version of the index format.
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Journal entry adding a record and the values of its id properties.
+     */
+    private static final byte ENTRY_RECORD = 1;
+
+    /**
+     * Journal entry forgetting everything about a segment.
+     */
+    private static final byte ENTRY_REMOVE_SEGMENT = 2;
+
+    /**
+     * Journal entry adding the new value of an id property of a record.
+     */
+    private static final byte ENTRY_PROPERTY = 3;
+
+    private static final String CDATA_SUFFIX = "_CDATA";
+
+    /**
+     * The index file.
+     */
+    private final File indexFile;
+
+    /**
+     * The names of the indexed properties.
+     */
+    private final Set<String> properties;
+
+    /**
+     * For every indexed property, the location of the first record having
+     * each value.
+     */
+    private final Map<String, Map<String, RecordLocation>> locations
+        = new HashMap<String, Map<String, RecordLocation>>();
+
+    /**
+     * For every segment, the number of records at its beginning known to the
+     * index.
+     */
+    private final Map<String, Integer> indexedCounts
+        = new HashMap<String, Integer>();
+
+    /**
+     * Whether the journal was loaded.
+     */
+    private boolean loaded = false;
+
+    /**
+     * The number of entries in the journal, including overridden ones and
+     * removals. Only counted while the index is loaded.
+     */
+    private int journalSize = 0;
+
+    /**
+     * Creates the id index of the given history directory. The journal is
+     * loaded on first use.
+     *
+     * @param directory the directory of the history
+     * @param properties the names of the properties to index
+     */
+    public HistoryRecordIdIndex(File directory, Set<String> properties)
+    {
+        this.indexFile = new File(directory, INDEX_FILE);
+        this.properties = properties;
+    }
+
+    /**
+     * Returns whether the values of the given property are indexed.
+     *
+     * @param property the name of the property
+     * @return <tt>true</tt> if the property is indexed
+     */
+    public boolean isIndexed(String property)
+    {
+        return this.properties.contains(property);
+    }
+
+    /**
+     * Indexes the given records, which were just written to the history.
+     *
+     * @param recordLocations the locations of the records
+     * @param records the records
+     */
+    public synchronized void addRecords(List<RecordLocation> recordLocations,
+                                        List<HistoryRecord> records)
+    {
+        if (this.properties.isEmpty())
+            return;
+
+        try
+        {
+            // encode all entries first so that a failure does not leave half
+            // an entry in the journal
+            ByteArrayOutputStream entries = new ByteArrayOutputStream();
+            DataOutputStream entriesOut = new DataOutputStream(entries);
+
+            for (int i = 0; i < recordLocations.size(); i++)
+            {
+                RecordLocation location = recordLocations.get(i);
+                Map<String, String> ids = getIds(records.get(i));
+
+                // the journal is replayed when loaded, no need to load it
+                if (this.loaded)
+                    addRecord(location, ids);
+
+                entriesOut.writeByte(ENTRY_RECORD);
+                entriesOut.writeUTF(location.getSegment());
+                entriesOut.writeInt(location.getIndex());
+                writeIds(entriesOut, ids);
+            }
+            entriesOut.flush();
+            appendToJournal(entries);
+
+            if (this.loaded)
+                this.journalSize += recordLocations.size();
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot update record id index " + this.indexFile, e);
+        }
+
+        compactIfNeeded();
+    }
+
+    /**
+     * Indexes the new value of a property of an existing record.
+     *
+     * @param location the location of the record
+     * @param property the name of the property
+     * @param value the new value of the property
+     */
+    public synchronized void addProperty(RecordLocation location,
+                                         String property,
+                                         String value)
+    {
+        if (!isIndexed(property))
+            return;
+
+        Map<String, String> ids = Collections.singletonMap(property, value);
+
+        if (this.loaded)
+            putLocations(location, ids);
+
+        try
+        {
+            ByteArrayOutputStream entry = new ByteArrayOutputStream();
+            DataOutputStream entryOut = new DataOutputStream(entry);
+
+            entryOut.writeByte(ENTRY_PROPERTY);
+            entryOut.writeUTF(location.getSegment());
+            entryOut.writeInt(location.getIndex());
+            writeIds(entryOut, ids);
+            entryOut.flush();
+            appendToJournal(entry);
+
+            if (this.loaded)
+                this.journalSize++;
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot update record id index " + this.indexFile, e);
+        }
+
+        compactIfNeeded();
+    }
+
+    /**
+     * Forgets everything about the given segments, for example because they
+     * were merged or deleted.
+     *
+     * @param segments the names of the segments
+     */
+    public synchronized void removeSegments(Collection<String> segments)
+    {
+        if (!this.loaded && !this.indexFile.exists())
+            return;
+
+        ensureLoaded();
+
+        try
+        {
+            ByteArrayOutputStream entries = new ByteArrayOutputStream();
+            DataOutputStream entriesOut = new DataOutputStream(entries);
+
+            for (String segment : segments)
+            {
+                removeSegment(segment);
+                entriesOut.writeByte(ENTRY_REMOVE_SEGMENT);
+                entriesOut.writeUTF(segment);
+            }
+            entriesOut.flush();
+            appendToJournal(entries);
+            this.journalSize += segments.size();
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot update record id index " + this.indexFile, e);
+        }
+
+        compactIfNeeded();
+    }
+
+    /**
+     * Returns the location of the first record having <tt>value</tt> for
+     * <tt>property</tt>. When the value is unknown, the records of the store
+     * which are not indexed yet are indexed and looked up.
+     *
+     * @param store the store of the history
+     * @param property the name of an indexed property
+     * @param value the value to look for
+     * @return the location of the record or <tt>null</tt> if no record of
+     * the history has <tt>value</tt> for <tt>property</tt>
+     */
+    public synchronized RecordLocation find(HistoryStore store,
+                                            String property,
+                                            String value)
+    {
+        ensureLoaded();
+
+        RecordLocation location = get(property, value);
+
+        if (location == null && addMissingRecords(store))
+            location = get(property, value);
+        return location;
+    }
+
+    /**
+     * Indexes the records of the store the index does not know yet.
+     *
+     * @param store the store of the history
+     * @return <tt>true</tt> if records were indexed
+     */
+    private boolean addMissingRecords(HistoryStore store)
+    {
+        boolean added = false;
+
+        for (String segment : store.getSegments())
+        {
+            int count = store.getSummary(segment).getRecordCount();
+            int indexed = getIndexedCount(segment);
+
+            // the segment lost records (e.g. a corrupted file was repaired),
+            // the indexes of its records cannot be trusted anymore
+            if (indexed > count)
+            {
+                removeSegments(Collections.singleton(segment));
+                indexed = 0;
+            }
+            if (indexed == count)
+                continue;
+
+            List<HistoryRecord> records
+                = store.readSegment(segment, indexed, count);
+
+            if (records == null || records.isEmpty())
+                continue;
+
+            List<RecordLocation> recordLocations
+                = new ArrayList<RecordLocation>(records.size());
+
+            for (int i = 0; i < records.size(); i++)
+                recordLocations.add(new RecordLocation(segment, indexed + i));
+
+            addRecords(recordLocations, records);
+            added = true;
+        }
+
+        if (added && logger.isDebugEnabled())
+            logger.debug("Indexed missing records in " + this.indexFile);
+        return added;
+    }
+
+    private RecordLocation get(String property, String value)
+    {
+        Map<String, RecordLocation> values = this.locations.get(property);
+
+        return (values == null) ? null : values.get(value);
+    }
+
+    private int getIndexedCount(String segment)
+    {
+        Integer count = this.indexedCounts.get(segment);
+
+        return (count == null) ? 0 : count.intValue();
+    }
+
+    /**
+     * Returns the values of the indexed properties of a record.
+     *
+     * @param record the record
+     * @return the values of the indexed properties by property name
+     */
+    private Map<String, String> getIds(HistoryRecord record)
+    {
+        String[] names = record.getPropertyNames();
+        String[] values = record.getPropertyValues();
+        Map<String, String> ids = new HashMap<String, String>();
+
+        for (int i = 0; i < names.length; i++)
+        {
+            if (values[i] == null)
+                continue;
+
+            // stores drop the suffix marking values stored as CDATA
+            String name = names[i];
+            if (name.endsWith(CDATA_SUFFIX))
+                name = name.substring(0, name.length() - CDATA_SUFFIX.length());
+
+            if (isIndexed(name) && !ids.containsKey(name))
+                ids.put(name, values[i].replaceAll("\0", " "));
+        }
+        return ids;
+    }
+
+    /**
+     * Adds a record to the index. The number of known records of its segment
+     * only grows when the record directly follows them, records after a gap
+     * are indexed again once the gap is filled.
+     *
+     * @param location the location of the record
+     * @param ids the values of the indexed properties of the record
+     */
+    private void addRecord(RecordLocation location, Map<String, String> ids)
+    {
+        String segment = location.getSegment();
+
+        if (location.getIndex() == getIndexedCount(segment))
+            this.indexedCounts.put(segment, location.getIndex() + 1);
+
+        putLocations(location, ids);
+    }
+
+    /**
+     * Maps the given values to a record unless an earlier record has them.
+     *
+     * @param location the location of the record
+     * @param ids the values to map by property name
+     */
+    private void putLocations(RecordLocation location, Map<String, String> ids)
+    {
+        for (Map.Entry<String, String> e : ids.entrySet())
+        {
+            Map<String, RecordLocation> values
+                = this.locations.get(e.getKey());
+
+            if (values == null)
+            {
+                values = new HashMap<String, RecordLocation>();
+                this.locations.put(e.getKey(), values);
+            }
+
+            RecordLocation existing = values.get(e.getValue());
+
+            if (existing == null || isBefore(location, existing))
+                values.put(e.getValue(), location);
+        }
+    }
+
+    /**
+     * Returns whether a record comes before another one in the history.
+     * Segments are ordered by name like in the stores.
+     */
+    private static boolean isBefore(RecordLocation l1, RecordLocation l2)
+    {
+        int result = l1.getSegment().compareTo(l2.getSegment());
+
+        return (result != 0) ? (result < 0) : (l1.getIndex() < l2.getIndex());
+    }
+
+    private void removeSegment(String segment)
+    {
+        this.indexedCounts.remove(segment);
+
+        for (Map<String, RecordLocation> values : this.locations.values())
+        {
+            Iterator<RecordLocation> iter = values.values().iterator();
+
+            while (iter.hasNext())
+            {
+                if (iter.next().getSegment().equals(segment))
+                    iter.remove();
+            }
+        }
+    }
+
+    private static void writeIds(DataOutputStream out, Map<String, String> ids)
+        throws IOException
+    {
+        out.writeInt(ids.size());
+        for (Map.Entry<String, String> e : ids.entrySet())
+        {
+            out.writeUTF(e.getKey());
+            out.writeUTF(e.getValue());
+        }
+    }
+
+    /**
+     * Appends encoded entries to the journal, writing its header if it is
+     * new.
+     *
+     * @param entries the encoded entries
+     * @throws IOException if the journal cannot be written
+     */
+    private void appendToJournal(ByteArrayOutputStream entries)
+        throws IOException
+    {
+        if (entries.size() == 0)
+            return;
+
+        boolean exists = this.indexFile.exists();
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(
+                new FileOutputStream(this.indexFile, true)));
+        try
+        {
+            if (!exists)
+                out.writeInt(FORMAT_VERSION);
+            entries.writeTo(out);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Loads the journal if it was not loaded yet. An entry left incomplete by
+     * a crash is cut off.
+     */
+    private void ensureLoaded()
+    {
+        if (this.loaded)
+            return;
+        this.loaded = true;
+
+        if (!this.indexFile.exists())
+            return;
+
+        long validLength = 0;
+
+        try
+        {
+            HistoryKeywordIndex.CountingInputStream counter
+                = new HistoryKeywordIndex.CountingInputStream(
+                    new BufferedInputStream(
+                        new FileInputStream(this.indexFile)));
+            DataInputStream in = new DataInputStream(counter);
+            try
+            {
+                if (in.readInt() != FORMAT_VERSION)
+                {
+                    in.close();
+                    this.indexFile.delete();
+                    return;
+                }
+                validLength = counter.count;
+
+                while (in.available() > 0)
+                {
+                    byte type = in.readByte();
+                    String segment = in.readUTF();
+
+                    if (type == ENTRY_REMOVE_SEGMENT)
+                    {
+                        removeSegment(segment);
+                    }
+                    else
+                    {
+                        RecordLocation location
+                            = new RecordLocation(segment, in.readInt());
+                        int count = in.readInt();
+                        Map<String, String> ids
+                            = new HashMap<String, String>();
+
+                        for (int i = 0; i < count; i++)
+                            ids.put(in.readUTF(), in.readUTF());
+
+                        if (type == ENTRY_RECORD)
+                            addRecord(location, ids);
+                        else
+                            putLocations(location, ids);
+                    }
+                    validLength = counter.count;
+                    this.journalSize++;
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (EOFException e)
+        {
+            logger.warn(
+                "Truncating incomplete record id index " + this.indexFile);
+            truncate(validLength);
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot load record id index " + this.indexFile, e);
+        }
+
+        compactIfNeeded();
+    }
+
+    /**
+     * Rewrites the journal if it holds much more entries than there are
+     * indexed records and values.
+     */
+    private void compactIfNeeded()
+    {
+        if (!this.loaded)
+            return;
+
+        int indexedCount = 0;
+        int valueCount = 0;
+
+        for (int count : this.indexedCounts.values())
+            indexedCount += count;
+        for (Map<String, RecordLocation> values : this.locations.values())
+            valueCount += values.size();
+
+        if (this.journalSize > 2 * Math.max(indexedCount, valueCount) + 64)
+            compact();
+    }
+
+    /**
+     * Rewrites the journal with one entry per known record, in order so
+     * that the numbers of known records are restored when it is replayed,
+     * followed by the values of the other records and the values which
+     * replaced earlier ones.
+     */
+    private void compact()
+    {
+        // group the values back by record
+        Map<String, Map<Integer, List<String[]>>> records
+            = new HashMap<String, Map<Integer, List<String[]>>>();
+
+        for (Map.Entry<String, Map<String, RecordLocation>> property
+                : this.locations.entrySet())
+        {
+            for (Map.Entry<String, RecordLocation> value
+                    : property.getValue().entrySet())
+            {
+                RecordLocation location = value.getValue();
+                Map<Integer, List<String[]>> segmentRecords
+                    = records.get(location.getSegment());
+
+                if (segmentRecords == null)
+                {
+                    segmentRecords = new HashMap<Integer, List<String[]>>();
+                    records.put(location.getSegment(), segmentRecords);
+                }
+
+                List<String[]> ids = segmentRecords.get(location.getIndex());
+
+                if (ids == null)
+                {
+                    ids = new ArrayList<String[]>();
+                    segmentRecords.put(location.getIndex(), ids);
+                }
+                ids.add(new String[] { property.getKey(), value.getKey() });
+            }
+        }
+
+        File tmp = new File(
+            this.indexFile.getParentFile(), INDEX_FILE + ".tmp");
+        int written = 0;
+
+        try
+        {
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+            try
+            {
+                out.writeInt(FORMAT_VERSION);
+
+                for (Map.Entry<String, Integer> e
+                        : this.indexedCounts.entrySet())
+                {
+                    String segment = e.getKey();
+                    Map<Integer, List<String[]>> segmentRecords
+                        = records.get(segment);
+
+                    for (int i = 0; i < e.getValue(); i++)
+                    {
+                        List<String[]> ids = (segmentRecords == null)
+                            ? null
+                            : segmentRecords.get(i);
+
+                        written += writeEntries(out, ENTRY_RECORD,
+                            new RecordLocation(segment, i), ids);
+                        if (ids != null)
+                            segmentRecords.remove(i);
+                    }
+                }
+
+                for (Map.Entry<String, Map<Integer, List<String[]>>> e
+                        : records.entrySet())
+                {
+                    for (Map.Entry<Integer, List<String[]>> record
+                            : e.getValue().entrySet())
+                    {
+                        written += writeEntries(out, ENTRY_PROPERTY,
+                            new RecordLocation(e.getKey(), record.getKey()),
+                            record.getValue());
+                    }
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+
+            if (!tmp.renameTo(this.indexFile)
+                    && (!this.indexFile.delete()
+                        || !tmp.renameTo(this.indexFile)))
+                throw new IOException("Cannot replace " + this.indexFile);
+
+            this.journalSize = written;
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot compact record id index " + this.indexFile,
+                e);
+        }
+    }
+
+    /**
+     * Writes the values of a record to the journal. A property has a single
+     * value per entry, so its other values are written in
+     * <tt>ENTRY_PROPERTY</tt> entries after the first one.
+     *
+     * @param out the journal
+     * @param type the type of the first entry
+     * @param location the location of the record
+     * @param ids the names and values of the properties mapped to the
+     * record, <tt>null</tt> if there are none
+     * @return the number of entries written
+     * @throws IOException if the journal cannot be written
+     */
+    private static int writeEntries(DataOutputStream out,
+                                    byte type,
+                                    RecordLocation location,
+                                    List<String[]> ids)
+        throws IOException
+    {
+        List<String[]> remaining
+            = (ids == null) ? new ArrayList<String[]>() : ids;
+        int written = 0;
+
+        do
+        {
+            Map<String, String> entryIds = new HashMap<String, String>();
+            Iterator<String[]> iter = remaining.iterator();
+
+            while (iter.hasNext())
+            {
+                String[] id = iter.next();
+
+                if (!entryIds.containsKey(id[0]))
+                {
+                    entryIds.put(id[0], id[1]);
+                    iter.remove();
+                }
+            }
+
+            out.writeByte((written == 0) ? type : ENTRY_PROPERTY);
+            out.writeUTF(location.getSegment());
+            out.writeInt(location.getIndex());
+            writeIds(out, entryIds);
+            written++;
+        }
+        while (!remaining.isEmpty());
+
+        return written;
+    }
+
+    private void truncate(long length)
+    {
+        try
+        {
+            RandomAccessFile raf = new RandomAccessFile(this.indexFile, "rw");
+            try
+            {
+                raf.setLength(length);
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot truncate record id index " + this.indexFile,
+                e);
+        }
+    }
+}
@@ -39,6 +39,70 @@ public class HistoryServiceImpl
      */
     public static final String DATA_FILE = "dbstruct.dat";
 
+    /**
+     * The property selecting the storage engine of the histories. The
+     * original XML files are used unless it is set to
+     * <tt>STORE_TYPE_SEGMENT</tt>.
+     */
+    public static final String STORE_TYPE_PROPERTY
+        = "net.java.sip.communicator.impl.history.STORE_TYPE";
+
+    /**
+     * The value of <tt>STORE_TYPE_PROPERTY</tt> selecting the append-only
+     * <tt>SegmentHistoryStore</tt>. Existing XML histories are migrated to it
+     * when they are loaded.
+     */
+    public static final String STORE_TYPE_SEGMENT = "segment";
+
+    /**
+     * The maximum number of decoded history records kept in memory when
+     * <tt>CACHE_ENABLED_PROPERTY</tt> is set.
+     */
+    public static final String CACHE_MAX_RECORDS_PROPERTY
+        = "net.java.sip.communicator.impl.history.CACHE_MAX_RECORDS";
+
+    /**
+     * The default value of <tt>CACHE_MAX_RECORDS_PROPERTY</tt>.
+     */
+    private static final int DEFAULT_CACHE_MAX_RECORDS = 3000;
+
+    /**
+     * Whether added records are written in batches by a background thread.
+     * Disabled unless set to <tt>true</tt>, as the errors writing queued
+     * records can only be logged instead of being thrown to the caller.
+     */
+    public static final String ASYNC_WRITE_ENABLED_PROPERTY
+        = "net.java.sip.communicator.impl.history.ASYNC_WRITE_ENABLED";
+
+    /**
+     * The comma separated names of the record properties identifying a
+     * record, which <tt>HistoryWriter.updateRecord</tt> looks records up
+     * with. Their values are indexed so that updates only rewrite the file
+     * holding the record.
+     */
+    public static final String RECORD_ID_PROPERTIES_PROPERTY
+        = "net.java.sip.communicator.impl.history.RECORD_ID_PROPERTIES";
+
+    /**
+     * The default value of <tt>RECORD_ID_PROPERTIES_PROPERTY</tt>: the ids
+     * of messages and file transfers.
+     */
+    private static final String DEFAULT_RECORD_ID_PROPERTIES = "uid,id";
+
+    /**
+     * When set to <tt>true</tt> the keyword indexes of all histories are
+     * rebuilt in the background the next time the history service starts.
+     * The property is removed once the rebuild is started.
+     */
+    public static final String REBUILD_KEYWORD_INDEX_PROPERTY
+        = "net.java.sip.communicator.impl.history.REBUILD_KEYWORD_INDEX";
+
+    /**
+     * The time in milliseconds after which the keyword index of a history
+     * which was not searched is dropped from memory.
+     */
+    private static final long KEYWORD_INDEX_IDLE_TIME = 10 * 60 * 1000;
+
     /**
      * The logger for this class.
      */
@@ -55,6 +119,45 @@ public class HistoryServiceImpl
 
     private final boolean cacheEnabled;
 
+    /**
+     * The cache of decoded records shared by all histories or <tt>null</tt>
+     * if caching is disabled.
+     */
+    private final HistoryRecordCache recordCache;
+
+    private final boolean segmentStoreEnabled;
+
+    /**
+     * The writer storing added records in the background or <tt>null</tt>
+     * if records are written synchronously.
+     */
+    private final AsyncHistoryWriter asyncWriter;
+
+    /**
+     * The names of the indexed id properties.
+     */
+    private final Set<String> recordIdProperties = new HashSet<String>();
+
+    /**
+     * The task enforcing the retention limits and merging small segments in
+     * the background or <tt>null</tt> if compaction is disabled.
+     */
+    private final HistoryCompactionService compactionService;
+
+    /**
+     * The timer dropping the keyword indexes of the histories which are no
+     * longer searched.
+     */
+    private final Timer keywordIndexTimer
+        = new Timer("HistoryKeywordIndexUnload", true);
+
+    /**
+     * The list of stored histories, loaded the first time it is needed.
+     */
+    private HistoryManifest manifest = null;
+
+    private final Object manifestLock = new Object();
+
     /**
      *  Characters and their replacement in created folder names
      */
@@ -80,65 +183,217 @@ public class HistoryServiceImpl
      */
     public HistoryServiceImpl(BundleContext bundleContext)
         throws Exception
+    {
+        this(getConfigurationService(bundleContext),
+            getFileAccessService(bundleContext));
+    }
+
+    /**
+     * Creates a history service using the given services directly, e.g. to
+     * run it outside of OSGi in benchmarks.
+     *
+     * @param configService the configuration service
+     * @param fileAccessService the file access service
+     * @throws Exception if something went wrong during initialization
+     */
+    HistoryServiceImpl(ConfigurationService configService,
+                       FileAccessService fileAccessService)
+        throws Exception
     {
         this.builder =
             DocumentBuilderFactory.newInstance().newDocumentBuilder();
+
         this.cacheEnabled =
-            getConfigurationService(bundleContext).getBoolean(
-                CACHE_ENABLED_PROPERTY, false);
-        this.fileAccessService = getFileAccessService(bundleContext);
+            configService.getBoolean(CACHE_ENABLED_PROPERTY, false);
+        this.recordCache = this.cacheEnabled
+            ? new HistoryRecordCache(configService.getInt(
+                CACHE_MAX_RECORDS_PROPERTY, DEFAULT_CACHE_MAX_RECORDS))
+            : null;
+        this.segmentStoreEnabled = STORE_TYPE_SEGMENT.equals(
+            configService.getString(STORE_TYPE_PROPERTY));
+        this.asyncWriter
+            = configService.getBoolean(ASYNC_WRITE_ENABLED_PROPERTY, false)
+                ? new AsyncHistoryWriter()
+                : null;
+        this.fileAccessService = fileAccessService;
+
+        String idProperties = configService.getString(
+            RECORD_ID_PROPERTIES_PROPERTY, DEFAULT_RECORD_ID_PROPERTIES);
+        for (String idProperty : idProperties.split(","))
+        {
+            if (idProperty.trim().length() > 0)
+                this.recordIdProperties.add(idProperty.trim());
+        }
+
+        if (configService.getBoolean(
+                HistoryCompactionService.COMPACTION_ENABLED_PROPERTY, true))
+        {
+            this.compactionService
+                = new HistoryCompactionService(this, configService);
+            this.compactionService.start();
+        }
+        else
+            this.compactionService = null;
+
+        this.keywordIndexTimer.schedule(
+            new TimerTask()
+            {
+                @Override
+                public void run()
+                {
+                    unloadIdleKeywordIndexes();
+                }
+            },
+            KEYWORD_INDEX_IDLE_TIME,
+            KEYWORD_INDEX_IDLE_TIME / 2);
     }
 
+    /**
+     * Returns the IDs of all stored histories. The histories are listed from
+     * the manifest of the history directory, which is only rebuilt by
+     * walking the directory tree when it is missing. The histories
+     * themselves are only opened when <tt>getHistory</tt> asks for them.
+     *
+     * @return the IDs of all stored histories
+     */
     public Iterator<HistoryID> getExistingIDs()
     {
-        List<File> vect = new Vector<File>();
-        File histDir = null;
-        try {
-            String userSetDataDirectory
-                = System.getProperty("HistoryServiceDirectory");
+        HistoryManifest manifest = getManifest();
+        Set<HistoryID> ids = new LinkedHashSet<HistoryID>();
 
-            histDir
-                = getFileAccessService().getPrivatePersistentDirectory(
-                        (userSetDataDirectory == null)
-                            ? DATA_DIRECTORY
-                            : userSetDataDirectory, FileCategory.PROFILE);
-
-            findDatFiles(vect, histDir);
-        } catch (Exception e)
+        synchronized (this.histories)
         {
-            logger.error("Error opening directory", e);
+            ids.addAll(this.histories.keySet());
+        }
+        if (manifest != null)
+        {
+            for (HistoryManifest.Entry entry : manifest.getEntries())
+                ids.add(entry.id);
         }
 
-        DBStructSerializer structParse = new DBStructSerializer(this);
-        for (File f : vect)
+        return ids.iterator();
+    }
+
+    /**
+     * Returns the opened history with the given ID, opening it if it is only
+     * listed in the manifest. Must be called with the lock of
+     * <tt>histories</tt> held.
+     *
+     * @param id the ID of the history
+     * @return the history or <tt>null</tt> if there is no such history
+     */
+    private History openHistory(HistoryID id)
+    {
+        History history = this.histories.get(id);
+
+        if (history != null)
+            return history;
+
+        HistoryManifest manifest = getManifest();
+        HistoryManifest.Entry entry
+            = (manifest == null) ? null : manifest.get(id);
+
+        if (entry == null)
+            return null;
+
+        history = new HistoryImpl(
+            entry.id, entry.directory, entry.structure, this);
+        this.histories.put(id, history);
+        return history;
+    }
+
+    /**
+     * Returns the manifest of the history directory, loading it or
+     * rebuilding it from the <tt>dbstruct.dat</tt> files the first time it
+     * is needed.
+     *
+     * @return the manifest or <tt>null</tt> if the history directory cannot
+     * be opened
+     */
+    private HistoryManifest getManifest()
+    {
+        synchronized (this.manifestLock)
         {
-            synchronized (this.histories)
+            if (this.manifest != null)
+                return this.manifest;
+
+            File histDir;
+            try
             {
-                try
+                String userSetDataDirectory
+                    = System.getProperty("HistoryServiceDirectory");
+
+                histDir
+                    = getFileAccessService().getPrivatePersistentDirectory(
+                            (userSetDataDirectory == null)
+                                ? DATA_DIRECTORY
+                                : userSetDataDirectory, FileCategory.PROFILE);
+            }
+            catch (Exception e)
+            {
+                logger.error("Error opening directory", e);
+                return null;
+            }
+
+            HistoryManifest manifest = new HistoryManifest(histDir);
+
+            if (!manifest.load())
+            {
+                List<File> vect = new Vector<File>();
+                List<HistoryManifest.Entry> entries
+                    = new ArrayList<HistoryManifest.Entry>();
+
+                findDatFiles(vect, histDir);
+
+                DBStructSerializer structParse = new DBStructSerializer(this);
+                for (File f : vect)
                 {
-                    History hist = structParse.loadHistory(f);
-                    if (!this.histories.containsKey(hist.getID()))
+                    try
                     {
-                        this.histories.put(hist.getID(), hist);
+                        entries.add(structParse.loadEntry(f));
+                    }
+                    catch (Exception e)
+                    {
+                        logger.error("Could not load history from file: "
+                            + f.getAbsolutePath(), e);
                     }
                 }
-                catch (Exception e)
-                {
-                    logger.error("Could not load history from file: "
-                        + f.getAbsolutePath(), e);
-                }
+                manifest.reset(entries);
+
+                if (logger.isInfoEnabled())
+                    logger.info("Rebuilt history manifest with "
+                        + entries.size() + " histories");
             }
+
+            this.manifest = manifest;
+            return manifest;
         }
+    }
 
-        synchronized (this.histories)
+    /**
+     * Records the current structure of the given history in the manifest.
+     *
+     * @param history the history whose structure was written
+     */
+    void updateManifest(HistoryImpl history)
+    {
+        HistoryManifest manifest = getManifest();
+
+        if (manifest != null)
         {
-            return this.histories.keySet().iterator();
+            manifest.put(new HistoryManifest.Entry(history.getID(),
+                history.getDirectory(), history.getHistoryRecordsStructure()));
         }
     }
 
     public boolean isHistoryExisting(HistoryID id)
     {
-        return this.histories.containsKey(id);
+        if (this.histories.containsKey(id))
+            return true;
+
+        HistoryManifest manifest = getManifest();
+
+        return (manifest != null) && (manifest.get(id) != null);
     }
 
     public History getHistory(HistoryID id)
@@ -148,13 +403,11 @@ public class HistoryServiceImpl
 
         synchronized (this.histories)
         {
-            if (histories.containsKey(id))
-            {
-                retVal = histories.get(id);
-            } else {
+            retVal = openHistory(id);
+
+            if (retVal == null)
                 throw new IllegalArgumentException(
                         "No history corresponds to the specified ID.");
-            }
         }
 
         return retVal;
@@ -167,7 +420,7 @@ public class HistoryServiceImpl
 
         synchronized (this.histories)
         {
-            if (this.histories.containsKey(id))
+            if (isHistoryExisting(id))
             {
                 throw new IllegalArgumentException(
                         "There is already a history with the specified ID.");
@@ -179,6 +432,7 @@ public class HistoryServiceImpl
                 File dbDatFile = new File(dir, HistoryServiceImpl.DATA_FILE);
                 DBStructSerializer dbss = new DBStructSerializer(this);
                 dbss.writeHistory(dbDatFile, history);
+                updateManifest(history);
 
                 this.histories.put(id, history);
                 retVal = history;
@@ -299,6 +553,133 @@ public class HistoryServiceImpl
         return cacheEnabled;
     }
 
+    /**
+     * Returns the cache of decoded records shared by all histories.
+     * @return the record cache or <tt>null</tt> if caching is disabled
+     */
+    protected HistoryRecordCache getRecordCache()
+    {
+        return recordCache;
+    }
+
+    /**
+     * Returns the writer storing added records in the background.
+     * @return the asynchronous writer or <tt>null</tt> if records are
+     * written synchronously
+     */
+    protected AsyncHistoryWriter getAsyncWriter()
+    {
+        return asyncWriter;
+    }
+
+    /**
+     * Waits until all records queued by the asynchronous writer are written.
+     */
+    public void flush()
+    {
+        if (asyncWriter != null)
+            asyncWriter.flush();
+    }
+
+    /**
+     * Stops the background compaction, writes the records still queued by
+     * the asynchronous writer and stops it. Records added afterwards are
+     * written synchronously.
+     */
+    public void stop()
+    {
+        if (compactionService != null)
+            compactionService.stop();
+        if (asyncWriter != null)
+            asyncWriter.stop();
+        keywordIndexTimer.cancel();
+    }
+
+    /**
+     * Drops from memory the keyword indexes of the loaded histories which
+     * were not searched for <tt>KEYWORD_INDEX_IDLE_TIME</tt>.
+     */
+    private void unloadIdleKeywordIndexes()
+    {
+        List<History> loaded;
+
+        synchronized (this.histories)
+        {
+            loaded = new ArrayList<History>(this.histories.values());
+        }
+
+        int count = 0;
+        for (History history : loaded)
+        {
+            if ((history instanceof HistoryImpl)
+                    && ((HistoryImpl) history).getKeywordIndex()
+                        .unloadIfIdle(KEYWORD_INDEX_IDLE_TIME))
+                count++;
+        }
+
+        if (count > 0 && logger.isDebugEnabled())
+            logger.debug("Unloaded " + count + " idle keyword indexes");
+    }
+
+    /**
+     * Drops the keyword indexes of all existing histories and indexes their
+     * records again.
+     */
+    public void rebuildKeywordIndexes()
+    {
+        Iterator<HistoryID> ids = getExistingIDs();
+        List<History> toRebuild = new ArrayList<History>();
+
+        synchronized (this.histories)
+        {
+            while (ids.hasNext())
+            {
+                History history = openHistory(ids.next());
+
+                if (history != null)
+                    toRebuild.add(history);
+            }
+        }
+
+        for (History history : toRebuild)
+        {
+            if (history instanceof HistoryImpl)
+                ((HistoryImpl) history).rebuildKeywordIndex();
+        }
+
+        if (logger.isInfoEnabled())
+            logger.info("Rebuilt keyword index of " + toRebuild.size()
+                + " histories");
+    }
+
+    /**
+     * Returns the names of the record properties whose values are indexed.
+     * @return the names of the indexed id properties
+     */
+    protected Set<String> getRecordIdProperties()
+    {
+        return recordIdProperties;
+    }
+
+    /**
+     * Returns the task compacting the histories in the background.
+     * @return the compaction task or <tt>null</tt> if compaction is disabled
+     */
+    protected HistoryCompactionService getCompactionService()
+    {
+        return compactionService;
+    }
+
+    /**
+     * Returns whether histories are kept in the append-only segment store
+     * instead of XML files.
+     * @return boolean
+     */
+    protected boolean isSegmentStoreEnabled()
+    {
+        return segmentStoreEnabled;
+    }
+
     /**
      * Permamently removes local stored History
      *
@@ -308,12 +689,22 @@ public class HistoryServiceImpl
     public void purgeLocallyStoredHistory(HistoryID id)
         throws IOException
     {
+        // do not let queued records recreate the deleted files
+        flush();
+
         // get the history directory corresponding the given id
         File dir = this.createHistoryDirectories(id);
         if (logger.isTraceEnabled())
             logger.trace("Removing history directory " + dir);
         deleteDirAndContent(dir);
 
+        HistoryManifest manifest = getManifest();
+        if (manifest != null)
+            manifest.removeAll(id.getID());
+
+        if (recordCache != null)
+            recordCache.clear();
+
         History history = histories.remove(id);
         if(history == null)
         {
@@ -436,6 +827,9 @@ public class HistoryServiceImpl
         if(!isHistoryCreated(oldId))// || !isHistoryExisting(newId))
             return;
 
+        // the queued records belong to the old location
+        flush();
+
         File oldDir = this.createHistoryDirectories(oldId);
         File newDir = getDirForHistory(newId);
 
@@ -449,9 +843,66 @@ public class HistoryServiceImpl
             throw new IOException("Cannot move history!");
         }
 
+        moveManifestEntries(oldId, newId, oldDir, newDir);
+
+        if (recordCache != null)
+            recordCache.clear();
+
         histories.remove(oldId);
     }
 
+    /**
+     * Moves the manifest entries of a moved history and of the histories
+     * below it to their new ID and directory, rewriting their
+     * <tt>dbstruct.dat</tt> with the new ID.
+     *
+     * @param oldId the ID of the moved history
+     * @param newId the new ID of the history
+     * @param oldDir the old directory of the history
+     * @param newDir the new directory of the history
+     */
+    private void moveManifestEntries(HistoryID oldId, HistoryID newId,
+                                     File oldDir, File newDir)
+    {
+        HistoryManifest manifest = getManifest();
+
+        if (manifest == null)
+            return;
+
+        String[] oldIds = oldId.getID();
+        String[] newIds = newId.getID();
+        String oldPath = oldDir.getAbsolutePath();
+        DBStructSerializer dbss = new DBStructSerializer(this);
+
+        for (HistoryManifest.Entry entry : manifest.removeAll(oldIds))
+        {
+            String[] ids = entry.id.getID();
+            String[] movedIds
+                = new String[newIds.length + ids.length - oldIds.length];
+
+            System.arraycopy(newIds, 0, movedIds, 0, newIds.length);
+            System.arraycopy(ids, oldIds.length,
+                movedIds, newIds.length, ids.length - oldIds.length);
+
+            HistoryID movedId = HistoryID.createFromID(movedIds);
+            File movedDir = new File(newDir.getAbsolutePath()
+                + entry.directory.getAbsolutePath().substring(
+                    oldPath.length()));
+
+            try
+            {
+                dbss.writeHistory(new File(movedDir, DATA_FILE), movedId,
+                    entry.structure);
+                manifest.put(new HistoryManifest.Entry(
+                    movedId, movedDir, entry.structure));
+            }
+            catch (IOException e)
+            {
+                logger.error("Cannot update moved history " + movedDir, e);
+            }
+        }
+    }
+
     /**
      * Returns the folder for the given history without creating it.
      * @param id the history
@@ -0,0 +1,145 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * The storage engine behind a <tt>HistoryImpl</tt>. A store keeps the records
+ * of a single history split in segments (files), each of them named after the
+ * time (in milliseconds) of the first record it contains followed by an
+ * extension specific to the store, e.g. <tt>1377001100234.xml</tt>. Readers
+ * and writers of the history only talk to the store through this interface
+ * and never see the underlying file format.
+ */
+public interface HistoryStore
+{
+    /**
+     * Returns the names of all segments of this store ordered from the oldest
+     * to the newest one.
+     *
+     * @return the names of the segments of this store
+     */
+    public List<String> getSegments();
+
+    /**
+     * Reads all records stored in the given segment in the order they were
+     * added.
+     *
+     * @param segment the name of the segment to read
+     * @return the records of the segment or <tt>null</tt> if the segment
+     * could not be read
+     */
+    public List<HistoryRecord> readSegment(String segment);
+
+    /**
+     * Reads the records of the given segment with an index in the range
+     * <tt>[fromIndex, toIndex)</tt>. Stores able to seek to a record do not
+     * decode the records outside of the range.
+     *
+     * @param segment the name of the segment to read
+     * @param fromIndex the index of the first record to read
+     * @param toIndex the index after the last record to read
+     * @return the records in the range or <tt>null</tt> if the segment could
+     * not be read
+     */
+    public List<HistoryRecord> readSegment(String segment,
+                                           int fromIndex,
+                                           int toIndex);
+
+    /**
+     * Returns the time range and the number of records of the given segment,
+     * from the index of the store when possible.
+     *
+     * @param segment the name of the segment
+     * @return the summary of <tt>segment</tt> or
+     * <tt>SegmentSummary.UNKNOWN</tt> if it cannot be read
+     */
+    public SegmentSummary getSummary(String segment);
+
+    /**
+     * Appends a new record to the store. Property names ending with
+     * <tt>_CDATA</tt> are stored without that suffix and <tt>null</tt> values
+     * are skipped.
+     *
+     * @param propertyNames the names of the record properties
+     * @param propertyValues the values of the record properties
+     * @param timestamp the timestamp of the record
+     * @return the location of the new record
+     * @throws IOException if the record cannot be stored
+     */
+    public RecordLocation addRecord(String[] propertyNames,
+                          String[] propertyValues,
+                          Date timestamp)
+        throws IOException;
+
+    /**
+     * Appends the given records to the store in order, writing each affected
+     * segment only once.
+     *
+     * @param records the records to add
+     * @return the locations of the new records, in the same order
+     * @throws IOException if the records cannot be stored
+     */
+    public List<RecordLocation> addRecords(List<HistoryRecord> records)
+        throws IOException;
+
+    /**
+     * Updates the first record having <tt>idValue</tt> for its
+     * <tt>idProperty</tt> by setting (or creating) <tt>property</tt> to
+     * <tt>newValue</tt>.
+     *
+     * @param idProperty name of the id property
+     * @param idValue value of the id property
+     * @param property the property to change
+     * @param newValue the value of the changed property
+     * @return the location of the updated record or <tt>null</tt> if no
+     * record has <tt>idValue</tt> for its <tt>idProperty</tt>
+     * @throws IOException if the changed record cannot be stored
+     */
+    public RecordLocation updateRecord(String idProperty,
+                                String idValue,
+                                String property,
+                                String newValue)
+        throws IOException;
+
+    /**
+     * Updates the first record of the given segment having <tt>idValue</tt>
+     * for its <tt>idProperty</tt>, e.g. the segment found in an index.
+     *
+     * @param segment the segment holding the record
+     * @param idProperty name of the id property
+     * @param idValue value of the id property
+     * @param property the property to change
+     * @param newValue the value of the changed property
+     * @return the location of the updated record or <tt>null</tt> if no
+     * record of <tt>segment</tt> has <tt>idValue</tt> for its
+     * <tt>idProperty</tt>
+     * @throws IOException if the changed record cannot be stored
+     */
+    public RecordLocation updateRecord(String segment,
+                                String idProperty,
+                                String idValue,
+                                String property,
+                                String newValue)
+        throws IOException;
+
+    /**
+     * Deletes the given segments and all records they contain.
+     *
+     * @param segments the names of the segments to delete
+     */
+    public void removeSegments(Collection<String> segments);
+
+    /**
+     * Reloads the list of segments from the underlying storage.
+     */
+    public void reload();
+}
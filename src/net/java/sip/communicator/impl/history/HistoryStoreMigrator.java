@@ -0,0 +1,79 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Converts the XML files of a history to segments of a
+ * <tt>SegmentHistoryStore</tt>. Every XML file becomes a sealed segment
+ * starting at the same time and is deleted once its segment is safely
+ * written, so an interrupted migration simply continues with the remaining
+ * files the next time the history is loaded.
+ */
+public class HistoryStoreMigrator
+{
+    private static final Logger logger
+        = Logger.getLogger(HistoryStoreMigrator.class);
+
+    /**
+     * Moves all records of the XML files in <tt>directory</tt> to
+     * <tt>target</tt>.
+     *
+     * @param directory the history directory
+     * @param historyServiceImpl the history service used to parse the files
+     * @param target the store receiving the records
+     * @return the number of migrated records
+     * @throws IOException if a segment cannot be written
+     */
+    public static int migrate(File directory,
+                              HistoryServiceImpl historyServiceImpl,
+                              SegmentHistoryStore target)
+        throws IOException
+    {
+        XmlHistoryStore source
+            = new XmlHistoryStore(directory, historyServiceImpl);
+        int migrated = 0;
+        List<String> migratedFiles = new ArrayList<String>();
+
+        for (String file : source.getSegments())
+        {
+            List<HistoryRecord> records = source.readSegment(file);
+
+            if (records == null)
+            {
+                logger.error("Cannot migrate unreadable history file "
+                    + new File(directory, file));
+                continue;
+            }
+
+            String segment
+                = file.substring(0, file.lastIndexOf('.') + 1)
+                    + SegmentHistoryStore.SUPPORTED_FILETYPE;
+
+            target.importSegment(segment, records);
+            migrated += records.size();
+
+            if (new File(directory, file).delete())
+                migratedFiles.add(file);
+            else
+                logger.warn("Cannot delete migrated history file " + file);
+        }
+
+        target.forgetFiles(migratedFiles);
+
+        if (logger.isInfoEnabled())
+            logger.info("Migrated " + migrated + " history records in "
+                + directory);
+
+        return migrated;
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * A persistent index kept next to the files of a history, remembering the
+ * <tt>SegmentSummary</tt> of every file so that readers can skip files
+ * outside of the period they are looking for without opening them.
+ * <p>
+ * The index is an append-only journal: every update appends an entry and
+ * the last entry of a file wins when the index is loaded. Each entry also
+ * records the length and modification time of the file it describes and is
+ * ignored if the file changed behind the back of the index. The journal is
+ * compacted once it holds much more entries than there are files.
+ */
+public class HistoryTimeIndex
+{
+    private static final Logger logger
+        = Logger.getLogger(HistoryTimeIndex.class);
+
+    /**
+     * The name of the index file in the history directory.
+     */
+    public static final String INDEX_FILE = "timeindex.dat";
+
+    /**
+     * The version of the index format.
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * The directory of the history.
+     */
+    private final File directory;
+
+    /**
+     * The index file.
+     */
+    private final File indexFile;
+
+    /**
+     * The known entries by file name.
+     */
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * The number of entries in the journal, including overridden ones.
+     */
+    private int journalSize = 0;
+
+    /**
+     * Creates the index of the given history directory and loads its
+     * journal.
+     *
+     * @param directory the directory of the history
+     */
+    public HistoryTimeIndex(File directory)
+    {
+        this.directory = directory;
+        this.indexFile = new File(directory, INDEX_FILE);
+
+        load();
+    }
+
+    /**
+     * Returns the summary of the given file if it is known and the file did
+     * not change since.
+     *
+     * @param filename the name of the file
+     * @return the summary of the file or <tt>null</tt>
+     */
+    public synchronized SegmentSummary get(String filename)
+    {
+        Entry entry = this.entries.get(filename);
+
+        if (entry == null)
+            return null;
+
+        File file = new File(this.directory, filename);
+
+        if (file.length() != entry.length
+                || file.lastModified() != entry.lastModified)
+            return null;
+
+        return entry.summary;
+    }
+
+    /**
+     * Records the summary of the given file in its current state.
+     *
+     * @param filename the name of the file
+     * @param summary the summary of the file
+     */
+    public synchronized void put(String filename, SegmentSummary summary)
+    {
+        File file = new File(this.directory, filename);
+        Entry entry
+            = new Entry(summary, file.length(), file.lastModified());
+
+        this.entries.put(filename, entry);
+
+        if (this.journalSize > 2 * this.entries.size() + 16)
+        {
+            compact();
+            return;
+        }
+
+        try
+        {
+            // compact() leaves a header even when it writes no entry
+            boolean exists = this.indexFile.exists();
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(
+                    new FileOutputStream(this.indexFile, true)));
+            try
+            {
+                if (!exists)
+                    out.writeInt(FORMAT_VERSION);
+                writeEntry(out, filename, entry);
+                this.journalSize++;
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot update history index " + this.indexFile, e);
+        }
+    }
+
+    /**
+     * Forgets the given files, for example after they were merged or
+     * deleted.
+     *
+     * @param filenames the names of the files to forget
+     */
+    public synchronized void remove(Collection<String> filenames)
+    {
+        if (this.entries.keySet().removeAll(filenames))
+            compact();
+    }
+
+    /**
+     * Loads the journal, dropping a trailing entry left incomplete by a
+     * crash.
+     */
+    private void load()
+    {
+        if (!this.indexFile.exists())
+            return;
+
+        boolean truncated = false;
+
+        try
+        {
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(this.indexFile)));
+            try
+            {
+                if (in.readInt() != FORMAT_VERSION)
+                {
+                    this.indexFile.delete();
+                    return;
+                }
+
+                while (in.available() > 0)
+                {
+                    String filename = in.readUTF();
+                    long min = in.readLong();
+                    long max = in.readLong();
+                    int count = in.readInt();
+                    long length = in.readLong();
+                    long lastModified = in.readLong();
+
+                    this.entries.put(filename,
+                        new Entry(new SegmentSummary(min, max, count),
+                            length, lastModified));
+                    this.journalSize++;
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (EOFException e)
+        {
+            truncated = true;
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot load history index " + this.indexFile, e);
+        }
+
+        // rewrite the journal if it ended with an incomplete entry or
+        // holds many overridden entries
+        if (truncated || this.journalSize > 2 * this.entries.size() + 16)
+            compact();
+    }
+
+    /**
+     * Rewrites the journal with one entry per file.
+     */
+    private void compact()
+    {
+        File tmp = new File(this.directory, INDEX_FILE + ".tmp");
+
+        try
+        {
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+            try
+            {
+                out.writeInt(FORMAT_VERSION);
+                for (Map.Entry<String, Entry> e : this.entries.entrySet())
+                    writeEntry(out, e.getKey(), e.getValue());
+            }
+            finally
+            {
+                out.close();
+            }
+
+            if (!tmp.renameTo(this.indexFile)
+                    && (!this.indexFile.delete()
+                        || !tmp.renameTo(this.indexFile)))
+                throw new IOException("Cannot replace " + this.indexFile);
+
+            this.journalSize = this.entries.size();
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot compact history index " + this.indexFile, e);
+        }
+    }
+
+    private static void writeEntry(DataOutputStream out,
+                                   String filename,
+                                   Entry entry)
+        throws IOException
+    {
+        out.writeUTF(filename);
+        out.writeLong(entry.summary.getMinTimestamp());
+        out.writeLong(entry.summary.getMaxTimestamp());
+        out.writeInt(entry.summary.getRecordCount());
+        out.writeLong(entry.length);
+        out.writeLong(entry.lastModified);
+    }
+
+    /**
+     * An entry of the index: the summary of a file and the state of the file
+     * it was computed for.
+     */
+    private static class Entry
+    {
+        final SegmentSummary summary;
+
+        final long length;
+
+        final long lastModified;
+
+        Entry(SegmentSummary summary, long length, long lastModified)
+        {
+            this.summary = summary;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -6,20 +6,12 @@
  */
 package net.java.sip.communicator.impl.history;
 
-import static
-    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
-
 import java.io.*;
-import java.security.*;
-import java.text.*;
 import java.util.*;
 
 import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.records.*;
 
-import org.jitsi.util.xml.XMLUtils;
-import org.w3c.dom.*;
-
 /**
  * @author Alexander Pelov
  */
@@ -31,22 +23,10 @@ public class HistoryWriterImpl
      */
     public static final int MAX_RECORDS_PER_FILE = 150;
 
-    private static final String CDATA_SUFFIX = "_CDATA";
-
-    private Object docCreateLock = new Object();
-
-    private Object docWriteLock = new Object();
-
     private HistoryImpl historyImpl;
 
     private String[] structPropertyNames;
 
-    private Document currentDoc = null;
-
-    private String currentFile = null;
-
-    private int currentDocElements = -1;
-
     protected HistoryWriterImpl(HistoryImpl historyImpl)
     {
         this.historyImpl = historyImpl;
@@ -78,147 +58,44 @@ public class HistoryWriterImpl
     }
 
     /**
-     * Adds new record to the current history document
-     * when the record property name ends with _CDATA this is removed from the
-     * property name and a CDATA text node is created to store the text value
+     * Adds new record to the history store. When the asynchronous writer of
+     * the history service is enabled the record is only queued and write
+     * errors are logged instead of thrown.
      *
      * @param propertyNames String[]
      * @param propertyValues String[]
      * @param date Date
-     * @throws InvalidParameterException
      * @throws IOException
      */
     private void addRecord(String[] propertyNames,
                            String[] propertyValues,
                            Date date)
-        throws InvalidParameterException, IOException
-    {
-        // Synchronized to assure that two concurrent threads can insert records
-        // safely.
-        synchronized (this.docCreateLock)
-        {
-            if (this.currentDoc == null
-                    || this.currentDocElements > MAX_RECORDS_PER_FILE)
-            {
-                this.createNewDoc(date, this.currentDoc == null);
-            }
-        }
-
-        synchronized (this.currentDoc)
-        {
-            Node root = this.currentDoc.getFirstChild();
-            synchronized (root)
-            {
-                Element elem = this.currentDoc.createElement("record");
-                SimpleDateFormat sdf
-                    = new SimpleDateFormat(DATE_FORMAT);
-                elem.setAttribute("timestamp", sdf.format(date));
-
-                for (int i = 0; i < propertyNames.length; i++)
-                {
-                    String propertyName = propertyNames[i];
-
-                    if(propertyName.endsWith(CDATA_SUFFIX))
-                    {
-                        if (propertyValues[i] != null)
-                        {
-                            propertyName = propertyName.replaceFirst(CDATA_SUFFIX, "");
-
-                            Element propertyElement = this.currentDoc
-                                .createElement(propertyName);
-
-                            Text value = this.currentDoc
-                                .createCDATASection(propertyValues[i].replaceAll("\0", " "));
-                            propertyElement.appendChild(value);
-
-                            elem.appendChild(propertyElement);
-                        }
-                    }
-                    else
-                    {
-                        if (propertyValues[i] != null)
-                        {
-                            Element propertyElement = this.currentDoc
-                                .createElement(propertyName);
-
-                            Text value = this.currentDoc
-                                .createTextNode(propertyValues[i].replaceAll("\0", " "));
-                            propertyElement.appendChild(value);
-
-                            elem.appendChild(propertyElement);
-                        }
-                    }
-                }
-
-                root.appendChild(elem);
-                this.currentDocElements++;
-            }
-        }
-
-        // write changes
-        synchronized (this.docWriteLock)
-        {
-            if(historyImpl.getHistoryServiceImpl().isCacheEnabled())
-                this.historyImpl.writeFile(this.currentFile);
-            else
-                this.historyImpl.writeFile(this.currentFile, this.currentDoc);
-        }
-    }
-
-    /**
-     * If no file is currently loaded loads the last opened file. If it does not
-     * exists or if the current file was set - create a new file.
-     *
-     * @param date Date
-     * @param loadLastFile boolean
-     */
-    private void createNewDoc(Date date, boolean loadLastFile)
+        throws IOException
     {
-        boolean loaded = false;
-
-        if (loadLastFile)
-        {
-            Iterator<String> files = historyImpl.getFileList();
+        HistoryRecord record
+            = new HistoryRecord(propertyNames, propertyValues, date);
+        AsyncHistoryWriter asyncWriter
+            = this.historyImpl.getHistoryServiceImpl().getAsyncWriter();
 
-            String file = null;
-            while (files.hasNext())
-            {
-                file = files.next();
-            }
-
-            if (file != null)
-            {
-                this.currentDoc = this.historyImpl.getDocumentForFile(file);
-                this.currentFile = file;
-                loaded = true;
-            }
-
-            // if something happened and file was not loaded
-            // then we must create new one
-            if(this.currentDoc == null)
-            {
-                loaded = false;
-            }
-        }
-
-        if (!loaded)
+        if (asyncWriter != null)
         {
-            this.currentFile = Long.toString(date.getTime());
-            this.currentFile += ".xml";
-
-            this.currentDoc = this.historyImpl.createDocument(this.currentFile);
+            asyncWriter.addRecord(this.historyImpl, record);
+            return;
         }
 
-        // TODO: Assert: Assert.assertNonNull(this.currentDoc,
-        // "There should be a current document created.");
+        HistoryStore store = this.historyImpl.getStore();
+        RecordLocation location
+            = store.addRecord(propertyNames, propertyValues, date);
 
-        this.currentDocElements = this.currentDoc.getFirstChild()
-                .getChildNodes().getLength();
+        this.historyImpl.indexRecords(
+            Collections.singletonList(location),
+            Collections.singletonList(record));
     }
 
     /**
      * Updates a record by searching for record with idProperty which have idValue
-     * and updating/creating the property with newValue.
+     * and updating/creating the property with newValue. Only the segment
+     * holding the record is searched when idProperty is indexed.
      *
      * @param idProperty name of the id property
      * @param idValue value of the id property
@@ -229,83 +106,46 @@ public class HistoryWriterImpl
             String property, String newValue)
         throws IOException
     {
-        Iterator<String> fileIterator = this.historyImpl.getFileList();
-        String filename = null;
-        while (fileIterator.hasNext())
-        {
-            filename = fileIterator.next();
-
-            Document doc = this.historyImpl.getDocumentForFile(filename);
-
-            if(doc == null)
-                continue;
+        // the record may still be queued for writing
+        HistoryStore store = this.historyImpl.getFlushedStore();
+        HistoryRecordIdIndex idIndex = this.historyImpl.getRecordIdIndex();
+        RecordLocation location = null;
+        boolean searchAll = true;
 
-            NodeList nodes = doc.getElementsByTagName("record");
-
-            boolean changed = false;
+        if (idIndex.isIndexed(idProperty))
+        {
+            RecordLocation indexed = idIndex.find(store, idProperty, idValue);
 
-            Node node;
-            for (int i = 0; i < nodes.getLength(); i++)
+            if (indexed == null)
             {
-                node = nodes.item(i);
-
-                Element idNode = XMLUtils.findChild((Element)node, idProperty);
-                if(idNode == null)
-                    continue;
-
-                Node nestedNode = idNode.getFirstChild();
-                if(nestedNode == null)
-                    continue;
-
-                // Get nested TEXT node's value
-                String nodeValue = nestedNode.getNodeValue();
-
-                if(!nodeValue.equals(idValue))
-                    continue;
-
-                Element changedNode =
-                    XMLUtils.findChild((Element)node, property);
-
-                if(changedNode != null)
-                {
-                    Node changedNestedNode = changedNode.getFirstChild();
-
-                    changedNestedNode.setNodeValue(newValue);
-                }
-                else
-                {
-                    Element propertyElement = this.currentDoc
-                        .createElement(property);
-
-                    Text value = this.currentDoc
-                        .createTextNode(newValue.replaceAll("\0", " "));
-                    propertyElement.appendChild(value);
-
-                    node.appendChild(propertyElement);
-                }
-
-                changed = true;
-                break;
+                // the index knows all records of the history
+                searchAll = false;
             }
-
-            if(changed)
+            else
             {
-                // write changes
-                synchronized (this.docWriteLock)
-                {
-                    this.historyImpl.writeFile(filename, doc);
-                }
+                location = store.updateRecord(indexed.getSegment(),
+                    idProperty, idValue, property, newValue);
 
-                // this prevents that the current writer, which holds
-                // instance for the last document he is editing will not
-                // override our last changes to the document
-                if(filename.equals(this.currentFile))
+                // a stale location, the segment changed behind the index
+                if (location == null)
                 {
-                    this.currentDoc = doc;
+                    idIndex.removeSegments(
+                        Collections.singleton(indexed.getSegment()));
                 }
-
-                break;
             }
         }
+
+        if (location == null && searchAll)
+        {
+            location = store.updateRecord(
+                idProperty, idValue, property, newValue);
+        }
+
+        if (location != null)
+        {
+            this.historyImpl.getKeywordIndex().addProperty(
+                location, property, newValue);
+            idIndex.addProperty(location, property, newValue);
+        }
     }
 }
@@ -6,18 +6,12 @@
  */
 package net.java.sip.communicator.impl.history;
 
-import static
-    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
-
-import java.text.*;
 import java.util.*;
 
 import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.event.*;
 import net.java.sip.communicator.service.history.records.*;
 
-import org.w3c.dom.*;
-
 /**
  * The <tt>InteractiveHistoryReaderImpl</tt> is an implementation of the
  * <tt>InteractiveHistoryReader</tt> interface. It allows to search in the
@@ -139,54 +133,28 @@ public class InteractiveHistoryReaderImpl
                         int resultCount,
                         HistoryQueryImpl query)
     {
+        HistoryStore store = history.getFlushedStore();
         Vector<String> filelist
-            = HistoryReaderImpl.filterFilesByDate(  history.getFileList(),
-                                                    startDate, endDate, true);
+            = HistoryReaderImpl.filterSegmentsByDate(
+                store, startDate, endDate, true);
         Iterator<String> fileIterator = filelist.iterator();
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         while (fileIterator.hasNext() && resultCount > 0 && !query.isCanceled())
         {
             String filename = fileIterator.next();
-            Document doc = history.getDocumentForFile(filename);
+            List<HistoryRecord> records
+                = HistoryReaderImpl.readMatchingRecords(history, filename,
+                    startDate, endDate, keywords, field, caseSensitive);
 
-            if(doc == null)
+            if(records == null)
                 continue;
 
-            NodeList nodes = doc.getElementsByTagName("record");
-
-            for ( int i = nodes.getLength() - 1;
+            for ( int i = records.size() - 1;
                   i >= 0 && !query.isCanceled();
                   i--)
             {
-                Node node = nodes.item(i);
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                        .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                if(HistoryReaderImpl.isInPeriod(timestamp, startDate, endDate))
-                {
-                    NodeList propertyNodes = node.getChildNodes();
-
-                    HistoryRecord record =
-                        HistoryReaderImpl
-                            .filterByKeyword(propertyNodes, timestamp,
-                                        keywords, field, caseSensitive);
-
-                    if(record != null)
-                    {
-                        query.addHistoryRecord(record);
-                        resultCount--;
-                    }
-                }
+                query.addHistoryRecord(records.get(i));
+                resultCount--;
             }
         }
 
@@ -0,0 +1,56 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+/**
+ * The position of a record in a <tt>HistoryStore</tt>: the segment holding it
+ * and its index in the segment.
+ */
+public class RecordLocation
+{
+    /**
+     * The name of the segment holding the record.
+     */
+    private final String segment;
+
+    /**
+     * The index of the record in its segment.
+     */
+    private final int index;
+
+    /**
+     * Creates a record location.
+     *
+     * @param segment the name of the segment holding the record
+     * @param index the index of the record in its segment
+     */
+    public RecordLocation(String segment, int index)
+    {
+        this.segment = segment;
+        this.index = index;
+    }
+
+    /**
+     * Returns the name of the segment holding the record.
+     *
+     * @return the name of the segment holding the record
+     */
+    public String getSegment()
+    {
+        return segment;
+    }
+
+    /**
+     * Returns the index of the record in its segment.
+     *
+     * @return the index of the record in its segment
+     */
+    public int getIndex()
+    {
+        return index;
+    }
+}
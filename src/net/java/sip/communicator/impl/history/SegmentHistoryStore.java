@@ -0,0 +1,1384 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * A <tt>HistoryStore</tt> keeping records in append-only binary segment
+ * files. Adding a record appends it to the current segment instead of
+ * rewriting the whole file.
+ * <p>
+ * A segment starts with a header (magic and version) followed by the records.
+ * Each record is prefixed by its length and holds its timestamp and its
+ * name/value pairs. Once a segment is full it is sealed by appending a footer
+ * holding the timestamp range of the segment and the offset and timestamp of
+ * every record, so that the segment can be described without decoding it.
+ * The segment currently being written has no footer and is scanned when
+ * opened; a record left incomplete by a crash is ignored, and truncated
+ * before the next record is appended.
+ * <p>
+ * Compaction merges small sealed segments into compressed ones, where the
+ * record area is deflated as a whole and the footer offsets refer to the
+ * inflated record area.
+ */
+public class SegmentHistoryStore
+    implements HistoryStore
+{
+    private static final Logger logger
+        = Logger.getLogger(SegmentHistoryStore.class);
+
+    /**
+     * The extension of segment files.
+     */
+    public static final String SUPPORTED_FILETYPE = "seg";
+
+    /**
+     * Magic number at the beginning of every segment ("JSEG").
+     */
+    private static final int SEGMENT_MAGIC = 0x4A534547;
+
+    /**
+     * Magic number at the end of every sealed segment ("JEND").
+     */
+    private static final int FOOTER_MAGIC = 0x4A454E44;
+
+    /**
+     * The version of the segment format.
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * The version of compressed segments, which are always sealed.
+     */
+    private static final int COMPRESSED_FORMAT_VERSION = 2;
+
+    /**
+     * The journal describing a compaction in progress, used to complete it
+     * after a crash.
+     */
+    private static final String COMPACTION_JOURNAL = "compaction.dat";
+
+    /**
+     * The size of the segment header: magic and version.
+     */
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * The size of the trailer of a sealed segment: footer length and magic.
+     */
+    private static final int TRAILER_SIZE = 8;
+
+    private static final String CDATA_SUFFIX = "_CDATA";
+
+    /**
+     * The directory of the history.
+     */
+    private final File directory;
+
+    /**
+     * The description of every known segment, ordered by segment name.
+     */
+    private final SortedMap<String, SegmentInfo> segments
+        = new TreeMap<String, SegmentInfo>();
+
+    /**
+     * Serializes all modifications of the segment files.
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * The time range index of the sealed segments.
+     */
+    private final HistoryTimeIndex timeIndex;
+
+    /**
+     * Creates a segment store over the given history directory.
+     *
+     * @param directory the directory of the history
+     */
+    public SegmentHistoryStore(File directory)
+    {
+        this.directory = directory;
+        this.timeIndex = new HistoryTimeIndex(directory);
+
+        recoverCompaction();
+        reload();
+    }
+
+    /**
+     * Reloads the list of segment files from the history directory.
+     */
+    public void reload()
+    {
+        synchronized (this.segments)
+        {
+            this.segments.clear();
+
+            File[] files = this.directory.listFiles();
+
+            if (files == null)
+                return;
+
+            for (File file : files)
+            {
+                if (!file.isDirectory()
+                        && file.getName().endsWith(SUPPORTED_FILETYPE))
+                {
+                    this.segments.put(file.getName(), null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the names of all segments of the history, oldest first.
+     *
+     * @return the names of all segments of the history
+     */
+    public List<String> getSegments()
+    {
+        synchronized (this.segments)
+        {
+            return new ArrayList<String>(this.segments.keySet());
+        }
+    }
+
+    /**
+     * Reads all records of the given segment.
+     *
+     * @param segment the name of the segment
+     * @return the records of the segment or <tt>null</tt> if it cannot be read
+     */
+    public List<HistoryRecord> readSegment(String segment)
+    {
+        return readSegment(segment, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reads the records of the given segment in the given index range. Only
+     * the bytes of the requested records are read, using the offsets from
+     * the footer of the segment.
+     *
+     * @param segment the name of the segment
+     * @param fromIndex the index of the first record to read
+     * @param toIndex the index after the last record to read
+     * @return the records in the range or <tt>null</tt> if the segment cannot
+     * be read
+     */
+    public List<HistoryRecord> readSegment(String segment,
+                                           int fromIndex,
+                                           int toIndex)
+    {
+        // appends change the description of the current segment
+        synchronized (this.writeLock)
+        {
+            try
+            {
+                SegmentInfo info = getSegmentInfo(segment);
+                int count = info.offsets.size();
+
+                toIndex = Math.min(toIndex, count);
+                fromIndex = Math.min(Math.max(fromIndex, 0), toIndex);
+
+                List<HistoryRecord> result
+                    = new ArrayList<HistoryRecord>(toIndex - fromIndex);
+
+                if (fromIndex == toIndex)
+                    return result;
+
+                long start;
+                byte[] data;
+
+                if (info.compressed)
+                {
+                    // the offsets refer to the inflated record area
+                    start = HEADER_SIZE;
+                    data = inflate(
+                        readData(segment, HEADER_SIZE, info.dataEnd),
+                        info.inflatedLength);
+                }
+                else
+                {
+                    start = info.offsets.get(fromIndex);
+                    long end = (toIndex < count)
+                        ? info.offsets.get(toIndex)
+                        : info.dataEnd;
+                    data = readData(segment, start, end);
+                }
+
+                for (int i = fromIndex; i < toIndex; i++)
+                {
+                    result.add(
+                        decodeRecord(data, (int) (info.offsets.get(i) - start)));
+                }
+
+                return result;
+            }
+            catch (IOException e)
+            {
+                logger.error("Cannot read history segment " + segment, e);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Returns the summary of the given segment. Sealed segments never change
+     * so their summary is taken from the time index when the segment is not
+     * loaded yet.
+     *
+     * @param segment the name of the segment
+     * @return the summary of the segment or <tt>SegmentSummary.UNKNOWN</tt>
+     * if it cannot be read
+     */
+    public SegmentSummary getSummary(String segment)
+    {
+        synchronized (this.writeLock)
+        {
+            synchronized (this.segments)
+            {
+                SegmentInfo info = this.segments.get(segment);
+
+                if (info != null)
+                    return info.getSummary();
+            }
+
+            SegmentSummary summary = this.timeIndex.get(segment);
+
+            if (summary != null)
+                return summary;
+
+            try
+            {
+                SegmentInfo info = getSegmentInfo(segment);
+
+                summary = info.getSummary();
+                if (info.sealed)
+                    this.timeIndex.put(segment, summary);
+                return summary;
+            }
+            catch (IOException e)
+            {
+                logger.error("Cannot read history segment " + segment, e);
+                return SegmentSummary.UNKNOWN;
+            }
+        }
+    }
+
+    /**
+     * Appends a record to the current segment, sealing it and starting a new
+     * one when it is full.
+     *
+     * @param propertyNames the names of the record properties
+     * @param propertyValues the values of the record properties
+     * @param timestamp the timestamp of the record
+     * @return the location of the new record
+     * @throws IOException if the record cannot be written
+     */
+    public RecordLocation addRecord(String[] propertyNames,
+                          String[] propertyValues,
+                          Date timestamp)
+        throws IOException
+    {
+        return addRecords(Collections.singletonList(
+                new HistoryRecord(propertyNames, propertyValues, timestamp)))
+            .get(0);
+    }
+
+    /**
+     * Appends the given records, with a single write and sync per segment.
+     *
+     * @param records the records to add
+     * @return the locations of the new records, in the same order
+     * @throws IOException if the records cannot be written
+     */
+    public List<RecordLocation> addRecords(List<HistoryRecord> records)
+        throws IOException
+    {
+        List<RecordLocation> locations
+            = new ArrayList<RecordLocation>(records.size());
+
+        synchronized (this.writeLock)
+        {
+            int next = 0;
+
+            while (next < records.size())
+            {
+                String segment = getWritableSegment(
+                    records.get(next).getTimestamp().getTime());
+                SegmentInfo info = getSegmentInfo(segment);
+                int end = Math.min(records.size(), next
+                    + HistoryWriterImpl.MAX_RECORDS_PER_FILE
+                    - info.offsets.size());
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                int[] lengths = new int[end - next];
+
+                for (int i = next; i < end; i++)
+                {
+                    HistoryRecord record = records.get(i);
+                    byte[] bytes = encodeRecord(
+                        stripCDATA(record.getPropertyNames()),
+                        record.getPropertyValues(),
+                        record.getTimestamp().getTime());
+
+                    data.write(bytes);
+                    lengths[i - next] = bytes.length;
+                }
+
+                FileOutputStream out = new FileOutputStream(
+                    new File(this.directory, segment), true);
+                try
+                {
+                    data.writeTo(out);
+                    out.getFD().sync();
+                }
+                finally
+                {
+                    out.close();
+                }
+
+                for (int i = next; i < end; i++)
+                {
+                    info.add(info.dataEnd,
+                        records.get(i).getTimestamp().getTime());
+                    info.dataEnd += lengths[i - next];
+                    locations.add(
+                        new RecordLocation(segment, info.offsets.size() - 1));
+                }
+                next = end;
+            }
+        }
+
+        return locations;
+    }
+
+    /**
+     * Updates the first record having <tt>idValue</tt> for its
+     * <tt>idProperty</tt>. The segment holding the record is rewritten.
+     *
+     * @param idProperty name of the id property
+     * @param idValue value of the id property
+     * @param property the property to change
+     * @param newValue the value of the changed property
+     * @return the location of the updated record or <tt>null</tt>
+     * @throws IOException if the segment cannot be rewritten
+     */
+    public RecordLocation updateRecord(String idProperty,
+                                       String idValue,
+                                       String property,
+                                       String newValue)
+        throws IOException
+    {
+        for (String segment : getSegments())
+        {
+            RecordLocation location = updateRecord(
+                segment, idProperty, idValue, property, newValue);
+
+            if (location != null)
+                return location;
+        }
+        return null;
+    }
+
+    /**
+     * Updates the record with <tt>idValue</tt> for <tt>idProperty</tt> if it
+     * is stored in the given segment.
+     *
+     * @param segment the segment to search
+     * @param idProperty name of the id property
+     * @param idValue value of the id property
+     * @param property the property to change
+     * @param newValue the value of the changed property
+     * @return the location of the updated record or <tt>null</tt>
+     * @throws IOException if the segment cannot be rewritten
+     */
+    public RecordLocation updateRecord(String segment,
+                                       String idProperty,
+                                       String idValue,
+                                       String property,
+                                       String newValue)
+        throws IOException
+    {
+        synchronized (this.writeLock)
+        {
+            List<HistoryRecord> records = readSegment(segment);
+
+            if (records == null)
+                return null;
+
+            for (int i = 0; i < records.size(); i++)
+            {
+                HistoryRecord record = records.get(i);
+
+                if (!idValue.equals(getValue(record, idProperty)))
+                    continue;
+
+                records.set(i, setValue(record, property,
+                    newValue.replaceAll("\0", " ")));
+
+                boolean sealed = getSegmentInfo(segment).sealed;
+                SegmentInfo info = writeSegment(
+                    new File(this.directory, segment), records, sealed);
+
+                synchronized (this.segments)
+                {
+                    this.segments.put(segment, info);
+                }
+                if (sealed)
+                    this.timeIndex.put(segment, info.getSummary());
+                return new RecordLocation(segment, i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes a complete sealed segment holding the given records. Used when
+     * migrating existing histories to this store.
+     *
+     * @param segment the name of the segment to create
+     * @param records the records of the segment
+     * @throws IOException if the segment cannot be written
+     */
+    void importSegment(String segment, List<HistoryRecord> records)
+        throws IOException
+    {
+        synchronized (this.writeLock)
+        {
+            SegmentInfo info
+                = writeSegment(new File(this.directory, segment), records, true);
+
+            synchronized (this.segments)
+            {
+                this.segments.put(segment, info);
+            }
+            this.timeIndex.put(segment, info.getSummary());
+        }
+    }
+
+    /**
+     * Merges runs of consecutive sealed segments holding less than
+     * <tt>maxRecords / 2</tt> records each into compressed segments of at most
+     * <tt>maxRecords</tt> records. A merged segment takes the name of the
+     * first segment of its run, so the records of that segment keep their
+     * index; the other segments of the run are deleted. The segment being
+     * written to is never merged.
+     * <p>
+     * Queries running concurrently may miss the records of deleted segments.
+     *
+     * @param maxRecords the maximum number of records of a merged segment
+     * @return the names of the deleted segments
+     * @throws IOException if a merged segment cannot be written
+     */
+    public List<String> compact(int maxRecords)
+        throws IOException
+    {
+        List<String> deleted = new ArrayList<String>();
+        List<String> segmentNames = getSegments();
+        List<String> run = new ArrayList<String>();
+        int runRecords = 0;
+
+        // the last segment may still be written to
+        for (int i = 0; i < segmentNames.size() - 1; i++)
+        {
+            String segment = segmentNames.get(i);
+            int count = getSummary(segment).getRecordCount();
+
+            if (count >= maxRecords / 2 || runRecords + count > maxRecords)
+            {
+                if (run.size() > 1)
+                    deleted.addAll(merge(run));
+                run.clear();
+                runRecords = 0;
+
+                if (count >= maxRecords / 2)
+                    continue;
+            }
+
+            run.add(segment);
+            runRecords += count;
+        }
+
+        if (run.size() > 1)
+            deleted.addAll(merge(run));
+
+        return deleted;
+    }
+
+    /**
+     * Merges the given consecutive segments into a compressed segment named
+     * after the first one. A journal listing the segments is written before
+     * the first segment is replaced so that an interrupted merge is
+     * completed by <tt>recoverCompaction()</tt>.
+     *
+     * @param run the segments to merge, oldest first
+     * @return the names of the deleted segments
+     * @throws IOException if the merged segment cannot be written
+     */
+    private List<String> merge(List<String> run)
+        throws IOException
+    {
+        synchronized (this.writeLock)
+        {
+            List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+
+            for (String segment : run)
+            {
+                SegmentInfo info = getSegmentInfo(segment);
+                List<HistoryRecord> segmentRecords = readSegment(segment);
+
+                // segments changed or removed meanwhile are left alone
+                if (!info.sealed || segmentRecords == null)
+                    return Collections.emptyList();
+                records.addAll(segmentRecords);
+            }
+
+            String target = run.get(0);
+            File targetFile = new File(this.directory, target);
+            File tmp = new File(this.directory, target + ".tmp");
+            SegmentInfo info = writeCompressedSegment(tmp, records);
+
+            writeCompactionJournal(target, run);
+
+            if (!tmp.renameTo(targetFile))
+            {
+                // renameTo does not replace existing files on all platforms
+                if (!targetFile.delete() || !tmp.renameTo(targetFile))
+                    throw new IOException(
+                        "Cannot replace history segment " + targetFile);
+            }
+
+            List<String> deleted = run.subList(1, run.size());
+
+            for (String segment : deleted)
+                new File(this.directory, segment).delete();
+            new File(this.directory, COMPACTION_JOURNAL).delete();
+
+            synchronized (this.segments)
+            {
+                this.segments.keySet().removeAll(deleted);
+                this.segments.put(target, info);
+            }
+            this.timeIndex.remove(deleted);
+            this.timeIndex.put(target, info.getSummary());
+
+            if (logger.isInfoEnabled())
+                logger.info("Merged " + run.size() + " history segments with "
+                    + records.size() + " records in " + this.directory);
+
+            return new ArrayList<String>(deleted);
+        }
+    }
+
+    /**
+     * Writes the journal of a compaction replacing <tt>segments</tt> with
+     * <tt>target</tt>.
+     *
+     * @param target the name of the merged segment
+     * @param segments the merged segments
+     * @throws IOException if the journal cannot be written
+     */
+    private void writeCompactionJournal(String target, List<String> segments)
+        throws IOException
+    {
+        File journal = new File(this.directory, COMPACTION_JOURNAL);
+        File tmp = new File(this.directory, COMPACTION_JOURNAL + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try
+        {
+            DataOutputStream out
+                = new DataOutputStream(new BufferedOutputStream(fos));
+
+            out.writeUTF(target);
+            out.writeInt(segments.size());
+            for (String segment : segments)
+                out.writeUTF(segment);
+            out.flush();
+            fos.getFD().sync();
+        }
+        finally
+        {
+            fos.close();
+        }
+
+        if (!tmp.renameTo(journal)
+                && (!journal.delete() || !tmp.renameTo(journal)))
+            throw new IOException("Cannot write " + journal);
+    }
+
+    /**
+     * Completes a compaction interrupted by a crash. The journal is only
+     * written once the merged segment is complete, so the merge is always
+     * rolled forward.
+     */
+    private void recoverCompaction()
+    {
+        File journal = new File(this.directory, COMPACTION_JOURNAL);
+
+        if (!journal.exists())
+            return;
+
+        try
+        {
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(journal)));
+            String target;
+            List<String> merged = new ArrayList<String>();
+            try
+            {
+                target = in.readUTF();
+                int count = in.readInt();
+
+                for (int i = 0; i < count; i++)
+                    merged.add(in.readUTF());
+            }
+            finally
+            {
+                in.close();
+            }
+
+            File targetFile = new File(this.directory, target);
+            File tmp = new File(this.directory, target + ".tmp");
+
+            if (tmp.exists()
+                    && !tmp.renameTo(targetFile)
+                    && (!targetFile.delete() || !tmp.renameTo(targetFile)))
+                throw new IOException("Cannot replace " + targetFile);
+
+            for (String segment : merged)
+            {
+                if (!segment.equals(target))
+                    new File(this.directory, segment).delete();
+            }
+            this.timeIndex.remove(merged);
+
+            logger.warn("Completed interrupted compaction of " + target);
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot complete compaction in " + this.directory, e);
+        }
+
+        journal.delete();
+    }
+
+    /**
+     * Deletes the given segments.
+     *
+     * @param segmentNames the names of the segments to delete
+     */
+    public void removeSegments(Collection<String> segmentNames)
+    {
+        synchronized (this.writeLock)
+        {
+            for (String segment : segmentNames)
+            {
+                File file = new File(this.directory, segment);
+
+                if (file.exists() && !file.delete())
+                    logger.warn("Cannot delete history segment " + file);
+            }
+
+            synchronized (this.segments)
+            {
+                this.segments.keySet().removeAll(segmentNames);
+            }
+            this.timeIndex.remove(segmentNames);
+        }
+    }
+
+    /**
+     * Removes files which are no longer part of the history from the time
+     * index.
+     *
+     * @param files the names of the removed files
+     */
+    void forgetFiles(Collection<String> files)
+    {
+        this.timeIndex.remove(files);
+    }
+
+    /**
+     * Returns the name of the segment new records should be appended to,
+     * sealing the current segment and creating a new one if needed.
+     *
+     * @param timestamp the timestamp of the record to be written
+     * @return the name of the segment to append to
+     * @throws IOException if a segment cannot be sealed or created
+     */
+    private String getWritableSegment(long timestamp)
+        throws IOException
+    {
+        String last;
+        synchronized (this.segments)
+        {
+            last = this.segments.isEmpty() ? null : this.segments.lastKey();
+        }
+
+        if (last != null)
+        {
+            SegmentInfo info = getSegmentInfo(last);
+
+            if (!info.sealed)
+            {
+                truncateIncompleteRecord(last, info);
+
+                if (info.offsets.size() < HistoryWriterImpl.MAX_RECORDS_PER_FILE)
+                    return last;
+
+                seal(last, info);
+            }
+        }
+
+        // never go back in time, the segment names keep the order
+        // of the records
+        if (last != null)
+            timestamp = Math.max(timestamp, getSegmentStart(last) + 1);
+
+        String segment;
+        File file;
+        do
+        {
+            segment = timestamp + "." + SUPPORTED_FILETYPE;
+            file = new File(this.directory, segment);
+            timestamp++;
+        }
+        while (file.exists());
+
+        DataOutputStream out
+            = new DataOutputStream(new FileOutputStream(file));
+        try
+        {
+            out.writeInt(SEGMENT_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+        }
+        finally
+        {
+            out.close();
+        }
+
+        SegmentInfo info = new SegmentInfo();
+        info.dataEnd = HEADER_SIZE;
+
+        synchronized (this.segments)
+        {
+            this.segments.put(segment, info);
+        }
+        return segment;
+    }
+
+    /**
+     * Returns the start time encoded in the name of the given segment.
+     *
+     * @param segment the name of the segment
+     * @return the start time of the segment
+     */
+    static long getSegmentStart(String segment)
+    {
+        return Long.parseLong(segment.substring(0, segment.indexOf('.')));
+    }
+
+    /**
+     * Appends the footer to the given segment.
+     *
+     * @param segment the name of the segment
+     * @param info the description of the segment
+     * @throws IOException if the footer cannot be written
+     */
+    private void seal(String segment, SegmentInfo info)
+        throws IOException
+    {
+        FileOutputStream out
+            = new FileOutputStream(new File(this.directory, segment), true);
+        try
+        {
+            out.write(encodeFooter(info));
+            out.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+        info.sealed = true;
+        this.timeIndex.put(segment, info.getSummary());
+    }
+
+    /**
+     * Removes the incomplete record a crash may have left at the end of the
+     * segment being written, so that new records are appended right after the
+     * last complete one. Readers leave the file untouched.
+     *
+     * @param segment the name of the segment
+     * @param info the description of the segment
+     * @throws IOException if the segment cannot be truncated
+     */
+    private void truncateIncompleteRecord(String segment, SegmentInfo info)
+        throws IOException
+    {
+        File file = new File(this.directory, segment);
+
+        if (file.length() <= info.dataEnd)
+            return;
+
+        logger.warn("Truncating incomplete record in " + file);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            raf.setLength(info.dataEnd);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns the description of the given segment, loading it from the
+     * footer of the segment (or by scanning an unsealed segment) if it is not
+     * known yet.
+     *
+     * @param segment the name of the segment
+     * @return the description of the segment
+     * @throws IOException if the segment cannot be read
+     */
+    private SegmentInfo getSegmentInfo(String segment)
+        throws IOException
+    {
+        synchronized (this.segments)
+        {
+            SegmentInfo info = this.segments.get(segment);
+
+            if (info == null)
+            {
+                info = loadSegmentInfo(new File(this.directory, segment));
+                this.segments.put(segment, info);
+            }
+            return info;
+        }
+    }
+
+    /**
+     * Loads the description of a segment file.
+     *
+     * @param file the segment file
+     * @return the description of the segment
+     * @throws IOException if the file does not exist or is not a valid
+     * segment
+     */
+    private static SegmentInfo loadSegmentInfo(File file)
+        throws IOException
+    {
+        // a segment deleted by compaction or retention must not be recreated
+        if (!file.exists())
+            throw new FileNotFoundException("No history segment: " + file);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            long length = raf.length();
+
+            if (length < HEADER_SIZE || raf.readInt() != SEGMENT_MAGIC)
+                throw new IOException("Not a history segment: " + file);
+            int version = raf.readInt();
+
+            SegmentInfo info = new SegmentInfo();
+            info.compressed = (version == COMPRESSED_FORMAT_VERSION);
+
+            // a sealed segment describes itself in its footer
+            if (length >= HEADER_SIZE + TRAILER_SIZE)
+            {
+                raf.seek(length - TRAILER_SIZE);
+                int footerLength = raf.readInt();
+
+                if (raf.readInt() == FOOTER_MAGIC
+                        && footerLength >= 0
+                        && footerLength <= length - HEADER_SIZE - TRAILER_SIZE)
+                {
+                    raf.seek(length - TRAILER_SIZE - footerLength);
+                    raf.readLong(); // min timestamp
+                    raf.readLong(); // max timestamp
+                    int count = raf.readInt();
+
+                    for (int i = 0; i < count; i++)
+                        info.add(raf.readLong(), raf.readLong());
+
+                    info.dataEnd = length - TRAILER_SIZE - footerLength;
+                    info.sealed = true;
+                    if (info.compressed)
+                        info.inflatedLength = raf.readInt();
+                    return info;
+                }
+            }
+
+            if (info.compressed)
+                throw new IOException("Incomplete history segment: " + file);
+
+            // the segment is still being written, scan its records
+            long offset = HEADER_SIZE;
+            while (offset + 4 + 8 <= length)
+            {
+                raf.seek(offset);
+                int recordLength = raf.readInt();
+
+                if (recordLength < 8 || offset + 4 + recordLength > length)
+                    break;
+
+                info.add(offset, raf.readLong());
+                offset += 4 + recordLength;
+            }
+
+            // an incomplete record is only truncated before the next append
+            info.dataEnd = offset;
+            return info;
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads a part of the record area of the given segment.
+     *
+     * @param segment the name of the segment
+     * @param start the offset to start reading from
+     * @param end the offset to stop reading at
+     * @return the bytes between <tt>start</tt> and <tt>end</tt>
+     * @throws IOException if the segment cannot be read
+     */
+    private byte[] readData(String segment, long start, long end)
+        throws IOException
+    {
+        byte[] data = new byte[(int) (end - start)];
+        RandomAccessFile raf
+            = new RandomAccessFile(new File(this.directory, segment), "r");
+        try
+        {
+            raf.seek(start);
+            raf.readFully(data);
+        }
+        finally
+        {
+            raf.close();
+        }
+        return data;
+    }
+
+    /**
+     * Inflates the record area of a compressed segment.
+     *
+     * @param data the deflated record area
+     * @param length the length of the inflated record area
+     * @return the inflated record area
+     * @throws IOException if the data is corrupted
+     */
+    private static byte[] inflate(byte[] data, int length)
+        throws IOException
+    {
+        byte[] result = new byte[length];
+        DataInputStream in = new DataInputStream(
+            new InflaterInputStream(new ByteArrayInputStream(data)));
+        try
+        {
+            in.readFully(result);
+        }
+        finally
+        {
+            in.close();
+        }
+        return result;
+    }
+
+    /**
+     * Writes a sealed compressed segment holding the given records.
+     *
+     * @param file the file to write
+     * @param records the records of the segment
+     * @return the description of the written segment
+     * @throws IOException if the segment cannot be written
+     */
+    private static SegmentInfo writeCompressedSegment(
+            File file,
+            List<HistoryRecord> records)
+        throws IOException
+    {
+        SegmentInfo info = new SegmentInfo();
+        info.compressed = true;
+
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        DeflaterOutputStream zip = new DeflaterOutputStream(deflated);
+        long offset = HEADER_SIZE;
+
+        for (HistoryRecord record : records)
+        {
+            long timestamp = record.getTimestamp().getTime();
+            byte[] data = encodeRecord(
+                record.getPropertyNames(),
+                record.getPropertyValues(),
+                timestamp);
+
+            zip.write(data);
+            info.add(offset, timestamp);
+            offset += data.length;
+        }
+        zip.close();
+
+        info.inflatedLength = (int) (offset - HEADER_SIZE);
+        info.dataEnd = HEADER_SIZE + deflated.size();
+        info.sealed = true;
+
+        FileOutputStream fos = new FileOutputStream(file);
+        try
+        {
+            DataOutputStream out
+                = new DataOutputStream(new BufferedOutputStream(fos));
+
+            out.writeInt(SEGMENT_MAGIC);
+            out.writeInt(COMPRESSED_FORMAT_VERSION);
+            deflated.writeTo(out);
+            out.write(encodeFooter(info));
+            out.flush();
+            fos.getFD().sync();
+        }
+        finally
+        {
+            fos.close();
+        }
+
+        return info;
+    }
+
+    /**
+     * Writes a complete segment to a temporary file and moves it over
+     * <tt>file</tt>.
+     *
+     * @param file the segment file
+     * @param records the records of the segment
+     * @param sealed whether to append the footer
+     * @return the description of the written segment
+     * @throws IOException if the segment cannot be written
+     */
+    private static SegmentInfo writeSegment(File file,
+                                            List<HistoryRecord> records,
+                                            boolean sealed)
+        throws IOException
+    {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        SegmentInfo info = new SegmentInfo();
+        info.dataEnd = HEADER_SIZE;
+
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try
+        {
+            DataOutputStream out
+                = new DataOutputStream(new BufferedOutputStream(fos));
+
+            out.writeInt(SEGMENT_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+
+            for (HistoryRecord record : records)
+            {
+                long timestamp = record.getTimestamp().getTime();
+                byte[] data = encodeRecord(
+                    record.getPropertyNames(),
+                    record.getPropertyValues(),
+                    timestamp);
+
+                out.write(data);
+                info.add(info.dataEnd, timestamp);
+                info.dataEnd += data.length;
+            }
+
+            if (sealed)
+            {
+                out.write(encodeFooter(info));
+                info.sealed = true;
+            }
+
+            out.flush();
+            fos.getFD().sync();
+        }
+        finally
+        {
+            fos.close();
+        }
+
+        if (!tmp.renameTo(file))
+        {
+            // renameTo does not replace existing files on all platforms
+            if (!file.delete() || !tmp.renameTo(file))
+                throw new IOException("Cannot replace history segment " + file);
+        }
+
+        return info;
+    }
+
+    /**
+     * Encodes a record together with its length prefix.
+     *
+     * @param propertyNames the names of the record properties
+     * @param propertyValues the values of the record properties
+     * @param timestamp the timestamp of the record
+     * @return the encoded record
+     * @throws IOException if encoding fails
+     */
+    private static byte[] encodeRecord(String[] propertyNames,
+                                       String[] propertyValues,
+                                       long timestamp)
+        throws IOException
+    {
+        int count = 0;
+        for (String value : propertyValues)
+        {
+            if (value != null)
+                count++;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(0); // placeholder for the length
+        out.writeLong(timestamp);
+        out.writeInt(count);
+        for (int i = 0; i < propertyNames.length; i++)
+        {
+            if (propertyValues[i] == null)
+                continue;
+
+            writeString(out, propertyNames[i]);
+            writeString(out, propertyValues[i].replaceAll("\0", " "));
+        }
+        out.flush();
+
+        byte[] result = bytes.toByteArray();
+        int length = result.length - 4;
+        result[0] = (byte) (length >>> 24);
+        result[1] = (byte) (length >>> 16);
+        result[2] = (byte) (length >>> 8);
+        result[3] = (byte) length;
+        return result;
+    }
+
+    /**
+     * Decodes the record starting at <tt>offset</tt> (its length prefix).
+     *
+     * @param data the record area of a segment
+     * @param offset the offset of the record in <tt>data</tt>
+     * @return the decoded record
+     * @throws IOException if the record is corrupted
+     */
+    private static HistoryRecord decodeRecord(byte[] data, int offset)
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream(
+            new ByteArrayInputStream(data, offset, data.length - offset));
+
+        in.readInt(); // length
+        long timestamp = in.readLong();
+        int count = in.readInt();
+
+        String[] names = new String[count];
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++)
+        {
+            names[i] = readString(in);
+            values[i] = readString(in);
+        }
+
+        return new HistoryRecord(names, values, new Date(timestamp));
+    }
+
+    /**
+     * Encodes the footer of a sealed segment.
+     *
+     * @param info the description of the segment
+     * @return the footer including its trailer
+     * @throws IOException if encoding fails
+     */
+    private static byte[] encodeFooter(SegmentInfo info)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int count = info.offsets.size();
+
+        out.writeLong(count == 0 ? 0 : info.minTimestamp);
+        out.writeLong(count == 0 ? 0 : info.maxTimestamp);
+        out.writeInt(count);
+        for (int i = 0; i < count; i++)
+        {
+            out.writeLong(info.offsets.get(i));
+            out.writeLong(info.timestamps.get(i));
+        }
+        if (info.compressed)
+            out.writeInt(info.inflatedLength);
+
+        int footerLength = out.size();
+        out.writeInt(footerLength);
+        out.writeInt(FOOTER_MAGIC);
+        out.flush();
+
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+        throws IOException
+    {
+        byte[] bytes = s.getBytes("UTF-8");
+
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in)
+        throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Removes the <tt>_CDATA</tt> suffix from property names, the same way
+     * the XML store does, so both stores return the same names.
+     *
+     * @param propertyNames the property names
+     * @return the property names without the <tt>_CDATA</tt> suffix
+     */
+    private static String[] stripCDATA(String[] propertyNames)
+    {
+        String[] result = new String[propertyNames.length];
+
+        for (int i = 0; i < propertyNames.length; i++)
+        {
+            String name = propertyNames[i];
+
+            result[i] = name.endsWith(CDATA_SUFFIX)
+                ? name.substring(0, name.length() - CDATA_SUFFIX.length())
+                : name;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the value of the given property of a record.
+     *
+     * @param record the record
+     * @param property the property name
+     * @return the value or <tt>null</tt> if the record has no such property
+     */
+    static String getValue(HistoryRecord record, String property)
+    {
+        String[] names = record.getPropertyNames();
+
+        for (int i = 0; i < names.length; i++)
+        {
+            if (names[i].equals(property))
+                return record.getPropertyValues()[i];
+        }
+        return null;
+    }
+
+    /**
+     * Returns a copy of <tt>record</tt> with <tt>property</tt> set to
+     * <tt>value</tt>, adding the property if the record has none.
+     *
+     * @param record the record
+     * @param property the property name
+     * @param value the new value
+     * @return the changed record
+     */
+    static HistoryRecord setValue(HistoryRecord record,
+                                  String property,
+                                  String value)
+    {
+        String[] names = record.getPropertyNames();
+        String[] values = record.getPropertyValues();
+
+        for (int i = 0; i < names.length; i++)
+        {
+            if (names[i].equals(property))
+            {
+                String[] newValues = values.clone();
+
+                newValues[i] = value;
+                return new HistoryRecord(names, newValues,
+                    record.getTimestamp());
+            }
+        }
+
+        String[] newNames = new String[names.length + 1];
+        String[] newValues = new String[values.length + 1];
+
+        System.arraycopy(names, 0, newNames, 0, names.length);
+        System.arraycopy(values, 0, newValues, 0, values.length);
+        newNames[names.length] = property;
+        newValues[values.length] = value;
+
+        return new HistoryRecord(newNames, newValues, record.getTimestamp());
+    }
+
+    /**
+     * The in-memory description of a segment: the offset and timestamp of
+     * every record, the timestamp range and whether the segment is sealed.
+     */
+    private static class SegmentInfo
+    {
+        /**
+         * The file offsets of the records.
+         */
+        final List<Long> offsets = new ArrayList<Long>();
+
+        /**
+         * The timestamps of the records.
+         */
+        final List<Long> timestamps = new ArrayList<Long>();
+
+        long minTimestamp = Long.MAX_VALUE;
+
+        long maxTimestamp = Long.MIN_VALUE;
+
+        /**
+         * The offset right after the last record.
+         */
+        long dataEnd;
+
+        boolean sealed = false;
+
+        /**
+         * Whether the record area is deflated.
+         */
+        boolean compressed = false;
+
+        /**
+         * The length of the inflated record area of a compressed segment.
+         */
+        int inflatedLength;
+
+        SegmentSummary getSummary()
+        {
+            return new SegmentSummary(
+                minTimestamp, maxTimestamp, offsets.size());
+        }
+
+        void add(long offset, long timestamp)
+        {
+            offsets.add(offset);
+            timestamps.add(timestamp);
+            minTimestamp = Math.min(minTimestamp, timestamp);
+            maxTimestamp = Math.max(maxTimestamp, timestamp);
+        }
+    }
+}
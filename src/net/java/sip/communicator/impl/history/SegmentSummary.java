@@ -0,0 +1,131 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.util.*;
+
+/**
+ * The time range and the number of records of a segment of a
+ * <tt>HistoryStore</tt>.
+ */
+public class SegmentSummary
+{
+    /**
+     * The summary of a segment which cannot be read. It has no records, so
+     * readers skip the segment, but it must not be taken for the summary of
+     * an empty or expired segment.
+     */
+    public static final SegmentSummary UNKNOWN = new SegmentSummary(0, 0, 0);
+
+    /**
+     * The timestamp of the oldest record of the segment.
+     */
+    private final long minTimestamp;
+
+    /**
+     * The timestamp of the newest record of the segment.
+     */
+    private final long maxTimestamp;
+
+    /**
+     * The number of records in the segment.
+     */
+    private final int recordCount;
+
+    /**
+     * Creates a summary.
+     *
+     * @param minTimestamp the timestamp of the oldest record
+     * @param maxTimestamp the timestamp of the newest record
+     * @param recordCount the number of records
+     */
+    public SegmentSummary(long minTimestamp, long maxTimestamp, int recordCount)
+    {
+        this.minTimestamp = minTimestamp;
+        this.maxTimestamp = maxTimestamp;
+        this.recordCount = recordCount;
+    }
+
+    /**
+     * Creates the summary of the given records.
+     *
+     * @param timestamps the timestamps of the records
+     * @return the summary of the records
+     */
+    static SegmentSummary create(Collection<Long> timestamps)
+    {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+
+        for (long timestamp : timestamps)
+        {
+            min = Math.min(min, timestamp);
+            max = Math.max(max, timestamp);
+        }
+
+        return new SegmentSummary(min, max, timestamps.size());
+    }
+
+    /**
+     * Returns the timestamp of the oldest record of the segment.
+     *
+     * @return the timestamp of the oldest record of the segment
+     */
+    public long getMinTimestamp()
+    {
+        return minTimestamp;
+    }
+
+    /**
+     * Returns the timestamp of the newest record of the segment.
+     *
+     * @return the timestamp of the newest record of the segment
+     */
+    public long getMaxTimestamp()
+    {
+        return maxTimestamp;
+    }
+
+    /**
+     * Returns the number of records in the segment.
+     *
+     * @return the number of records in the segment
+     */
+    public int getRecordCount()
+    {
+        return recordCount;
+    }
+
+    /**
+     * Checks whether this is the summary of a segment which cannot be read.
+     *
+     * @return <tt>true</tt> if the contents of the segment are unknown
+     */
+    public boolean isUnknown()
+    {
+        return this == UNKNOWN;
+    }
+
+    /**
+     * Checks whether the segment may contain records in the given period,
+     * using the same bounds as <tt>HistoryReaderImpl.isInPeriod</tt>.
+     *
+     * @param startDate the start of the period or <tt>null</tt>
+     * @param endDate the end of the period (exclusive) or <tt>null</tt>
+     * @return <tt>true</tt> if the segment intersects the period
+     */
+    public boolean intersects(Date startDate, Date endDate)
+    {
+        if (recordCount == 0)
+            return false;
+        if (startDate != null && maxTimestamp < startDate.getTime())
+            return false;
+        if (endDate != null && minTimestamp >= endDate.getTime())
+            return false;
+        return true;
+    }
+}
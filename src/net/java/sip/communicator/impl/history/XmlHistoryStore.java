@@ -0,0 +1,1141 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import static
+    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
+
+import java.io.*;
+import java.security.*;
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+import javax.xml.stream.*;
+
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.util.xml.XMLUtils;
+import org.w3c.dom.*;
+
+/**
+ * The original <tt>HistoryStore</tt> keeping every segment as an XML document
+ * with a <tt>history</tt> root and one <tt>record</tt> element per record.
+ * Each batch of added records rewrites the whole current document to disk.
+ * <p>
+ * Files are read with a streaming parser which decodes the records without
+ * building a DOM. Only the document currently written to is kept as a DOM;
+ * decoded records may be kept in the bounded <tt>HistoryRecordCache</tt> of
+ * the history service.
+ *
+ * @author Alexander Pelov
+ * @author Yana Stamcheva
+ * @author Damian Minkov
+ */
+public class XmlHistoryStore
+    implements HistoryStore
+{
+    private static Logger log = Logger.getLogger(XmlHistoryStore.class);
+
+    /**
+     * The supported filetype.
+     */
+    public static final String SUPPORTED_FILETYPE = "xml";
+
+    private static final String CDATA_SUFFIX = "_CDATA";
+
+    /**
+     * The factory of the streaming parsers reading the history files.
+     */
+    private static XMLInputFactory inputFactory = null;
+
+    private final File directory;
+
+    private final HistoryServiceImpl historyServiceImpl;
+
+    /**
+     * The names of the XML files of the history, oldest first.
+     */
+    private final SortedSet<String> historyFiles = new TreeSet<String>();
+
+    /**
+     * Guards the files of the history: held for reading while a file is
+     * parsed and for writing while a file is written, so that readers never
+     * see a partially written file and never cache outdated records.
+     */
+    private final ReadWriteLock fileLock = new ReentrantReadWriteLock();
+
+    private final Object docWriteLock = new Object();
+
+    private Document currentDoc = null;
+
+    private String currentFile = null;
+
+    private int currentDocElements = -1;
+
+    /**
+     * The summary of the current file.
+     */
+    private SegmentSummary currentSummary = null;
+
+    /**
+     * The time range index of the files of the history.
+     */
+    private final HistoryTimeIndex timeIndex;
+
+    /**
+     * Creates an XML store over the given history directory.
+     *
+     * @param directory the directory of the history
+     * @param historyServiceImpl the parent history service used to parse and
+     * create documents
+     */
+    public XmlHistoryStore(File directory,
+                           HistoryServiceImpl historyServiceImpl)
+    {
+        this.directory = directory;
+        this.historyServiceImpl = historyServiceImpl;
+        this.timeIndex = new HistoryTimeIndex(directory);
+
+        reload();
+    }
+
+    /**
+     * Checks whether the given directory contains XML history files.
+     *
+     * @param directory the directory to check
+     * @return <tt>true</tt> if at least one XML history file exists
+     */
+    static boolean hasHistoryFiles(File directory)
+    {
+        File[] files = directory.listFiles();
+
+        if (files == null)
+            return false;
+
+        for (File file : files)
+        {
+            if (!file.isDirectory()
+                    && file.getName().endsWith(SUPPORTED_FILETYPE))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reloads the list of XML files from the history directory.
+     */
+    public void reload()
+    {
+        synchronized (this.historyFiles)
+        {
+            this.historyFiles.clear();
+
+            File[] files = this.directory.listFiles();
+            // TODO: Assert: Assert.assertNonNull(files, "The list of files
+            // should be non-null.");
+
+            for (int i = 0; i < files.length; i++)
+            {
+                if (!files[i].isDirectory())
+                {
+                    String filename = files[i].getName();
+
+                    if (filename.endsWith(SUPPORTED_FILETYPE))
+                    {
+                        this.historyFiles.add(filename);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the given XML files. The file being written to is started
+     * anew by the next added record.
+     *
+     * @param segments the names of the files to delete
+     */
+    public void removeSegments(Collection<String> segments)
+    {
+        synchronized (this.docWriteLock)
+        {
+            Lock lock = this.fileLock.writeLock();
+
+            lock.lock();
+            try
+            {
+                for (String filename : segments)
+                {
+                    File file = new File(this.directory, filename);
+
+                    if (file.exists() && !file.delete())
+                        log.warn("Cannot delete history file " + file);
+                    invalidate(file);
+                }
+
+                synchronized (this.historyFiles)
+                {
+                    this.historyFiles.removeAll(segments);
+                }
+                if (segments.contains(this.currentFile))
+                {
+                    this.currentDoc = null;
+                    this.currentFile = null;
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+        this.timeIndex.remove(segments);
+    }
+
+    /**
+     * Returns the names of all XML files of the history, oldest first.
+     *
+     * @return the names of all XML files of the history
+     */
+    public List<String> getSegments()
+    {
+        synchronized (this.historyFiles)
+        {
+            return new ArrayList<String>(this.historyFiles);
+        }
+    }
+
+    /**
+     * Reads all records of the given XML file, from the record cache if
+     * possible.
+     *
+     * @param segment the name of the file
+     * @return the unmodifiable records of the file or <tt>null</tt> if it
+     * cannot be parsed
+     */
+    public List<HistoryRecord> readSegment(String segment)
+    {
+        checkFileExists(segment);
+
+        File file = new File(this.directory, segment);
+        HistoryRecordCache cache = this.historyServiceImpl.getRecordCache();
+
+        if (cache != null)
+        {
+            List<HistoryRecord> cached = cache.get(file);
+
+            if (cached != null)
+                return cached;
+        }
+
+        List<HistoryRecord> records = readRecords(file);
+
+        if (records == null)
+        {
+            // will try to fix the xml file
+            if (!fixFile(segment))
+                return null;
+
+            records = readRecords(file);
+            if (records == null)
+                return null;
+        }
+
+        return records;
+    }
+
+    /**
+     * Reads the records of the given XML file in the given index range.
+     *
+     * @param segment the name of the file
+     * @param fromIndex the index of the first record to read
+     * @param toIndex the index after the last record to read
+     * @return the records in the range or <tt>null</tt> if the file cannot
+     * be parsed
+     */
+    public List<HistoryRecord> readSegment(String segment,
+                                           int fromIndex,
+                                           int toIndex)
+    {
+        List<HistoryRecord> records = readSegment(segment);
+
+        if (records == null)
+            return null;
+
+        toIndex = Math.min(toIndex, records.size());
+        fromIndex = Math.min(Math.max(fromIndex, 0), toIndex);
+
+        return records.subList(fromIndex, toIndex);
+    }
+
+    /**
+     * Returns the summary of the given file from the time index, parsing the
+     * file and indexing it if the index does not know it yet.
+     *
+     * @param segment the name of the file
+     * @return the summary of the file or <tt>SegmentSummary.UNKNOWN</tt> if
+     * it cannot be read
+     */
+    public SegmentSummary getSummary(String segment)
+    {
+        SegmentSummary summary = this.timeIndex.get(segment);
+
+        if (summary != null)
+            return summary;
+
+        List<HistoryRecord> records = readSegment(segment);
+
+        if (records == null)
+            return SegmentSummary.UNKNOWN;
+
+        summary = summarize(records);
+        this.timeIndex.put(segment, summary);
+        return summary;
+    }
+
+    /**
+     * Creates the summary of the given records.
+     *
+     * @param records the records
+     * @return the summary of <tt>records</tt>
+     */
+    static SegmentSummary summarize(List<HistoryRecord> records)
+    {
+        List<Long> timestamps = new ArrayList<Long>(records.size());
+
+        for (HistoryRecord record : records)
+            timestamps.add(record.getTimestamp().getTime());
+
+        return SegmentSummary.create(timestamps);
+    }
+
+    /**
+     * Adds new record to the current history document
+     * when the record property name ends with _CDATA this is removed from the
+     * property name and a CDATA text node is created to store the text value
+     *
+     * @param propertyNames String[]
+     * @param propertyValues String[]
+     * @param date Date
+     * @return the location of the new record
+     * @throws InvalidParameterException
+     * @throws IOException
+     */
+    public RecordLocation addRecord(String[] propertyNames,
+                          String[] propertyValues,
+                          Date date)
+        throws InvalidParameterException, IOException
+    {
+        return addRecords(Collections.singletonList(
+                new HistoryRecord(propertyNames, propertyValues, date)))
+            .get(0);
+    }
+
+    /**
+     * Adds the given records to the current history document, rewriting each
+     * changed file only once.
+     *
+     * @param records the records to add
+     * @return the locations of the new records, in the same order
+     * @throws InvalidParameterException
+     * @throws IOException
+     */
+    public List<RecordLocation> addRecords(List<HistoryRecord> records)
+        throws InvalidParameterException, IOException
+    {
+        List<RecordLocation> locations
+            = new ArrayList<RecordLocation>(records.size());
+
+        synchronized (this.docWriteLock)
+        {
+            boolean changed = false;
+
+            for (HistoryRecord record : records)
+            {
+                Date date = record.getTimestamp();
+
+                if (this.currentDoc == null
+                        || this.currentDocElements
+                            > HistoryWriterImpl.MAX_RECORDS_PER_FILE)
+                {
+                    // write the records added to the previous file
+                    if (changed)
+                        writeCurrentFile();
+
+                    this.createNewDoc(date, this.currentDoc == null);
+                }
+
+                synchronized (this.currentDoc)
+                {
+                    Node root = this.currentDoc.getFirstChild();
+
+                    root.appendChild(createRecordElement(
+                        record.getPropertyNames(),
+                        record.getPropertyValues(),
+                        date));
+                    this.currentDocElements++;
+                }
+                changed = true;
+
+                long time = date.getTime();
+                int count = this.currentSummary.getRecordCount();
+
+                this.currentSummary = new SegmentSummary(
+                    count == 0
+                        ? time
+                        : Math.min(time,
+                            this.currentSummary.getMinTimestamp()),
+                    count == 0
+                        ? time
+                        : Math.max(time,
+                            this.currentSummary.getMaxTimestamp()),
+                    count + 1);
+
+                locations.add(new RecordLocation(this.currentFile, count));
+            }
+
+            if (changed)
+                writeCurrentFile();
+        }
+
+        return locations;
+    }
+
+    /**
+     * Writes the current document and records its summary in the time index.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    private void writeCurrentFile()
+        throws IOException
+    {
+        this.writeFile(this.currentFile, this.currentDoc);
+        this.timeIndex.put(this.currentFile, this.currentSummary);
+    }
+
+    /**
+     * Creates the <tt>record</tt> element for the given values in the current
+     * document.
+     *
+     * @param propertyNames String[]
+     * @param propertyValues String[]
+     * @param date Date
+     * @return the new <tt>record</tt> element
+     */
+    private Element createRecordElement(String[] propertyNames,
+                                        String[] propertyValues,
+                                        Date date)
+    {
+        Element elem = this.currentDoc.createElement("record");
+        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        elem.setAttribute("timestamp", sdf.format(date));
+
+        for (int i = 0; i < propertyNames.length; i++)
+        {
+            String propertyName = propertyNames[i];
+
+            if (propertyValues[i] == null)
+                continue;
+
+            String value = propertyValues[i].replaceAll("\0", " ");
+            Text valueNode;
+
+            if(propertyName.endsWith(CDATA_SUFFIX))
+            {
+                propertyName = propertyName.replaceFirst(CDATA_SUFFIX, "");
+                valueNode = this.currentDoc.createCDATASection(value);
+            }
+            else
+            {
+                valueNode = this.currentDoc.createTextNode(value);
+            }
+
+            Element propertyElement
+                = this.currentDoc.createElement(propertyName);
+            propertyElement.appendChild(valueNode);
+            elem.appendChild(propertyElement);
+        }
+
+        return elem;
+    }
+
+    /**
+     * If no file is currently loaded loads the last opened file. If it does not
+     * exists or if the current file was set - create a new file.
+     *
+     * @param date Date
+     * @param loadLastFile boolean
+     */
+    private void createNewDoc(Date date, boolean loadLastFile)
+    {
+        boolean loaded = false;
+
+        if (loadLastFile)
+        {
+            String file = null;
+
+            synchronized (this.historyFiles)
+            {
+                if (!this.historyFiles.isEmpty())
+                    file = this.historyFiles.last();
+            }
+
+            if (file != null)
+            {
+                this.currentDoc = getDocumentForFile(file);
+                this.currentFile = file;
+                this.currentSummary = getSummary(file);
+                loaded = true;
+            }
+
+            // if something happened and file was not loaded
+            // then we must create new one
+            if(this.currentDoc == null)
+            {
+                loaded = false;
+            }
+        }
+
+        if (!loaded)
+        {
+            this.currentFile = Long.toString(date.getTime());
+            this.currentFile += ".xml";
+
+            this.currentDoc = createDocument(this.currentFile);
+            this.currentSummary = new SegmentSummary(0, 0, 0);
+        }
+
+        // TODO: Assert: Assert.assertNonNull(this.currentDoc,
+        // "There should be a current document created.");
+
+        this.currentDocElements = this.currentDoc.getFirstChild()
+                .getChildNodes().getLength();
+    }
+
+    /**
+     * Updates a record by searching for record with idProperty which have
+     * idValue and updating/creating the property with newValue.
+     *
+     * @param idProperty name of the id property
+     * @param idValue value of the id property
+     * @param property the property to change
+     * @param newValue the value of the changed property.
+     * @return the location of the changed record or <tt>null</tt>
+     * @throws IOException if the changed file cannot be written
+     */
+    public RecordLocation updateRecord(String idProperty, String idValue,
+            String property, String newValue)
+        throws IOException
+    {
+        for (String filename : getSegments())
+        {
+            RecordLocation location = updateRecord(
+                filename, idProperty, idValue, property, newValue);
+
+            if (location != null)
+                return location;
+        }
+        return null;
+    }
+
+    /**
+     * Updates the record with <tt>idValue</tt> for <tt>idProperty</tt> if it
+     * is stored in the given file. The file is only loaded as a DOM if it
+     * holds the record.
+     *
+     * @param filename the file to search
+     * @param idProperty name of the id property
+     * @param idValue value of the id property
+     * @param property the property to change
+     * @param newValue the value of the changed property.
+     * @return the location of the changed record or <tt>null</tt>
+     * @throws IOException if the changed file cannot be written
+     */
+    public RecordLocation updateRecord(String filename, String idProperty,
+            String idValue, String property, String newValue)
+        throws IOException
+    {
+        List<HistoryRecord> records = readSegment(filename);
+
+        if (records == null || !containsRecord(records, idProperty, idValue))
+            return null;
+
+        synchronized (this.docWriteLock)
+        {
+            // the writer holds the last document it is editing, so the
+            // change must be made to it or it will be overridden
+            Document doc = filename.equals(this.currentFile)
+                ? this.currentDoc
+                : getDocumentForFile(filename);
+
+            if(doc == null)
+                return null;
+
+            int index
+                = updateRecord(doc, idProperty, idValue, property, newValue);
+
+            if (index < 0)
+                return null;
+
+            // the update changes neither the count nor the time range
+            SegmentSummary summary = getSummary(filename);
+
+            // write changes
+            this.writeFile(filename, doc);
+            if (!summary.isUnknown())
+                this.timeIndex.put(filename, summary);
+
+            return new RecordLocation(filename, index);
+        }
+    }
+
+    /**
+     * Checks whether one of the given records has <tt>idValue</tt> for
+     * <tt>idProperty</tt>.
+     *
+     * @param records the records to search
+     * @param idProperty name of the id property
+     * @param idValue value of the id property
+     * @return <tt>true</tt> if a record matches
+     */
+    private static boolean containsRecord(List<HistoryRecord> records,
+                                          String idProperty,
+                                          String idValue)
+    {
+        for (HistoryRecord record : records)
+        {
+            if (idValue.equals(
+                    SegmentHistoryStore.getValue(record, idProperty)))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Updates the matching <tt>record</tt> element of the given document.
+     *
+     * @param doc the document to search
+     * @param idProperty name of the id property
+     * @param idValue value of the id property
+     * @param property the property to change
+     * @param newValue the value of the changed property.
+     * @return the index of the changed record or <tt>-1</tt>
+     */
+    private static int updateRecord(Document doc, String idProperty,
+            String idValue, String property, String newValue)
+    {
+        synchronized (doc)
+        {
+            NodeList nodes = doc.getElementsByTagName("record");
+
+            Node node;
+            for (int i = 0; i < nodes.getLength(); i++)
+            {
+                node = nodes.item(i);
+
+                Element idNode = XMLUtils.findChild((Element)node, idProperty);
+                if(idNode == null)
+                    continue;
+
+                Node nestedNode = idNode.getFirstChild();
+                if(nestedNode == null)
+                    continue;
+
+                // Get nested TEXT node's value
+                String nodeValue = nestedNode.getNodeValue();
+
+                if(!nodeValue.equals(idValue))
+                    continue;
+
+                Element changedNode =
+                    XMLUtils.findChild((Element)node, property);
+
+                if(changedNode != null)
+                {
+                    Node changedNestedNode = changedNode.getFirstChild();
+
+                    // empty values are stored as empty elements
+                    if(changedNestedNode == null)
+                        changedNode.appendChild(doc.createTextNode(newValue));
+                    else
+                        changedNestedNode.setNodeValue(newValue);
+                }
+                else
+                {
+                    Element propertyElement = doc.createElement(property);
+
+                    Text value = doc.createTextNode(
+                        newValue.replaceAll("\0", " "));
+                    propertyElement.appendChild(value);
+
+                    node.appendChild(propertyElement);
+                }
+
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Reads the records of the given file with a streaming parser and puts
+     * them in the record cache.
+     *
+     * @param file the file to read
+     * @return the unmodifiable records of the file or <tt>null</tt> if the
+     * file is not well-formed
+     */
+    private List<HistoryRecord> readRecords(File file)
+    {
+        Lock lock = this.fileLock.readLock();
+
+        lock.lock();
+        try
+        {
+            List<HistoryRecord> records = parseRecords(file);
+            HistoryRecordCache cache
+                = this.historyServiceImpl.getRecordCache();
+
+            // cached while holding the lock so that a concurrent write
+            // cannot be overridden by the records read before it
+            return (cache != null)
+                ? cache.put(file, records)
+                : Collections.unmodifiableList(records);
+        }
+        catch (Exception e)
+        {
+            log.error("Error occured while parsing XML document.", e);
+            return null;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Decodes the <tt>record</tt> elements of the given file. Property
+     * elements without a value are skipped.
+     *
+     * @param file the file to read
+     * @return the records of the file
+     * @throws IOException if the file cannot be read
+     * @throws XMLStreamException if the file is not well-formed
+     */
+    private static List<HistoryRecord> parseRecords(File file)
+        throws IOException, XMLStreamException
+    {
+        List<HistoryRecord> result = new ArrayList<HistoryRecord>();
+        InputStream in
+            = new BufferedInputStream(new FileInputStream(file));
+
+        try
+        {
+            XMLStreamReader reader
+                = getInputFactory().createXMLStreamReader(in);
+
+            try
+            {
+                SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+                List<String> nameVals = new ArrayList<String>();
+                Date timestamp = null;
+                StringBuilder value = null;
+                // 1 is the history root, 2 a record and 3 a property
+                int depth = 0;
+
+                while (reader.hasNext())
+                {
+                    switch (reader.next())
+                    {
+                    case XMLStreamConstants.START_ELEMENT:
+                        depth++;
+                        if (depth == 2)
+                        {
+                            timestamp = parseTimestamp(
+                                reader.getAttributeValue(null, "timestamp"),
+                                sdf);
+                            nameVals.clear();
+                        }
+                        else if (depth == 3)
+                        {
+                            nameVals.add(reader.getLocalName());
+                            value = null;
+                        }
+                        break;
+
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        if (depth == 3)
+                        {
+                            if (value == null)
+                                value = new StringBuilder();
+                            value.append(reader.getText());
+                        }
+                        break;
+
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (depth == 3)
+                        {
+                            // the property has no value
+                            if (value == null)
+                                nameVals.remove(nameVals.size() - 1);
+                            else
+                                nameVals.add(value.toString());
+                            value = null;
+                        }
+                        else if (depth == 2)
+                        {
+                            result.add(toRecord(nameVals, timestamp));
+                        }
+                        depth--;
+                        break;
+                    }
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        return result;
+    }
+
+    /**
+     * Creates a <tt>HistoryRecord</tt> from alternating property names and
+     * values.
+     *
+     * @param nameVals the property names and values
+     * @param timestamp the timestamp of the record
+     * @return the <tt>HistoryRecord</tt>
+     */
+    private static HistoryRecord toRecord(List<String> nameVals,
+                                          Date timestamp)
+    {
+        String[] propertyNames = new String[nameVals.size() / 2];
+        String[] propertyValues = new String[propertyNames.length];
+        for (int j = 0; j < propertyNames.length; j++)
+        {
+            propertyNames[j] = nameVals.get(j * 2);
+            propertyValues[j] = nameVals.get(j * 2 + 1);
+        }
+
+        return new HistoryRecord(propertyNames, propertyValues, timestamp);
+    }
+
+    /**
+     * Parses the <tt>timestamp</tt> attribute of a record, which is either
+     * formatted with <tt>DATE_FORMAT</tt> or in milliseconds.
+     *
+     * @param ts the value of the attribute
+     * @param sdf the format used to parse the record timestamp
+     * @return the timestamp of the record
+     */
+    private static Date parseTimestamp(String ts, SimpleDateFormat sdf)
+    {
+        try
+        {
+            return sdf.parse(ts);
+        }
+        catch (ParseException e)
+        {
+            return new Date(Long.parseLong(ts));
+        }
+    }
+
+    /**
+     * Returns the factory of the streaming parsers, creating it on first
+     * use.
+     *
+     * @return the factory of the streaming parsers
+     */
+    private static synchronized XMLInputFactory getInputFactory()
+    {
+        if (inputFactory == null)
+        {
+            inputFactory = XMLInputFactory.newInstance();
+            inputFactory.setProperty(
+                XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+            inputFactory.setProperty(
+                XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        }
+        return inputFactory;
+    }
+
+    private Document createDocument(String filename)
+    {
+        Document retVal = null;
+
+        synchronized (this.historyFiles)
+        {
+            if (this.historyFiles.contains(filename))
+            {
+                retVal = getDocumentForFile(filename);
+            } else {
+                retVal = this.historyServiceImpl.getDocumentBuilder()
+                        .newDocument();
+                retVal.appendChild(retVal.createElement("history"));
+
+                this.historyFiles.add(filename);
+            }
+        }
+
+        return retVal;
+    }
+
+    private void writeFile(String filename, Document doc)
+        throws InvalidParameterException, IOException
+    {
+        checkFileExists(filename);
+
+        File file = new File(this.directory, filename);
+        Lock lock = this.fileLock.writeLock();
+
+        lock.lock();
+        try
+        {
+            synchronized (doc)
+            {
+                XMLUtils.writeXML(doc, file);
+            }
+        }
+        finally
+        {
+            invalidate(file);
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Parses the given file as a DOM, for changing it. The document is not
+     * cached.
+     *
+     * @param filename the name of the file
+     * @return the document or <tt>null</tt> if the file cannot be parsed
+     */
+    private Document getDocumentForFile(String filename)
+        throws InvalidParameterException
+    {
+        checkFileExists(filename);
+
+        File file = new File(this.directory, filename);
+        Lock lock = this.fileLock.readLock();
+
+        lock.lock();
+        try
+        {
+            return this.historyServiceImpl.parse(file);
+        }
+        catch (Exception e)
+        {
+            log.error("Error occured while parsing XML document.", e);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        // will try to fix the xml file
+        if (!fixFile(filename))
+            return null;
+
+        lock.lock();
+        try
+        {
+            return this.historyServiceImpl.parse(file);
+        }
+        catch (Exception e)
+        {
+            log.error("Error occured while parsing fixed XML document.", e);
+            return null;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tries to fix the given file if it is not well-formed.
+     *
+     * @param filename the name of the file
+     * @return <tt>true</tt> if the file was fixed
+     */
+    private boolean fixFile(String filename)
+    {
+        File file = new File(this.directory, filename);
+        Lock lock = this.fileLock.writeLock();
+
+        lock.lock();
+        try
+        {
+            return getFixedDocument(file) != null;
+        }
+        finally
+        {
+            invalidate(file);
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the records of the given file from the record cache.
+     *
+     * @param file the file which changed
+     */
+    private void invalidate(File file)
+    {
+        HistoryRecordCache cache = this.historyServiceImpl.getRecordCache();
+
+        if (cache != null)
+            cache.remove(file);
+    }
+
+    /**
+     * Checks that the given file belongs to the history.
+     *
+     * @param filename the name of the file
+     * @throws InvalidParameterException if the file is unknown
+     */
+    private void checkFileExists(String filename)
+        throws InvalidParameterException
+    {
+        synchronized (this.historyFiles)
+        {
+            if (!this.historyFiles.contains(filename))
+            {
+                throw new InvalidParameterException("The requested "
+                        + "filename does not exist in the document list.");
+            }
+        }
+    }
+
+    /**
+     * Methods trying to fix histry xml files if corrupted
+     */
+    /**
+     * Returns the fixed document as xml Document
+     * if file cannot be fixed return null
+     *
+     * @param file File the file trying to fix
+     * @return Document the fixed doc
+     */
+    public Document getFixedDocument(File file)
+    {
+        log.info("Will try to fix file : " + file);
+        StringBuffer resultDocStr = new StringBuffer("<history>");
+
+        try
+        {
+            BufferedReader inReader = new BufferedReader(new FileReader(file));
+            String line = null;
+            while ( (line = inReader.readLine()) != null)
+            {
+                // find the next start of record node
+                if (line.indexOf("<record") == -1)
+                {
+                    continue;
+                }
+
+                String record = getRecordNodeString(line, inReader).toString();
+
+                if (record != null && isValidXML(record))
+                {
+                    resultDocStr.append(record);
+                }
+            }
+        }
+        catch (Exception ex1)
+        {
+            log.error("File cannot be fixed. Erro reading! " +
+                      ex1.getLocalizedMessage());
+        }
+
+        resultDocStr.append("</history>");
+
+        try
+        {
+            Document result =
+                this.historyServiceImpl.parse(new ByteArrayInputStream(
+                    resultDocStr.toString().getBytes("UTF-8")));
+
+            // parsing is ok . lets overwrite with correct values
+            log.trace("File fixed will write to disk!");
+            XMLUtils.writeXML(result, file);
+
+            return result;
+        }
+        catch (Exception ex)
+        {
+            System.out.println("again cannot parse " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the string containing the record node from the xml -
+     * the supplied Reader
+     * @param startingLine String
+     * @param inReader BufferedReader
+     * @return StringBuffer
+     */
+    private StringBuffer getRecordNodeString(
+        String startingLine, BufferedReader inReader)
+    {
+        try
+        {
+            StringBuffer result = new StringBuffer(startingLine);
+
+            String line = null;
+            while ( (line = inReader.readLine()) != null)
+            {
+                // find the next start of record node
+                if (line.indexOf("</record>") != -1)
+                {
+                    result.append(line);
+                    break;
+                }
+                result.append(line);
+            }
+
+            return result;
+        }
+        catch (IOException ex)
+        {
+            log.info("Error reading record " + ex.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether the given xml is valid
+     * @param str String
+     * @return boolean
+     */
+    private boolean isValidXML(String str)
+    {
+        try
+        {
+            this.historyServiceImpl.parse(
+                new ByteArrayInputStream(str.getBytes("UTF-8")));
+        }
+        catch (Exception ex)
+        {
+            log.error("not valid xml " + str + " " + ex.getMessage());
+            return false;
+        }
+
+        return true;
+    }
+}
@@ -12,6 +12,7 @@ import net.java.sip.communicator.service.callhistory.*;
 import net.java.sip.communicator.service.callhistory.event.*;
 import net.java.sip.communicator.service.contactlist.*;
 import net.java.sip.communicator.service.filehistory.*;
+import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.event.*;
 import net.java.sip.communicator.service.history.event.ProgressEvent;
 import net.java.sip.communicator.service.metahistory.*;
@@ -510,7 +511,8 @@ public class MetaHistoryServiceImpl
         MessageProgressWrapper listenWrapper
             = new MessageProgressWrapper(services.length);
 
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
+        // the results of each service, newest first
+        List<Iterator<Object>> sources = new ArrayList<Iterator<Object>>();
         for (int i = 0; i < services.length; i++)
         {
             String name = services[i];
@@ -524,47 +526,51 @@ public class MetaHistoryServiceImpl
 
                 if(descriptor instanceof MetaContact)
                 {
-                    result.addAll(
+                    sources.add(descendingIterator(
                         mhs.findLast(
                             (MetaContact)descriptor,
-                            count));
+                            count)));
                 }
                 else if(descriptor instanceof ChatRoom)
                 {
-                    result.addAll(
+                    sources.add(descendingIterator(
                         mhs.findLast(
                             (ChatRoom)descriptor,
-                            count));
+                            count)));
                 }
                 mhs.removeSearchProgressListener(listenWrapper);
             }
             else if(serv instanceof FileHistoryService
                     && descriptor instanceof MetaContact)
             {
-                result.addAll(
+                sources.add(descendingIterator(
                     ((FileHistoryService)serv).findLast(
                         (MetaContact)descriptor,
-                        count));
+                        count)));
             }
             else if(serv instanceof CallHistoryService)
             {
                 CallHistoryService chs = (CallHistoryService)serv;
                 listenWrapper.setIx(i);
                 chs.addSearchProgressListener(listenWrapper);
-                result.addAll(
-                    chs.findLast(count));
+                sources.add(descendingIterator(chs.findLast(count)));
                 chs.removeSearchProgressListener(listenWrapper);
             }
         }
         listenWrapper.fireLastProgress(null, null, null);
 
-        LinkedList<Object> resultAsList = new LinkedList<Object>(result);
-        int startIndex = resultAsList.size() - count;
+        // merge the services from the most recent record backwards and stop
+        // once we have enough of them
+        QueryResultSet<Object> recent = new MergedQueryResultSet<Object>(
+            sources,
+            Collections.reverseOrder(new RecordsComparator()),
+            count);
+        LinkedList<Object> result = new LinkedList<Object>();
 
-        if(startIndex < 0)
-            startIndex = 0;
+        while (recent.hasNext())
+            result.addFirst(recent.next());
 
-        return resultAsList.subList(startIndex, resultAsList.size());
+        return result;
     }
 
     /**
@@ -883,6 +889,38 @@ public class MetaHistoryServiceImpl
         services.clear();
     }
 
+    /**
+     * Returns an iterator over the given records sorted from oldest to
+     * newest, starting with the newest.
+     *
+     * @param records the records sorted from oldest to newest
+     * @return an iterator over <tt>records</tt> from newest to oldest
+     */
+    private static Iterator<Object> descendingIterator(
+            Collection<?> records)
+    {
+        final ListIterator<Object> iter
+            = new ArrayList<Object>(records).listIterator(records.size());
+
+        return new Iterator<Object>()
+        {
+            public boolean hasNext()
+            {
+                return iter.hasPrevious();
+            }
+
+            public Object next()
+            {
+                return iter.previous();
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
     /**
      * Used to compare various records
      * to be ordered in TreeSet according their timestamp.
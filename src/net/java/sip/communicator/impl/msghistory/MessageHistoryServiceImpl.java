@@ -300,42 +300,60 @@ public class MessageHistoryServiceImpl
     public Collection<EventObject> findLast(MetaContact contact, int count)
         throws RuntimeException
     {
-        TreeSet<EventObject> result
-            = new TreeSet<EventObject>(
-                new MessageEventComparator<EventObject>());
+        List<Iterator<EventObject>> sources
+            = new ArrayList<Iterator<EventObject>>();
 
         Iterator<Contact> iter = contact.getContacts();
         while (iter.hasNext())
         {
-            Contact item = iter.next();
+            final Contact item = iter.next();
 
             try
             {
                 History history = this.getHistory(null, item);
 
-                HistoryReader reader = history.getReader();
-                Iterator<HistoryRecord> recs = reader.findLast(count);
-                while (recs.hasNext())
+                final Iterator<HistoryRecord> recs
+                    = history.getReader().descendingIterator();
+
+                // records are only converted when the merge reaches them
+                sources.add(new Iterator<EventObject>()
                 {
-                    result.add(
-                        convertHistoryRecordToMessageEvent(recs.next(),
-                            item));
+                    public boolean hasNext()
+                    {
+                        return recs.hasNext();
+                    }
 
-                }
+                    public EventObject next()
+                    {
+                        return convertHistoryRecordToMessageEvent(
+                            recs.next(), item);
+                    }
+
+                    public void remove()
+                    {
+                        throw new UnsupportedOperationException();
+                    }
+                });
             } catch (IOException e)
             {
                 logger.error("Could not read history", e);
             }
         }
 
-        LinkedList<EventObject> resultAsList
-            = new LinkedList<EventObject>(result);
-        int startIndex = resultAsList.size() - count;
+        // merge the contacts from the most recent message backwards and
+        // stop once we have enough of them
+        QueryResultSet<EventObject> recent
+            = new MergedQueryResultSet<EventObject>(
+                sources,
+                Collections.reverseOrder(
+                    new MessageEventComparator<EventObject>()),
+                count);
+        LinkedList<EventObject> result = new LinkedList<EventObject>();
 
-        if(startIndex < 0)
-            startIndex = 0;
+        while (recent.hasNext())
+            result.addFirst(recent.next());
 
-        return resultAsList.subList(startIndex, resultAsList.size());
+        return result;
     }
 
     /**
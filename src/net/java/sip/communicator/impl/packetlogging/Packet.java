@@ -0,0 +1,142 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.packetlogging;
+
+import org.jitsi.service.packetlogging.*;
+
+/**
+ * The data we receive and that we will dump in a file. Packets are slots of
+ * the {@link PacketQueue} and are reused: their addresses and content are
+ * copied into buffers they keep from one packet to the next.
+ */
+class Packet
+{
+    /**
+     * The content of a packet which has no content buffer yet.
+     */
+    static final byte[] EMPTY_CONTENT = new byte[0];
+
+    /**
+     * The protocol logging this packet.
+     */
+    PacketLoggingService.ProtocolName protocol;
+
+    /**
+     * The source address of the packet.
+     */
+    byte[] sourceAddress = EMPTY_CONTENT;
+
+    /**
+     * The source port of the packet.
+     */
+    int sourcePort;
+
+    /**
+     * The destination address of the packet.
+     */
+    byte[] destinationAddress = EMPTY_CONTENT;
+
+    /**
+     * The destination port of the packet.
+     */
+    int destinationPort;
+
+    /**
+     * Is the packet a udp one.
+     */
+    PacketLoggingService.TransportName transport;
+
+    /**
+     * Are we sending the packet, or false if we are receiving.
+     */
+    boolean sender;
+
+    /**
+     * Array containing packet content, starting at offset 0. It may be
+     * longer than the packet.
+     */
+    byte[] packetContent = EMPTY_CONTENT;
+
+    /**
+     * The length of the captured packet content.
+     */
+    int packetLength;
+
+    /**
+     * The length of the packet content before it was truncated.
+     */
+    int originalLength;
+
+    /**
+     * The time the packet was logged, in microseconds since the epoch.
+     */
+    long timestamp;
+
+    /**
+     * Copies a packet with the needed data into this one.
+     * @param protocol the source protocol that logs this packet.
+     * @param sourceAddress The source address of the packet.
+     * @param sourcePort The source port of the packet.
+     * @param destinationAddress The destination address of the packet.
+     * @param destinationPort The destination port of the packet.
+     * @param transport the transport this packet uses.
+     * @param sender Are we sending the packet,
+     *  or false if we are receiving.
+     * @param packetContent Array containing packet content.
+     * @param packetOffset The offset in the packetContent
+     *  where packet content is.
+     * @param packetLength The length of the captured packet content.
+     * @param originalLength The length of the packet content before it was
+     *  truncated.
+     */
+    void set(PacketLoggingService.ProtocolName protocol,
+             byte[] sourceAddress,
+             int sourcePort,
+             byte[] destinationAddress,
+             int destinationPort,
+             PacketLoggingService.TransportName transport,
+             boolean sender,
+             byte[] packetContent,
+             int packetOffset,
+             int packetLength,
+             int originalLength)
+    {
+        this.protocol = protocol;
+        this.sourceAddress = copy(sourceAddress, this.sourceAddress);
+        this.sourcePort = sourcePort;
+        this.destinationAddress
+            = copy(destinationAddress, this.destinationAddress);
+        this.destinationPort = destinationPort;
+        this.transport = transport;
+        this.sender = sender;
+        this.timestamp = PacketClock.currentTimeMicros();
+
+        if (this.packetContent.length < packetLength)
+            this.packetContent = new byte[packetLength];
+        System.arraycopy(
+            packetContent, packetOffset, this.packetContent, 0, packetLength);
+        this.packetLength = packetLength;
+        this.originalLength = originalLength;
+    }
+
+    /**
+     * Copies an address into the buffer of the previous one if they have the
+     * same length.
+     *
+     * @param address the address to copy
+     * @param buffer the buffer of the previous address
+     * @return the copy of <tt>address</tt>
+     */
+    private static byte[] copy(byte[] address, byte[] buffer)
+    {
+        if (buffer.length != address.length)
+            buffer = new byte[address.length];
+
+        System.arraycopy(address, 0, buffer, 0, address.length);
+        return buffer;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.packetlogging;
+
+/**
+ * The clock timestamping logged packets with microsecond resolution. The
+ * wall clock only has millisecond resolution on most systems, so the time is
+ * measured with <tt>System.nanoTime</tt> from an anchor taken on the wall
+ * clock. The anchor is renewed periodically so that the timestamps follow
+ * adjustments of the system time.
+ */
+final class PacketClock
+{
+    /**
+     * The time in nanoseconds after which a new anchor is taken.
+     */
+    private static final long ANCHOR_VALIDITY = 60L * 1000 * 1000 * 1000;
+
+    /**
+     * The current anchor.
+     */
+    private static volatile Anchor anchor = new Anchor();
+
+    /**
+     * This class is not instantiated.
+     */
+    private PacketClock()
+    {
+    }
+
+    /**
+     * Returns the current time in microseconds since the epoch.
+     *
+     * @return the current time in microseconds
+     */
+    static long currentTimeMicros()
+    {
+        Anchor anchor = PacketClock.anchor;
+        long elapsed = System.nanoTime() - anchor.nanoTime;
+
+        if (elapsed > ANCHOR_VALIDITY || elapsed < 0)
+        {
+            anchor = new Anchor();
+            PacketClock.anchor = anchor;
+            elapsed = 0;
+        }
+        return anchor.micros + elapsed / 1000;
+    }
+
+    /**
+     * A time of the wall clock and the value of <tt>System.nanoTime</tt> at
+     * that time.
+     */
+    private static class Anchor
+    {
+        /**
+         * The wall clock time in microseconds since the epoch.
+         */
+        final long micros;
+
+        /**
+         * The value of <tt>System.nanoTime</tt> at {@link #micros}.
+         */
+        final long nanoTime;
+
+        Anchor()
+        {
+            nanoTime = System.nanoTime();
+            micros = System.currentTimeMillis() * 1000;
+        }
+    }
+}
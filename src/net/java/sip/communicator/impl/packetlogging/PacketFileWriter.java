@@ -0,0 +1,443 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.packetlogging;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.zip.*;
+
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.service.fileaccess.*;
+
+/**
+ * Writes logged packets to a set of rotated capture files. Records are
+ * assembled in a direct buffer which is written to the file when it is full
+ * or when the batch of packets being saved is complete, instead of writing
+ * and flushing every packet. The subclasses define the format of the files.
+ * <p>
+ * The current file is rotated when it exceeds the size limit or, if
+ * configured, when it has been written to for the rotation interval. The
+ * rotated files can be compressed with gzip.
+ */
+abstract class PacketFileWriter
+{
+    /**
+     * Our Logger.
+     */
+    private static final Logger logger
+            = Logger.getLogger(PacketFileWriter.class);
+
+    /**
+     * The size of the buffer records are assembled in.
+     */
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * The extension added to the name of compressed files.
+     */
+    private static final String GZIP_EXTENSION = ".gz";
+
+    /**
+     * The buffer records are assembled in, in little endian byte order.
+     */
+    protected final ByteBuffer buffer
+        = ByteBuffer.allocateDirect(BUFFER_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * The configuration giving the file limits and the file count.
+     */
+    private final PacketLoggingConfigurationImpl configuration;
+
+    /**
+     * The extension of the files, e.g. ".pcap".
+     */
+    private final String extension;
+
+    /**
+     * The channel of the file we are currently writing to.
+     */
+    private FileChannel channel = null;
+
+    /**
+     * All the files we can use for writing, the current one first.
+     */
+    private File[] files;
+
+    /**
+     * A counter watching how much has been written to the file.
+     */
+    private long written = 0;
+
+    /**
+     * The time in milliseconds the current file was opened.
+     */
+    private long openTime = 0;
+
+    /**
+     * The position in the buffer of the record being assembled.
+     */
+    private int recordStart = 0;
+
+    /**
+     * The position in the file of the record being assembled if part of it
+     * has already been written to the file, <tt>-1</tt> otherwise.
+     */
+    private long writtenRecordStart = -1;
+
+    /**
+     * Creates a writer for the files described by <tt>configuration</tt>.
+     * No file is opened until the first packet is written.
+     *
+     * @param configuration the packet logging configuration
+     * @param extension the extension of the files
+     */
+    PacketFileWriter(PacketLoggingConfigurationImpl configuration,
+        String extension)
+    {
+        this.configuration = configuration;
+        this.extension = extension;
+    }
+
+    /**
+     * Appends a packet to the current file, rotating the files first if the
+     * current one exceeds the size limit or the rotation interval.
+     *
+     * @param packet the packet to write
+     * @param headers the fake link, network and transport headers of the
+     * packet, in order
+     * @throws IOException if opening, rotating or writing the files fails
+     */
+    void writePacket(Packet packet, byte[][] headers)
+        throws IOException
+    {
+        if (channel == null)
+        {
+            getFileNames();
+            rotateFiles();// this one opens the file for write
+        }
+        else
+        {
+            long limit = configuration.getLimit();
+            long interval = configuration.getRotationInterval();
+
+            if (((limit > 0) && (written > limit))
+                || ((interval > 0)
+                    && (System.currentTimeMillis() - openTime >= interval)))
+                rotateFiles();
+        }
+
+        int headersLength = 0;
+        for (byte[] header : headers)
+            headersLength += header.length;
+
+        written += writeRecord(packet, headers, headersLength);
+    }
+
+    /**
+     * Writes the header of a new file to the buffer.
+     */
+    protected abstract void writeFileHeader();
+
+    /**
+     * Writes the record of a packet.
+     *
+     * @param packet the packet to write
+     * @param headers the fake headers of the packet, in order
+     * @param headersLength the total length of <tt>headers</tt>
+     * @return the number of bytes of the record
+     * @throws IOException if writing the file fails
+     */
+    protected abstract int writeRecord(Packet packet, byte[][] headers,
+        int headersLength)
+        throws IOException;
+
+    /**
+     * Starts a record of <tt>length</tt> bytes, making room for it in the
+     * buffer by writing the buffered records to the file if needed.
+     *
+     * @param length the number of bytes about to be put in the buffer
+     * @throws IOException if writing the file fails
+     */
+    protected void reserve(int length)
+        throws IOException
+    {
+        if (buffer.remaining() < length)
+            flush();
+
+        recordStart = buffer.position();
+        writtenRecordStart = -1;
+    }
+
+    /**
+     * Puts the content of a packet in the buffer, or writes it directly to
+     * the file after the buffered records if it does not fit in the buffer.
+     * If the direct write fails, the file is truncated back to the start of
+     * the record.
+     *
+     * @param content the packet content
+     * @param length the length of the packet content
+     * @throws IOException if writing the file fails
+     */
+    protected void putContent(byte[] content, int length)
+        throws IOException
+    {
+        if (buffer.remaining() >= length)
+            buffer.put(content, 0, length);
+        else
+        {
+            long start = channel.position() + recordStart;
+
+            flush();
+            writtenRecordStart = start;
+            try
+            {
+                writeFully(ByteBuffer.wrap(content, 0, length));
+            }
+            catch (IOException e)
+            {
+                truncate(start);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Writes the records assembled so far to the current file. If writing
+     * fails, the file is truncated back to the end of the last complete
+     * record so that no partial record is left in it.
+     *
+     * @throws IOException if writing the file fails
+     */
+    void flush()
+        throws IOException
+    {
+        if (channel == null)
+        {
+            buffer.clear();
+            return;
+        }
+
+        long start = (writtenRecordStart >= 0)
+            ? writtenRecordStart
+            : channel.position();
+
+        buffer.flip();
+        try
+        {
+            writeFully(buffer);
+        }
+        catch (IOException e)
+        {
+            truncate(start);
+            throw e;
+        }
+        finally
+        {
+            buffer.clear();
+            recordStart = 0;
+        }
+    }
+
+    /**
+     * Writes the pending records and closes the current file.
+     *
+     * @throws IOException if writing or closing the file fails
+     */
+    void close()
+        throws IOException
+    {
+        if (channel == null)
+            return;
+
+        try
+        {
+            flush();
+        }
+        finally
+        {
+            channel.close();
+            channel = null;
+            writtenRecordStart = -1;
+        }
+    }
+
+    /**
+     * Writes all the remaining bytes of <tt>bytes</tt> to the current file.
+     *
+     * @param bytes the bytes to write
+     * @throws IOException if writing the file fails
+     */
+    private void writeFully(ByteBuffer bytes)
+        throws IOException
+    {
+        while (bytes.hasRemaining())
+            channel.write(bytes);
+    }
+
+    /**
+     * Truncates the current file after a failed write.
+     *
+     * @param size the size of the file before the write
+     */
+    private void truncate(long size)
+    {
+        try
+        {
+            channel.truncate(size);
+        }
+        catch (IOException e)
+        {
+            logger.error("Failed to remove a partial packet record", e);
+        }
+    }
+
+    /**
+     * Generates the files we will later use for writing. The rotated files
+     * have the gzip extension if they are compressed.
+     * @throws IOException if the files cannot be obtained
+     */
+    private void getFileNames()
+        throws IOException
+    {
+        int fileCount = configuration.getLogfileCount();
+        boolean compress = configuration.isCompressRotatedFiles();
+
+        files = new File[fileCount];
+        for(int i = 0; i < fileCount; i++)
+        {
+            String fileName = "jitsi" + i + extension;
+
+            if (compress && (i > 0))
+                fileName += GZIP_EXTENSION;
+
+            try
+            {
+                files[i]
+                    = PacketLoggingActivator.getFileAccessService()
+                        .getPrivatePersistentFile(
+                            new File(PacketLoggingActivator.LOGGING_DIR_NAME,
+                                fileName).toString(),
+                            FileCategory.LOG);
+            }
+            catch (Exception e)
+            {
+                throw new IOException("Failed to get packet log file", e);
+            }
+        }
+    }
+
+    /**
+     * Rotates any existing files and use the newly created first one
+     * for writing.
+     * @throws IOException
+     */
+    private void rotateFiles()
+        throws IOException
+    {
+        close();
+
+        for (int i = files.length - 2; i >= 0; i--)
+        {
+            File f1 = files[i];
+            File f2 = files[i+1];
+
+            if (f1.exists())
+            {
+                if (f2.exists())
+                    f2.delete();
+
+                if ((i == 0) && configuration.isCompressRotatedFiles())
+                    compress(f1, f2);
+                else
+                    f1.renameTo(f2);
+            }
+        }
+
+        channel = new FileOutputStream(files[0]).getChannel();
+        written = 0;
+        openTime = System.currentTimeMillis();
+        writeFileHeader();
+    }
+
+    /**
+     * Compresses a closed file with gzip and deletes it. If compressing
+     * fails, the partial compressed file is deleted and the file is kept
+     * uncompressed under the name of the compressed one without the gzip
+     * extension, as the current file is about to be reused.
+     *
+     * @param file the file to compress
+     * @param destination the compressed file
+     */
+    private static void compress(File file, File destination)
+    {
+        byte[] bytes = new byte[64 * 1024];
+        InputStream in = null;
+        OutputStream out = null;
+        boolean compressed = false;
+
+        try
+        {
+            in = new FileInputStream(file);
+            out = new GZIPOutputStream(new FileOutputStream(destination));
+
+            int read;
+            while ((read = in.read(bytes)) != -1)
+                out.write(bytes, 0, read);
+
+            // closing writes the gzip trailer, it must succeed as well
+            out.close();
+            out = null;
+            compressed = true;
+        }
+        catch (IOException e)
+        {
+            logger.error("Failed to compress packet log file " + file, e);
+        }
+        finally
+        {
+            closeQuietly(in);
+            closeQuietly(out);
+        }
+
+        if (compressed)
+            file.delete();
+        else
+        {
+            destination.delete();
+
+            String path = destination.getPath();
+            File uncompressed = new File(path.substring(0,
+                path.length() - GZIP_EXTENSION.length()));
+
+            uncompressed.delete();
+            file.renameTo(uncompressed);
+        }
+    }
+
+    /**
+     * Closes a stream, ignoring errors.
+     *
+     * @param stream the stream to close or <tt>null</tt>
+     */
+    private static void closeQuietly(Closeable stream)
+    {
+        if (stream == null)
+            return;
+
+        try
+        {
+            stream.close();
+        }
+        catch (IOException e)
+        {
+            logger.error("Failed to close packet log file", e);
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.packetlogging;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.service.packetlogging.*;
+
+/**
+ * Decides which logged packets are captured and how much of their content,
+ * before they are copied to the queue of packets to write. For every
+ * protocol a packet is captured if it matches the rules of the protocol, if
+ * any, and if it is the Nth of the matching packets for a sampling rate of
+ * 1 in N. Its content is then truncated to the payload limit of the
+ * protocol, e.g. to the RTP header.
+ * <p>
+ * The rules of a protocol are separated by commas and a packet matches if
+ * its source or destination matches one of them:
+ * <ul>
+ * <li><tt>host 192.168.0.1</tt> matches an address;</li>
+ * <li><tt>net 10.0.0.0/8</tt> matches the addresses of a network;</li>
+ * <li><tt>port 5060</tt> matches a port.</li>
+ * </ul>
+ */
+class PacketFilter
+{
+    /**
+     * Our Logger.
+     */
+    private static final Logger logger
+            = Logger.getLogger(PacketFilter.class);
+
+    /**
+     * The settings of every protocol.
+     */
+    private final Map<PacketLoggingService.ProtocolName, ProtocolFilter>
+        filters
+            = new EnumMap<PacketLoggingService.ProtocolName, ProtocolFilter>(
+                    PacketLoggingService.ProtocolName.class);
+
+    /**
+     * Creates the filter defined by <tt>configuration</tt>.
+     *
+     * @param configuration the packet logging configuration
+     */
+    PacketFilter(PacketLoggingConfigurationImpl configuration)
+    {
+        for (PacketLoggingService.ProtocolName protocol
+                : PacketLoggingService.ProtocolName.values())
+        {
+            filters.put(
+                protocol,
+                new ProtocolFilter(
+                    configuration.getSamplingRate(protocol),
+                    configuration.getMaxPayloadLength(protocol),
+                    parseRules(protocol, configuration.getFilter(protocol))));
+        }
+    }
+
+    /**
+     * Returns how much of a packet is captured.
+     *
+     * @param protocol the source protocol that logs this packet.
+     * @param sourceAddress the source address of the packet.
+     * @param sourcePort the source port of the packet.
+     * @param destinationAddress the destination address.
+     * @param destinationPort the destination port.
+     * @param packetLength the packet content length.
+     * @return the number of bytes of the content to capture, or <tt>-1</tt>
+     * if the packet is not captured
+     */
+    int getCaptureLength(
+            PacketLoggingService.ProtocolName protocol,
+            byte[] sourceAddress,
+            int sourcePort,
+            byte[] destinationAddress,
+            int destinationPort,
+            int packetLength)
+    {
+        ProtocolFilter filter = filters.get(protocol);
+
+        if (filter == null)
+            return packetLength;
+
+        if (filter.rules.length != 0)
+        {
+            boolean matching = false;
+
+            for (Rule rule : filter.rules)
+            {
+                if (rule.matches(sourceAddress, sourcePort)
+                    || rule.matches(destinationAddress, destinationPort))
+                {
+                    matching = true;
+                    break;
+                }
+            }
+            if (!matching)
+                return -1;
+        }
+
+        if ((filter.samplingRate > 1)
+            && (filter.sampleCounter.getAndIncrement() % filter.samplingRate
+                    != 0))
+            return -1;
+
+        if ((filter.maxPayloadLength >= 0)
+            && (packetLength > filter.maxPayloadLength))
+            return filter.maxPayloadLength;
+
+        return packetLength;
+    }
+
+    /**
+     * Parses the rules of a protocol, ignoring and logging the invalid ones.
+     *
+     * @param protocol the protocol the rules apply to
+     * @param filter the rules separated by commas, or <tt>null</tt>
+     * @return the parsed rules
+     */
+    private static Rule[] parseRules(
+        PacketLoggingService.ProtocolName protocol, String filter)
+    {
+        List<Rule> rules = new ArrayList<Rule>();
+
+        if (filter == null)
+            return new Rule[0];
+
+        for (String expression : filter.split(","))
+        {
+            expression = expression.trim();
+            if (expression.length() == 0)
+                continue;
+
+            try
+            {
+                rules.add(parseRule(expression));
+            }
+            catch (Exception e)
+            {
+                logger.error("Ignoring invalid " + protocol
+                    + " packet logging rule: " + expression, e);
+            }
+        }
+        return rules.toArray(new Rule[rules.size()]);
+    }
+
+    /**
+     * Parses a single rule.
+     *
+     * @param expression the rule, e.g. <tt>port 5060</tt>
+     * @return the parsed rule
+     * @throws Exception if the rule is not valid
+     */
+    private static Rule parseRule(String expression)
+        throws Exception
+    {
+        String[] tokens = expression.split("\\s+");
+
+        if (tokens.length != 2)
+            throw new IllegalArgumentException("Expected <type> <value>");
+
+        String type = tokens[0];
+        String value = tokens[1];
+
+        if ("port".equalsIgnoreCase(type))
+            return new Rule(null, 0, Integer.parseInt(value));
+
+        int prefixLength = -1;
+        if ("net".equalsIgnoreCase(type))
+        {
+            int slash = value.indexOf('/');
+
+            if (slash == -1)
+                throw new IllegalArgumentException("Expected address/prefix");
+
+            prefixLength = Integer.parseInt(value.substring(slash + 1));
+            value = value.substring(0, slash);
+        }
+        else if (!"host".equalsIgnoreCase(type))
+            throw new IllegalArgumentException("Unknown rule type " + type);
+
+        if (!NetworkUtils.isValidIPAddress(value))
+            throw new IllegalArgumentException("Not an IP address " + value);
+
+        byte[] address = InetAddress.getByName(value).getAddress();
+
+        if (prefixLength < 0)
+            prefixLength = address.length * 8;
+        else if (prefixLength > address.length * 8)
+            throw new IllegalArgumentException("Invalid prefix length");
+
+        return new Rule(address, prefixLength, -1);
+    }
+
+    /**
+     * The settings of a protocol.
+     */
+    private static class ProtocolFilter
+    {
+        /**
+         * The N of the 1 in N packets captured.
+         */
+        final int samplingRate;
+
+        /**
+         * The maximum number of bytes of content captured, negative for no
+         * limit.
+         */
+        final int maxPayloadLength;
+
+        /**
+         * The rules of which the packets have to match one, none to capture
+         * all packets.
+         */
+        final Rule[] rules;
+
+        /**
+         * Counts the matching packets to sample them.
+         */
+        final AtomicLong sampleCounter = new AtomicLong();
+
+        ProtocolFilter(int samplingRate, int maxPayloadLength, Rule[] rules)
+        {
+            this.samplingRate = samplingRate;
+            this.maxPayloadLength = maxPayloadLength;
+            this.rules = rules;
+        }
+    }
+
+    /**
+     * Matches an address prefix or a port.
+     */
+    private static class Rule
+    {
+        /**
+         * The address or network matched, <tt>null</tt> for a port rule.
+         */
+        private final byte[] address;
+
+        /**
+         * The number of leading bits of {@link #address} compared.
+         */
+        private final int prefixLength;
+
+        /**
+         * The port matched, <tt>-1</tt> for an address rule.
+         */
+        private final int port;
+
+        Rule(byte[] address, int prefixLength, int port)
+        {
+            this.address = address;
+            this.prefixLength = prefixLength;
+            this.port = port;
+        }
+
+        /**
+         * Indicates if an end point of a packet matches this rule.
+         *
+         * @param address the address of the end point
+         * @param port the port of the end point
+         * @return <tt>true</tt> if the end point matches
+         */
+        boolean matches(byte[] address, int port)
+        {
+            if (this.address == null)
+                return this.port == port;
+
+            if (address == null || address.length != this.address.length)
+                return false;
+
+            int bytes = prefixLength / 8;
+            for (int i = 0; i < bytes; i++)
+            {
+                if (address[i] != this.address[i])
+                    return false;
+            }
+
+            int bits = prefixLength % 8;
+            if (bits == 0)
+                return true;
+
+            int mask = (0xff << (8 - bits)) & 0xff;
+            return (address[bytes] & mask) == (this.address[bytes] & mask);
+        }
+    }
+}
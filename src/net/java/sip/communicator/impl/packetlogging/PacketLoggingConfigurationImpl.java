@@ -6,6 +6,8 @@
  */
 package net.java.sip.communicator.impl.packetlogging;
 
+import java.util.*;
+
 import org.jitsi.service.configuration.*;
 import org.jitsi.service.packetlogging.*;
 
@@ -18,6 +20,139 @@ import org.jitsi.service.packetlogging.*;
 public class PacketLoggingConfigurationImpl
     extends PacketLoggingConfiguration
 {
+    /**
+     * The property specifying how many packets can wait to be written to
+     * the log files.
+     */
+    public static final String PACKET_LOGGING_QUEUE_CAPACITY_PROPERTY_NAME
+        = "net.java.sip.communicator.packetlogging"
+            + ".PACKET_LOGGING_QUEUE_CAPACITY";
+
+    /**
+     * The property specifying whether logging a packet waits for the queue
+     * of packets to write to have room for it, instead of dropping it.
+     */
+    public static final String PACKET_LOGGING_BLOCK_WHEN_FULL_PROPERTY_NAME
+        = "net.java.sip.communicator.packetlogging"
+            + ".PACKET_LOGGING_BLOCK_WHEN_FULL";
+
+    /**
+     * The property specifying the format of the log files,
+     * {@link #PCAP_FORMAT} or {@link #PCAPNG_FORMAT}.
+     */
+    public static final String PACKET_LOGGING_FILE_FORMAT_PROPERTY_NAME
+        = "net.java.sip.communicator.packetlogging"
+            + ".PACKET_LOGGING_FILE_FORMAT";
+
+    /**
+     * The property specifying after how many seconds the current log file is
+     * rotated, whatever its size. Zero or less only rotates by size.
+     */
+    public static final String PACKET_LOGGING_ROTATION_INTERVAL_PROPERTY_NAME
+        = "net.java.sip.communicator.packetlogging"
+            + ".PACKET_LOGGING_ROTATION_INTERVAL";
+
+    /**
+     * The property specifying whether the rotated log files are compressed
+     * with gzip.
+     */
+    public static final String PACKET_LOGGING_COMPRESS_PROPERTY_NAME
+        = "net.java.sip.communicator.packetlogging"
+            + ".PACKET_LOGGING_COMPRESS_ROTATED_FILES";
+
+    /**
+     * The prefix of the per protocol properties, followed by the name of the
+     * <tt>ProtocolName</tt> and one of the suffixes below, e.g.
+     * <tt>PACKET_LOGGING_RTP_SAMPLING_RATE</tt>.
+     */
+    private static final String PROTOCOL_PROPERTY_PREFIX
+        = "net.java.sip.communicator.packetlogging.PACKET_LOGGING_";
+
+    /**
+     * The suffix of the property specifying that 1 in N packets of a
+     * protocol are captured.
+     */
+    public static final String SAMPLING_RATE_PROPERTY_SUFFIX
+        = "_SAMPLING_RATE";
+
+    /**
+     * The suffix of the property specifying how many bytes of the packets of
+     * a protocol are captured, e.g. 12 to keep the RTP header only.
+     */
+    public static final String MAX_PAYLOAD_LENGTH_PROPERTY_SUFFIX
+        = "_MAX_PAYLOAD_LENGTH";
+
+    /**
+     * The suffix of the property specifying the rules the packets of a
+     * protocol have to match to be captured, see {@link PacketFilter}.
+     */
+    public static final String FILTER_PROPERTY_SUFFIX = "_FILTER";
+
+    /**
+     * The classic libpcap file format, the default.
+     */
+    public static final String PCAP_FORMAT = "pcap";
+
+    /**
+     * The pcapng file format, with an interface per protocol.
+     */
+    public static final String PCAPNG_FORMAT = "pcapng";
+
+    /**
+     * The default number of packets which can wait to be written.
+     */
+    private static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    /**
+     * How many packets can wait to be written to the log files.
+     */
+    private final int queueCapacity;
+
+    /**
+     * Whether logging a packet waits for room in the queue instead of
+     * dropping the packet.
+     */
+    private final boolean blockWhenFull;
+
+    /**
+     * Whether the log files are written in pcapng format.
+     */
+    private final boolean pcapNgFormat;
+
+    /**
+     * The time in milliseconds after which the current log file is rotated,
+     * zero or less to only rotate by size.
+     */
+    private final long rotationInterval;
+
+    /**
+     * Whether the rotated log files are compressed with gzip.
+     */
+    private final boolean compressRotatedFiles;
+
+    /**
+     * The N of the 1 in N packets captured for every protocol.
+     */
+    private final Map<PacketLoggingService.ProtocolName, Integer>
+        samplingRates
+            = new EnumMap<PacketLoggingService.ProtocolName, Integer>(
+                    PacketLoggingService.ProtocolName.class);
+
+    /**
+     * The number of bytes captured of the packets of every protocol.
+     */
+    private final Map<PacketLoggingService.ProtocolName, Integer>
+        maxPayloadLengths
+            = new EnumMap<PacketLoggingService.ProtocolName, Integer>(
+                    PacketLoggingService.ProtocolName.class);
+
+    /**
+     * The rules the packets of every protocol have to match.
+     */
+    private final Map<PacketLoggingService.ProtocolName, String> filters
+        = new EnumMap<PacketLoggingService.ProtocolName, String>(
+                PacketLoggingService.ProtocolName.class);
+
     /**
      * Creates new PacketLoggingConfiguration and load values from
      * configuration service and if missing uses already defined
@@ -57,6 +192,119 @@ public class PacketLoggingConfigurationImpl
             configService.getInt(
                 PACKET_LOGGING_FILE_COUNT_PROPERTY_NAME,
                 getLogfileCount()));
+
+        queueCapacity = configService.getInt(
+                PACKET_LOGGING_QUEUE_CAPACITY_PROPERTY_NAME,
+                DEFAULT_QUEUE_CAPACITY);
+        blockWhenFull = configService.getBoolean(
+                PACKET_LOGGING_BLOCK_WHEN_FULL_PROPERTY_NAME,
+                false);
+        pcapNgFormat = PCAPNG_FORMAT.equalsIgnoreCase(
+            configService.getString(
+                PACKET_LOGGING_FILE_FORMAT_PROPERTY_NAME,
+                PCAP_FORMAT));
+        rotationInterval = 1000 * configService.getLong(
+                PACKET_LOGGING_ROTATION_INTERVAL_PROPERTY_NAME,
+                0);
+        compressRotatedFiles = configService.getBoolean(
+                PACKET_LOGGING_COMPRESS_PROPERTY_NAME,
+                false);
+
+        for (PacketLoggingService.ProtocolName protocol
+                : PacketLoggingService.ProtocolName.values())
+        {
+            String prefix = PROTOCOL_PROPERTY_PREFIX + protocol.name();
+
+            samplingRates.put(
+                protocol,
+                configService.getInt(
+                    prefix + SAMPLING_RATE_PROPERTY_SUFFIX, 1));
+            maxPayloadLengths.put(
+                protocol,
+                configService.getInt(
+                    prefix + MAX_PAYLOAD_LENGTH_PROPERTY_SUFFIX, -1));
+            filters.put(
+                protocol,
+                configService.getString(prefix + FILTER_PROPERTY_SUFFIX));
+        }
+    }
+
+    /**
+     * Returns how many packets can wait to be written to the log files.
+     * @return the capacity of the queue of packets to write.
+     */
+    public int getQueueCapacity()
+    {
+        return queueCapacity;
+    }
+
+    /**
+     * Returns whether logging a packet waits for the queue of packets to
+     * write to have room for it, instead of dropping it.
+     * @return <tt>true</tt> if logging blocks while the queue is full.
+     */
+    public boolean isBlockWhenFull()
+    {
+        return blockWhenFull;
+    }
+
+    /**
+     * Returns whether the log files are written in pcapng format.
+     * @return <tt>true</tt> for pcapng, <tt>false</tt> for pcap.
+     */
+    public boolean isPcapNgFormat()
+    {
+        return pcapNgFormat;
+    }
+
+    /**
+     * Returns the time after which the current log file is rotated.
+     * @return the interval in milliseconds, zero or less if files are only
+     * rotated by size.
+     */
+    public long getRotationInterval()
+    {
+        return rotationInterval;
+    }
+
+    /**
+     * Returns whether the rotated log files are compressed with gzip.
+     * @return <tt>true</tt> if the rotated files are compressed.
+     */
+    public boolean isCompressRotatedFiles()
+    {
+        return compressRotatedFiles;
+    }
+
+    /**
+     * Returns the sampling rate of a protocol.
+     * @param protocol the protocol.
+     * @return the N of the 1 in N packets captured, 1 or less to capture all.
+     */
+    public int getSamplingRate(PacketLoggingService.ProtocolName protocol)
+    {
+        return samplingRates.get(protocol);
+    }
+
+    /**
+     * Returns how many bytes of the packets of a protocol are captured.
+     * @param protocol the protocol.
+     * @return the number of bytes, negative to capture whole packets.
+     */
+    public int getMaxPayloadLength(PacketLoggingService.ProtocolName protocol)
+    {
+        return maxPayloadLengths.get(protocol);
+    }
+
+    /**
+     * Returns the rules the packets of a protocol have to match.
+     * @param protocol the protocol.
+     * @return the rules separated by commas, or <tt>null</tt> to capture all
+     * packets.
+     */
+    public String getFilter(PacketLoggingService.ProtocolName protocol)
+    {
+        return filters.get(protocol);
     }
 
     /**
@@ -7,11 +7,9 @@
 package net.java.sip.communicator.impl.packetlogging;
 
 import java.io.*;
-import java.util.*;
 
 import net.java.sip.communicator.util.*;
 
-import org.jitsi.service.fileaccess.*;
 import org.jitsi.service.packetlogging.*;
 
 /**
@@ -30,19 +28,32 @@ public class PacketLoggingServiceImpl
             = Logger.getLogger(PacketLoggingServiceImpl.class);
 
     /**
-     * The OutputStream we are currently writing to.
+     * The maximum time in milliseconds <tt>stop</tt> waits for the queued
+     * packets to be written.
      */
-    private FileOutputStream outputStream = null;
+    private static final long STOP_TIMEOUT = 5000;
 
     /**
-     * The thread that queues packets and saves them to file.
+     * The queue of packets waiting to be saved, created when the service
+     * starts.
+     */
+    private PacketQueue packetQueue;
+
+    /**
+     * Selects the packets queued and how much of them, created when the
+     * service starts.
+     */
+    private PacketFilter packetFilter;
+
+    /**
+     * The thread that saves the queued packets to file.
      */
     private SaverThread saverThread = new SaverThread();
 
     /**
      * The current configuration.
      */
-    private PacketLoggingConfiguration packetLoggingConfiguration = null;
+    private PacketLoggingConfigurationImpl packetLoggingConfiguration = null;
 
     /**
      * The fake ethernet header we use as template.
@@ -135,146 +146,63 @@ public class PacketLoggingServiceImpl
     private long dstCount = 1;
 
     /**
-     * A counter watching how much has been written to the file.
+     * The ipv4 header of the packet being saved, reused for every packet.
      */
-    private long written = 0;
+    private final byte[] ipHeader = ipHeaderTemplate.clone();
 
     /**
-     * All the files we can use for writing.
+     * The ipv6 header of the packet being saved, reused for every packet.
      */
-    private File[] files;
+    private final byte[] ip6Header = ip6HeaderTemplate.clone();
 
     /**
-     * Starting the packet logger. Generating the files we can use,
-     * rotate any previous files and open the current file for writing.
+     * The udp header of the packet being saved, reused for every packet.
      */
-    public void start()
-    {
-        saverThread.start();
-    }
+    private final byte[] udpHeader = udpHeaderTemplate.clone();
 
     /**
-     * Generates the files we will later use for writing.
-     * @throws Exception
+     * The tcp header of the packet being saved, reused for every packet.
      */
-    private void getFileNames()
-        throws Exception
-    {
-        int fileCount = getConfiguration().getLogfileCount();
+    private final byte[] tcpHeader = tcpHeaderTemplate.clone();
 
-        files = new File[fileCount];
-        for(int i = 0; i < fileCount; i++)
-        {
-            files[i]
-                = PacketLoggingActivator.getFileAccessService()
-                    .getPrivatePersistentFile(
-                        new File(PacketLoggingActivator.LOGGING_DIR_NAME,
-                            "jitsi" + i + ".pcap").toString(),
-                        FileCategory.LOG);
-        }
-    }
+    /**
+     * The headers of the packet being saved, in the order they are written.
+     */
+    private final byte[][] headers = new byte[3][];
 
     /**
-     * Rotates any existing files and use the newly created first one
-     * for writing.
-     * @throws IOException
+     * Starting the packet logger. The queue of packets is allocated and the
+     * files are opened for writing when the first packet is saved.
      */
-    private void rotateFiles()
-        throws IOException
+    public void start()
     {
-        if(outputStream != null)
-        {
-            outputStream.flush();
-            outputStream.close();
-        }
+        PacketLoggingConfigurationImpl cfg
+            = (PacketLoggingConfigurationImpl) getConfiguration();
 
-        for (int i = getConfiguration().getLogfileCount() - 2; i >= 0; i--)
-        {
-            File f1 = files[i];
-            File f2 = files[i+1];
-
-            if (f1.exists())
-            {
-                if (f2.exists())
-                    f2.delete();
-                f1.renameTo(f2);
-            }
-        }
-
-        outputStream = new FileOutputStream(files[0]);
-        written = 0;
-        createGlobalHeader();
+        packetFilter = new PacketFilter(cfg);
+        packetQueue
+            = new PacketQueue(cfg.getQueueCapacity(), cfg.isBlockWhenFull());
+        saverThread.start();
     }
 
     /**
-     * Stops the packet logging.
+     * Stops the packet logging, after writing the packets already queued.
      */
     public void stop()
     {
-        saverThread.stopRunning();
+        if (packetQueue == null)
+            return;
 
-        if(outputStream != null)
+        packetQueue.close();
+
+        try
         {
-            try
-            {
-                outputStream.flush();
-                outputStream.close();
-            }
-            catch(IOException e)
-            {
-                e.printStackTrace();
-            }
-            finally
-            {
-                outputStream = null;
-            }
+            saverThread.join(STOP_TIMEOUT);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
         }
-    }
-
-    /**
-     * Creates pcap file global header.
-     * @throws IOException
-     */
-    private void createGlobalHeader()
-            throws IOException
-    {
-        /* magic number(swapped) */
-        outputStream.write(0xd4);
-        outputStream.write(0xc3);
-        outputStream.write(0xb2);
-        outputStream.write(0xa1);
-
-        /* major version number */
-        outputStream.write(0x02);
-        outputStream.write(0x00);
-
-        /* minor version number */
-        outputStream.write(0x04);
-        outputStream.write(0x00);
-
-        /* GMT to local correction */
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-
-        /* accuracy of timestamps */
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-
-        /* max length of captured packets, in octets */
-        outputStream.write(0xff);
-        outputStream.write(0xff);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-
-        /* data link type(ethernet) */
-        outputStream.write(0x01);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
     }
 
     /**
@@ -376,17 +304,45 @@ public class PacketLoggingServiceImpl
             int packetOffset,
             int packetLength)
     {
-        saverThread.queuePacket(
-            new Packet(protocol,
-                       sourceAddress,
-                       sourcePort,
-                       destinationAddress,
-                       destinationPort,
-                       transport,
-                       sender,
-                       packetContent,
-                       packetOffset,
-                       packetLength));
+        PacketQueue queue = packetQueue;
+
+        if (queue == null)
+            return;
+
+        int captureLength
+            = packetFilter.getCaptureLength(
+                    protocol,
+                    sourceAddress, sourcePort,
+                    destinationAddress, destinationPort,
+                    packetLength);
+
+        if (captureLength >= 0)
+        {
+            queue.add(protocol,
+                      sourceAddress,
+                      sourcePort,
+                      destinationAddress,
+                      destinationPort,
+                      transport,
+                      sender,
+                      packetContent,
+                      packetOffset,
+                      captureLength,
+                      packetLength);
+        }
+    }
+
+    /**
+     * Returns the number of packets which were not logged because the queue
+     * of packets waiting to be saved was full.
+     *
+     * @return the number of dropped packets
+     */
+    public long getDroppedPacketCount()
+    {
+        PacketQueue queue = packetQueue;
+
+        return (queue == null) ? 0 : queue.getDroppedCount();
     }
 
     /**
@@ -394,7 +350,7 @@ public class PacketLoggingServiceImpl
      *
      * @return the Packet Logging Configuration.
      */
-    public PacketLoggingConfiguration getConfiguration()
+    public synchronized PacketLoggingConfiguration getConfiguration()
     {
         if(packetLoggingConfiguration == null)
             packetLoggingConfiguration = new PacketLoggingConfigurationImpl();
@@ -403,14 +359,16 @@ public class PacketLoggingServiceImpl
     }
 
     /**
-     * Dump the packet to the output file stream.
+     * Adds the packet to the records written to the output file. Only called
+     * by the saver thread, which owns the reused headers.
      *
      * @param packet the packet ot save.
-     * @throws Exception when error occurs saving to file stream or when
+     * @param writer the writer of the output files.
+     * @throws IOException when error occurs saving to file or when
      *  rotating files.
      */
-    private void savePacket(Packet packet)
-        throws Exception
+    private void savePacket(Packet packet, PacketFileWriter writer)
+        throws IOException
     {
         // if one of the addresses is ipv4 we are using ipv4,
         // local udp addresses come as 0.0.0.0.0....0.0.0 when
@@ -422,9 +380,9 @@ public class PacketLoggingServiceImpl
 
         if(isIPv4)
         {
-            ipHeader = new byte[ipHeaderTemplate.length];
-            System.arraycopy(
-                    ipHeaderTemplate, 0, ipHeader, 0, ipHeader.length);
+            ipHeader = this.ipHeader;
+            ipHeader[10] = 0; // check sum
+            ipHeader[11] = 0;
             System.arraycopy(packet.sourceAddress,
                     0,
                     ipHeader,
@@ -438,9 +396,7 @@ public class PacketLoggingServiceImpl
         }
         else
         {
-            ipHeader = new byte[ip6HeaderTemplate.length];
-            System.arraycopy(
-                    ip6HeaderTemplate, 0, ipHeader, 0, ipHeader.length);
+            ipHeader = ip6Header;
             System.arraycopy(packet.sourceAddress,
                     0,
                     ipHeader,
@@ -458,26 +414,21 @@ public class PacketLoggingServiceImpl
         short len;
         if(packet.transport == TransportName.UDP)
         {
-            byte[] udpHeader = new byte[udpHeaderTemplate.length];
             transportHeader = udpHeader;
-            System.arraycopy(udpHeaderTemplate, 0,
-                    udpHeader, 0, udpHeader.length);
 
             writeShort(packet.sourcePort, udpHeader, 0);
             writeShort(packet.destinationPort, udpHeader, 2);
-            len = (short)(packet.packetLength + udpHeader.length);
+            len = (short)(packet.originalLength + udpHeader.length);
             writeShort(len, udpHeader, 4);
         }
         else
         {
-            transportHeader = new byte[tcpHeaderTemplate.length];
-            System.arraycopy(tcpHeaderTemplate, 0, transportHeader,
-                   0, transportHeader.length);
+            transportHeader = tcpHeader;
 
             writeShort(packet.sourcePort, transportHeader, 0);
             writeShort(packet.destinationPort, transportHeader, 2);
 
-            len = (short)(packet.packetLength + transportHeader.length);
+            len = (short)(packet.originalLength + transportHeader.length);
 
             if(packet.sender)
             {
@@ -486,7 +437,7 @@ public class PacketLoggingServiceImpl
                 synchronized(tcpCounterLock)
                 {
                     seqnum = srcCount;
-                    srcCount += packet.packetLength;
+                    srcCount += packet.originalLength;
                     acknum = dstCount;
                 }
 
@@ -502,7 +453,7 @@ public class PacketLoggingServiceImpl
                 synchronized(tcpCounterLock)
                 {
                     seqnum = dstCount;
-                    dstCount += packet.packetLength;
+                    dstCount += packet.originalLength;
                     acknum = srcCount;
                 }
 
@@ -538,58 +489,11 @@ public class PacketLoggingServiceImpl
                 ipHeader[6] = (byte)0x06;
         }
 
-        long current = System.currentTimeMillis();
-        int tsSec = (int)(current/1000);
-        int tsUsec = (int)((current%1000) * 1000);
-        int feakHeaderLen = fakeEthernetHeader.length +
-                ipHeader.length + transportHeader.length;
-        int inclLen = packet.packetLength + feakHeaderLen;
-        int origLen = inclLen;
-
-        synchronized(this)
-        {
-            // open files only if needed
-            if(outputStream == null)
-            {
-                getFileNames();
-                rotateFiles();// this one opens the file for write
-            }
-
-            long limit = getConfiguration().getLimit();
-
-            if((limit > 0) && (written > limit))
-                rotateFiles();
-
-            addInt(tsSec);
-            addInt(tsUsec);
-            addInt(inclLen);
-            addInt(origLen);
+        headers[0] = fakeEthernetHeader;
+        headers[1] = ipHeader;
+        headers[2] = transportHeader;
 
-            outputStream.write(fakeEthernetHeader);
-            outputStream.write(ipHeader);
-            outputStream.write(transportHeader);
-            outputStream.write(
-                    packet.packetContent,
-                    packet.packetOffset,
-                    packet.packetLength);
-            outputStream.flush();
-
-            written += inclLen + 16;
-        }
-    }
-
-    /**
-     * Writes int to the file. Used for packet headers.
-     * @param d the value to write.
-     * @throws IOException
-     */
-    private void addInt(int d)
-        throws IOException
-    {
-        outputStream.write ((d & 0xff));
-        outputStream.write(((d & 0xff00) >> 8));
-        outputStream.write(((d & 0xff0000) >> 16));
-        outputStream.write(((d & 0xff000000) >> 24));
+        writer.writePacket(packet, headers);
     }
 
     /**
@@ -647,100 +551,6 @@ public class PacketLoggingServiceImpl
         return total;
     }
 
-    /**
-     * The data we receive and that we will dump in a file.
-     */
-    private static class Packet
-    {
-        /**
-         * The protocol logging this packet.
-         */
-        ProtocolName protocol;
-
-        /**
-         * The source address of the packet.
-         */
-        byte[] sourceAddress;
-
-        /**
-         * The source port of the packet.
-         */
-        int sourcePort;
-
-        /**
-         * The destination address of the packet.
-         */
-        byte[] destinationAddress;
-
-        /**
-         * The destination port of the packet.
-         */
-        int destinationPort;
-
-        /**
-         * Is the packet a udp one.
-         */
-        TransportName transport;
-
-        /**
-         * Are we sending the packet, or false if we are receiving.
-         */
-        boolean sender;
-
-        /**
-         * Array containing packet content.
-         */
-        byte[] packetContent;
-
-        /**
-         * The offset in the packetContent where packet content is.
-         */
-        int packetOffset;
-
-        /**
-         * The length of the packet content.
-         */
-        int packetLength;
-
-        /**
-         * Creates a packet with the needed data.
-         * @param protocol the source protocol that logs this packet.
-         * @param sourceAddress The source address of the packet.
-         * @param sourcePort The source port of the packet.
-         * @param destinationAddress The destination address of the packet.
-         * @param destinationPort The destination port of the packet.
-         * @param transport the transport this packet uses.
-         * @param sender Are we sending the packet,
-         *  or false if we are receiving.
-         * @param packetContent Array containing packet content.
-         * @param packetOffset The offset in the packetContent
-         *  where packet content is.
-         * @param packetLength The length of the packet content.
-         */
-        private Packet(ProtocolName protocol,
-                       byte[] sourceAddress,
-                       int sourcePort,
-                       byte[] destinationAddress,
-                       int destinationPort,
-                       TransportName transport,
-                       boolean sender,
-                       byte[] packetContent,
-                       int packetOffset,
-                       int packetLength)
-        {
-            this.protocol = protocol;
-            this.sourceAddress = sourceAddress;
-            this.sourcePort = sourcePort;
-            this.destinationAddress = destinationAddress;
-            this.destinationPort = destinationPort;
-            this.transport = transport;
-            this.sender = sender;
-            this.packetContent = packetContent;
-            this.packetOffset = packetOffset;
-            this.packetLength = packetLength;
-        }
-    }
-
     /**
      * Dumps packet in separate thread so we don't block
      * our calling thread.
@@ -749,82 +559,93 @@ public class PacketLoggingServiceImpl
         extends Thread
     {
         /**
-         * start/stop indicator.
-         */
-        private boolean stopped = true;
-
-        /**
-         * List of packets queued to be written in the file.
+         * Creates the thread saving the queued packets.
          */
-        private final List<Packet> pktsToSave = new ArrayList<Packet>();
+        SaverThread()
+        {
+            super("PacketLoggingService saver");
+            setDaemon(true);
+        }
 
         /**
-         * Sends instant messages in separate thread so we don't block
-         * our calling thread.
+         * Writes the packets queued since the previous batch until the queue
+         * is closed, then closes the output file. If the thread ends for any
+         * other reason, the queue is closed so that no producer waits for it.
          */
         @Override
         public void run()
         {
-            stopped = false;
-            while(!stopped)
+            PacketQueue queue = packetQueue;
+            PacketLoggingConfigurationImpl cfg
+                = (PacketLoggingConfigurationImpl) getConfiguration();
+            PacketFileWriter writer
+                = cfg.isPcapNgFormat()
+                    ? new PcapNgWriter(cfg)
+                    : new PcapWriter(cfg);
+            long reportedDropped = 0;
+
+            try
             {
-                Packet pktToSave;
+                int count;
 
-                synchronized(this)
+                while ((count = queue.take()) > 0)
                 {
-                    if(pktsToSave.isEmpty())
+                    for (int i = 0; i < count; i++)
                     {
                         try
                         {
-                            wait();
+                            savePacket(queue.get(i), writer);
                         }
-                        catch (InterruptedException iex)
+                        catch(IOException e)
                         {
+                            logger.error("Error writing packet to file", e);
+                        }
+                        catch(RuntimeException e)
+                        {
+                            // a bad packet must not stop the logging
+                            logger.error("Error writing packet to file", e);
                         }
-                        continue;
                     }
 
-                    pktToSave = pktsToSave.remove(0);
-                }
-
-                if(pktToSave != null)
-                {
                     try
                     {
-                        savePacket(pktToSave);
+                        writer.flush();
                     }
-                    catch(Throwable t)
+                    catch(IOException e)
                     {
-                        /*
-                         * XXX ThreadDeath must be rethrown; otherwise, the
-                         * related Thread will not die.
-                         */
-                        if (t instanceof ThreadDeath)
-                            throw (ThreadDeath) t;
-                        else
-                            logger.error("Error writing packet to file", t);
+                        logger.error("Error writing packets to file", e);
+                    }
+                    catch(RuntimeException e)
+                    {
+                        logger.error("Error writing packets to file", e);
+                    }
+                    queue.release(count);
+
+                    long dropped = queue.getDroppedCount();
+                    if (dropped != reportedDropped)
+                    {
+                        logger.warn("Packet logging queue full, "
+                            + (dropped - reportedDropped)
+                            + " packets dropped, " + dropped + " in total");
+                        reportedDropped = dropped;
                     }
                 }
             }
-        }
-
-        /**
-         * Interrupts this sender so that it would no longer send messages.
-         */
-        public synchronized void stopRunning()
-        {
-            stopped = true;
-            notifyAll();
-        }
+            finally
+            {
+                // producers waiting for room in a queue nobody takes from
+                // anymore would block forever, make them drop their packets
+                queue.close();
 
-        /**
-         * Schedule new packet for save.
-         * @param packet new packet to save.
-         */
-        public synchronized void queuePacket(Packet packet)
-        {
-            pktsToSave.add(packet);
-            notifyAll();
+                try
+                {
+                    writer.close();
+                }
+                catch(IOException e)
+                {
+                    logger.error("Error closing packet log file", e);
+                }
+            }
         }
     }
 }
@@ -0,0 +1,227 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.packetlogging;
+
+import org.jitsi.service.packetlogging.*;
+
+/**
+ * A bounded queue of the packets waiting to be written, backed by a ring of
+ * preallocated packets. Logging a packet copies it into the next free slot,
+ * so neither the packet nor its content is allocated per logged packet and
+ * the caller can reuse its buffer as soon as <tt>add</tt> returns.
+ * <p>
+ * The queue has a single consumer, which takes the packets queued so far as
+ * a batch and releases their slots once they are written. When the queue is
+ * full, packets are either dropped and counted or their producers wait for
+ * the consumer, depending on the configured policy.
+ */
+public class PacketQueue
+{
+    /**
+     * The content buffers larger than this are not kept in their slot once
+     * the packet is written, so that a few huge packets do not retain their
+     * size for every slot.
+     */
+    private static final int MAX_RETAINED_CONTENT_SIZE = 0xffff;
+
+    /**
+     * The preallocated packets.
+     */
+    private final Packet[] slots;
+
+    /**
+     * Whether producers wait for a free slot instead of dropping their
+     * packet when the queue is full.
+     */
+    private final boolean blockWhenFull;
+
+    /**
+     * The index of the oldest queued packet.
+     */
+    private int head = 0;
+
+    /**
+     * The number of queued packets, including those taken by the consumer
+     * and not released yet.
+     */
+    private int count = 0;
+
+    /**
+     * The number of packets dropped because the queue was full or closed.
+     */
+    private long droppedCount = 0;
+
+    /**
+     * Whether the queue no longer accepts packets.
+     */
+    private boolean closed = false;
+
+    /**
+     * Creates a queue holding up to <tt>capacity</tt> packets.
+     *
+     * @param capacity the number of slots of the queue
+     * @param blockWhenFull <tt>true</tt> to make producers wait for a free
+     * slot, <tt>false</tt> to drop their packets when the queue is full
+     */
+    public PacketQueue(int capacity, boolean blockWhenFull)
+    {
+        this.slots = new Packet[Math.max(1, capacity)];
+        this.blockWhenFull = blockWhenFull;
+
+        for (int i = 0; i < slots.length; i++)
+            slots[i] = new Packet();
+    }
+
+    /**
+     * Copies a packet into the queue.
+     *
+     * @param protocol the source protocol that logs this packet.
+     * @param sourceAddress the source address of the packet.
+     * @param sourcePort the source port of the packet.
+     * @param destinationAddress the destination address.
+     * @param destinationPort the destination port.
+     * @param transport the transport this packet uses.
+     * @param sender are we the sender of the packet or not.
+     * @param packetContent the packet content.
+     * @param packetOffset the packet content offset.
+     * @param packetLength the captured packet content length.
+     * @param originalLength the packet content length before truncation.
+     * @return <tt>true</tt> if the packet was queued, <tt>false</tt> if it
+     * was dropped
+     */
+    public synchronized boolean add(
+            PacketLoggingService.ProtocolName protocol,
+            byte[] sourceAddress,
+            int sourcePort,
+            byte[] destinationAddress,
+            int destinationPort,
+            PacketLoggingService.TransportName transport,
+            boolean sender,
+            byte[] packetContent,
+            int packetOffset,
+            int packetLength,
+            int originalLength)
+    {
+        if (blockWhenFull)
+        {
+            boolean interrupted = false;
+
+            while (!closed && count == slots.length)
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException ex)
+                {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        if (closed || count == slots.length)
+        {
+            droppedCount++;
+            return false;
+        }
+
+        slots[(head + count) % slots.length].set(
+            protocol,
+            sourceAddress, sourcePort,
+            destinationAddress, destinationPort,
+            transport,
+            sender,
+            packetContent, packetOffset, packetLength, originalLength);
+        count++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Waits until packets are queued or the queue is closed.
+     *
+     * @return the number of packets which can be read with {@link #get(int)}
+     * until they are released, <tt>0</tt> if the queue is closed and empty
+     */
+    public synchronized int take()
+    {
+        while (count == 0 && !closed)
+        {
+            try
+            {
+                wait();
+            }
+            catch (InterruptedException ex)
+            {
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns a packet taken by the consumer.
+     *
+     * @param index the index of the packet in the taken batch
+     * @return the packet, valid until it is released
+     */
+    synchronized Packet get(int index)
+    {
+        return slots[(head + index) % slots.length];
+    }
+
+    /**
+     * Frees the slots of the oldest packets once they are written.
+     *
+     * @param released the number of packets written
+     */
+    public synchronized void release(int released)
+    {
+        for (int i = 0; i < released; i++)
+        {
+            Packet packet = slots[head];
+
+            if (packet.packetContent.length > MAX_RETAINED_CONTENT_SIZE)
+                packet.packetContent = Packet.EMPTY_CONTENT;
+
+            head = (head + 1) % slots.length;
+        }
+        count -= released;
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of packets dropped because the queue was full or
+     * closed.
+     *
+     * @return the number of dropped packets
+     */
+    public synchronized long getDroppedCount()
+    {
+        return droppedCount;
+    }
+
+    /**
+     * Stops accepting packets. The packets already queued can still be taken.
+     */
+    public synchronized void close()
+    {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Indicates if the queue was closed.
+     *
+     * @return <tt>true</tt> if the queue no longer accepts packets
+     */
+    public synchronized boolean isClosed()
+    {
+        return closed;
+    }
+}
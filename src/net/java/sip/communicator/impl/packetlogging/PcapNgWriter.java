@@ -0,0 +1,157 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.packetlogging;
+
+import java.io.*;
+
+import org.jitsi.service.packetlogging.*;
+
+/**
+ * Writes packets in pcapng format. Every protocol logging packets has its
+ * own interface, named after the protocol, so that captures can be filtered
+ * by protocol in wireshark with <tt>frame.interface_name</tt>.
+ */
+class PcapNgWriter
+    extends PacketFileWriter
+{
+    /**
+     * The type of the section header block.
+     */
+    private static final int SECTION_HEADER_BLOCK = 0x0a0d0d0a;
+
+    /**
+     * The type of the interface description block.
+     */
+    private static final int INTERFACE_DESCRIPTION_BLOCK = 0x00000001;
+
+    /**
+     * The type of the enhanced packet block.
+     */
+    private static final int ENHANCED_PACKET_BLOCK = 0x00000006;
+
+    /**
+     * The byte order magic of the section header block.
+     */
+    private static final int BYTE_ORDER_MAGIC = 0x1a2b3c4d;
+
+    /**
+     * The code of the option naming an interface.
+     */
+    private static final short IF_NAME_OPTION = 2;
+
+    /**
+     * The size of an enhanced packet block without the packet data.
+     */
+    private static final int ENHANCED_PACKET_BLOCK_SIZE = 32;
+
+    /**
+     * Padding bytes used to align blocks and options to 32 bits.
+     */
+    private static final byte[] PADDING = new byte[3];
+
+    /**
+     * Creates a writer of pcapng files.
+     *
+     * @param configuration the packet logging configuration
+     */
+    PcapNgWriter(PacketLoggingConfigurationImpl configuration)
+    {
+        super(configuration, ".pcapng");
+    }
+
+    /**
+     * Writes the section header block and an interface description block
+     * for every protocol. The interface of a protocol is the ordinal of its
+     * <tt>ProtocolName</tt>.
+     */
+    @Override
+    protected void writeFileHeader()
+    {
+        buffer.putInt(SECTION_HEADER_BLOCK);
+        buffer.putInt(28);
+        buffer.putInt(BYTE_ORDER_MAGIC);
+        buffer.putShort((short) 1);// major version
+        buffer.putShort((short) 0);// minor version
+        buffer.putLong(-1);// section length not specified
+        buffer.putInt(28);
+
+        for (PacketLoggingService.ProtocolName protocol
+                : PacketLoggingService.ProtocolName.values())
+        {
+            byte[] name = protocol.name().getBytes();
+            int nameLength = name.length + padding(name.length);
+            int blockLength = 20 + 4 + nameLength + 4;
+
+            buffer.putInt(INTERFACE_DESCRIPTION_BLOCK);
+            buffer.putInt(blockLength);
+            buffer.putShort((short) 1);// link type ethernet
+            buffer.putShort((short) 0);// reserved
+            buffer.putInt(0);// no snap length
+
+            // default timestamp resolution is microseconds, no if_tsresol
+            buffer.putShort(IF_NAME_OPTION);
+            buffer.putShort((short) name.length);
+            buffer.put(name);
+            buffer.put(PADDING, 0, padding(name.length));
+            buffer.putInt(0);// end of options
+
+            buffer.putInt(blockLength);
+        }
+    }
+
+    /**
+     * Writes an enhanced packet block with the fake headers and content of
+     * the packet on the interface of its protocol.
+     *
+     * @param packet the packet to write
+     * @param headers the fake headers of the packet, in order
+     * @param headersLength the total length of <tt>headers</tt>
+     * @return the number of bytes of the block
+     * @throws IOException if writing the file fails
+     */
+    @Override
+    protected int writeRecord(Packet packet, byte[][] headers,
+        int headersLength)
+        throws IOException
+    {
+        int capturedLength = headersLength + packet.packetLength;
+        int padding = padding(capturedLength);
+        int blockLength
+            = ENHANCED_PACKET_BLOCK_SIZE + capturedLength + padding;
+
+        reserve(blockLength);
+
+        buffer.putInt(ENHANCED_PACKET_BLOCK);
+        buffer.putInt(blockLength);
+        buffer.putInt(packet.protocol.ordinal());
+        buffer.putInt((int) (packet.timestamp >>> 32));
+        buffer.putInt((int) packet.timestamp);
+        buffer.putInt(capturedLength);
+        buffer.putInt(headersLength + packet.originalLength);
+
+        for (byte[] header : headers)
+            buffer.put(header);
+
+        putContent(packet.packetContent, packet.packetLength);
+
+        buffer.put(PADDING, 0, padding);
+        buffer.putInt(blockLength);
+
+        return blockLength;
+    }
+
+    /**
+     * Returns the number of bytes aligning <tt>length</tt> bytes to 32 bits.
+     *
+     * @param length the length to align
+     * @return the number of padding bytes
+     */
+    private static int padding(int length)
+    {
+        return (4 - (length & 3)) & 3;
+    }
+}
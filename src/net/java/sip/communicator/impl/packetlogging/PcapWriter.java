@@ -0,0 +1,92 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.packetlogging;
+
+import java.io.*;
+
+/**
+ * Writes packets in pcap(tcpdump/wireshark) format.
+ */
+class PcapWriter
+    extends PacketFileWriter
+{
+    /**
+     * The size of the header preceding every packet in a pcap file.
+     */
+    private static final int RECORD_HEADER_SIZE = 16;
+
+    /**
+     * Creates a writer of pcap files.
+     *
+     * @param configuration the packet logging configuration
+     */
+    PcapWriter(PacketLoggingConfigurationImpl configuration)
+    {
+        super(configuration, ".pcap");
+    }
+
+    /**
+     * Creates pcap file global header.
+     */
+    @Override
+    protected void writeFileHeader()
+    {
+        /* magic number(swapped) */
+        buffer.putInt(0xa1b2c3d4);
+
+        /* major version number */
+        buffer.putShort((short) 2);
+
+        /* minor version number */
+        buffer.putShort((short) 4);
+
+        /* GMT to local correction */
+        buffer.putInt(0);
+
+        /* accuracy of timestamps */
+        buffer.putInt(0);
+
+        /* max length of captured packets, in octets */
+        buffer.putInt(0xffff);
+
+        /* data link type(ethernet) */
+        buffer.putInt(1);
+    }
+
+    /**
+     * Writes the pcap header of the packet followed by its fake headers and
+     * content.
+     *
+     * @param packet the packet to write
+     * @param headers the fake headers of the packet, in order
+     * @param headersLength the total length of <tt>headers</tt>
+     * @return the number of bytes of the record
+     * @throws IOException if writing the file fails
+     */
+    @Override
+    protected int writeRecord(Packet packet, byte[][] headers,
+        int headersLength)
+        throws IOException
+    {
+        int inclLen = headersLength + packet.packetLength;
+        int origLen = headersLength + packet.originalLength;
+
+        reserve(RECORD_HEADER_SIZE + inclLen);
+
+        buffer.putInt((int) (packet.timestamp / 1000000));
+        buffer.putInt((int) (packet.timestamp % 1000000));
+        buffer.putInt(inclLen);
+        buffer.putInt(origLen);
+
+        for (byte[] header : headers)
+            buffer.put(header);
+
+        putContent(packet.packetContent, packet.packetLength);
+
+        return RECORD_HEADER_SIZE + inclLen;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.service.dns;
+
+/**
+ * A <tt>CustomResolver</tt> keeping the answers of the resolver it wraps in a
+ * cache shared by the whole application. Answers are kept for the TTL of
+ * their records, negative answers (non-existent names or records) for the
+ * TTL given by the SOA record of the zone. When the wrapped resolver fails,
+ * an expired answer is returned for a while instead of an error. Answers
+ * which are in active use, e.g. the records of a registrar, an outbound
+ * proxy or an XMPP server, are refreshed in the background shortly before
+ * they expire, so that the lookups made for every request do not wait for
+ * the DNS servers.
+ */
+public interface CachingResolver
+    extends CustomResolver
+{
+    /**
+     * The name of the property that enables or disables the DNS cache.
+     */
+    public static final String PNAME_DNS_CACHE_ENABLED
+        = "net.java.sip.communicator.util.dns.CACHE_ENABLED";
+
+    /**
+     * Default value of {@link #PNAME_DNS_CACHE_ENABLED}.
+     */
+    public static final boolean PDEFAULT_DNS_CACHE_ENABLED = true;
+
+    /**
+     * The name of the property that sets the maximum number of answers kept
+     * in the cache.
+     */
+    public static final String PNAME_DNS_CACHE_SIZE
+        = "net.java.sip.communicator.util.dns.CACHE_SIZE";
+
+    /**
+     * Default value of {@link #PNAME_DNS_CACHE_SIZE}.
+     */
+    public static final int PDEFAULT_DNS_CACHE_SIZE = 1000;
+
+    /**
+     * The name of the property that sets the maximum number of seconds an
+     * answer is kept, whatever the TTL of its records.
+     */
+    public static final String PNAME_DNS_CACHE_MAX_TTL
+        = "net.java.sip.communicator.util.dns.CACHE_MAX_TTL";
+
+    /**
+     * Default value of {@link #PNAME_DNS_CACHE_MAX_TTL}, one day.
+     */
+    public static final int PDEFAULT_DNS_CACHE_MAX_TTL = 86400;
+
+    /**
+     * The name of the property that sets the maximum number of seconds a
+     * negative answer is kept.
+     */
+    public static final String PNAME_DNS_CACHE_MAX_NEGATIVE_TTL
+        = "net.java.sip.communicator.util.dns.CACHE_MAX_NEGATIVE_TTL";
+
+    /**
+     * Default value of {@link #PNAME_DNS_CACHE_MAX_NEGATIVE_TTL}.
+     */
+    public static final int PDEFAULT_DNS_CACHE_MAX_NEGATIVE_TTL = 300;
+
+    /**
+     * The name of the property that sets for how many seconds after its
+     * expiration an answer is returned when the DNS servers cannot be
+     * reached. <tt>0</tt> disables returning expired answers.
+     */
+    public static final String PNAME_DNS_CACHE_STALE_PERIOD
+        = "net.java.sip.communicator.util.dns.CACHE_STALE_PERIOD";
+
+    /**
+     * Default value of {@link #PNAME_DNS_CACHE_STALE_PERIOD}, one day.
+     */
+    public static final int PDEFAULT_DNS_CACHE_STALE_PERIOD = 86400;
+
+    /**
+     * The name of the property that enables or disables the refreshing of
+     * the answers in active use before they expire.
+     */
+    public static final String PNAME_DNS_CACHE_PREFETCH_ENABLED
+        = "net.java.sip.communicator.util.dns.CACHE_PREFETCH_ENABLED";
+
+    /**
+     * Default value of {@link #PNAME_DNS_CACHE_PREFETCH_ENABLED}.
+     */
+    public static final boolean PDEFAULT_DNS_CACHE_PREFETCH_ENABLED = true;
+
+    /**
+     * Removes all the answers from the cache, so that the following queries
+     * are sent to the DNS servers.
+     */
+    public void clearCache();
+}
@@ -169,6 +169,16 @@ public interface HistoryReader {
      */
     QueryResultSet<HistoryRecord> findLast(int count) throws RuntimeException;
 
+    /**
+     * Returns an iterator over all records of the history, most recent
+     * first. Records are read as the iterator advances, so callers which
+     * stop early only read the end of the history.
+     *
+     * @return an iterator over the records from newest to oldest
+     * @throws RuntimeException
+     */
+    Iterator<HistoryRecord> descendingIterator() throws RuntimeException;
+
     /**
      * Returns the supplied number of recent messages after the given date
      *
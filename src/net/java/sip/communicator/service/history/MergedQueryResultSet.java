@@ -0,0 +1,165 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.service.history;
+
+import java.util.*;
+
+/**
+ * A <tt>QueryResultSet</tt> merging several sorted iterators into one sorted
+ * sequence. The sources are only advanced as the result set is iterated and
+ * at most <tt>limit</tt> elements are taken from them, so merging the ends of
+ * many histories only reads as many records as are returned.
+ * <p>
+ * Every source must return its elements in the order defined by the
+ * comparator; to merge the most recent records of several histories use
+ * <tt>HistoryReader.descendingIterator()</tt> and a reversed comparator.
+ *
+ * @param <T> the type of the merged elements
+ */
+public class MergedQueryResultSet<T>
+    implements QueryResultSet<T>
+{
+    /**
+     * The sources which still have elements, ordered by their next element.
+     */
+    private final PriorityQueue<Source<T>> sources;
+
+    /**
+     * The elements already taken from the sources, in merged order.
+     */
+    private final List<T> records = new ArrayList<T>();
+
+    /**
+     * The maximum number of elements of this result set.
+     */
+    private final int limit;
+
+    private int currentPos = -1;
+
+    /**
+     * Creates a result set merging the given sources.
+     *
+     * @param sources the sorted sources to merge
+     * @param comparator the order of the sources and of the result set
+     * @param limit the maximum number of elements to return
+     */
+    public MergedQueryResultSet(
+            Collection<? extends Iterator<? extends T>> sources,
+            final Comparator<? super T> comparator,
+            int limit)
+    {
+        this.limit = limit;
+        this.sources = new PriorityQueue<Source<T>>(
+            Math.max(1, sources.size()),
+            new Comparator<Source<T>>()
+            {
+                public int compare(Source<T> s1, Source<T> s2)
+                {
+                    int result = comparator.compare(s1.head, s2.head);
+
+                    // keep the order of the sources for equal elements
+                    return (result != 0) ? result : s1.index - s2.index;
+                }
+            });
+
+        int index = 0;
+
+        for (Iterator<? extends T> source : sources)
+        {
+            if (source.hasNext())
+                this.sources.add(new Source<T>(source, index++));
+        }
+    }
+
+    public T nextRecord() throws NoSuchElementException
+    {
+        return this.next();
+    }
+
+    public T prevRecord() throws NoSuchElementException
+    {
+        return this.prev();
+    }
+
+    public boolean hasPrev()
+    {
+        return this.currentPos - 1 >= 0;
+    }
+
+    public T prev() throws NoSuchElementException
+    {
+        if (this.currentPos - 1 < 0)
+            throw new NoSuchElementException();
+
+        return this.records.get(--this.currentPos);
+    }
+
+    public boolean hasNext()
+    {
+        return this.currentPos + 1 < this.records.size()
+            || (this.records.size() < this.limit && !this.sources.isEmpty());
+    }
+
+    public T next() throws NoSuchElementException
+    {
+        if (this.currentPos + 1 >= this.records.size())
+        {
+            if (this.records.size() >= this.limit || this.sources.isEmpty())
+                throw new NoSuchElementException();
+
+            Source<T> source = this.sources.poll();
+
+            this.records.add(source.head);
+            if (source.advance())
+                this.sources.add(source);
+        }
+
+        return this.records.get(++this.currentPos);
+    }
+
+    public void remove() throws UnsupportedOperationException
+    {
+        throw new UnsupportedOperationException("Cannot remove elements "
+                + "from underlaying collection.");
+    }
+
+    /**
+     * A source and its next element.
+     */
+    private static class Source<T>
+    {
+        private final Iterator<? extends T> iterator;
+
+        /**
+         * The position of the source, which orders equal elements.
+         */
+        private final int index;
+
+        private T head;
+
+        Source(Iterator<? extends T> iterator, int index)
+        {
+            this.iterator = iterator;
+            this.index = index;
+            this.head = iterator.next();
+        }
+
+        /**
+         * Moves to the next element of the source.
+         *
+         * @return <tt>false</tt> if the source has no more elements
+         */
+        boolean advance()
+        {
+            if (!this.iterator.hasNext())
+                return false;
+
+            this.head = this.iterator.next();
+            return true;
+        }
+    }
+}
@@ -16,6 +16,12 @@ import java.util.logging.*;
  * home directory. If the pattern option is missing creates log
  * directory in sip-communicator's home directory.
  * If the directory is missing create it.
+ * <p>
+ * When the <tt>async</tt> property of the handler is <tt>true</tt>, the
+ * records are queued in a bounded ring and formatted and written by a
+ * background thread, so that logging does not wait for the disk. When the
+ * ring is full, records below <tt>INFO</tt> are dropped and counted, and
+ * the others wait for room.
  *
  * @author Damian Minkov
  */
@@ -49,6 +55,18 @@ public class FileHandler
      */
     public static String pattern = null;
 
+    /**
+     * The default number of records which can wait to be written in
+     * asynchronous mode.
+     */
+    private static final int DEFAULT_QUEUE_SIZE = 8192;
+
+    /**
+     * The thread writing the queued records in asynchronous mode,
+     * <tt>null</tt> if records are written by the thread logging them.
+     */
+    private final AsyncWriter asyncWriter;
+
     /**
      * Initialize a <tt>FileHandler</tt> to write to a set of files.  When
      * (approximately) the given limit has been written to one file,
@@ -76,6 +94,8 @@ public class FileHandler
         throws IOException, SecurityException
     {
         super(pattern, limit, count);
+
+        asyncWriter = createAsyncWriter();
     }
 
     /**
@@ -93,6 +113,96 @@ public class FileHandler
                 SecurityException
     {
         super(getPattern(), getLimit(), getCount());
+
+        asyncWriter = createAsyncWriter();
+    }
+
+    /**
+     * Writes a record, or queues it to be written by the background thread
+     * in asynchronous mode.
+     *
+     * @param record the record to write
+     */
+    @Override
+    public void publish(LogRecord record)
+    {
+        if (asyncWriter == null)
+        {
+            super.publish(record);
+            return;
+        }
+
+        if (!isLoggable(record))
+            return;
+
+        // The caller is found from the stack, so it has to be done by the
+        // logging thread.
+        Formatter formatter = getFormatter();
+        if (formatter instanceof ScLogFormatter)
+        {
+            record
+                = ((ScLogFormatter) formatter).prepareForAsyncFormat(record);
+        }
+        else
+            record.getSourceClassName();
+
+        asyncWriter.queue(record);
+    }
+
+    /**
+     * Flushes the file, after the queued records in asynchronous mode.
+     */
+    @Override
+    public void flush()
+    {
+        if (asyncWriter != null)
+        {
+            // the background thread flushes after every batch of records
+            if (Thread.currentThread() == asyncWriter)
+                return;
+
+            asyncWriter.awaitEmpty();
+        }
+        super.flush();
+    }
+
+    /**
+     * Writes the queued records and closes the file.
+     */
+    @Override
+    public void close()
+    {
+        if (asyncWriter != null)
+            asyncWriter.stopWriting();
+
+        super.close();
+    }
+
+    /**
+     * Starts the thread writing the records if the handler is configured to
+     * be asynchronous.
+     *
+     * @return the started thread or <tt>null</tt> for synchronous writing
+     */
+    private AsyncWriter createAsyncWriter()
+    {
+        LogManager manager = LogManager.getLogManager();
+        String prefix = FileHandler.class.getName();
+
+        if (!Boolean.parseBoolean(manager.getProperty(prefix + ".async")))
+            return null;
+
+        int queueSize = DEFAULT_QUEUE_SIZE;
+        try
+        {
+            queueSize
+                = Integer.parseInt(manager.getProperty(prefix + ".queueSize"));
+        }
+        catch (Exception ex) {}
+
+        AsyncWriter writer = new AsyncWriter(queueSize);
+        writer.start();
+        return writer;
     }
 
     /**
@@ -209,4 +319,197 @@ public class FileHandler
         }
         catch (Exception e){}
     }
+
+    /**
+     * Writes the queued records in batches, flushing the file after each
+     * batch instead of after each record.
+     */
+    private class AsyncWriter
+        extends Thread
+    {
+        /**
+         * The ring of queued records.
+         */
+        private final LogRecord[] records;
+
+        /**
+         * The index of the oldest queued record.
+         */
+        private int head = 0;
+
+        /**
+         * The number of queued records, including those being written.
+         */
+        private int count = 0;
+
+        /**
+         * The number of records dropped since the last report.
+         */
+        private int droppedCount = 0;
+
+        /**
+         * Whether the handler was closed.
+         */
+        private boolean stopped = false;
+
+        /**
+         * Creates the writer of a ring of <tt>size</tt> records.
+         *
+         * @param size the number of records which can be queued
+         */
+        AsyncWriter(int size)
+        {
+            super("FileHandler async writer");
+            setDaemon(true);
+
+            records = new LogRecord[Math.max(1, size)];
+        }
+
+        /**
+         * Queues a record, waiting for room if the ring is full unless the
+         * record is below <tt>INFO</tt>.
+         *
+         * @param record the record to queue
+         */
+        synchronized void queue(LogRecord record)
+        {
+            boolean interrupted = false;
+
+            while (!stopped && count == records.length
+                && record.getLevel().intValue() >= Level.INFO.intValue())
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException ex)
+                {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+
+            if (stopped || count == records.length)
+            {
+                droppedCount++;
+                return;
+            }
+
+            records[(head + count) % records.length] = record;
+            count++;
+            notifyAll();
+        }
+
+        /**
+         * Waits until the records queued so far are written.
+         */
+        synchronized void awaitEmpty()
+        {
+            boolean interrupted = false;
+
+            while (count != 0 && isAlive())
+            {
+                try
+                {
+                    wait(1000);
+                }
+                catch (InterruptedException ex)
+                {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        /**
+         * Stops queueing records and waits for the queued ones to be
+         * written.
+         */
+        void stopWriting()
+        {
+            synchronized (this)
+            {
+                stopped = true;
+                notifyAll();
+            }
+
+            if (Thread.currentThread() == this)
+                return;
+
+            try
+            {
+                join();
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Writes the queued records until the handler is closed.
+         */
+        @Override
+        public void run()
+        {
+            while (true)
+            {
+                int batchSize;
+                int batchHead;
+                int dropped;
+
+                synchronized (this)
+                {
+                    while (count == 0 && !stopped)
+                    {
+                        try
+                        {
+                            wait();
+                        }
+                        catch (InterruptedException ex)
+                        {
+                        }
+                    }
+                    if (count == 0)
+                        return;
+
+                    batchSize = count;
+                    batchHead = head;
+                    dropped = droppedCount;
+                    droppedCount = 0;
+                }
+
+                if (dropped != 0)
+                {
+                    LogRecord warning
+                        = new LogRecord(Level.WARNING,
+                            dropped + " log records dropped,"
+                                + " the log queue was full");
+
+                    warning.setLoggerName(FileHandler.class.getName());
+                    warning.setSourceClassName(getClass().getName());
+                    warning.setSourceMethodName("run");
+                    FileHandler.super.publish(warning);
+                }
+
+                for (int i = 0; i < batchSize; i++)
+                {
+                    int index = (batchHead + i) % records.length;
+
+                    FileHandler.super.publish(records[index]);
+                    records[index] = null;
+                }
+                FileHandler.super.flush();
+
+                synchronized (this)
+                {
+                    head = (head + batchSize) % records.length;
+                    count -= batchSize;
+                    notifyAll();
+                }
+            }
+        }
+    }
 }
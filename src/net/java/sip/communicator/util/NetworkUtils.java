@@ -571,7 +571,8 @@ public class NetworkUtils
         {
             Lookup lookup = createLookup(domain, Type.SRV);
             // Disables the DNS cache: i.e. useful when testing DNS
-            // connectivity.
+            // connectivity. A CachingResolver still answers with the
+            // records it has until their TTL expires.
             if(!useDNSCache)
             {
                 lookup.setCache(new Cache());
@@ -1460,11 +1461,16 @@ public class NetworkUtils
     }
 
     /**
-     * Clears the default DNS cache.
+     * Clears the default DNS cache, and the cache of the default resolver if
+     * it is a <tt>CachingResolver</tt>.
      */
     public static void clearDefaultDNSCache()
     {
         Cache defaultCache = Lookup.getDefaultCache(DClass.IN);
         defaultCache.clearCache();
+
+        Resolver defaultResolver = Lookup.getDefaultResolver();
+        if(defaultResolver instanceof CachingResolver)
+            ((CachingResolver) defaultResolver).clearCache();
     }
 }
@@ -7,7 +7,6 @@
 package net.java.sip.communicator.util;
 
 import java.io.*;
-import java.text.*;
 import java.util.*;
 import java.util.logging.*;
 
@@ -24,9 +23,36 @@ public class ScLogFormatter
 {
     static long startTime = System.currentTimeMillis();
 
+    /**
+     * The name of the <tt>LogManager</tt> property which, when set to
+     * <tt>false</tt>, disables printing the class, method and line which
+     * logged a record. Finding them requires walking the stack of the
+     * logging thread for every record.
+     */
+    public static final String INFER_CALLER_PROPERTY
+        = ScLogFormatter.class.getName() + ".inferCaller";
+
     private static String lineSeparator = System.getProperty("line.separator");
-    private static DecimalFormat twoDigFmt = new DecimalFormat("00");
-    private static DecimalFormat threeDigFmt = new DecimalFormat("000");
+
+    /**
+     * The "HH:mm:ss." prefix of the time of the records logged during the
+     * same second as the last one formatted.
+     */
+    private static volatile TimePrefix timePrefix;
+
+    /**
+     * Whether the class, method and line which logged a record are printed.
+     */
+    private final boolean inferCaller;
+
+    /**
+     * Creates a formatter configured by the <tt>LogManager</tt> properties.
+     */
+    public ScLogFormatter()
+    {
+        inferCaller = !"false".equalsIgnoreCase(
+            LogManager.getLogManager().getProperty(INFER_CALLER_PROPERTY));
+    }
 
     /**
      * Format the given LogRecord.
@@ -34,31 +60,37 @@ public class ScLogFormatter
      * @return a formatted log record
      */
     @Override
-    public synchronized String format(LogRecord record)
+    public String format(LogRecord record)
     {
-        StringBuffer sb = new StringBuffer();
+        StringBuilder sb = new StringBuilder(128);
 
-        //current time
-        Calendar cal = Calendar.getInstance();
-        int hour = cal.get(Calendar.HOUR_OF_DAY);
-        int minutes = cal.get(Calendar.MINUTE);
-        int seconds = cal.get(Calendar.SECOND);
-        int millis = cal.get(Calendar.MILLISECOND);
+        //time of the record
+        long millis = record.getMillis();
+        int millisOfSecond = (int) (millis % 1000);
 
-        sb.append(twoDigFmt.format(hour)).append(':');
-        sb.append(twoDigFmt.format(minutes)).append(':');
-        sb.append(twoDigFmt.format(seconds)).append('.');
-        sb.append(threeDigFmt.format(millis)).append(' ');
+        sb.append(getTimePrefix(millis));
+        if (millisOfSecond < 100)
+            sb.append('0');
+        if (millisOfSecond < 10)
+            sb.append('0');
+        sb.append(millisOfSecond).append(' ');
 
         //log level
         sb.append(record.getLevel().getLocalizedName());
         sb.append(": ");
 
         // Thread ID
-        sb.append("[" + record.getThreadID() + "] ");
+        sb.append('[').append(record.getThreadID()).append("] ");
 
         //caller method
-        int lineNumber = inferCaller(record);
+        int lineNumber;
+        if (record instanceof CallerLogRecord)
+            lineNumber = ((CallerLogRecord) record).lineNumber;
+        else if (inferCaller)
+            lineNumber = inferCaller(record);
+        else
+            lineNumber = -1;
+
         String loggerName = record.getLoggerName();
 
         if(loggerName == null)
@@ -72,7 +104,8 @@ public class ScLogFormatter
         else
             sb.append(record.getLoggerName());
 
-        if (record.getSourceMethodName() != null)
+        if ((inferCaller || (record instanceof CallerLogRecord))
+            && (record.getSourceMethodName() != null))
         {
             sb.append(".");
             sb.append(record.getSourceMethodName());
@@ -103,6 +136,58 @@ public class ScLogFormatter
         return sb.toString();
     }
 
+    /**
+     * Returns a record which can be formatted by another thread than the one
+     * which logged it, with the caller found on the logging thread if it is
+     * printed. The class and method which logged the record are kept when
+     * they were set on it, and only looked up in the stack otherwise.
+     *
+     * @param record the record just logged
+     * @return the record to format later
+     */
+    public LogRecord prepareForAsyncFormat(LogRecord record)
+    {
+        if (!inferCaller)
+        {
+            // the logger name replaces the class name which would otherwise
+            // be inferred from the stack of the formatting thread
+            if (record.getLoggerName() == null)
+                record.getSourceClassName();
+            return record;
+        }
+
+        CallerLogRecord callerRecord = new CallerLogRecord(record);
+        String sourceClassName = callerRecord.getSourceClassName();
+
+        // the record infers our Logger as the caller of java.util.logging
+        if (sourceClassName == null
+            || sourceClassName.equals("net.java.sip.communicator.util.Logger"))
+        {
+            callerRecord.lineNumber = inferCaller(callerRecord);
+        }
+        return callerRecord;
+    }
+
+    /**
+     * Returns the "HH:mm:ss." prefix of a time, reusing the one of the
+     * previous record when they were logged during the same second.
+     *
+     * @param millis the time in milliseconds
+     * @return the time formatted up to the seconds
+     */
+    private static String getTimePrefix(long millis)
+    {
+        long second = millis / 1000;
+        TimePrefix prefix = timePrefix;
+
+        if (prefix == null || prefix.second != second)
+        {
+            prefix = new TimePrefix(second);
+            timePrefix = prefix;
+        }
+        return prefix.text;
+    }
+
     /**
      * Try to extract the name of the class and method that called the current
      * log statement.
@@ -149,4 +234,77 @@ public class ScLogFormatter
 
         return lineNumber;
     }
+
+    /**
+     * The "HH:mm:ss." prefix of the times during a second.
+     */
+    private static class TimePrefix
+    {
+        /**
+         * The second, in seconds since the epoch.
+         */
+        final long second;
+
+        /**
+         * The formatted prefix.
+         */
+        final String text;
+
+        TimePrefix(long second)
+        {
+            Calendar cal = Calendar.getInstance();
+            cal.setTimeInMillis(second * 1000);
+
+            StringBuilder sb = new StringBuilder(9);
+            appendTwoDigits(sb, cal.get(Calendar.HOUR_OF_DAY)).append(':');
+            appendTwoDigits(sb, cal.get(Calendar.MINUTE)).append(':');
+            appendTwoDigits(sb, cal.get(Calendar.SECOND)).append('.');
+
+            this.second = second;
+            this.text = sb.toString();
+        }
+
+        private static StringBuilder appendTwoDigits(StringBuilder sb,
+            int value)
+        {
+            if (value < 10)
+                sb.append('0');
+            return sb.append(value);
+        }
+    }
+
+    /**
+     * A copy of a log record with the line number of its caller, found on
+     * the thread which logged it. Copying the class and method of the
+     * record makes it infer them on the logging thread if they were not set.
+     */
+    private static class CallerLogRecord
+        extends LogRecord
+    {
+        /**
+         * Serial version UID.
+         */
+        private static final long serialVersionUID = 0L;
+
+        /**
+         * The line number that the caller made the call from, or -1.
+         */
+        int lineNumber = -1;
+
+        CallerLogRecord(LogRecord record)
+        {
+            super(record.getLevel(), record.getMessage());
+
+            setLoggerName(record.getLoggerName());
+            setMillis(record.getMillis());
+            setParameters(record.getParameters());
+            setResourceBundle(record.getResourceBundle());
+            setResourceBundleName(record.getResourceBundleName());
+            setSequenceNumber(record.getSequenceNumber());
+            setSourceClassName(record.getSourceClassName());
+            setSourceMethodName(record.getSourceMethodName());
+            setThreadID(record.getThreadID());
+            setThrown(record.getThrown());
+        }
+    }
 }
@@ -0,0 +1,281 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.impl.configuration;
+
+import java.beans.*;
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.configuration.*;
+
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.fileaccess.*;
+
+/**
+ * Tests the lookups of property names by prefix and suffix of a
+ * <tt>JdbcConfigService</tt> keeping its database in a temporary directory,
+ * the isolation of its transactions from the readers and their rollback.
+ */
+public class TestJdbcConfigService extends TestCase
+{
+    /**
+     * The directory of the database.
+     */
+    private File directory;
+
+    /**
+     * The file access service giving files in {@link #directory}.
+     */
+    private FileAccessService fileAccessService;
+
+    /**
+     * The configuration service under test.
+     */
+    private JdbcConfigService config;
+
+    /**
+     * Create a TestJdbcConfigService wrapper over the test with the
+     * specified name.
+     * @param name the name of the test to run
+     */
+    public TestJdbcConfigService(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Creates a configuration service over an empty directory.
+     * @throws Exception if anything goes wrong.
+     */
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        directory = File.createTempFile("configuration", "");
+        directory.delete();
+        directory.mkdirs();
+
+        fileAccessService = (FileAccessService) Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[] { FileAccessService.class },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method,
+                    Object[] args)
+                {
+                    if (!method.getName().equals("getPrivatePersistentFile"))
+                        return null;
+                    return new File(directory, (String) args[0]);
+                }
+            });
+        config = new JdbcConfigService(fileAccessService);
+    }
+
+    /**
+     * Closes the database and deletes its directory.
+     * @throws Exception if anything goes wrong.
+     */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        try
+        {
+            config.storeConfiguration();
+        }
+        finally
+        {
+            delete(directory);
+        }
+
+        super.tearDown();
+    }
+
+    /**
+     * Looks up names by exact prefix, by partial prefix and by suffix,
+     * after removing a name whose node has children, and with a service
+     * which loaded the names from the database.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testNamesByPrefixAndSuffix() throws Exception
+    {
+        String[] names = new String[]
+            {
+                "a.b.c", "a.b.d", "a.bx.e", "a.b.c.f", "x.c", "c"
+            };
+
+        for (String name : names)
+            config.setProperty(name, "value");
+
+        assertNames(new String[] { "a.b.c", "a.b.d" },
+            config.getPropertyNamesByPrefix("a.b", true));
+        assertNames(new String[] { "a.b.c", "a.b.d", "a.bx.e", "a.b.c.f" },
+            config.getPropertyNamesByPrefix("a.b", false));
+        // a name without a dot has no suffix
+        assertNames(new String[] { "a.b.c", "x.c" },
+            config.getPropertyNamesBySuffix("c"));
+        assertNames(new String[0],
+            config.getPropertyNamesByPrefix("a.c", false));
+
+        // removing a name removes the names below it too
+        config.removeProperty("a.b.c");
+        assertNames(new String[] { "a.b.d" },
+            config.getPropertyNamesByPrefix("a.b", true));
+        assertNames(new String[0],
+            config.getPropertyNamesByPrefix("a.b.c", false));
+        assertNames(new String[] { "x.c" },
+            config.getPropertyNamesBySuffix("c"));
+
+        config.storeConfiguration();
+        config = new JdbcConfigService(fileAccessService);
+        assertNames(new String[] { "a.b.d", "a.bx.e" },
+            config.getPropertyNamesByPrefix("a.b", false));
+        assertNames(new String[] { "x.c" },
+            config.getPropertyNamesBySuffix("c"));
+    }
+
+    /**
+     * Reads properties from another thread while <tt>setProperties</tt> has
+     * changed some of them but not committed, and checks that the reader is
+     * not blocked and sees none of the changes until the commit.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testReadDuringWrite() throws Exception
+    {
+        config.setProperty("a.x", "old");
+        config.setProperty("a.y", "old");
+
+        final List<Object> read = new ArrayList<Object>();
+        config.addVetoableChangeListener("a.y",
+            new ConfigVetoableChangeListener()
+            {
+                public void vetoableChange(PropertyChangeEvent evt)
+                {
+                    Thread reader = new Thread()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            read.add(config.getProperty("a.x"));
+                            read.add(config.getProperty("a.y"));
+                            read.add(config.getPropertyNamesByPrefix(
+                                "a", true).size());
+                        }
+                    };
+                    reader.start();
+                    try
+                    {
+                        reader.join(5000);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+
+        Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        properties.put("a.x", "new");
+        properties.put("a.z", "new");
+        properties.put("a.y", "new");
+        config.setProperties(properties);
+
+        assertEquals(Arrays.<Object>asList("old", "old", 2), read);
+        assertEquals("new", config.getProperty("a.x"));
+        assertEquals("new", config.getProperty("a.y"));
+        assertEquals(3, config.getPropertyNamesByPrefix("a", true).size());
+    }
+
+    /**
+     * Vetoes the last change of <tt>setProperties</tt> and checks that none
+     * of its changes is kept or notified, in memory and in the database.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testRollback() throws Exception
+    {
+        config.setProperty("a.x", "old");
+
+        final List<String> changed = new ArrayList<String>();
+        config.addPropertyChangeListener(new PropertyChangeListener()
+        {
+            public void propertyChange(PropertyChangeEvent evt)
+            {
+                changed.add(evt.getPropertyName());
+            }
+        });
+        config.addVetoableChangeListener("a.y",
+            new ConfigVetoableChangeListener()
+            {
+                public void vetoableChange(PropertyChangeEvent evt)
+                {
+                    throw new ConfigPropertyVetoException("vetoed", evt);
+                }
+            });
+
+        Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        properties.put("a.x", "new");
+        properties.put("a.z", "new");
+        properties.put("a.y", "new");
+        try
+        {
+            config.setProperties(properties);
+            fail("The change was not vetoed");
+        }
+        catch (ConfigPropertyVetoException e)
+        {
+            // expected
+        }
+
+        assertTrue(changed.isEmpty());
+        assertEquals("old", config.getProperty("a.x"));
+        assertNull(config.getProperty("a.z"));
+        assertNames(new String[] { "a.x" },
+            config.getPropertyNamesByPrefix("a", true));
+
+        // the service can still be changed after the rollback
+        config.setProperty("a.z", "new");
+        assertEquals(Arrays.asList("a.z"), changed);
+
+        config.storeConfiguration();
+        config = new JdbcConfigService(fileAccessService);
+        assertEquals("old", config.getProperty("a.x"));
+        assertEquals("new", config.getProperty("a.z"));
+        assertNull(config.getProperty("a.y"));
+    }
+
+    /**
+     * Asserts that a lookup returned the expected names, in any order.
+     *
+     * @param expected the expected names
+     * @param actual the names returned
+     */
+    private static void assertNames(String[] expected, List<String> actual)
+    {
+        assertEquals(new HashSet<String>(Arrays.asList(expected)),
+            new HashSet<String>(actual));
+        assertEquals(expected.length, actual.size());
+    }
+
+    /**
+     * Deletes a file or a directory with its content.
+     *
+     * @param file the file to delete
+     */
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+
+        if (children != null)
+        {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+}
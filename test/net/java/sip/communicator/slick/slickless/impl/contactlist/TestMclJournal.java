@@ -0,0 +1,221 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.impl.contactlist;
+
+import java.io.*;
+import java.util.*;
+
+import javax.xml.parsers.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.contactlist.*;
+
+import org.w3c.dom.*;
+
+/**
+ * Tests that the records appended to a <tt>MclJournal</tt> are read back in
+ * order, and that reading stops at a record cut short or damaged by a crash.
+ */
+public class TestMclJournal extends TestCase
+{
+    /**
+     * The file of the journal under test.
+     */
+    private File file;
+
+    /**
+     * Create a TestMclJournal wrapper over the test with the specified name.
+     * @param name the name of the test to run
+     */
+    public TestMclJournal(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Creates the file of the journal.
+     * @throws Exception if anything goes wrong.
+     */
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        file = File.createTempFile("contactlist", ".journal");
+        file.delete();
+    }
+
+    /**
+     * Deletes the file of the journal.
+     * @throws Exception if anything goes wrong.
+     */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        file.delete();
+
+        super.tearDown();
+    }
+
+    /**
+     * Appends records in two batches and reads them with a new journal.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testAppendAndRead() throws Exception
+    {
+        MclJournal journal = new MclJournal(file);
+        List<MclJournal.Record> records = createRecords();
+
+        journal.append(records.subList(0, 2));
+        journal.append(records.subList(2, 3));
+        assertEquals(3, journal.getRecordCount());
+
+        journal = new MclJournal(file);
+        assertRecords(records, journal.read());
+        assertEquals(3, journal.getRecordCount());
+
+        journal.clear();
+        assertFalse(file.exists());
+        assertEquals(0, journal.getRecordCount());
+        assertTrue(journal.read().isEmpty());
+    }
+
+    /**
+     * Cuts the last record of the journal at every possible length and
+     * checks that the records before it are read.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testReadStopsAtTornTail() throws Exception
+    {
+        MclJournal journal = new MclJournal(file);
+        List<MclJournal.Record> records = createRecords();
+
+        journal.append(records.subList(0, 2));
+        long length = file.length();
+        journal.append(records.subList(2, 3));
+        long fullLength = file.length();
+
+        for (long cut = length; cut < fullLength; cut++)
+        {
+            truncate(cut);
+
+            assertRecords(records.subList(0, 2),
+                new MclJournal(file).read());
+        }
+    }
+
+    /**
+     * Damages a byte of the second record and checks that only the first
+     * one is read.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testReadStopsAtDamagedRecord() throws Exception
+    {
+        MclJournal journal = new MclJournal(file);
+        List<MclJournal.Record> records = createRecords();
+
+        journal.append(records.subList(0, 1));
+        long length = file.length();
+        journal.append(records.subList(1, 3));
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            // the first byte of the payload, after the length and checksum
+            long offset = length + 4 + 8;
+
+            raf.seek(offset);
+            int b = raf.read();
+            raf.seek(offset);
+            raf.write(b ^ 0xff);
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        List<MclJournal.Record> read = new MclJournal(file).read();
+
+        assertRecords(records.subList(0, 1), read);
+    }
+
+    /**
+     * Creates a put record for a meta contact, a put record for a group and
+     * a remove record.
+     *
+     * @return the records
+     * @throws Exception if the nodes of the records cannot be created
+     */
+    private static List<MclJournal.Record> createRecords()
+        throws Exception
+    {
+        Document document = DocumentBuilderFactory.newInstance()
+            .newDocumentBuilder().newDocument();
+
+        Element metaContact = document.createElement("meta-contact");
+        metaContact.setAttribute("uid", "mc1");
+        Element displayName = document.createElement("display-name");
+        displayName.appendChild(document.createTextNode("Jörg"));
+        metaContact.appendChild(displayName);
+
+        Element group = document.createElement("group");
+        group.setAttribute("uid", "g1");
+        group.setAttribute("name", "Friends");
+
+        List<MclJournal.Record> records = new ArrayList<MclJournal.Record>();
+        records.add(MclJournal.createPutRecord(
+            MclJournal.PUT_META_CONTACT, "mc1", "g1", metaContact));
+        records.add(MclJournal.createPutRecord(
+            MclJournal.PUT_GROUP, "g1", null, group));
+        records.add(MclJournal.createRemoveRecord(
+            MclJournal.REMOVE_META_CONTACT, "mc0"));
+        return records;
+    }
+
+    /**
+     * Asserts that the records read are the records appended.
+     *
+     * @param expected the records appended
+     * @param actual the records read
+     */
+    private static void assertRecords(List<MclJournal.Record> expected,
+                                      List<MclJournal.Record> actual)
+    {
+        assertEquals(expected.size(), actual.size());
+
+        for (int i = 0; i < expected.size(); i++)
+        {
+            MclJournal.Record e = expected.get(i);
+            MclJournal.Record a = actual.get(i);
+
+            assertEquals(e.type, a.type);
+            assertEquals(e.uid, a.uid);
+            assertEquals(e.parentUID, a.parentUID);
+            assertEquals(e.xml, a.xml);
+        }
+    }
+
+    /**
+     * Truncates the file of the journal.
+     *
+     * @param length the new length of the file
+     * @throws IOException if the file cannot be truncated
+     */
+    private void truncate(long length)
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            raf.setLength(length);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+}
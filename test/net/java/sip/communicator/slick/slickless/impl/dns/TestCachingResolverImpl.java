@@ -0,0 +1,375 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.impl.dns;
+
+import java.io.*;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.net.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.dns.*;
+import net.java.sip.communicator.service.dns.*;
+
+import org.jitsi.service.configuration.*;
+import org.xbill.DNS.*;
+
+/**
+ * Tests the answers of a <tt>CachingResolverImpl</tt> in front of a stub
+ * resolver, on a clock set by the tests: the TTL they have left, the TTL of
+ * negative answers, the expired answers returned when the resolver fails and
+ * the refresh of the answers in active use.
+ */
+public class TestCachingResolverImpl extends TestCase
+{
+    /**
+     * The name asked for by the tests.
+     */
+    private static final Name NAME = Name.fromConstantString("jitsi.org.");
+
+    /**
+     * The resolver answering the queries which are not answered by the
+     * cache.
+     */
+    private StubResolver stub;
+
+    /**
+     * The current time of the cache in milliseconds.
+     */
+    private volatile long now;
+
+    /**
+     * The cache under test.
+     */
+    private CachingResolverImpl cache;
+
+    /**
+     * Create a TestCachingResolverImpl wrapper over the test with the
+     * specified name.
+     * @param name the name of the test to run
+     */
+    public TestCachingResolverImpl(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Creates a cache with the default configuration in front of a stub
+     * resolver.
+     * @throws Exception if anything goes wrong.
+     */
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        stub = new StubResolver();
+        now = 1000000;
+        cache = createCache(true);
+    }
+
+    /**
+     * Stops the cache.
+     * @throws Exception if anything goes wrong.
+     */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        cache.shutdown();
+
+        super.tearDown();
+    }
+
+    /**
+     * Checks that an answer is returned from the cache with the TTL it has
+     * left, until it expires.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testTtlDecrement() throws Exception
+    {
+        // a prefetch would refresh the answer when it is about to expire
+        cache.shutdown();
+        cache = createCache(false);
+
+        stub.answer(Rcode.NOERROR, 300);
+
+        assertEquals(300, getAnswerTtl(query()));
+        now += 100 * 1000;
+        assertEquals(200, getAnswerTtl(query()));
+        now += 199500;
+        assertEquals(1, getAnswerTtl(query()));
+        assertEquals(1, stub.queries);
+
+        now += 1000;
+        assertEquals(300, getAnswerTtl(query()));
+        assertEquals(2, stub.queries);
+    }
+
+    /**
+     * Checks that a negative answer is kept for the minimum TTL of the SOA
+     * record of its authority section.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testNegativeTtl() throws Exception
+    {
+        stub.answer(Rcode.NXDOMAIN, 3600);
+
+        assertEquals(Rcode.NXDOMAIN, query().getRcode());
+        now += 60 * 1000;
+
+        Message response = query();
+        assertEquals(Rcode.NXDOMAIN, response.getRcode());
+        assertEquals(60,
+            response.getSectionArray(Section.AUTHORITY)[0].getTTL());
+        assertEquals(1, stub.queries);
+
+        now += 61 * 1000;
+        query();
+        assertEquals(2, stub.queries);
+    }
+
+    /**
+     * Checks that an expired answer is returned with a short TTL when the
+     * resolver fails or the servers answer with a failure, until the stale
+     * period ends.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testServeStale() throws Exception
+    {
+        stub.answer(Rcode.NOERROR, 300);
+        query();
+
+        now += 400 * 1000;
+        stub.fail = true;
+        assertEquals(30, getAnswerTtl(query()));
+
+        stub.fail = false;
+        stub.answer(Rcode.SERVFAIL, 300);
+        assertEquals(30, getAnswerTtl(query()));
+        assertEquals(3, stub.queries);
+
+        now += CachingResolver.PDEFAULT_DNS_CACHE_STALE_PERIOD * 1000L;
+        assertEquals(Rcode.SERVFAIL, query().getRcode());
+
+        stub.fail = true;
+        try
+        {
+            query();
+            fail("The expired answer was returned after the stale period");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+    }
+
+    /**
+     * Asks for an answer again only once it has expired, as the dnsjava
+     * caches do, and checks that the new answer is then refreshed in the
+     * background before it expires.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testPrefetch() throws Exception
+    {
+        stub.answer(Rcode.NOERROR, 3600);
+        query();
+
+        now += 3600 * 1000;
+        query();
+        assertEquals(2, stub.queries);
+
+        // the refresher looks for expiring answers every ten seconds
+        now += 3590 * 1000;
+        long deadline = System.currentTimeMillis() + 15 * 1000;
+        while (stub.queries < 3 && System.currentTimeMillis() < deadline)
+            Thread.sleep(100);
+        assertEquals(3, stub.queries);
+
+        // wait for the new answer to be cached
+        while (getAnswerTtl(query()) != 3600
+                && System.currentTimeMillis() < deadline)
+            Thread.sleep(100);
+
+        now += 20 * 1000;
+        assertEquals(3580, getAnswerTtl(query()));
+        assertEquals(3, stub.queries);
+    }
+
+    /**
+     * Creates a cache in front of {@link #stub} on the clock of the tests,
+     * with the default configuration except for the prefetch.
+     *
+     * @param prefetch whether the answers in active use are refreshed
+     * before they expire
+     * @return the cache
+     */
+    private CachingResolverImpl createCache(final boolean prefetch)
+    {
+        ConfigurationService config = (ConfigurationService)
+            java.lang.reflect.Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[] { ConfigurationService.class },
+                new InvocationHandler()
+                {
+                    public Object invoke(Object proxy, Method method,
+                        Object[] args)
+                    {
+                        if (CachingResolver.PNAME_DNS_CACHE_PREFETCH_ENABLED
+                                .equals(args[0]))
+                            return prefetch;
+                        // the default value of getInt and getBoolean
+                        return args[1];
+                    }
+                });
+
+        return new CachingResolverImpl(stub, config)
+        {
+            @Override
+            protected long currentTimeMillis()
+            {
+                return now;
+            }
+        };
+    }
+
+    /**
+     * Sends a query for the address of {@link #NAME} to the cache.
+     *
+     * @return the response
+     * @throws IOException if the cache has no response
+     */
+    private Message query()
+        throws IOException
+    {
+        return cache.send(Message.newQuery(
+            Record.newRecord(NAME, Type.A, DClass.IN)));
+    }
+
+    /**
+     * Returns the TTL of the answer of a response.
+     *
+     * @param response the response
+     * @return the TTL of its first answer record in seconds
+     */
+    private static long getAnswerTtl(Message response)
+    {
+        return response.getSectionArray(Section.ANSWER)[0].getTTL();
+    }
+
+    /**
+     * A resolver giving the same answer to every query, or failing.
+     */
+    private class StubResolver
+        implements Resolver
+    {
+        /**
+         * The response code of the answers.
+         */
+        private int rcode;
+
+        /**
+         * The TTL of the records of the answers in seconds.
+         */
+        private long ttl;
+
+        /**
+         * Whether the queries fail.
+         */
+        volatile boolean fail;
+
+        /**
+         * The number of queries received.
+         */
+        volatile int queries;
+
+        /**
+         * Sets the answer to the next queries. A negative answer has a SOA
+         * record with a minimum TTL of <tt>120</tt> seconds.
+         *
+         * @param rcode the response code of the answer
+         * @param ttl the TTL of its records in seconds
+         */
+        synchronized void answer(int rcode, long ttl)
+        {
+            this.rcode = rcode;
+            this.ttl = ttl;
+        }
+
+        public synchronized Message send(Message query)
+            throws IOException
+        {
+            queries++;
+            if (fail)
+                throw new SocketTimeoutException("timed out");
+
+            Message response = new Message(query.getHeader().getID());
+
+            response.getHeader().setFlag(Flags.QR);
+            response.getHeader().setRcode(rcode);
+            response.addRecord(query.getQuestion(), Section.QUESTION);
+            if (rcode == Rcode.NOERROR)
+            {
+                response.addRecord(
+                    new ARecord(NAME, DClass.IN, ttl,
+                        InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 })),
+                    Section.ANSWER);
+            }
+            else if (rcode == Rcode.NXDOMAIN)
+            {
+                Name zone = Name.fromConstantString("org.");
+
+                response.addRecord(
+                    new SOARecord(zone, DClass.IN, ttl,
+                        Name.fromConstantString("ns.org."),
+                        Name.fromConstantString("admin.org."),
+                        1, 3600, 600, 86400, 120),
+                    Section.AUTHORITY);
+            }
+            return response;
+        }
+
+        public Object sendAsync(Message query, ResolverListener listener)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public void setPort(int port)
+        {
+        }
+
+        public void setTCP(boolean flag)
+        {
+        }
+
+        public void setIgnoreTruncation(boolean flag)
+        {
+        }
+
+        public void setEDNS(int level)
+        {
+        }
+
+        @SuppressWarnings("rawtypes")
+        public void setEDNS(int level, int payloadSize, int flags,
+            List options)
+        {
+        }
+
+        public void setTSIGKey(TSIG key)
+        {
+        }
+
+        public void setTimeout(int secs, int msecs)
+        {
+        }
+
+        public void setTimeout(int secs)
+        {
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.impl.gui.main.contactlist;
+
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.gui.main.contactlist.*;
+
+/**
+ * Tests the matching of <tt>ContactSearchKeys</tt> against search queries and
+ * which queries can be answered from the matches of a previous one.
+ */
+public class TestContactSearchKeys extends TestCase
+{
+    /**
+     * Create a TestContactSearchKeys wrapper over the test with the specified
+     * name.
+     * @param name the name of the test to run
+     */
+    public TestContactSearchKeys(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Matches the keys of a contact against queries differing in case and
+     * accents and against phone numbers written differently.
+     */
+    public void testMatches()
+    {
+        ContactSearchKeys keys
+            = createKeys("Jos\u00e9 M\u00fcller", "+1-555-12-34");
+
+        assertTrue(keys.matches(ContactSearchKeys.createQuery("jose")));
+        assertTrue(keys.matches(ContactSearchKeys.createQuery("MULLER")));
+        assertTrue(keys.matches(ContactSearchKeys.createQuery("555 12")));
+        assertTrue(keys.matches(ContactSearchKeys.createQuery("(555) 1234")));
+        assertFalse(keys.matches(ContactSearchKeys.createQuery("maria")));
+        assertFalse(keys.matches(ContactSearchKeys.createQuery("555 13")));
+        assertFalse(ContactSearchKeys.EMPTY.matches(
+            ContactSearchKeys.createQuery("jose")));
+    }
+
+    /**
+     * Checks that only queries adding characters after the ones of the
+     * previous query are answered from its matches.
+     */
+    public void testRefines()
+    {
+        assertRefines(true, "ab", "abc");
+        assertRefines(true, "AB", "abc");
+        assertRefines(true, "jo", "jos\u00e9");
+        assertRefines(false, "ab", "xab");
+        assertRefines(false, "abc", "ab");
+    }
+
+    /**
+     * Checks that a query which becomes a phone number, or stops being one,
+     * is not answered from the matches of the previous query, which did not
+     * compare the digits the same way.
+     */
+    public void testRefinesPhoneNumber()
+    {
+        ContactSearchKeys keys = createKeys("Alice", "0049 30 1234");
+
+        assertFalse(keys.matches(ContactSearchKeys.createQuery("+")));
+        assertTrue(keys.matches(ContactSearchKeys.createQuery("+4")));
+        assertRefines(false, "+", "+4");
+        assertRefines(false, "12", "12a");
+
+        assertRefines(true, "+4", "+49");
+        assertRefines(true, "+49", "+49 3");
+        assertRefines(false, "+49 3", "+493");
+    }
+
+    /**
+     * Asserts whether a query refines a previous one.
+     *
+     * @param expected whether <tt>next</tt> should refine <tt>previous</tt>
+     * @param previous the string of the previous query
+     * @param next the string of the next query
+     */
+    private static void assertRefines(boolean expected, String previous,
+                                      String next)
+    {
+        assertEquals("\"" + previous + "\" -> \"" + next + "\"",
+            expected,
+            ContactSearchKeys.createQuery(next).refines(
+                ContactSearchKeys.createQuery(previous)));
+    }
+
+    /**
+     * Creates the search keys of a contact.
+     *
+     * @param searchStrings the search strings of the contact
+     * @return the search keys
+     */
+    private static ContactSearchKeys createKeys(String... searchStrings)
+    {
+        return new ContactSearchKeys(Arrays.asList(searchStrings).iterator());
+    }
+}
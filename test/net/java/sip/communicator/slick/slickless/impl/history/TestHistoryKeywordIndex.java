@@ -0,0 +1,203 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * Tests that the journal of <tt>HistoryKeywordIndex</tt> is loaded back
+ * unchanged after it has been compacted, that an index dropped from memory
+ * is loaded again, and which words the parts of a keyword are matched with.
+ */
+public class TestHistoryKeywordIndex extends TestCase
+{
+    /**
+     * The longest word stored by the index.
+     */
+    private static final int MAX_WORD_LENGTH = 64;
+
+    /**
+     * The directory of the history under test.
+     */
+    private File directory;
+
+    /**
+     * Create a TestHistoryKeywordIndex wrapper over the test with the
+     * specified name.
+     * @param name the name of the test to run
+     */
+    public TestHistoryKeywordIndex(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Creates an empty history directory.
+     * @throws Exception if anything goes wrong.
+     */
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        directory = File.createTempFile("history", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    /**
+     * Deletes the history directory.
+     * @throws Exception if anything goes wrong.
+     */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        TestSegmentHistoryStore.delete(directory);
+
+        super.tearDown();
+    }
+
+    /**
+     * Indexes the records of two segments, removes the biggest so that the
+     * journal is compacted, and checks the candidates found by a new index.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testReloadAfterCompact() throws Exception
+    {
+        File index = new File(directory, HistoryKeywordIndex.INDEX_FILE);
+        HistoryKeywordIndex keywordIndex = new HistoryKeywordIndex(directory);
+
+        addRecords(keywordIndex, "1.seg", 200);
+        addRecords(keywordIndex, "2.seg", 10);
+
+        BitSet candidates
+            = keywordIndex.findCandidates("2.seg", 10, "msg",
+                new String[] { "hello" });
+        assertEquals(10, candidates.cardinality());
+
+        long length = index.length();
+        keywordIndex.removeSegments(Collections.singleton("1.seg"));
+        assertTrue(index.length() < length / 5);
+
+        keywordIndex = new HistoryKeywordIndex(directory);
+        assertNull(keywordIndex.findCandidates("1.seg", 200, "msg",
+            new String[] { "hello" }));
+        assertCandidates(keywordIndex);
+
+        // an index dropped from memory is loaded again when needed
+        assertTrue(keywordIndex.unloadIfIdle(0));
+        assertCandidates(keywordIndex);
+    }
+
+    /**
+     * Checks that a keyword part is only looked for at the start, at the end
+     * or as the whole of a word when the keyword puts it there, and that
+     * records with a word too long to be indexed are always candidates.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testWordEdges() throws Exception
+    {
+        HistoryKeywordIndex keywordIndex = new HistoryKeywordIndex(directory);
+        String[] messages = new String[]
+            {
+                "Hello world",
+                "othello",
+                "yellow bellow",
+                new String(new char[MAX_WORD_LENGTH + 1]).replace('\0', 'z')
+            };
+
+        for (int i = 0; i < messages.length; i++)
+        {
+            keywordIndex.addRecord(new RecordLocation("3.seg", i),
+                new HistoryRecord(
+                    new String[] { "msg" },
+                    new String[] { messages[i] },
+                    new Date(i)));
+        }
+
+        assertCandidates(keywordIndex, "hello", 0, 1, 3);
+        assertCandidates(keywordIndex, " hello", 0, 3);
+        assertCandidates(keywordIndex, "hello ", 0, 1, 3);
+        assertCandidates(keywordIndex, " HELLO ", 0, 3);
+        assertCandidates(keywordIndex, "ello", 0, 1, 2, 3);
+        assertCandidates(keywordIndex, " bel", 2, 3);
+        assertCandidates(keywordIndex, "llo w", 0, 3);
+        assertCandidates(keywordIndex, "world hello", 0, 3);
+        assertCandidates(keywordIndex, " x", 3);
+    }
+
+    /**
+     * Checks the candidates found in the records indexed in "2.seg".
+     *
+     * @param keywordIndex the index to search
+     */
+    private static void assertCandidates(HistoryKeywordIndex keywordIndex)
+    {
+        BitSet candidates = keywordIndex.findCandidates("2.seg", 10, "msg",
+            new String[] { "hello" });
+        assertNotNull(candidates);
+        assertEquals(10, candidates.cardinality());
+
+        candidates = keywordIndex.findCandidates("2.seg", 10, "msg",
+            new String[] { "hello", "word7" });
+        assertNotNull(candidates);
+        assertEquals(1, candidates.cardinality());
+        assertTrue(candidates.get(7));
+
+        candidates = keywordIndex.findCandidates("2.seg", 10, "dir",
+            new String[] { "hello" });
+        assertNotNull(candidates);
+        assertTrue(candidates.isEmpty());
+    }
+
+    /**
+     * Asserts the candidates found for a keyword in the records indexed in
+     * "3.seg".
+     *
+     * @param keywordIndex the index to search
+     * @param keyword the keyword to search for
+     * @param expected the indexes of the expected candidates
+     */
+    private static void assertCandidates(HistoryKeywordIndex keywordIndex,
+                                         String keyword,
+                                         int... expected)
+    {
+        BitSet candidates = keywordIndex.findCandidates("3.seg", 4, "msg",
+            new String[] { keyword });
+        BitSet expectedCandidates = new BitSet();
+
+        for (int index : expected)
+            expectedCandidates.set(index);
+        assertEquals(keyword, expectedCandidates, candidates);
+    }
+
+    /**
+     * Indexes records of a segment.
+     *
+     * @param keywordIndex the index
+     * @param segment the name of the segment
+     * @param count the number of records
+     */
+    private static void addRecords(HistoryKeywordIndex keywordIndex,
+                                   String segment,
+                                   int count)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            keywordIndex.addRecord(new RecordLocation(segment, i),
+                new HistoryRecord(
+                    new String[] { "dir", "msg" },
+                    new String[] { "in", "Hello word" + i },
+                    new Date(i)));
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.history.*;
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * Tests that a <tt>HistoryManifest</tt> is loaded back by a new manifest, and
+ * that a history created in the history directory without the manifest makes
+ * the next load ask for a rebuild.
+ */
+public class TestHistoryManifest extends TestCase
+{
+    /**
+     * The history directory under test.
+     */
+    private File directory;
+
+    /**
+     * Create a TestHistoryManifest wrapper over the test with the specified
+     * name.
+     * @param name the name of the test to run
+     */
+    public TestHistoryManifest(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Creates an empty history directory.
+     * @throws Exception if anything goes wrong.
+     */
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        directory = File.createTempFile("history", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    /**
+     * Deletes the history directory.
+     * @throws Exception if anything goes wrong.
+     */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        TestSegmentHistoryStore.delete(directory);
+
+        super.tearDown();
+    }
+
+    /**
+     * Adds histories to a manifest and checks that a new manifest loads
+     * them, even after their stores added files and directories to them.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testLoad() throws Exception
+    {
+        HistoryManifest manifest = new HistoryManifest(directory);
+
+        manifest.put(createHistory("messages", "account", "alice"));
+        manifest.put(createHistory("messages", "account", "bob"));
+        new File(directory, "messages/account/alice/segments").mkdirs();
+
+        manifest = new HistoryManifest(directory);
+        assertTrue(manifest.load());
+        assertEquals(2, manifest.getEntries().size());
+        assertNotNull(manifest.get(
+            HistoryID.createFromID(
+                new String[] { "messages", "account", "alice" })));
+    }
+
+    /**
+     * Creates histories next to the histories of the manifest and in a new
+     * directory tree, and checks that the manifest asks for a rebuild until
+     * it knows them.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testHistoryCreatedOutside() throws Exception
+    {
+        HistoryManifest manifest = new HistoryManifest(directory);
+
+        manifest.put(createHistory("messages", "account", "alice"));
+
+        HistoryManifest.Entry carol
+            = createHistory("messages", "account", "carol");
+        manifest = new HistoryManifest(directory);
+        assertFalse(manifest.load());
+        assertTrue(manifest.getEntries().isEmpty());
+
+        manifest.reset(Arrays.asList(
+            createHistory("messages", "account", "alice"), carol));
+        manifest = new HistoryManifest(directory);
+        assertTrue(manifest.load());
+        assertEquals(2, manifest.getEntries().size());
+
+        createHistory("callhistory", "default");
+        manifest = new HistoryManifest(directory);
+        assertFalse(manifest.load());
+    }
+
+    /**
+     * Creates the directory and the structure file of a history.
+     *
+     * @param id the components of the ID of the history
+     * @return the entry of the history
+     * @throws IOException if the structure file cannot be created
+     */
+    private HistoryManifest.Entry createHistory(String... id)
+        throws IOException
+    {
+        File historyDirectory = directory;
+
+        for (String component : id)
+            historyDirectory = new File(historyDirectory, component);
+        historyDirectory.mkdirs();
+        new FileOutputStream(
+            new File(historyDirectory, HistoryServiceImpl.DATA_FILE)).close();
+
+        return new HistoryManifest.Entry(
+            HistoryID.createFromID(id),
+            historyDirectory,
+            new HistoryRecordStructure(new String[] { "msg" }));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * Tests that the journal of <tt>HistoryRecordIdIndex</tt> is compacted once
+ * segments are removed, and that a new index finds the same records in the
+ * compacted journal.
+ */
+public class TestHistoryRecordIdIndex extends TestCase
+{
+    /**
+     * The directory of the history under test.
+     */
+    private File directory;
+
+    /**
+     * Create a TestHistoryRecordIdIndex wrapper over the test with the
+     * specified name.
+     * @param name the name of the test to run
+     */
+    public TestHistoryRecordIdIndex(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Creates an empty history directory.
+     * @throws Exception if anything goes wrong.
+     */
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        directory = File.createTempFile("history", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    /**
+     * Deletes the history directory.
+     * @throws Exception if anything goes wrong.
+     */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        TestSegmentHistoryStore.delete(directory);
+
+        super.tearDown();
+    }
+
+    /**
+     * Indexes the records of two segments and a new value of a record,
+     * removes the biggest segment so that the journal is compacted, and
+     * checks the records found by a new index.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testReloadAfterCompact() throws Exception
+    {
+        int max = HistoryWriterImpl.MAX_RECORDS_PER_FILE;
+        File index = new File(directory, HistoryRecordIdIndex.INDEX_FILE);
+        SegmentHistoryStore store = new SegmentHistoryStore(directory);
+        HistoryRecordIdIndex idIndex = createIndex();
+        List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+
+        for (int i = 0; i < max + 10; i++)
+        {
+            records.add(new HistoryRecord(
+                new String[] { "uid", "msg" },
+                new String[] { "id" + i, "message " + i },
+                new Date(i)));
+        }
+
+        List<RecordLocation> locations = store.addRecords(records);
+        idIndex.addRecords(locations, records);
+
+        RecordLocation renamed = locations.get(max + 3);
+        idIndex.addProperty(renamed, "uid", "renamed");
+
+        String first = locations.get(0).getSegment();
+        assertEquals(locations.get(7).getIndex(),
+            idIndex.find(store, "uid", "id7").getIndex());
+
+        long length = index.length();
+        store.removeSegments(Collections.singleton(first));
+        idIndex.removeSegments(Collections.singleton(first));
+        assertTrue(index.length() < length / 5);
+
+        idIndex = createIndex();
+        assertNull(idIndex.find(store, "uid", "id7"));
+        assertLocation(locations.get(max + 5),
+            idIndex.find(store, "uid", "id" + (max + 5)));
+        assertLocation(renamed, idIndex.find(store, "uid", "renamed"));
+        // the value replaced by the update still leads to the record
+        assertLocation(renamed,
+            idIndex.find(store, "uid", "id" + (max + 3)));
+    }
+
+    /**
+     * Creates an index of the <tt>uid</tt> property of the history.
+     *
+     * @return the index
+     */
+    private HistoryRecordIdIndex createIndex()
+    {
+        return new HistoryRecordIdIndex(directory,
+            Collections.singleton("uid"));
+    }
+
+    /**
+     * Asserts that two locations point to the same record.
+     *
+     * @param expected the expected location
+     * @param actual the location found
+     */
+    private static void assertLocation(RecordLocation expected,
+                                       RecordLocation actual)
+    {
+        assertNotNull(actual);
+        assertEquals(expected.getSegment(), actual.getSegment());
+        assertEquals(expected.getIndex(), actual.getIndex());
+    }
+}
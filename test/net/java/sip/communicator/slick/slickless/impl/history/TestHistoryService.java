@@ -0,0 +1,392 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.impl.history;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.history.*;
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.fileaccess.*;
+import org.osgi.framework.*;
+
+/**
+ * Runs the history service outside of an OSGi framework, with a
+ * configuration service backed by a map and a file access service keeping
+ * the histories in a temporary directory, and checks that the records
+ * written to the XML files, synchronously or by the asynchronous writer,
+ * are read back unchanged by the same service and by a new one.
+ */
+public class TestHistoryService extends TestCase
+{
+    /**
+     * The ID of the history under test.
+     */
+    private static final HistoryID HISTORY_ID
+        = HistoryID.createFromRawID(new String[] { "test", "contact" });
+
+    /**
+     * The property names of the test records.
+     */
+    private static final String[] PROPERTY_NAMES
+        = new String[] { "dir", "msg", "uid" };
+
+    /**
+     * The properties returned by the configuration service.
+     */
+    private final Map<String, String> properties
+        = new HashMap<String, String>();
+
+    /**
+     * The directory of the histories given by the file access service.
+     */
+    private File directory;
+
+    /**
+     * The bundle context giving the services to the history service.
+     */
+    private BundleContext bundleContext;
+
+    /**
+     * The service under test, <tt>null</tt> once stopped.
+     */
+    private HistoryServiceImpl service;
+
+    /**
+     * Create a TestHistoryService wrapper over the test with the specified
+     * name.
+     * @param name the name of the test to run
+     */
+    public TestHistoryService(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Creates the history directory and the bundle context, and disables
+     * the background compaction.
+     * @throws Exception if anything goes wrong.
+     */
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        directory = File.createTempFile("history", "");
+        directory.delete();
+        directory.mkdirs();
+
+        final Map<String, Object> services = new HashMap<String, Object>();
+        services.put(ConfigurationService.class.getName(),
+            newProxy(ConfigurationService.class, new ConfigurationHandler()));
+        services.put(FileAccessService.class.getName(),
+            newProxy(FileAccessService.class, new FileAccessHandler()));
+
+        bundleContext = newProxy(BundleContext.class, new InvocationHandler()
+        {
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                String name = method.getName();
+
+                // the name of the service stands for its reference
+                if (name.equals("getServiceReference"))
+                    return newServiceReference((String) args[0]);
+                if (name.equals("getService"))
+                    return services.get(args[0].toString());
+                return null;
+            }
+        });
+
+        properties.put(HistoryCompactionService.COMPACTION_ENABLED_PROPERTY,
+            "false");
+    }
+
+    /**
+     * Stops the service if a test left it running and deletes the
+     * histories.
+     * @throws Exception if anything goes wrong.
+     */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        try
+        {
+            stopService();
+        }
+        finally
+        {
+            delete(directory);
+        }
+
+        super.tearDown();
+    }
+
+    /**
+     * Writes records with markup characters, accents, line breaks and
+     * missing values, and reads them with the service which wrote them and
+     * with a new one parsing the files.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testWriteAndReopen() throws Exception
+    {
+        List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+
+        records.add(createRecord(0, "out", "<b>bold</b> & \"quoted\""));
+        records.add(createRecord(1, "in", "caf\u00e9 \u2013 \u65e5\u672c"));
+        records.add(createRecord(2, "in", "two\nlines\n"));
+        records.add(createRecord(3, "out", "]]> <![CDATA[ x"));
+
+        startService();
+        History history = service.createHistory(HISTORY_ID,
+            new HistoryRecordStructure(PROPERTY_NAMES));
+        HistoryWriter writer = history.getWriter();
+
+        for (HistoryRecord record : records)
+            writer.addRecord(record.getPropertyValues(),
+                record.getTimestamp());
+        writer.addRecord(new String[] { "in", null, "uid-4" },
+            new Date(timestamp(4)));
+
+        // a missing value leaves the property out of the record
+        records.add(new HistoryRecord(new String[] { "dir", "uid" },
+            new String[] { "in", "uid-4" }, new Date(timestamp(4))));
+
+        assertRecords(records, service.getHistory(HISTORY_ID));
+
+        stopService();
+        startService();
+        assertRecords(records, service.getHistory(HISTORY_ID));
+    }
+
+    /**
+     * Adds records through the asynchronous writer and checks that they are
+     * read right away in the order they were added, and by a new service
+     * once the first one is stopped.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testAsyncWrite() throws Exception
+    {
+        properties.put(HistoryServiceImpl.ASYNC_WRITE_ENABLED_PROPERTY,
+            "true");
+
+        int count = HistoryWriterImpl.MAX_RECORDS_PER_FILE + 20;
+        List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+
+        for (int i = 0; i < count; i++)
+            records.add(createRecord(i, (i % 2 == 0) ? "in" : "out",
+                "message " + i));
+
+        startService();
+        HistoryWriter writer = service.createHistory(HISTORY_ID,
+            new HistoryRecordStructure(PROPERTY_NAMES)).getWriter();
+
+        for (HistoryRecord record : records)
+            writer.addRecord(record.getPropertyValues(),
+                record.getTimestamp());
+
+        // readers wait for the queued records of their history
+        assertRecords(records, service.getHistory(HISTORY_ID));
+
+        writer.addRecord(createRecord(count, "in", "last").getPropertyValues(),
+            new Date(timestamp(count)));
+        records.add(createRecord(count, "in", "last"));
+
+        stopService();
+        startService();
+        assertRecords(records, service.getHistory(HISTORY_ID));
+    }
+
+    /**
+     * Creates and starts a history service over {@link #directory}.
+     * @throws Exception if the service cannot be created
+     */
+    private void startService()
+        throws Exception
+    {
+        service = new HistoryServiceImpl(bundleContext);
+    }
+
+    /**
+     * Stops the history service if it is running, writing the records it
+     * still has queued.
+     */
+    private void stopService()
+    {
+        if (service != null)
+        {
+            service.stop();
+            service = null;
+        }
+    }
+
+    /**
+     * Asserts that a history contains the given records, in the same order.
+     *
+     * @param expected the expected records
+     * @param history the history to read
+     */
+    private static void assertRecords(List<HistoryRecord> expected,
+                                      History history)
+    {
+        QueryResultSet<HistoryRecord> result
+            = history.getReader().findByStartDate(new Date(0));
+        List<HistoryRecord> actual = new ArrayList<HistoryRecord>();
+
+        while (result.hasNext())
+            actual.add(result.nextRecord());
+
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+        {
+            HistoryRecord e = expected.get(i);
+            HistoryRecord a = actual.get(i);
+
+            assertEquals(e.getTimestamp(), a.getTimestamp());
+            assertEquals(Arrays.asList(e.getPropertyNames()),
+                Arrays.asList(a.getPropertyNames()));
+            assertEquals(Arrays.asList(e.getPropertyValues()),
+                Arrays.asList(a.getPropertyValues()));
+        }
+    }
+
+    /**
+     * Creates a test record.
+     *
+     * @param i the number of the record, giving its timestamp and uid
+     * @param dir the direction of the message
+     * @param msg the message
+     * @return the record
+     */
+    private static HistoryRecord createRecord(int i, String dir, String msg)
+    {
+        return new HistoryRecord(PROPERTY_NAMES,
+            new String[] { dir, msg, "uid-" + i },
+            new Date(timestamp(i)));
+    }
+
+    /**
+     * Returns the timestamp of a test record.
+     *
+     * @param i the number of the record
+     * @return its timestamp in milliseconds
+     */
+    private static long timestamp(int i)
+    {
+        return 1300000000000L + i * 1001L;
+    }
+
+    /**
+     * Creates a reference to a service which is its name.
+     *
+     * @param serviceName the name of the service
+     * @return the reference
+     */
+    private static ServiceReference newServiceReference(
+        final String serviceName)
+    {
+        return newProxy(ServiceReference.class, new InvocationHandler()
+        {
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                if (method.getName().equals("toString"))
+                    return serviceName;
+                if (method.getName().equals("hashCode"))
+                    return serviceName.hashCode();
+                if (method.getName().equals("equals"))
+                    return proxy == args[0];
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Creates a proxy implementing an interface.
+     *
+     * @param type the interface
+     * @param handler the handler of the calls
+     * @return the proxy
+     */
+    private static <T> T newProxy(Class<T> type, InvocationHandler handler)
+    {
+        return type.cast(java.lang.reflect.Proxy.newProxyInstance(
+            TestHistoryService.class.getClassLoader(),
+            new Class<?>[] { type },
+            handler));
+    }
+
+    /**
+     * Deletes a file or a directory with its content.
+     *
+     * @param file the file to delete
+     */
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+
+        if (children != null)
+        {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    /**
+     * Answers the getters of the configuration service from
+     * {@link #properties}, or with the given default values.
+     */
+    private class ConfigurationHandler
+        implements InvocationHandler
+    {
+        public Object invoke(Object proxy, Method method, Object[] args)
+        {
+            String name = method.getName();
+
+            if (!name.startsWith("get") || args == null || args.length == 0)
+                return null;
+
+            String value = properties.get(args[0]);
+            Object defaultValue = (args.length > 1) ? args[1] : null;
+
+            if (value == null)
+                return defaultValue;
+
+            Class<?> type = method.getReturnType();
+
+            if (type == Boolean.TYPE)
+                return Boolean.valueOf(value);
+            if (type == Integer.TYPE)
+                return Integer.valueOf(value);
+            if (type == Long.TYPE)
+                return Long.valueOf(value);
+            return value;
+        }
+    }
+
+    /**
+     * Gives directories in {@link #directory}.
+     */
+    private class FileAccessHandler
+        implements InvocationHandler
+    {
+        public Object invoke(Object proxy, Method method, Object[] args)
+        {
+            if (!method.getName().equals("getPrivatePersistentDirectory"))
+                return null;
+
+            File dir = new File(directory, (String) args[0]);
+
+            dir.mkdirs();
+            return dir;
+        }
+    }
+}
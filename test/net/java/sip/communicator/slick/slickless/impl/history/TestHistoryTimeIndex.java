@@ -0,0 +1,142 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.history.*;
+
+/**
+ * Tests that the journal of <tt>HistoryTimeIndex</tt> is loaded back
+ * unchanged after it has been compacted or emptied.
+ */
+public class TestHistoryTimeIndex extends TestCase
+{
+    /**
+     * The directory of the history under test.
+     */
+    private File directory;
+
+    /**
+     * Create a TestHistoryTimeIndex wrapper over the test with the specified
+     * name.
+     * @param name the name of the test to run
+     */
+    public TestHistoryTimeIndex(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Creates an empty history directory.
+     * @throws Exception if anything goes wrong.
+     */
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        directory = File.createTempFile("history", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    /**
+     * Deletes the history directory.
+     * @throws Exception if anything goes wrong.
+     */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        TestSegmentHistoryStore.delete(directory);
+
+        super.tearDown();
+    }
+
+    /**
+     * Overrides the entries of the time index until its journal is
+     * compacted and loads it again.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testReloadAfterCompact() throws Exception
+    {
+        File index = new File(directory, HistoryTimeIndex.INDEX_FILE);
+        HistoryTimeIndex timeIndex = new HistoryTimeIndex(directory);
+
+        for (int i = 0; i < 5; i++)
+            createFile(i + ".seg");
+
+        // every round overrides the 5 entries
+        for (int round = 0; round < 10; round++)
+        {
+            for (int i = 0; i < 5; i++)
+            {
+                timeIndex.put(i + ".seg",
+                    new SegmentSummary(i, i + round, round + 1));
+            }
+        }
+
+        // the journal is compacted before it exceeds 2n + 17 entries
+        long entrySize = 2 + 5 + 8 + 8 + 4 + 8 + 8;
+        assertTrue(index.length() <= 4 + (2 * 5 + 17) * entrySize);
+
+        timeIndex = new HistoryTimeIndex(directory);
+        for (int i = 0; i < 5; i++)
+        {
+            SegmentSummary summary = timeIndex.get(i + ".seg");
+
+            assertNotNull(summary);
+            assertEquals(i, summary.getMinTimestamp());
+            assertEquals(i + 9, summary.getMaxTimestamp());
+            assertEquals(10, summary.getRecordCount());
+        }
+    }
+
+    /**
+     * Removes all the entries of the time index, which leaves a journal with
+     * a header only, then adds one and loads the index again.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testPutAfterRemovingAll() throws Exception
+    {
+        HistoryTimeIndex timeIndex = new HistoryTimeIndex(directory);
+
+        createFile("1.seg");
+        createFile("2.seg");
+        timeIndex.put("1.seg", new SegmentSummary(1, 2, 3));
+        timeIndex.remove(Collections.singleton("1.seg"));
+        timeIndex.put("2.seg", new SegmentSummary(4, 5, 6));
+
+        timeIndex = new HistoryTimeIndex(directory);
+
+        assertNull(timeIndex.get("1.seg"));
+        SegmentSummary summary = timeIndex.get("2.seg");
+        assertNotNull(summary);
+        assertEquals(6, summary.getRecordCount());
+
+        // a changed file is not described by its entry anymore
+        FileOutputStream out
+            = new FileOutputStream(new File(directory, "2.seg"), true);
+        out.write(0);
+        out.close();
+        assertNull(timeIndex.get("2.seg"));
+    }
+
+    /**
+     * Creates an empty file in the history directory.
+     *
+     * @param name the name of the file
+     * @throws IOException if the file cannot be created
+     */
+    private void createFile(String name)
+        throws IOException
+    {
+        new FileOutputStream(new File(directory, name)).close();
+    }
+}
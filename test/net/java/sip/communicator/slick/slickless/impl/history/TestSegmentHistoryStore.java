@@ -0,0 +1,301 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * Tests that the records written by a <tt>SegmentHistoryStore</tt> are read
+ * back unchanged by a new store over the same directory, whether their
+ * segment was sealed, merged by compaction or left with an incomplete record
+ * by a crash.
+ */
+public class TestSegmentHistoryStore extends TestCase
+{
+    /**
+     * The property names of the test records.
+     */
+    private static final String[] PROPERTY_NAMES
+        = new String[] { "dir", "msg" };
+
+    /**
+     * The directory of the history under test.
+     */
+    private File directory;
+
+    /**
+     * Create a TestSegmentHistoryStore wrapper over the test with the
+     * specified name.
+     * @param name the name of the test to run
+     */
+    public TestSegmentHistoryStore(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Creates an empty history directory.
+     * @throws Exception if anything goes wrong.
+     */
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        directory = File.createTempFile("history", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    /**
+     * Deletes the history directory.
+     * @throws Exception if anything goes wrong.
+     */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        delete(directory);
+
+        super.tearDown();
+    }
+
+    /**
+     * Appends records to the current segment and reads them with a new
+     * store.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testAppendAndReopen() throws Exception
+    {
+        SegmentHistoryStore store = new SegmentHistoryStore(directory);
+        List<HistoryRecord> records = createRecords(0, 10);
+
+        List<RecordLocation> locations = store.addRecords(records);
+
+        assertEquals(10, locations.size());
+        assertEquals(9, locations.get(9).getIndex());
+
+        store = new SegmentHistoryStore(directory);
+        List<String> segments = store.getSegments();
+
+        assertEquals(1, segments.size());
+        assertRecords(records, store.readSegment(segments.get(0)));
+        assertRecords(records.subList(3, 7),
+            store.readSegment(segments.get(0), 3, 7));
+
+        SegmentSummary summary = store.getSummary(segments.get(0));
+
+        assertEquals(10, summary.getRecordCount());
+        assertEquals(timestamp(0), summary.getMinTimestamp());
+        assertEquals(timestamp(9), summary.getMaxTimestamp());
+    }
+
+    /**
+     * Fills a segment so that it is sealed when the next record is added,
+     * and reads both segments with a new store.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testSealAndReopen() throws Exception
+    {
+        int max = HistoryWriterImpl.MAX_RECORDS_PER_FILE;
+        SegmentHistoryStore store = new SegmentHistoryStore(directory);
+        List<HistoryRecord> records = createRecords(0, max + 5);
+
+        store.addRecords(records);
+
+        store = new SegmentHistoryStore(directory);
+        List<String> segments = store.getSegments();
+
+        assertEquals(2, segments.size());
+        assertRecords(records.subList(0, max),
+            store.readSegment(segments.get(0)));
+        assertRecords(records.subList(max, max + 5),
+            store.readSegment(segments.get(1)));
+        assertEquals(max, store.getSummary(segments.get(0)).getRecordCount());
+
+        // appending goes on in the unsealed segment
+        store.addRecords(createRecords(max + 5, 1));
+        store = new SegmentHistoryStore(directory);
+
+        assertEquals(2, store.getSegments().size());
+        assertEquals(6, store.readSegment(segments.get(1)).size());
+    }
+
+    /**
+     * Merges sealed segments and reads the compressed segment with a new
+     * store.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testCompactAndReopen() throws Exception
+    {
+        int max = HistoryWriterImpl.MAX_RECORDS_PER_FILE;
+        SegmentHistoryStore store = new SegmentHistoryStore(directory);
+        List<HistoryRecord> records = createRecords(0, 3 * max + 5);
+
+        store.addRecords(records);
+        List<String> segments = store.getSegments();
+
+        assertEquals(4, segments.size());
+
+        List<String> deleted = store.compact(2 * max + 10);
+
+        assertEquals(Collections.singletonList(segments.get(1)), deleted);
+
+        store = new SegmentHistoryStore(directory);
+
+        assertEquals(3, store.getSegments().size());
+        assertRecords(records.subList(0, 2 * max),
+            store.readSegment(segments.get(0)));
+        assertRecords(records.subList(max + 10, max + 20),
+            store.readSegment(segments.get(0), max + 10, max + 20));
+        assertEquals(2 * max,
+            store.getSummary(segments.get(0)).getRecordCount());
+    }
+
+    /**
+     * Leaves an incomplete record at the end of the current segment, as a
+     * crash would, and checks that readers ignore it without changing the
+     * file and that the next append replaces it.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testTailRecovery() throws Exception
+    {
+        SegmentHistoryStore store = new SegmentHistoryStore(directory);
+        List<HistoryRecord> records = createRecords(0, 3);
+
+        store.addRecords(records);
+        String segment = store.getSegments().get(0);
+        File file = new File(directory, segment);
+        long length = file.length();
+
+        // the length of a record followed by a part of it only
+        FileOutputStream out = new FileOutputStream(file, true);
+        try
+        {
+            out.write(new byte[] { 0, 0, 1, 0, 0, 0, 0 });
+        }
+        finally
+        {
+            out.close();
+        }
+
+        store = new SegmentHistoryStore(directory);
+
+        assertRecords(records, store.readSegment(segment));
+        assertEquals(3, store.getSummary(segment).getRecordCount());
+        assertEquals(length + 7, file.length());
+
+        List<HistoryRecord> more = createRecords(3, 2);
+        store.addRecords(more);
+
+        List<HistoryRecord> all = new ArrayList<HistoryRecord>(records);
+        all.addAll(more);
+
+        store = new SegmentHistoryStore(directory);
+        assertRecords(all, store.readSegment(segment));
+    }
+
+    /**
+     * Checks that a segment deleted under the store is reported as unknown
+     * and not created again.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testDeletedSegment() throws Exception
+    {
+        SegmentHistoryStore store = new SegmentHistoryStore(directory);
+
+        store.addRecords(createRecords(0, 3));
+        String segment = store.getSegments().get(0);
+
+        store = new SegmentHistoryStore(directory);
+        File file = new File(directory, segment);
+        assertTrue(file.delete());
+
+        assertTrue(store.getSummary(segment).isUnknown());
+        assertNull(store.readSegment(segment));
+        assertFalse(file.exists());
+    }
+
+    /**
+     * Creates test records with increasing timestamps.
+     *
+     * @param first the number of the first record
+     * @param count the number of records
+     * @return the records
+     */
+    private static List<HistoryRecord> createRecords(int first, int count)
+    {
+        List<HistoryRecord> records = new ArrayList<HistoryRecord>(count);
+
+        for (int i = first; i < first + count; i++)
+        {
+            records.add(new HistoryRecord(
+                PROPERTY_NAMES,
+                new String[] { (i % 2 == 0) ? "in" : "out", "message " + i },
+                new Date(timestamp(i))));
+        }
+        return records;
+    }
+
+    /**
+     * Returns the timestamp of a test record.
+     *
+     * @param i the number of the record
+     * @return the timestamp of the record
+     */
+    private static long timestamp(int i)
+    {
+        return 1000000000000L + i * 1000L;
+    }
+
+    /**
+     * Asserts that the records read have the properties and timestamps of
+     * the records written.
+     *
+     * @param expected the records written
+     * @param actual the records read
+     */
+    private static void assertRecords(List<HistoryRecord> expected,
+                                      List<HistoryRecord> actual)
+    {
+        assertNotNull(actual);
+        assertEquals(expected.size(), actual.size());
+
+        for (int i = 0; i < expected.size(); i++)
+        {
+            HistoryRecord e = expected.get(i);
+            HistoryRecord a = actual.get(i);
+
+            assertEquals(e.getTimestamp(), a.getTimestamp());
+            assertTrue(Arrays.equals(e.getPropertyNames(),
+                a.getPropertyNames()));
+            assertTrue(Arrays.equals(e.getPropertyValues(),
+                a.getPropertyValues()));
+        }
+    }
+
+    /**
+     * Deletes a file or a directory with its content.
+     *
+     * @param file the file to delete
+     */
+    public static void delete(File file)
+    {
+        File[] children = file.listFiles();
+
+        if (children != null)
+        {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,811 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.impl.packetlogging;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.zip.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.packetlogging.*;
+
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.fileaccess.*;
+import org.jitsi.service.packetlogging.*;
+import org.osgi.framework.*;
+
+/**
+ * Starts the packet logging bundle outside of an OSGi framework, with a
+ * configuration service backed by a map and a file access service keeping
+ * the log files in a temporary directory, logs packets through the service
+ * and checks the pcapng files written once the bundle is stopped, as well as
+ * the packets the rules, the sampling and the truncation let through.
+ */
+public class TestPacketLogging extends TestCase
+{
+    /**
+     * The name of the directory of the log files.
+     */
+    private static final String LOG_DIR_NAME = "log";
+
+    /**
+     * The length of the fake ethernet, IPv4 and UDP headers written before
+     * the content of the packets.
+     */
+    private static final int HEADERS_LENGTH = 14 + 20 + 8;
+
+    /**
+     * The prefix of the names of the properties of a protocol.
+     */
+    private static final String PROTOCOL_PREFIX
+        = "net.java.sip.communicator.packetlogging.PACKET_LOGGING_";
+
+    /**
+     * The properties returned by the configuration service.
+     */
+    private final Map<String, String> properties
+        = new HashMap<String, String>();
+
+    /**
+     * The directory of the files given by the file access service.
+     */
+    private File directory;
+
+    /**
+     * The activator of the bundle.
+     */
+    private PacketLoggingActivator activator;
+
+    /**
+     * The bundle context giving the services to the activator.
+     */
+    private BundleContext bundleContext;
+
+    /**
+     * The service registered by the activator, <tt>null</tt> while the
+     * bundle is stopped.
+     */
+    private PacketLoggingService service;
+
+    /**
+     * Create a TestPacketLogging wrapper over the test with the specified
+     * name.
+     * @param name the name of the test to run
+     */
+    public TestPacketLogging(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Creates the directory of the log files and the bundle context, and
+     * configures the pcapng format.
+     * @throws Exception if anything goes wrong.
+     */
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        directory = File.createTempFile("packetlogging", "");
+        directory.delete();
+        directory.mkdirs();
+
+        final Map<String, Object> services = new HashMap<String, Object>();
+        services.put(ConfigurationService.class.getName(),
+            newProxy(ConfigurationService.class, new ConfigurationHandler()));
+        services.put(FileAccessService.class.getName(),
+            newProxy(FileAccessService.class, new FileAccessHandler()));
+
+        bundleContext = newProxy(BundleContext.class, new InvocationHandler()
+        {
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                String name = method.getName();
+
+                // the name of the service stands for its reference
+                if (name.equals("getServiceReference"))
+                    return newServiceReference((String) args[0]);
+                if (name.equals("getService"))
+                    return services.get(args[0].toString());
+                if (name.equals("registerService"))
+                    service = (PacketLoggingService) args[1];
+                return null;
+            }
+        });
+        activator = new PacketLoggingActivator();
+
+        properties.put(
+            PacketLoggingConfigurationImpl
+                .PACKET_LOGGING_FILE_FORMAT_PROPERTY_NAME,
+            PacketLoggingConfigurationImpl.PCAPNG_FORMAT);
+    }
+
+    /**
+     * Stops the bundle if a test left it running and deletes the files.
+     * @throws Exception if anything goes wrong.
+     */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        try
+        {
+            stopLogging();
+        }
+        finally
+        {
+            delete(directory);
+        }
+
+        super.tearDown();
+    }
+
+    /**
+     * Logs a packet and checks the section header block, the interface
+     * description blocks and the enhanced packet block of the file.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testBlockLayout() throws Exception
+    {
+        startLogging();
+        logPacket(PacketLoggingService.ProtocolName.RTP,
+            "10.0.0.1", 5000, "10.0.0.2", 5002, 0, 5);
+        stopLogging();
+
+        List<CapturedPacket> packets = readLogFile("jitsi0.pcapng");
+
+        assertEquals(1, packets.size());
+        CapturedPacket packet = packets.get(0);
+        assertEquals(PacketLoggingService.ProtocolName.RTP, packet.protocol);
+        assertEquals(5, packet.originalLength);
+        assertContent(packet, 0, 5);
+        assertTrue(Math.abs(packet.timestamp / 1000
+            - System.currentTimeMillis()) < 60000);
+
+        // the fake IPv4 and UDP headers carry the addresses and the ports
+        ByteBuffer headers
+            = ByteBuffer.wrap(packet.headers).order(ByteOrder.BIG_ENDIAN);
+        assertTrue(Arrays.equals(
+            address("10.0.0.1"), slice(packet.headers, 26, 4)));
+        assertTrue(Arrays.equals(
+            address("10.0.0.2"), slice(packet.headers, 30, 4)));
+        assertEquals(5000, headers.getShort(34));
+        assertEquals(5002, headers.getShort(36));
+    }
+
+    /**
+     * Logs a packet too big for the buffer of the writer, which is written
+     * directly to the file, between two small ones.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testBigPacket() throws Exception
+    {
+        int bigLength = 300 * 1024 + 1;
+
+        startLogging();
+        logPacket(PacketLoggingService.ProtocolName.SIP,
+            "10.0.0.1", 5060, "10.0.0.2", 5060, 1, 3);
+        logPacket(PacketLoggingService.ProtocolName.SIP,
+            "10.0.0.1", 5060, "10.0.0.2", 5060, 2, bigLength);
+        logPacket(PacketLoggingService.ProtocolName.JABBER,
+            "10.0.0.1", 5222, "10.0.0.2", 5222, 3, 6);
+        stopLogging();
+
+        List<CapturedPacket> packets = readLogFile("jitsi0.pcapng");
+
+        assertEquals(3, packets.size());
+        assertEquals(PacketLoggingService.ProtocolName.SIP,
+            packets.get(0).protocol);
+        assertContent(packets.get(0), 1, 3);
+        assertEquals(PacketLoggingService.ProtocolName.SIP,
+            packets.get(1).protocol);
+        assertContent(packets.get(1), 2, bigLength);
+        assertEquals(PacketLoggingService.ProtocolName.JABBER,
+            packets.get(2).protocol);
+        assertContent(packets.get(2), 3, 6);
+        assertTrue(packets.get(0).timestamp <= packets.get(1).timestamp);
+        assertTrue(packets.get(1).timestamp <= packets.get(2).timestamp);
+    }
+
+    /**
+     * Exceeds the size limit of the files and checks that the rotated file
+     * is compressed and complete.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testRotationWithCompression() throws Exception
+    {
+        properties.put(
+            PacketLoggingConfiguration.PACKET_LOGGING_FILE_SIZE_PROPERTY_NAME,
+            "1");
+        properties.put(
+            PacketLoggingConfigurationImpl.PACKET_LOGGING_COMPRESS_PROPERTY_NAME,
+            "true");
+
+        startLogging();
+        logPacket(PacketLoggingService.ProtocolName.SIP,
+            "10.0.0.1", 5060, "10.0.0.2", 5060, 1, 10);
+        logPacket(PacketLoggingService.ProtocolName.SIP,
+            "10.0.0.1", 5060, "10.0.0.2", 5060, 2, 20);
+        stopLogging();
+
+        assertFalse(getLogFile("jitsi1.pcapng").exists());
+
+        List<CapturedPacket> packets = readLogFile("jitsi1.pcapng.gz");
+        assertEquals(1, packets.size());
+        assertContent(packets.get(0), 1, 10);
+
+        packets = readLogFile("jitsi0.pcapng");
+        assertEquals(1, packets.size());
+        assertContent(packets.get(0), 2, 20);
+    }
+
+    /**
+     * Checks that a packet is captured if its source or destination port
+     * matches.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testPortRule() throws Exception
+    {
+        PacketLoggingService.ProtocolName sip
+            = PacketLoggingService.ProtocolName.SIP;
+
+        startFilteredLogging();
+        logPacket(sip, "192.168.0.2", 5060, "192.168.0.3", 40000, 1, 100);
+        logPacket(sip, "192.168.0.2", 40000, "192.168.0.3", 5060, 2, 100);
+        logPacket(sip, "192.168.0.2", 5061, "192.168.0.3", 40000, 3, 100);
+        stopLogging();
+
+        assertTags(readLogFile("jitsi0.pcapng"), 1, 2);
+    }
+
+    /**
+     * Checks that a packet is captured if its source or destination address
+     * is in one of the networks or is one of the hosts.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testAddressRules() throws Exception
+    {
+        PacketLoggingService.ProtocolName jabber
+            = PacketLoggingService.ProtocolName.JABBER;
+        String other = "192.168.0.2";
+
+        startFilteredLogging();
+        logPacket(jabber, "10.1.2.3", 5222, other, 5222, 1, 100);
+        logPacket(jabber, other, 5222, "10.255.255.255", 5222, 2, 100);
+        logPacket(jabber, other, 5222, "192.168.0.1", 5222, 3, 100);
+        logPacket(jabber, "172.31.0.1", 5222, other, 5222, 4, 100);
+        logPacket(jabber, "11.0.0.1", 5222, other, 5222, 5, 100);
+        logPacket(jabber, "172.32.0.1", 5222, other, 5222, 6, 100);
+        logPacket(jabber, "2001:db8::1", 5222, "fe80::1", 5222, 7, 100);
+        stopLogging();
+
+        assertTags(readLogFile("jitsi0.pcapng"), 1, 2, 3, 4);
+    }
+
+    /**
+     * Checks that one packet in N is captured, the first one included.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testSampling() throws Exception
+    {
+        startFilteredLogging();
+        for (int i = 0; i < 9; i++)
+        {
+            logPacket(PacketLoggingService.ProtocolName.RTP,
+                "192.168.0.2", 5000, "192.168.0.3", 5002, i, 172);
+        }
+        stopLogging();
+
+        assertTags(readLogFile("jitsi0.pcapng"), 0, 3, 6);
+    }
+
+    /**
+     * Checks that the content of packets is truncated to the payload limit
+     * while their original length is kept, and that invalid rules are
+     * ignored.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testTruncation() throws Exception
+    {
+        PacketLoggingService.ProtocolName ice4j
+            = PacketLoggingService.ProtocolName.ICE4J;
+
+        startFilteredLogging();
+        logPacket(ice4j, "192.168.0.2", 1, "192.168.0.3", 2, 1, 1500);
+        logPacket(ice4j, "192.168.0.2", 1, "192.168.0.3", 2, 2, 12);
+        logPacket(ice4j, "192.168.0.2", 1, "192.168.0.3", 2, 3, 8);
+        // no limit for the other protocols
+        logPacket(PacketLoggingService.ProtocolName.SIP,
+            "192.168.0.2", 5060, "192.168.0.3", 5060, 4, 1500);
+        stopLogging();
+
+        List<CapturedPacket> packets = readLogFile("jitsi0.pcapng");
+
+        assertEquals(4, packets.size());
+        assertContent(packets.get(0), 1, 12);
+        assertEquals(1500, packets.get(0).originalLength);
+        assertContent(packets.get(1), 2, 12);
+        assertEquals(12, packets.get(1).originalLength);
+        assertContent(packets.get(2), 3, 8);
+        assertEquals(8, packets.get(2).originalLength);
+        assertContent(packets.get(3), 4, 1500);
+        assertEquals(1500, packets.get(3).originalLength);
+    }
+
+    /**
+     * Starts the bundle capturing the SIP packets of port 5060, the Jabber
+     * packets of two networks and a host, one RTP packet in 3 and the first
+     * 12 bytes of ICE4J packets.
+     *
+     * @throws Exception if the bundle fails to start
+     */
+    private void startFilteredLogging()
+        throws Exception
+    {
+        setProperty(PacketLoggingService.ProtocolName.SIP,
+            PacketLoggingConfigurationImpl.FILTER_PROPERTY_SUFFIX,
+            "port 5060");
+        setProperty(PacketLoggingService.ProtocolName.JABBER,
+            PacketLoggingConfigurationImpl.FILTER_PROPERTY_SUFFIX,
+            "net 10.0.0.0/8, host 192.168.0.1, net 172.16.0.0/12");
+        setProperty(PacketLoggingService.ProtocolName.RTP,
+            PacketLoggingConfigurationImpl.SAMPLING_RATE_PROPERTY_SUFFIX,
+            "3");
+        setProperty(PacketLoggingService.ProtocolName.ICE4J,
+            PacketLoggingConfigurationImpl.MAX_PAYLOAD_LENGTH_PROPERTY_SUFFIX,
+            "12");
+        setProperty(PacketLoggingService.ProtocolName.ICE4J,
+            PacketLoggingConfigurationImpl.FILTER_PROPERTY_SUFFIX,
+            "invalid rule, host not.an.address");
+        startLogging();
+    }
+
+    /**
+     * Sets a property of a protocol.
+     *
+     * @param protocol the protocol
+     * @param suffix the suffix of the name of the property
+     * @param value the value of the property
+     */
+    private void setProperty(PacketLoggingService.ProtocolName protocol,
+                             String suffix,
+                             String value)
+    {
+        properties.put(PROTOCOL_PREFIX + protocol.name() + suffix, value);
+    }
+
+    /**
+     * Starts the bundle with the properties set so far.
+     *
+     * @throws Exception if the bundle fails to start
+     */
+    private void startLogging()
+        throws Exception
+    {
+        activator.start(bundleContext);
+        assertNotNull(service);
+    }
+
+    /**
+     * Stops the bundle, which writes the packets still queued and closes the
+     * log file.
+     *
+     * @throws Exception if the bundle fails to stop
+     */
+    private void stopLogging()
+        throws Exception
+    {
+        if (service != null)
+        {
+            service = null;
+            activator.stop(bundleContext);
+        }
+    }
+
+    /**
+     * Logs a UDP packet whose content is made of numbered bytes, starting
+     * with <tt>tag</tt>.
+     *
+     * @param protocol the protocol logging the packet
+     * @param source the source address
+     * @param sourcePort the source port
+     * @param destination the destination address
+     * @param destinationPort the destination port
+     * @param tag the first byte of the content
+     * @param length the length of the packet
+     * @throws UnknownHostException if an address is not an IP address
+     */
+    private void logPacket(PacketLoggingService.ProtocolName protocol,
+                           String source,
+                           int sourcePort,
+                           String destination,
+                           int destinationPort,
+                           int tag,
+                           int length)
+        throws UnknownHostException
+    {
+        byte[] content = new byte[length];
+
+        for (int i = 0; i < length; i++)
+            content[i] = (byte) (tag + i);
+
+        service.logPacket(protocol,
+            address(source), sourcePort,
+            address(destination), destinationPort,
+            PacketLoggingService.TransportName.UDP, true,
+            content);
+    }
+
+    /**
+     * Asserts that the packets captured are the ones logged with the given
+     * tags, in order.
+     *
+     * @param packets the packets read from a log file
+     * @param tags the first bytes of the contents of the packets
+     */
+    private static void assertTags(List<CapturedPacket> packets,
+                                   int... tags)
+    {
+        assertEquals(tags.length, packets.size());
+
+        for (int i = 0; i < tags.length; i++)
+        {
+            assertEquals("packet " + i,
+                (byte) tags[i], packets.get(i).content[0]);
+        }
+    }
+
+    /**
+     * Asserts that the content of a packet is made of numbered bytes.
+     *
+     * @param packet the packet read from a log file
+     * @param tag the first byte of the content
+     * @param length the captured length of the content
+     */
+    private static void assertContent(CapturedPacket packet,
+                                      int tag,
+                                      int length)
+    {
+        assertEquals(length, packet.content.length);
+
+        for (int i = 0; i < length; i++)
+        {
+            assertEquals("content byte " + i,
+                (byte) (tag + i), packet.content[i]);
+        }
+    }
+
+    /**
+     * Returns a log file in the directory of the file access service.
+     *
+     * @param name the name of the log file
+     * @return the log file
+     */
+    private File getLogFile(String name)
+    {
+        return new File(new File(directory, LOG_DIR_NAME), name);
+    }
+
+    /**
+     * Reads a log file and checks its section header block and interface
+     * description blocks.
+     *
+     * @param name the name of the log file
+     * @return the packets of the file, in order
+     * @throws IOException if the file cannot be read
+     */
+    private List<CapturedPacket> readLogFile(String name)
+        throws IOException
+    {
+        ByteBuffer file = read(getLogFile(name));
+        List<CapturedPacket> packets = new ArrayList<CapturedPacket>();
+
+        assertSectionHeader(file);
+        assertInterfaces(file);
+        while (file.hasRemaining())
+            packets.add(readPacket(file));
+        return packets;
+    }
+
+    /**
+     * Checks the section header block at the position of <tt>file</tt>.
+     *
+     * @param file the content of the file
+     */
+    private static void assertSectionHeader(ByteBuffer file)
+    {
+        assertEquals(0x0a0d0d0a, file.getInt());
+        assertEquals(28, file.getInt());
+        assertEquals(0x1a2b3c4d, file.getInt());
+        assertEquals(1, file.getShort());
+        assertEquals(0, file.getShort());
+        assertEquals(-1L, file.getLong());
+        assertEquals(28, file.getInt());
+    }
+
+    /**
+     * Checks that an interface description block named after every protocol
+     * follows, in the order of the protocols.
+     *
+     * @param file the content of the file
+     */
+    private static void assertInterfaces(ByteBuffer file)
+    {
+        for (PacketLoggingService.ProtocolName protocol
+                : PacketLoggingService.ProtocolName.values())
+        {
+            int start = file.position();
+            byte[] name = protocol.name().getBytes();
+
+            assertEquals(1, file.getInt());
+            int blockLength = file.getInt();
+            assertEquals(0, blockLength % 4);
+            assertEquals(1, file.getShort());// ethernet
+            assertEquals(0, file.getShort());
+            assertEquals(0, file.getInt());
+
+            assertEquals(2, file.getShort());// if_name
+            assertEquals(name.length, file.getShort());
+            byte[] actualName = new byte[name.length];
+            file.get(actualName);
+            assertTrue(Arrays.equals(name, actualName));
+            skipPadding(file, name.length);
+            assertEquals(0, file.getInt());// opt_endofopt
+
+            assertEquals(blockLength, file.getInt());
+            assertEquals(blockLength, file.position() - start);
+        }
+    }
+
+    /**
+     * Reads the enhanced packet block at the position of <tt>file</tt> and
+     * checks its lengths and padding.
+     *
+     * @param file the content of the file
+     * @return the packet of the block
+     */
+    private static CapturedPacket readPacket(ByteBuffer file)
+    {
+        int start = file.position();
+        CapturedPacket packet = new CapturedPacket();
+
+        assertEquals(6, file.getInt());
+        int blockLength = file.getInt();
+        assertEquals(0, blockLength % 4);
+        packet.protocol
+            = PacketLoggingService.ProtocolName.values()[file.getInt()];
+        packet.timestamp
+            = ((file.getInt() & 0xffffffffL) << 32)
+                | (file.getInt() & 0xffffffffL);
+        int capturedLength = file.getInt();
+        packet.originalLength = file.getInt() - HEADERS_LENGTH;
+
+        packet.headers = new byte[HEADERS_LENGTH];
+        file.get(packet.headers);
+        packet.content = new byte[capturedLength - HEADERS_LENGTH];
+        file.get(packet.content);
+        skipPadding(file, capturedLength);
+
+        assertEquals(blockLength, file.getInt());
+        assertEquals(blockLength, file.position() - start);
+        return packet;
+    }
+
+    /**
+     * Checks that zero bytes align <tt>length</tt> bytes to 32 bits.
+     *
+     * @param file the content of the file
+     * @param length the length of the padded data
+     */
+    private static void skipPadding(ByteBuffer file, int length)
+    {
+        for (int i = length; i % 4 != 0; i++)
+            assertEquals(0, file.get());
+    }
+
+    /**
+     * Reads a file, inflating it if it is compressed.
+     *
+     * @param file the file to read
+     * @return the content of the file, in little endian byte order
+     * @throws IOException if the file cannot be read
+     */
+    private static ByteBuffer read(File file)
+        throws IOException
+    {
+        InputStream in = new FileInputStream(file);
+
+        if (file.getName().endsWith(".gz"))
+            in = new GZIPInputStream(in);
+
+        try
+        {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] bytes = new byte[8192];
+            int read;
+
+            while ((read = in.read(bytes)) != -1)
+                content.write(bytes, 0, read);
+
+            return ByteBuffer.wrap(content.toByteArray())
+                .order(ByteOrder.LITTLE_ENDIAN);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the bytes of an IP address.
+     *
+     * @param address the textual IP address
+     * @return the bytes of the address
+     * @throws UnknownHostException if <tt>address</tt> is not an IP address
+     */
+    private static byte[] address(String address)
+        throws UnknownHostException
+    {
+        return InetAddress.getByName(address).getAddress();
+    }
+
+    /**
+     * Copies a part of an array.
+     *
+     * @param bytes the array
+     * @param offset the start of the part
+     * @param length the length of the part
+     * @return the part
+     */
+    private static byte[] slice(byte[] bytes, int offset, int length)
+    {
+        byte[] slice = new byte[length];
+
+        System.arraycopy(bytes, offset, slice, 0, length);
+        return slice;
+    }
+
+    /**
+     * Creates a reference to a service which is its name.
+     *
+     * @param serviceName the name of the service
+     * @return the reference
+     */
+    private static ServiceReference newServiceReference(
+        final String serviceName)
+    {
+        return newProxy(ServiceReference.class, new InvocationHandler()
+        {
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                if (method.getName().equals("toString"))
+                    return serviceName;
+                if (method.getName().equals("hashCode"))
+                    return serviceName.hashCode();
+                if (method.getName().equals("equals"))
+                    return proxy == args[0];
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Creates a proxy implementing an interface.
+     *
+     * @param type the interface
+     * @param handler the handler of the calls
+     * @return the proxy
+     */
+    private static <T> T newProxy(Class<T> type, InvocationHandler handler)
+    {
+        return type.cast(java.lang.reflect.Proxy.newProxyInstance(
+            TestPacketLogging.class.getClassLoader(),
+            new Class<?>[] { type },
+            handler));
+    }
+
+    /**
+     * Deletes a file or a directory with its content.
+     *
+     * @param file the file to delete
+     */
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+
+        if (children != null)
+        {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    /**
+     * A packet read from a log file.
+     */
+    private static class CapturedPacket
+    {
+        /**
+         * The protocol of the interface of the packet.
+         */
+        PacketLoggingService.ProtocolName protocol;
+
+        /**
+         * The time the packet was logged, in microseconds since the epoch.
+         */
+        long timestamp;
+
+        /**
+         * The length of the content of the packet before it was truncated.
+         */
+        int originalLength;
+
+        /**
+         * The fake ethernet, IPv4 and UDP headers of the packet.
+         */
+        byte[] headers;
+
+        /**
+         * The captured content of the packet.
+         */
+        byte[] content;
+    }
+
+    /**
+     * Answers the getters of the configuration service from
+     * {@link #properties}, or with the given default values.
+     */
+    private class ConfigurationHandler
+        implements InvocationHandler
+    {
+        public Object invoke(Object proxy, Method method, Object[] args)
+        {
+            String name = method.getName();
+
+            if (!name.startsWith("get") || args == null || args.length == 0)
+                return null;
+
+            String value = properties.get(args[0]);
+            Object defaultValue = (args.length > 1) ? args[1] : null;
+
+            if (value == null)
+                return defaultValue;
+
+            Class<?> type = method.getReturnType();
+
+            if (type == Boolean.TYPE)
+                return Boolean.valueOf(value);
+            if (type == Integer.TYPE)
+                return Integer.valueOf(value);
+            if (type == Long.TYPE)
+                return Long.valueOf(value);
+            return value;
+        }
+    }
+
+    /**
+     * Gives files in {@link #directory}.
+     */
+    private class FileAccessHandler
+        implements InvocationHandler
+    {
+        public Object invoke(Object proxy, Method method, Object[] args)
+        {
+            if (!method.getName().equals("getPrivatePersistentFile"))
+                return null;
+
+            File file = new File(directory, (String) args[0]);
+
+            file.getParentFile().mkdirs();
+            return file;
+        }
+    }
+}
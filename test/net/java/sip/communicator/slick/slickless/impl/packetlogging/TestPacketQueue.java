@@ -0,0 +1,217 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.impl.packetlogging;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.packetlogging.*;
+
+import org.jitsi.service.packetlogging.*;
+
+/**
+ * Tests the batches taken from a <tt>PacketQueue</tt> and its policies when
+ * it is full or closed.
+ */
+public class TestPacketQueue extends TestCase
+{
+    /**
+     * The content of the test packets.
+     */
+    private static final byte[] CONTENT = new byte[] { 0, 1, 2, 3 };
+
+    /**
+     * Create a TestPacketQueue wrapper over the test with the specified
+     * name.
+     * @param name the name of the test to run
+     */
+    public TestPacketQueue(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Queues packets around the end of the ring and checks that every slot
+     * can be used again once released.
+     */
+    public void testBatchesWrapAround()
+    {
+        PacketQueue queue = new PacketQueue(4, false);
+
+        for (int i = 0; i < 3; i++)
+            assertTrue(add(queue));
+        assertEquals(3, queue.take());
+        queue.release(3);
+
+        for (int i = 0; i < 4; i++)
+            assertTrue(add(queue));
+        assertEquals(4, queue.take());
+        queue.release(2);
+        assertEquals(2, queue.take());
+        queue.release(2);
+
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+    /**
+     * Fills the queue and checks that the next packets are dropped and
+     * counted until slots are released.
+     */
+    public void testDropWhenFull()
+    {
+        PacketQueue queue = new PacketQueue(2, false);
+
+        assertTrue(add(queue));
+        assertTrue(add(queue));
+        assertFalse(add(queue));
+        assertFalse(add(queue));
+        assertEquals(2, queue.getDroppedCount());
+
+        assertEquals(2, queue.take());
+        queue.release(1);
+        assertTrue(add(queue));
+        assertEquals(2, queue.take());
+    }
+
+    /**
+     * Fills a blocking queue and checks that a producer waits until the
+     * consumer releases a slot.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testBlockWhenFull() throws Exception
+    {
+        PacketQueue queue = new PacketQueue(1, true);
+
+        assertTrue(add(queue));
+
+        Producer producer = new Producer(queue);
+        producer.start();
+        producer.join(200);
+        assertTrue(producer.isAlive());
+
+        assertEquals(1, queue.take());
+        queue.release(1);
+        producer.join(5000);
+
+        assertFalse(producer.isAlive());
+        assertTrue(producer.added);
+        assertEquals(1, queue.take());
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+    /**
+     * Blocks a producer on a full queue whose consumer then dies without
+     * releasing anything, and checks that closing the queue, as the
+     * consumer does when it ends, makes the producer drop its packet.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testConsumerDiedWhileBlocking() throws Exception
+    {
+        final PacketQueue queue = new PacketQueue(1, true);
+
+        assertTrue(add(queue));
+
+        Producer producer = new Producer(queue);
+        producer.start();
+
+        Thread consumer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    queue.take();
+                    throw new IllegalStateException("consumer died");
+                }
+                finally
+                {
+                    queue.close();
+                }
+            }
+        };
+        consumer.setUncaughtExceptionHandler(
+            new Thread.UncaughtExceptionHandler()
+            {
+                public void uncaughtException(Thread t, Throwable e)
+                {
+                    // expected
+                }
+            });
+        consumer.start();
+        consumer.join(5000);
+        producer.join(5000);
+
+        assertFalse(producer.isAlive());
+        assertFalse(producer.added);
+        assertEquals(1, queue.getDroppedCount());
+
+        // later producers do not wait either
+        assertFalse(add(queue));
+        assertEquals(2, queue.getDroppedCount());
+    }
+
+    /**
+     * Closes the queue and checks that the queued packets can still be
+     * taken while new ones are dropped.
+     */
+    public void testClose()
+    {
+        PacketQueue queue = new PacketQueue(4, true);
+
+        assertTrue(add(queue));
+        queue.close();
+
+        assertTrue(queue.isClosed());
+        assertFalse(add(queue));
+        assertEquals(1, queue.getDroppedCount());
+        assertEquals(1, queue.take());
+        queue.release(1);
+        assertEquals(0, queue.take());
+    }
+
+    /**
+     * Queues a SIP packet.
+     *
+     * @param queue the queue
+     * @return <tt>true</tt> if the packet was queued
+     */
+    private static boolean add(PacketQueue queue)
+    {
+        return queue.add(PacketLoggingService.ProtocolName.SIP,
+            new byte[] { 10, 0, 0, 1 }, 5060,
+            new byte[] { 10, 0, 0, 2 }, 5060,
+            PacketLoggingService.TransportName.UDP, true,
+            CONTENT, 0, CONTENT.length, CONTENT.length);
+    }
+
+    /**
+     * Queues a packet in its own thread.
+     */
+    private static class Producer
+        extends Thread
+    {
+        /**
+         * The queue to add to.
+         */
+        private final PacketQueue queue;
+
+        /**
+         * Whether the packet was queued.
+         */
+        volatile boolean added;
+
+        Producer(PacketQueue queue)
+        {
+            this.queue = queue;
+        }
+
+        @Override
+        public void run()
+        {
+            added = add(queue);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.service.history;
+
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.history.*;
+
+/**
+ * Tests the order, the limit and the laziness of a
+ * <tt>MergedQueryResultSet</tt>.
+ */
+public class TestMergedQueryResultSet extends TestCase
+{
+    /**
+     * Create a TestMergedQueryResultSet wrapper over the test with the
+     * specified name.
+     * @param name the name of the test to run
+     */
+    public TestMergedQueryResultSet(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Merges sorted sources, one of them empty, and walks the result set
+     * forwards and backwards.
+     */
+    public void testMerge()
+    {
+        MergedQueryResultSet<Integer> result = merge(Integer.MAX_VALUE,
+            new CountingIterator(1, 4, 7),
+            new CountingIterator(),
+            new CountingIterator(2, 3, 8, 9));
+
+        assertEquals(Arrays.asList(1, 2, 3, 4, 7, 8, 9), toList(result));
+        assertFalse(result.hasNext());
+
+        assertEquals(Integer.valueOf(8), result.prev());
+        assertEquals(Integer.valueOf(7), result.prevRecord());
+        assertEquals(Integer.valueOf(8), result.next());
+    }
+
+    /**
+     * Checks that no more than the limit is returned and that the sources
+     * are only read as far as the returned elements need.
+     */
+    public void testLimit()
+    {
+        CountingIterator first = new CountingIterator(1, 2, 3, 4, 5);
+        CountingIterator second = new CountingIterator(10, 20, 30);
+        MergedQueryResultSet<Integer> result = merge(3, first, second);
+
+        assertEquals(1, first.read);
+        assertEquals(1, second.read);
+
+        assertEquals(Arrays.asList(1, 2, 3), toList(result));
+        assertFalse(result.hasNext());
+        assertEquals(4, first.read);
+        assertEquals(1, second.read);
+
+        try
+        {
+            result.next();
+            fail("An element was returned beyond the limit");
+        }
+        catch (NoSuchElementException e)
+        {
+            // expected
+        }
+    }
+
+    /**
+     * Checks that equal elements are returned in the order of their sources.
+     */
+    public void testEqualElements()
+    {
+        List<Iterator<String>> sources = new ArrayList<Iterator<String>>();
+
+        sources.add(Arrays.asList("a1", "b1").iterator());
+        sources.add(Arrays.asList("a2", "b2", "c2").iterator());
+        sources.add(Arrays.asList("b3").iterator());
+
+        // the elements are only compared on their first letter
+        MergedQueryResultSet<String> result = new MergedQueryResultSet<String>(
+            sources,
+            new Comparator<String>()
+            {
+                public int compare(String s1, String s2)
+                {
+                    return s1.charAt(0) - s2.charAt(0);
+                }
+            },
+            Integer.MAX_VALUE);
+        List<String> merged = new ArrayList<String>();
+
+        while (result.hasNext())
+            merged.add(result.next());
+        assertEquals(Arrays.asList("a1", "a2", "b1", "b2", "b3", "c2"),
+            merged);
+    }
+
+    /**
+     * Merges sources in ascending order.
+     *
+     * @param limit the maximum number of elements to return
+     * @param sources the sources to merge
+     * @return the merged result set
+     */
+    private static MergedQueryResultSet<Integer> merge(int limit,
+        CountingIterator... sources)
+    {
+        return new MergedQueryResultSet<Integer>(Arrays.asList(sources),
+            new Comparator<Integer>()
+            {
+                public int compare(Integer i1, Integer i2)
+                {
+                    return i1.compareTo(i2);
+                }
+            },
+            limit);
+    }
+
+    /**
+     * Returns the elements left in a result set.
+     *
+     * @param result the result set
+     * @return its next elements
+     */
+    private static List<Integer> toList(QueryResultSet<Integer> result)
+    {
+        List<Integer> list = new ArrayList<Integer>();
+
+        while (result.hasNext())
+            list.add(result.nextRecord());
+        return list;
+    }
+
+    /**
+     * An iterator over integers counting the elements read from it.
+     */
+    private static class CountingIterator
+        implements Iterator<Integer>
+    {
+        /**
+         * The elements of the iterator.
+         */
+        private final Iterator<Integer> elements;
+
+        /**
+         * The number of elements read.
+         */
+        int read;
+
+        CountingIterator(Integer... elements)
+        {
+            this.elements = Arrays.asList(elements).iterator();
+        }
+
+        public boolean hasNext()
+        {
+            return elements.hasNext();
+        }
+
+        public Integer next()
+        {
+            read++;
+            return elements.next();
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.util;
+
+import java.util.*;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import junit.framework.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Tests that the records prepared by <tt>ScLogFormatter</tt> to be formatted
+ * by another thread name the class and method which logged them.
+ */
+public class TestScLogFormatter extends TestCase
+{
+    /**
+     * The formatter under test.
+     */
+    private ScLogFormatter formatter;
+
+    /**
+     * Create a TestScLogFormatter wrapper over the test with the specified
+     * name.
+     * @param name the name of the test to run
+     */
+    public TestScLogFormatter(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Creates the formatter.
+     * @throws Exception if anything goes wrong.
+     */
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        formatter = new ScLogFormatter();
+    }
+
+    /**
+     * Prepares a record whose class and method were set by the code which
+     * created it, and checks that they are kept.
+     */
+    public void testSourceKept()
+    {
+        LogRecord record = new LogRecord(Level.WARNING, "message");
+        record.setLoggerName("net.java.sip.communicator.util.FileHandler");
+        record.setSourceClassName("net.java.sip.communicator.Source");
+        record.setSourceMethodName("run");
+
+        LogRecord prepared = formatter.prepareForAsyncFormat(record);
+
+        assertEquals("net.java.sip.communicator.Source",
+            prepared.getSourceClassName());
+        assertEquals("run", prepared.getSourceMethodName());
+        assertTrue(formatter.format(prepared).contains(
+            "util.FileHandler.run() message"));
+    }
+
+    /**
+     * Logs through our <tt>Logger</tt> and checks that the prepared record
+     * names this test as its caller, with the line of the call.
+     */
+    public void testCallerInferred()
+    {
+        Logger logger = Logger.getLogger(TestScLogFormatter.class);
+        java.util.logging.Logger julLogger
+            = java.util.logging.Logger.getLogger(
+                TestScLogFormatter.class.getName());
+        final List<LogRecord> prepared = new ArrayList<LogRecord>();
+        Handler handler = new Handler()
+        {
+            @Override
+            public void publish(LogRecord record)
+            {
+                prepared.add(formatter.prepareForAsyncFormat(record));
+            }
+
+            @Override
+            public void flush()
+            {
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        };
+
+        julLogger.setUseParentHandlers(false);
+        julLogger.addHandler(handler);
+        try
+        {
+            logger.info("message");
+        }
+        finally
+        {
+            julLogger.removeHandler(handler);
+            julLogger.setUseParentHandlers(true);
+        }
+
+        assertEquals(1, prepared.size());
+
+        LogRecord record = prepared.get(0);
+        assertEquals(TestScLogFormatter.class.getName(),
+            record.getSourceClassName());
+        assertEquals("testCallerInferred", record.getSourceMethodName());
+        assertTrue(formatter.format(record).matches(
+            "(?s).*testCallerInferred\\(\\)\\.\\d+ message.*"));
+    }
+}